@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2015 Christian Chevalley
+ * This file is part of Project Ethercis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+//Copyright
+package com.ethercis.authenticate;
+
+import com.ethercis.servicemanager.common.I_SessionClientProperties;
+import com.ethercis.servicemanager.common.security.I_Permission;
+import com.ethercis.servicemanager.common.session.I_ContextHolder;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Authorization decisions of a principal.<p>
+ * A decision depends on the method, the target (tag and resource) and the values of the parameters
+ * referenced by the principal permissions, the other request parameters are not part of the key.
+ * Each value is length prefixed in the key, a missing value has its own marker, so that distinct
+ * requests cannot share a key whatever their values contain.<br>
+ * All caches are invalidated at once when the policy is (re)loaded by calling {@link #invalidateAll()}.
+ * @author C.Chevalley
+ *
+ */
+public class DecisionCache {
+
+	private static final char MISSING = '-';
+	private static final AtomicLong generation = new AtomicLong();
+	private static final AtomicLong hits = new AtomicLong();
+	private static final AtomicLong misses = new AtomicLong();
+
+	private final int maxEntries;
+	private final Map<String, Boolean> decisions;
+	private long cacheGeneration = -1;
+	private String[] parameterKeys;
+
+	public DecisionCache(final int maxEntries) {
+		this.maxEntries = maxEntries;
+		this.decisions = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+				return size() > maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * invalidate the decisions of all principals, to call whenever permissions or rights are changed
+	 */
+	public static void invalidateAll(){
+		generation.incrementAndGet();
+	}
+
+	/**
+	 * build the decision key of a request for a list of permissions<p>
+	 * @param holder
+	 * @param permissions
+	 * @return the key
+	 */
+	public synchronized String key(I_ContextHolder holder, List<I_Permission> permissions){
+		checkGeneration(permissions);
+
+		StringBuilder key = new StringBuilder();
+		append(key, holder.getMethod() != null ? holder.getMethod().getMethodName() : null);
+		append(key, holder.getQueryUnit().getTag());
+		append(key, holder.getQueryUnit().getResource());
+
+		//the parameter keys are the same for all the keys of a generation
+		I_SessionClientProperties parms = holder.getQueryUnit().getParameters();
+		for (String parameterKey: parameterKeys)
+			append(key, parms != null ? parms.getClientProperty(parameterKey, (String)null) : null);
+		return key.toString();
+	}
+
+	private static void append(StringBuilder key, String value){
+		if (value == null)
+			key.append(MISSING);
+		else
+			key.append(value.length()).append(':').append(value);
+	}
+
+	public synchronized Boolean get(String key){
+		if (cacheGeneration != generation.get())
+			return null;
+		Boolean decision = decisions.get(key);
+		if (decision == null)
+			misses.incrementAndGet();
+		else
+			hits.incrementAndGet();
+		return decision;
+	}
+
+	public synchronized void put(String key, boolean decision){
+		if (maxEntries > 0 && cacheGeneration == generation.get())
+			decisions.put(key, decision);
+	}
+
+	private void checkGeneration(List<I_Permission> permissions){
+		long current = generation.get();
+		if (cacheGeneration == current && parameterKeys != null)
+			return;
+
+		decisions.clear();
+		TreeSet<String> keys = new TreeSet<String>();
+		for (I_Permission permission: permissions){
+			if (permission.getParameters() != null)
+				keys.addAll(permission.getParameters().keySet());
+		}
+		parameterKeys = keys.toArray(new String[0]);
+		cacheGeneration = current;
+	}
+
+	public static String status(){
+		long lookups = hits.get() + misses.get();
+		return "Authorization decisions: hits=" + hits.get() + " misses=" + misses.get()
+				+ " hit rate=" + (lookups > 0 ? (hits.get() * 100 / lookups) : 0) + "% policy generation=" + generation.get() + "\n";
+	}
+}
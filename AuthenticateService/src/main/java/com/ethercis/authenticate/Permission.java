@@ -25,7 +25,6 @@ import org.apache.logging.log4j.Logger;
 
 import java.io.Serializable;
 import java.util.*;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
@@ -44,16 +43,23 @@ public abstract class Permission implements Serializable, Cloneable, Comparable,
 	protected String name;
 	protected MethodName action;
 	protected String objectName;
+	protected String filter;
 	protected Pattern pattern;
 	protected Map<String, List<String>> parameters = new HashMap<String, List<String>>();
 	protected List<String> granted = new LinkedList<String>();
 	protected List<String> revoked = new LinkedList<String>();
+
+	//patterns compiled on first evaluation, a permission is generally evaluated many times
+	private transient volatile Pattern objectNamePattern;
+	private transient volatile Map<String, List<Pattern>> parameterPatterns;
 	
 	public Permission() {
 		super();
 	}
 	
 	protected void setParameterMap(Map<String, List<String>> map, String key, String value){
+		if (map == parameters)
+			parameterPatterns = null;
 		if (map.containsKey(key)){
 			List<String> list = map.get(key);
 			list.add(value);
@@ -77,10 +83,8 @@ public abstract class Permission implements Serializable, Cloneable, Comparable,
 		this.name = name;
 		this.action = action;
 		this.objectName = objectName;
-		if (pattern == null)
-			this.pattern = null;
-		else
-			this.pattern = Pattern.compile(pattern);
+		//the pattern is compiled when the permission is evaluated against another one
+		this.filter = pattern;
 		if (parameters != null)
 			for (String key: parameters.keySet())
 				setParameterMap(this.parameters, key, parameters.get(key));
@@ -107,25 +111,39 @@ public abstract class Permission implements Serializable, Cloneable, Comparable,
 	 */
 	private boolean evaluatePattern(Pattern thisOne, List<String> regexplist){
 		for (String withThisRegEx: regexplist){
-			Matcher m = thisOne.matcher(withThisRegEx);
-			logger.debug("pattern to check access="+withThisRegEx);
-			logger.debug(" path to check:"+thisOne);
-			boolean b = m.matches();
-			logger.debug("access decision="+b);
+			boolean b = thisOne.matcher(withThisRegEx).matches();
+			if (logger.isDebugEnabled())
+				logger.debug("pattern to check access="+withThisRegEx+" path to check:"+thisOne+" access decision="+b);
 			if (b)
 				return b;
 		}
 		return false;
 	}
-	/**
-	 * evaluate if two regular expressions match<p>
-	 * @param regexp1
-	 * @param regexp2
-	 * @return true if match
-	 */
-	private boolean evaluatePattern(String regexp1, String regexp2){
-		return Pattern.matches(regexp1, regexp2);
+
+	private Pattern getObjectNamePattern(){
+		Pattern compiled = objectNamePattern;
+		if (compiled == null || !compiled.pattern().equals(objectName)) {
+			compiled = Pattern.compile(objectName);
+			objectNamePattern = compiled;
+		}
+		return compiled;
 	}
+
+	private Map<String, List<Pattern>> getParameterPatterns(){
+		Map<String, List<Pattern>> compiled = parameterPatterns;
+		if (compiled == null) {
+			compiled = new HashMap<String, List<Pattern>>();
+			for (Map.Entry<String, List<String>> entry: parameters.entrySet()){
+				List<Pattern> patterns = new ArrayList<Pattern>();
+				for (String regex: entry.getValue())
+					patterns.add(Pattern.compile(regex));
+				compiled.put(entry.getKey(), patterns);
+			}
+			parameterPatterns = compiled;
+		}
+		return compiled;
+	}
+
 	/* (non-Javadoc)
 	 * @see com.ethercis.party.I_Permission#implies(com.ethercis.party.I_Permission)
 	 */
@@ -148,25 +166,22 @@ public abstract class Permission implements Serializable, Cloneable, Comparable,
 		}
 		//check if this permission has the same object logonservice a target
 		if (getObjectName() != null){
-			String objectNamePattern1 = getObjectName();
 			String objectName2compare = another.getObjectName();
 			
 			if (objectName2compare == null) //f.ex. when we test permission name only, no object defined 
 				return false; 
 			
-			if (!evaluatePattern(objectNamePattern1, objectName2compare))
+			if (!getObjectNamePattern().matcher(objectName2compare).matches())
 				return false;
 			
 			//CASE 1: policy pattern is null, assume matches any
-			if (pattern == null){
+			if (filter == null && pattern == null){
 				return impliesParameters(another);
 			}
 			//CASE 2: policy pattern is non null, compare with a null one assume false
 			if (another.getFilter() == null)
 				return false;
-			List<String> alist = new ArrayList<String>();
-			alist.add(another.getFilter());
-			if (evaluatePattern(pattern, alist))
+			if (getPattern().matcher(another.getFilter()).matches())
 				return impliesParameters(another);
 			else
 				return false;
@@ -184,24 +199,26 @@ public abstract class Permission implements Serializable, Cloneable, Comparable,
 			return false;
 		}
 		//loop into the defined parameters (if any) and check patterns
-		for (String key: parameters.keySet()){
+		for (Map.Entry<String, List<Pattern>> entry: getParameterPatterns().entrySet()){
+			String key = entry.getKey();
 			//find out the same key in the other permission
 			List<String> otherParameterRegex = another.getParameters().get(key);
 			if (otherParameterRegex == null)
 			{
-				logger.debug("Parameter is required in evaluation: "+key);
+				if (logger.isDebugEnabled())
+					logger.debug("Parameter is required in evaluation: "+key);
 				return false;
 			}
 			boolean bresult = false;
-			for (String s: parameters.get(key)){
-				Pattern p = Pattern.compile(s);
+			for (Pattern p: entry.getValue()){
 				bresult |= evaluatePattern(p, otherParameterRegex);
 				if (bresult)
 					break;
 			}
 			if ( !bresult)
 			{
-				logger.debug("Parameter regexp mismatch: "+ parameters.get(key)+" with:"+otherParameterRegex);
+				if (logger.isDebugEnabled())
+					logger.debug("Parameter regexp mismatch: "+ parameters.get(key)+" with:"+otherParameterRegex);
 				return false;
 			}			
 		}
@@ -222,7 +239,7 @@ public abstract class Permission implements Serializable, Cloneable, Comparable,
 	 * @see com.ethercis.party.I_Permission#getFilter()
 	 */
 	@Override
-	public String getFilter() {return pattern.pattern();}
+	public String getFilter() {return filter != null ? filter : (pattern != null ? pattern.pattern() : null);}
 	/* (non-Javadoc)
 	 * @see com.ethercis.party.I_Permission#getParameters()
 	 */
@@ -253,6 +270,8 @@ public abstract class Permission implements Serializable, Cloneable, Comparable,
 	 */
 	@Override
 	public Pattern getPattern() {
+		if (pattern == null && filter != null)
+			pattern = Pattern.compile(filter);
 		return pattern;
 	}
 
@@ -264,7 +283,7 @@ public abstract class Permission implements Serializable, Cloneable, Comparable,
         StringBuffer sb = new StringBuffer();
         sb.append(" name:   "+this.name);
         sb.append("\n object: "+this.objectName);
-        sb.append("\n pattern: "+((this.pattern!=null)?this.pattern.pattern():""));
+        sb.append("\n pattern: "+((getFilter()!=null)?getFilter():""));
         for (String g: getGranted())
         	sb.append("\n granted:"+g);
         for (String r: getRevoked())
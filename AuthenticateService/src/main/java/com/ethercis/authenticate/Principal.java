@@ -59,6 +59,7 @@ public abstract class Principal implements I_Principal {
 	protected String name;
 	protected I_Rights rights;
 	protected List<I_Permission> permissions = new ArrayList<I_Permission>();
+	protected DecisionCache decisionCache = new DecisionCache(256);
 	
 	/**
 	 * used to keep Permission abstract
@@ -81,6 +82,16 @@ public abstract class Principal implements I_Principal {
 	 */
 	@Override
 	public boolean isAuthorized(I_ContextHolder holder){
+		String key = decisionCache.key(holder, permissions);
+		Boolean decision = decisionCache.get(key);
+		if (decision == null){
+			decision = evaluate(holder);
+			decisionCache.put(key, decision);
+		}
+		return decision;
+	}
+
+	private boolean evaluate(I_ContextHolder holder){
 		I_Right right = rights.forName(holder.getMethod().getMethodName());
 		//logger.debugst("rights=" +right);
 		MethodName mname = holder.getMethod();
@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2015 Christian Chevalley
+ * This file is part of Project Ethercis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+//Copyright
+package com.ethercis.authenticate;
+
+import com.ethercis.servicemanager.common.I_SessionClientProperties;
+import com.ethercis.servicemanager.common.SessionClientProperties;
+import com.ethercis.servicemanager.common.def.MethodName;
+import com.ethercis.servicemanager.common.security.I_Permission;
+import com.ethercis.servicemanager.common.security.I_Right;
+import com.ethercis.servicemanager.common.session.I_ContextHolder;
+import com.ethercis.servicemanager.common.session.I_QueryUnit;
+import com.ethercis.servicemanager.exceptions.ServiceManagerException;
+import junit.framework.TestCase;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * checks the cached authorization decisions of a principal
+ */
+public class PrincipalDecisionTest extends TestCase {
+
+	/**
+	 * policy permission counting its evaluations
+	 */
+	private static class PolicyPermission extends Permission {
+		private static final long serialVersionUID = 1L;
+		private int evaluations;
+
+		PolicyPermission(String objectName, String pattern, Map<String, String> parameters, String granted){
+			super("policy", null, objectName, pattern, parameters);
+			this.granted.add(granted);
+		}
+
+		@Override
+		public boolean implies(I_Permission another){
+			evaluations++;
+			return super.implies(another);
+		}
+	}
+
+	private static class TestPrincipal extends Principal {
+		TestPrincipal(I_Permission permission){
+			this.name = "joe";
+			this.rights = new Rights() {
+				@Override
+				public void setRights(Map<String, I_Right> rights) {
+					this.rights = rights;
+				}
+			};
+			this.rights.getRights().put("get", new Right("get", "01"));
+			this.permissions.add(permission);
+		}
+	}
+
+	/**
+	 * a GET request on a tag and resource
+	 */
+	private static class Request implements I_ContextHolder, I_QueryUnit {
+		private final String tag;
+		private final String resource;
+		private I_SessionClientProperties parameters = new SessionClientProperties(null);
+
+		Request(String tag, String resource, Map<String, String> values){
+			this.tag = tag;
+			this.resource = resource;
+			for (Map.Entry<String, String> entry: values.entrySet())
+				((SessionClientProperties) parameters).addClientProperty(entry.getKey(), entry.getValue());
+		}
+
+		@Override public MethodName getMethod() { return MethodName.GET; }
+		@Override public MethodName getAction() { return MethodName.GET; }
+		@Override public I_QueryUnit getQueryUnit() { return this; }
+		@Override public I_SessionClientProperties getClientProperties() { return parameters; }
+		@Override public String getNotAuthorizedInfo() { return null; }
+		@Override public void setNotAuthorizedInfo(String notAuthorizedInfo) { }
+		@Override public ServiceManagerException getExceptionToThrow() { return null; }
+		@Override public void setExceptionToThrow(ServiceManagerException exceptionToThrow) { }
+		@Override public String getClientIP() { return null; }
+		@Override public void setClientIP(String clientIP) { }
+		@Override public I_SessionClientProperties getParameters() { return parameters; }
+		@Override public void setParameters(I_SessionClientProperties parameters) { this.parameters = parameters; }
+		@Override public I_SessionClientProperties getHeaders() { return null; }
+		@Override public void setHeaders(I_SessionClientProperties headers) { }
+		@Override public String getResource() { return resource; }
+		@Override public String getTag() { return tag; }
+	}
+
+	private static Map<String, String> values(String... keyValues){
+		Map<String, String> map = new HashMap<String, String>();
+		for (int i = 0; i < keyValues.length; i += 2)
+			map.put(keyValues[i], keyValues[i + 1]);
+		return map;
+	}
+
+	private PolicyPermission permission;
+	private Principal principal;
+
+	protected void setUp() throws Exception {
+		permission = new PolicyPermission("ehr.*", "/rest/.*", values("ehrId", "123.*"), "get");
+		principal = new TestPrincipal(permission);
+	}
+
+	public void testReferencedParameterIsPartOfTheDecision() throws Exception {
+		assertTrue(principal.isAuthorized(new Request("ehr", "/rest/v1/ehr", values("ehrId", "1234"))));
+		//same request except for the referenced parameter: evaluated, not served from the cached allow
+		assertFalse(principal.isAuthorized(new Request("ehr", "/rest/v1/ehr", values("ehrId", "999"))));
+		assertEquals(2, permission.evaluations);
+
+		//both decisions are now cached
+		assertTrue(principal.isAuthorized(new Request("ehr", "/rest/v1/ehr", values("ehrId", "1234"))));
+		assertFalse(principal.isAuthorized(new Request("ehr", "/rest/v1/ehr", values("ehrId", "999"))));
+		assertEquals(2, permission.evaluations);
+	}
+
+	public void testOtherParametersShareTheDecision() throws Exception {
+		assertTrue(principal.isAuthorized(new Request("ehr", "/rest/v1/ehr", values("ehrId", "1234", "body", "a"))));
+		assertTrue(principal.isAuthorized(new Request("ehr", "/rest/v1/ehr", values("ehrId", "1234", "body", "b"))));
+		assertEquals(1, permission.evaluations);
+
+		//target mismatch on the lazily compiled object name and resource patterns
+		assertFalse(principal.isAuthorized(new Request("composition", "/rest/v1/ehr", values("ehrId", "1234"))));
+		assertFalse(principal.isAuthorized(new Request("ehr", "/vehr/ehr", values("ehrId", "1234"))));
+		assertEquals(3, permission.evaluations);
+	}
+
+	public void testPolicyReloadInvalidatesDecisions() throws Exception {
+		Request request = new Request("ehr", "/rest/v1/ehr", values("ehrId", "1234"));
+		assertTrue(principal.isAuthorized(request));
+
+		//the right is revoked by the new policy: the cached allow is served until the policy is loaded
+		permission.getRevoked().add("get");
+		assertTrue(principal.isAuthorized(request));
+
+		DecisionCache.invalidateAll();
+		assertFalse(principal.isAuthorized(request));
+		assertEquals(2, permission.evaluations);
+	}
+
+	public void testMissingParameterIsNotNull() throws Exception {
+		permission = new PolicyPermission("ehr.*", "/rest/.*", values("ehrId", "null"), "get");
+		principal = new TestPrincipal(permission);
+
+		assertTrue(principal.isAuthorized(new Request("ehr", "/rest/v1/ehr", values("ehrId", "null"))));
+		//no ehrId: evaluated, not served from the decision of the literal value
+		assertFalse(principal.isAuthorized(new Request("ehr", "/rest/v1/ehr", values())));
+		assertEquals(2, permission.evaluations);
+	}
+
+	public void testValuesCannotForgeAKey() throws Exception {
+		permission = new PolicyPermission("ehr.*", "/rest/.*", values("a", "x", "b", "y.*"), "get");
+		principal = new TestPrincipal(permission);
+
+		assertTrue(principal.isAuthorized(new Request("ehr", "/rest/v1/ehr", values("a", "x", "b", "y\u0001b=z"))));
+		//same text once the values are concatenated with a separator
+		assertFalse(principal.isAuthorized(new Request("ehr", "/rest/v1/ehr", values("a", "x\u0001b=y", "b", "z"))));
+		assertEquals(2, permission.evaluations);
+	}
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright (c) 2015 Christian Chevalley
+ * This file is part of Project Ethercis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+//Copyright
+package com.ethercis.compositionservice;
+
+import org.openehr.rm.composition.Composition;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * ETHERCIS Project VirtualEhr
+ * Read-through cache of the compositions retrieved by uid and version.
+ * <p>
+ * A given version of a composition never changes, entries for an explicit version are only dropped by the LRU
+ * bound (<code>maxEntries</code>). The entry for the current version of a uid is invalidated when the composition
+ * is updated or deleted and expires after <code>currentTtl</code> ms to catch changes done by other nodes.
+ * <p>
+ * To avoid caching a value read before a concurrent update, a value is only stored if its uid was not invalidated
+ * since the stamp taken before reading the DB (see {@link #stamp(UUID)}). Stamps are kept in a fixed array of
+ * stripes indexed by uid hash, an update only holds back the reads of the uids sharing its stripe.
+ * <p>
+ * A cached composition is shared by all the requests reading it, the RM object is therefore not exposed: it is
+ * only accessed by {@link Entry#render(Renderer)} one renderer at a time.
+ * <p>
+ * The renderings of a cached composition are kept with it and share its life cycle. A rendering is kept encoded as
+ * it is served (XML text, {@link com.ethercis.servicemanager.common.EncodedJson} for the JSON formats), one per
+ * format, and is identified by a strong entity tag. The tag is derived from persisted data only (the version number, or the
+ * contribution of the current version), it is therefore stable across cache reloads and identical on all nodes.
+ */
+public class CompositionCache {
+
+    public static final int CURRENT_VERSION = 0;
+
+    private static final int STRIPES = 1024; //power of 2
+
+    /**
+     * renders a composition, the composition must not be modified nor kept
+     */
+    public interface Renderer<T> {
+        T render(String templateId, Composition composition) throws Exception;
+    }
+
+    /**
+     * a materialized entry of a composition
+     */
+    public static final class Entry {
+        private final String templateId;
+        private final Composition composition;
+
+        public Entry(String templateId, Composition composition) {
+            this.templateId = templateId;
+            this.composition = composition;
+        }
+
+        public String getTemplateId() {
+            return templateId;
+        }
+
+        /**
+         * render the composition, renderings of the same entry are serialized
+         * @param renderer
+         * @return the rendering
+         * @throws Exception whatever the renderer throws
+         */
+        public synchronized <T> T render(Renderer<T> renderer) throws Exception {
+            return renderer.render(templateId, composition);
+        }
+    }
+
+    /**
+     * a cached composition with its renderings
+     */
+    public static final class CachedComposition {
+        private final List<Entry> entries;
+        private final String tag;
+        private final long expires;
+        private final ConcurrentMap<String, Object> renderings = new ConcurrentHashMap<>();
+
+        private CachedComposition(List<Entry> entries, String tag, long expires) {
+            this.entries = entries;
+            this.tag = tag;
+            this.expires = expires;
+        }
+
+        public List<Entry> getEntries() {
+            return entries;
+        }
+
+        /**
+         * @param format
+         * @return the strong entity tag of the rendering in format
+         */
+        public String getETag(String format) {
+            return "\"" + tag + "::" + format + "\"";
+        }
+
+        /**
+         * @param format
+         * @return the encoded rendering or null if not yet rendered
+         */
+        public Object getRendering(String format) {
+            return renderings.get(format);
+        }
+
+        public Object putRendering(String format, Object rendering) {
+            renderings.put(format, rendering);
+            return rendering;
+        }
+    }
+
+    private final int maxEntries;
+    private final long currentTtl;
+    private final Map<String, CachedComposition> cache;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+    private final AtomicLongArray stamps = new AtomicLongArray(STRIPES); //invalidation count per uid stripe
+
+    public CompositionCache(final int maxEntries, long currentTtl) {
+        this.maxEntries = maxEntries;
+        this.currentTtl = currentTtl;
+        this.cache = new LinkedHashMap<String, CachedComposition>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedComposition> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    private static int stripe(UUID uid) {
+        int hash = uid.hashCode();
+        return (hash ^ (hash >>> 16)) & (STRIPES - 1);
+    }
+
+    private static String key(UUID uid, int version) {
+        return uid + "::" + (version > 0 ? version : CURRENT_VERSION);
+    }
+
+    /**
+     * @param uid
+     * @param version the version or a value &lt;= 0 for the current version
+     * @return the cached composition or null
+     */
+    public CachedComposition get(UUID uid, int version) {
+        if (maxEntries <= 0)
+            return null;
+        String key = key(uid, version);
+        CachedComposition cached;
+        synchronized (cache) {
+            cached = cache.get(key);
+            if (cached != null && cached.expires < System.currentTimeMillis()) {
+                cache.remove(key);
+                cached = null;
+            }
+        }
+        if (cached == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return cached;
+    }
+
+    /**
+     * @param uid
+     * @return the stamp to pass to {@link #put(UUID, int, String, List, long)} for a value of uid read after this call
+     */
+    public long stamp(UUID uid) {
+        return stamps.get(stripe(uid));
+    }
+
+    /**
+     * @param uid
+     * @param version
+     * @param revision persisted identifier of the revision read (f.ex. its contribution id), only used for the current version
+     * @param entries the entries read from the DB
+     * @param stamp
+     * @return the cached composition, returned even if it could not be stored
+     */
+    public CachedComposition put(UUID uid, int version, String revision, List<Entry> entries, long stamp) {
+        long expires = version > 0 ? Long.MAX_VALUE : System.currentTimeMillis() + currentTtl;
+        String tag = uid + "::" + (version > 0 ? Integer.toString(version) : "c" + revision);
+        CachedComposition cached = new CachedComposition(Collections.unmodifiableList(entries), tag, expires);
+        if (maxEntries <= 0)
+            return cached;
+        synchronized (cache) {
+            //the uid was invalidated while reading, the value may be stale
+            if (stamp == stamps.get(stripe(uid)))
+                cache.put(key(uid, version), cached);
+        }
+        return cached;
+    }
+
+    /**
+     * drop the current version of a composition, called on update and delete
+     * @param uid
+     */
+    public void invalidate(UUID uid) {
+        synchronized (cache) {
+            invalidations.incrementAndGet();
+            stamps.incrementAndGet(stripe(uid));
+            cache.remove(key(uid, CURRENT_VERSION));
+        }
+    }
+
+    public void clear() {
+        synchronized (cache) {
+            invalidations.incrementAndGet();
+            for (int i = 0; i < STRIPES; i++)
+                stamps.incrementAndGet(i);
+            cache.clear();
+        }
+    }
+
+    public String status() {
+        int size;
+        synchronized (cache) {
+            size = cache.size();
+        }
+        long lookups = hits.get() + misses.get();
+        return "Composition cache: entries=" + size + "/" + maxEntries + " hits=" + hits.get() + " misses=" + misses.get()
+                + " hit rate=" + (lookups > 0 ? (hits.get() * 100 / lookups) : 0) + "% invalidations=" + invalidations.get()
+                + " current version ttl=" + currentTtl + " [ms]\n";
+    }
+}
@@ -24,40 +24,53 @@ import com.ethercis.dao.access.interfaces.I_EntryAccess;
 import com.ethercis.dao.access.jooq.CompoXRefAccess;
 import com.ethercis.ehr.building.I_ContentBuilder;
 import com.ethercis.ehr.encode.CompositionSerializer;
-import com.ethercis.ehr.encode.EncodeUtil;
 import com.ethercis.ehr.encode.I_CompositionSerializer;
 import com.ethercis.ehr.json.FlatJsonUtil;
 import com.ethercis.ehr.keyvalues.EcisFlattener;
 import com.ethercis.ehr.knowledge.I_CacheKnowledgeService;
-import com.ethercis.ehr.util.FlatJsonCompositionConverter;
-import com.ethercis.ehr.util.I_FlatJsonCompositionConverter;
 import com.ethercis.logonservice.session.I_SessionManager;
+import com.ethercis.persistence.AuditSetter;
 import com.ethercis.persistence.ServiceDataCluster;
 import com.ethercis.servicemanager.annotation.*;
 import com.ethercis.servicemanager.cluster.I_Info;
 import com.ethercis.servicemanager.cluster.RunTimeSingleton;
+import com.ethercis.servicemanager.common.EncodedJson;
 import com.ethercis.servicemanager.common.I_SessionClientProperties;
 import com.ethercis.servicemanager.common.MetaBuilder;
 import com.ethercis.servicemanager.common.def.Constants;
 import com.ethercis.servicemanager.common.def.MethodName;
 import com.ethercis.servicemanager.common.def.SysErrorCode;
 import com.ethercis.servicemanager.exceptions.ServiceManagerException;
+import com.ethercis.servicemanager.metrics.LatencyTimer;
 import com.ethercis.servicemanager.runlevel.I_ServiceRunMode;
 import com.ethercis.servicemanager.service.ServiceInfo;
 import com.ethercis.systemservice.I_SystemService;
-import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.dom4j.Document;
 import org.dom4j.DocumentHelper;
 import org.dom4j.Element;
 import org.joda.time.DateTime;
-import org.openehr.rm.composition.Composition;
 
+import java.io.IOException;
+import java.io.Reader;
 import java.io.StringReader;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 
 /**
  * Replies to queries with the following format:
@@ -65,6 +78,9 @@ import java.util.UUID;
  * DELETE ../composition?uid=...[&committerName=....][&committerId=...]
  * POST ../composition?[templateId=...][&ehrId=...][&format=...][&committerName=...][&committerId=...] (body contains the serialized composition)
  * PUT ../composition?uid=...[templateId=...][&ehrId=...][&format=...][&committerName=...][&committerId=...] (body contains the serialized composition)
+ * POST ../composition/batch?[templateId=...][&ehrId=...][&format=...][&committerName=...][&committerId=...] (body is a json array
+ * or NDJSON of {"ehrId":..., "templateId":..., "format":..., "link":..., "composition":...}, query parameters are the item defaults,
+ * items are read and stored as the body is read)
  * ETHERCIS Project VirtualEhr
  * Created by Christian Chevalley on 7/3/2015.
  */
@@ -80,10 +96,20 @@ public class CompositionService extends ServiceDataCluster implements I_Composit
     final private String ME = "CompositionService";
     final private String Version = "1.0";
     private Logger log = LogManager.getLogger(CompositionService.class);
+    private static final LatencyTimer SQL_QUERY_TIMER = dbTimer("sql_query");
+    private static final LatencyTimer AQL_QUERY_TIMER = dbTimer("aql_query");
+    private static final LatencyTimer CREATE_TIMER = dbTimer("composition_create");
+    private static final LatencyTimer UPDATE_TIMER = dbTimer("composition_update");
+    private static final LatencyTimer DELETE_TIMER = dbTimer("composition_delete");
     private I_CacheKnowledgeService knowledgeCache;
     private I_SystemService systemService;
     private boolean useNamespaceInCompositionId = false;
     private boolean supportCompositionXRef = false; //if set to false, will not try to link compositions
+    private int batchMaxItems;
+    private int batchRequestParallelism; //items of a single request stored concurrently
+    private ExecutorService batchExecutor;
+    private TemplateConverterCache converterCache;
+    private CompositionCache compositionCache;
 
     @Override
     public void doInit(RunTimeSingleton global, ServiceInfo serviceInfo)throws ServiceManagerException {
@@ -97,14 +123,34 @@ public class CompositionService extends ServiceDataCluster implements I_Composit
         if (supportCompositionXRef)
             log.info("Composition Service XREF support enabled");
 
+        batchMaxItems = global.getProperty().get("composition.batch.max_items", 1000);
+        int batchParallelism = global.getProperty().get("composition.batch.parallelism", 4);
+        batchRequestParallelism = Math.min(batchParallelism, global.getProperty().get("composition.batch.request_parallelism", Math.max(1, batchParallelism / 2)));
+        batchExecutor = Executors.newFixedThreadPool(batchParallelism, runnable -> {
+            Thread thread = new Thread(runnable, "composition-batch");
+            thread.setDaemon(true);
+            return thread;
+        });
+
         if (knowledgeCache == null)
             throw new ServiceManagerException(global, SysErrorCode.RESOURCE_CONFIGURATION, ME, "Cache knowledge service [CacheKnowledgeService,1.0] is not running, aborting");
 
+        converterCache = new TemplateConverterCache(global.getProperty().get("composition.converter.max_idle", 8), global.getProperty().get("composition.converter.max_templates", 256));
+        knowledgeCache.addKnowledgeCacheListener(converterCache);
+        compositionCache = new CompositionCache(global.getProperty().get("composition.cache.max_entries", 1000), global.getProperty().get("composition.cache.current_ttl", 60000L));
+
         putObject(I_Info.JMX_PREFIX+ME, this);
 
         log.info("Composition service started...");
     }
 
+    @Override
+    public void shutdown() throws ServiceManagerException {
+        super.shutdown();
+        if (batchExecutor != null)
+            batchExecutor.shutdown();
+    }
+
 
     private UUID getSessionEhrId(String sessionId) throws ServiceManagerException {
         I_SessionManager sessionManager = getRegisteredService(getGlobal(), "LogonService", "1.0");
@@ -131,7 +177,7 @@ public class CompositionService extends ServiceDataCluster implements I_Composit
             @QuerySyntax(mode = I_ServiceRunMode.DialectSpace.EHRSCAPE, httpMethod = "POST", method = "post", path = "rest/v1/composition", responseType = ResponseType.Json)
     })
     public Object create(I_SessionClientProperties props) throws Exception {
-        auditSetter.handleProperties(getDataAccess(), props);
+        AuditSetter auditSetter = newAuditSetter(props);
         String sessionId = auditSetter.getSessionId();
         String templateId = props.getClientProperty(I_CompositionService.TEMPLATE_ID, (String)null);
         String linkUidStr = props.getClientProperty(I_CompositionService.LINK_ID, (String)null);
@@ -163,8 +209,7 @@ public class CompositionService extends ServiceDataCluster implements I_Composit
 
         switch (format){
             case XML:
-                I_CanonicalHandler canonicalHandler = new CanonicalHandler(getDataAccess(), templateId);
-                compositionId = canonicalHandler.storeComposition(ehrId, content, committerUuid, systemUuid, auditSetter.getDescription());
+                compositionId = store(format, ehrId, templateId, content, committerUuid, systemUuid, auditSetter.getDescription());
 
                 linkComposition(linkUid, compositionId);
                 //create an XML response
@@ -173,18 +218,16 @@ public class CompositionService extends ServiceDataCluster implements I_Composit
                 root.addElement("action").addText("CREATE");
                 root.addElement("compositionUid").addText(encodeUuid(compositionId,1));
                 root.addElement("meta").addElement("href").addText(Constants.URI_TAG+"?"+encodeURI(null, compositionId, 1, null));
-                global.getProperty().set(MethodName.RETURN_TYPE_PROPERTY, "" + MethodName.RETURN_XML);
+                props.getResponseContext().setReturnType(MethodName.RETURN_XML);
                 return document;
 
 
             case ECISFLAT:
-                PvCompoHandler pvCompoHandler = new PvCompoHandler(this.getDataAccess(), templateId, null);
-                Map<String, Object> kvPairs = FlatJsonUtil.inputStream2Map(new StringReader(new String(content.getBytes())));
-                compositionId = pvCompoHandler.storeComposition(ehrId, kvPairs, committerUuid, systemUuid, auditSetter.getDescription());
+                compositionId = store(format, ehrId, templateId, content, committerUuid, systemUuid, auditSetter.getDescription());
                 linkComposition(linkUid, compositionId);
 
                 //create json response
-                global.getProperty().set(MethodName.RETURN_TYPE_PROPERTY, ""+MethodName.RETURN_JSON);
+                props.getResponseContext().setReturnType(MethodName.RETURN_JSON);
                 Map<String, Object> retmap = new HashMap<>();
                 retmap.put("action", "CREATE");
                 retmap.put(COMPOSITION_UID, encodeUuid(compositionId,1));
@@ -193,12 +236,11 @@ public class CompositionService extends ServiceDataCluster implements I_Composit
                 return retmap;
 
             case FLAT:
-                I_FlatJsonHandler flatJsonHandler = new FlatJsonHandler(getDataAccess(), templateId);
-                compositionId = flatJsonHandler.store(ehrId, content, committerUuid, systemUuid, auditSetter.getDescription());
+                compositionId = store(format, ehrId, templateId, content, committerUuid, systemUuid, auditSetter.getDescription());
                 linkComposition(linkUid, compositionId);
 
                 //create json response
-                global.getProperty().set(MethodName.RETURN_TYPE_PROPERTY, ""+MethodName.RETURN_JSON);
+                props.getResponseContext().setReturnType(MethodName.RETURN_JSON);
                 retmap = new HashMap<>();
                 retmap.put("action", "CREATE");
                 retmap.put(COMPOSITION_UID, encodeUuid(compositionId,1));
@@ -212,6 +254,173 @@ public class CompositionService extends ServiceDataCluster implements I_Composit
         }
     }
 
+    private UUID store(CompositionFormat format, UUID ehrId, String templateId, String content, UUID committerUuid, UUID systemUuid, String description) throws Exception {
+        switch (format){
+            case XML:
+                I_CanonicalHandler canonicalHandler = new CanonicalHandler(getDataAccess(), templateId);
+                return timed(CREATE_TIMER, () -> canonicalHandler.storeComposition(ehrId, content, committerUuid, systemUuid, description));
+
+            case ECISFLAT:
+                PvCompoHandler pvCompoHandler = new PvCompoHandler(this.getDataAccess(), templateId, null);
+                Map<String, Object> kvPairs = FlatJsonUtil.inputStream2Map(new StringReader(content));
+                return timed(CREATE_TIMER, () -> pvCompoHandler.storeComposition(ehrId, kvPairs, committerUuid, systemUuid, description));
+
+            case FLAT:
+                I_FlatJsonHandler flatJsonHandler = new FlatJsonHandler(getDataAccess(), templateId);
+                return timed(CREATE_TIMER, () -> flatJsonHandler.store(ehrId, content, committerUuid, systemUuid, description));
+
+            default:
+                throw new ServiceManagerException(getGlobal(), SysErrorCode.USER_ILLEGALARGUMENT, ME, "This format is not supported:"+format);
+        }
+    }
+
+    /**
+     * create a set of compositions for one or many EHRs in a single request. The committer and system
+     * are resolved once for the batch. Items are read one by one from the request body and stored on the
+     * batch executor, at most <code>composition.batch.request_parallelism</code> items of a request are in
+     * flight so that the body is never held entirely in memory and a large batch does not starve the
+     * other requests sharing the executor. A status is returned for each item in submission order.
+     * <p>
+     * The items preceding an invalid item, or the item exceeding <code>composition.batch.max_items</code>,
+     * are stored, the batch stops there and the response carries the error.
+     * @param props
+     * @return
+     * @throws Exception
+     */
+    @QuerySetting(dialect = {
+            @QuerySyntax(mode = I_ServiceRunMode.DialectSpace.STANDARD, httpMethod = "POST", method = "post", path = "vehr/composition/batch", responseType = ResponseType.Json),
+            @QuerySyntax(mode = I_ServiceRunMode.DialectSpace.EHRSCAPE, httpMethod = "POST", method = "post", path = "rest/v1/composition/batch", responseType = ResponseType.Json)
+    })
+    public Object createBatch(I_SessionClientProperties props) throws Exception {
+        AuditSetter auditSetter = newAuditSetter(props);
+        String sessionId = auditSetter.getSessionId();
+        final UUID committerUuid = auditSetter.getCommitterUuid();
+        final UUID systemUuid = auditSetter.getSystemUuid();
+        final String description = auditSetter.getDescription();
+
+        final String defaultTemplateId = props.getClientProperty(I_CompositionService.TEMPLATE_ID, (String)null);
+        final String defaultFormat = props.getClientProperty(I_CompositionService.FORMAT, CompositionFormat.FLAT.toString());
+        String ehrIdStr = props.getClientProperty(I_CompositionService.EHR_ID, (String)null);
+        final UUID defaultEhrId = ehrIdStr != null ? UUID.fromString(ehrIdStr) : (sessionId != null ? getSessionEhrId(sessionId) : null);
+
+        List<Future<Map<String, Object>>> futures = new ArrayList<>();
+        final Semaphore inFlight = new Semaphore(batchRequestParallelism);
+        String error = null;
+
+        JsonParser parser = new JsonParser();
+        try (JsonReader jsonReader = openBatch(props)) {
+            boolean isArray = jsonReader.peek() == JsonToken.BEGIN_ARRAY;
+            if (isArray)
+                jsonReader.beginArray();
+            while (isArray ? jsonReader.hasNext() : jsonReader.peek() != JsonToken.END_DOCUMENT) {
+                final int index = futures.size();
+                if (index == batchMaxItems) {
+                    error = "Batch exceeds the maximum number of items:"+batchMaxItems;
+                    break;
+                }
+                JsonElement element = parser.parse(jsonReader);
+                if (!element.isJsonObject()) {
+                    error = "Batch item "+index+" is not a json object";
+                    break;
+                }
+                final JsonObject item = element.getAsJsonObject();
+
+                inFlight.acquire();
+                try {
+                    futures.add(batchExecutor.submit(() -> {
+                        try {
+                            return storeBatchItem(index, item, defaultEhrId, defaultTemplateId, defaultFormat, committerUuid, systemUuid, description);
+                        } finally {
+                            inFlight.release();
+                        }
+                    }));
+                } catch (RejectedExecutionException e){
+                    inFlight.release();
+                    throw e;
+                }
+            }
+        }
+        catch (IOException | JsonParseException e){
+            error = "Invalid batch content:"+e.getMessage();
+        }
+
+        if (futures.isEmpty())
+            throw new ServiceManagerException(getGlobal(), SysErrorCode.USER_ILLEGALARGUMENT, ME, error != null ? error : "Content cannot be empty for a composition batch");
+
+        List<Map<String, Object>> statuses = new ArrayList<>(futures.size());
+        int committed = 0;
+        for (Future<Map<String, Object>> future: futures) {
+            Map<String, Object> status = future.get();
+            if (status.containsKey(COMPOSITION_UID))
+                committed++;
+            statuses.add(status);
+        }
+
+        props.getResponseContext().setReturnType(MethodName.RETURN_JSON);
+        Map<String, Object> retmap = new HashMap<>();
+        retmap.put("action", "CREATE");
+        retmap.put("total", futures.size());
+        retmap.put("committed", committed);
+        retmap.put("failed", futures.size() - committed);
+        retmap.put("items", statuses);
+        if (error != null)
+            retmap.put("error", error);
+        return retmap;
+    }
+
+    private Map<String, Object> storeBatchItem(int index, JsonObject item, UUID defaultEhrId, String defaultTemplateId, String defaultFormat, UUID committerUuid, UUID systemUuid, String description){
+        Map<String, Object> status = new HashMap<>();
+        status.put("index", index);
+        try {
+            UUID ehrId = item.has(EHR_ID) ? UUID.fromString(item.get(EHR_ID).getAsString()) : defaultEhrId;
+            if (ehrId == null)
+                throw new IllegalArgumentException("No Ehr Id found in item nor in query");
+            String templateId = item.has(TEMPLATE_ID) ? item.get(TEMPLATE_ID).getAsString() : defaultTemplateId;
+            CompositionFormat format = CompositionFormat.valueOf(item.has(FORMAT) ? item.get(FORMAT).getAsString() : defaultFormat);
+            if ((format == CompositionFormat.FLAT || format == CompositionFormat.ECISFLAT) && (templateId == null || templateId.length() == 0))
+                throw new IllegalArgumentException("Template Id must be specified");
+
+            JsonElement composition = item.get("composition");
+            if (composition == null || composition.isJsonNull())
+                throw new IllegalArgumentException("Content cannot be empty for a new composition");
+            //XML is passed as a string, json formats as an object
+            String content = composition.isJsonPrimitive() ? composition.getAsString() : composition.toString();
+
+            UUID compositionId = store(format, ehrId, templateId, content, committerUuid, systemUuid, description);
+            if (item.has(LINK_ID))
+                linkComposition(UUID.fromString(item.get(LINK_ID).getAsString()), compositionId);
+
+            status.put("status", "CREATED");
+            status.put(EHR_ID, ehrId.toString());
+            status.put(COMPOSITION_UID, encodeUuid(compositionId, 1));
+        }
+        catch (Exception e){
+            log.debug("Batch item "+index+" failed:"+e);
+            status.put("status", "FAILED");
+            status.put("error", e.getMessage() != null ? e.getMessage() : e.toString());
+        }
+        return status;
+    }
+
+    /**
+     * open the batch body, it is either a json array or a sequence of json objects (NDJSON)
+     */
+    private JsonReader openBatch(I_SessionClientProperties props) throws ServiceManagerException {
+        Reader reader;
+        if (props.getRequestBody() != null)
+            reader = props.getRequestBody().getReader();
+        else {
+            String content = props.getClientProperty(Constants.REQUEST_CONTENT, (String)null);
+            if (content == null)
+                throw new ServiceManagerException(getGlobal(), SysErrorCode.USER_ILLEGALARGUMENT, ME, "Content cannot be empty for a composition batch");
+            reader = new StringReader(content);
+        }
+
+        JsonReader jsonReader = new JsonReader(reader);
+        jsonReader.setLenient(true);
+        return jsonReader;
+    }
+
     @QuerySetting(dialect = {
             @QuerySyntax(mode = I_ServiceRunMode.DialectSpace.STANDARD, httpMethod = "GET", method = "create", path = "vehr/composition", responseType = ResponseType.String),
             @QuerySyntax(mode = I_ServiceRunMode.DialectSpace.EHRSCAPE, httpMethod = "GET", method = "get", path = "rest/v1/composition", responseType = ResponseType.String)
@@ -237,77 +446,91 @@ public class CompositionService extends ServiceDataCluster implements I_Composit
             throw new ServiceManagerException(getGlobal(), SysErrorCode.USER_ILLEGALARGUMENT, ME, "Invalid composition id:"+compositionId);
         }
 
-        Object retObj = null;
+        CompositionCache.CachedComposition cached = compositionCache.get(uid, version);
+
+        if (cached == null) {
+            long stamp = compositionCache.stamp(uid);
+            //retrieve the composition
+            I_CompositionAccess compositionAccess = null;
+
+            if (version > 0)
+                compositionAccess = I_CompositionAccess.retrieveCompositionVersion(getDataAccess(), uid, version);
+            else {
+                compositionAccess = I_CompositionAccess.retrieveInstance2(getDataAccess(), uid);
+                if (compositionAccess == null && I_CompositionAccess.hasPreviousVersion(getDataAccess(), uid)){ //try to identify a previous version
+                    //TODO: add life_cycle state to versions and return the first non deleted version id... right now it's always 1
+                    props.getResponseContext().setReturnType(MethodName.RETURN_NO_CONTENT);
+                    //build the relative part of the link to the existing last version
+                    Map<String, Object> retMap = new HashMap<>();
+                    retMap.put("Link", Constants.URI_TAG+"?"+encodeURI(null, uid, 2, format));
+                    return retMap;
+                }
+            }
 
-        //retrieve the composition
-        I_CompositionAccess compositionAccess = null;
+            if (compositionAccess == null)
+                throw new ServiceManagerException(getGlobal(), SysErrorCode.USER_ILLEGALARGUMENT, ME, "Request did not give any result");
 
-        if (version > 0)
-            compositionAccess = I_CompositionAccess.retrieveCompositionVersion(getDataAccess(), uid, version);
-        else {
-            compositionAccess = I_CompositionAccess.retrieveInstance2(getDataAccess(), uid);
-            if (compositionAccess == null && I_CompositionAccess.hasPreviousVersion(getDataAccess(), uid)){ //try to identify a previous version
-                //TODO: add life_cycle state to versions and return the first non deleted version id... right now it's always 1
-                global.getProperty().set(MethodName.RETURN_TYPE_PROPERTY, ""+MethodName.RETURN_NO_CONTENT);
-                //build the relative part of the link to the existing last version
-                Map<String, Object> retMap = new HashMap<>();
-                retMap.put("Link", Constants.URI_TAG+"?"+encodeURI(null, uid, 2, format));
-                return retMap;
-            }
+            List<CompositionCache.Entry> entries = new ArrayList<>();
+            for (I_EntryAccess entryAccess: compositionAccess.getContent())
+                entries.add(new CompositionCache.Entry(entryAccess.getTemplateId(), entryAccess.getComposition()));
+            //the current version is identified by the contribution which committed it
+            String revision = version > 0 ? null : String.valueOf(compositionAccess.getContributionVersionId());
+            cached = compositionCache.put(uid, version, revision, entries, stamp);
         }
 
-        if (compositionAccess == null)
-            throw new ServiceManagerException(getGlobal(), SysErrorCode.USER_ILLEGALARGUMENT, ME, "Request did not give any result");
+        if (format == CompositionFormat.STRUCTURED)
+            throw new ServiceManagerException(getGlobal(), SysErrorCode.USER_ILLEGALARGUMENT, ME, "Unsupported format:"+format);
+
+        if (cached.getEntries().isEmpty())
+            return null;
+
+        //the client copy is current, nothing to render
+        if (props.getResponseContext().setETag(cached.getETag(format.toString())))
+            return null;
+
+        //the response holds the last entry
+        CompositionCache.Entry entry = cached.getEntries().get(cached.getEntries().size() - 1);
+        Object rendering = cached.getRendering(format.toString());
 
-        for (I_EntryAccess entryAccess: compositionAccess.getContent()) {
+        if (format == CompositionFormat.XML) {
+            props.getResponseContext().setReturnType(MethodName.RETURN_XML);
+            if (rendering == null)
+                rendering = cached.putRendering(format.toString(), entry.render((templateId, composition) -> new String(I_ContentBuilder.exportCanonicalXML(composition))));
+            return rendering;
+        }
+
+        if (rendering == null) {
             switch (format) {
-                case XML:
-                    global.getProperty().set(MethodName.RETURN_TYPE_PROPERTY, ""+MethodName.RETURN_XML);
-                    retObj = new String(I_ContentBuilder.exportCanonicalXML(entryAccess.getComposition()));
-                    break;
                 case ECISFLAT:
-                    global.getProperty().set(MethodName.RETURN_TYPE_PROPERTY, ""+MethodName.RETURN_JSON);
-                    Map<String, Object> retmap = new HashMap<>();
-                    retmap.put("format", CompositionFormat.ECISFLAT.toString());
-                    retmap.put("templateId", entryAccess.getTemplateId());
-                    retmap.put("composition", new EcisFlattener().render(entryAccess.getComposition()));
-                    Map<String, Map<String, String>> metaref = MetaBuilder.add2MetaMap(null, "href", Constants.URI_TAG+"?"+encodeURI(null, uid, 1, null));
-                    retmap.putAll(metaref);
-                    retObj =  retmap;
+                    rendering = EncodedJson.encode(entry.render((templateId, composition) -> new EcisFlattener().render(composition)));
                     break;
 
                 case FLAT:
-                    I_FlatJsonCompositionConverter flatJsonCompositionConverter = FlatJsonCompositionConverter.getInstance(getDataAccess().getKnowledgeManager());
-                    global.getProperty().set(MethodName.RETURN_TYPE_PROPERTY, ""+MethodName.RETURN_JSON);
-                    retmap = new HashMap<>();
-                    retmap.put("format", CompositionFormat.FLAT.toString());
-                    retmap.put("templateId", entryAccess.getTemplateId());
-                    retmap.put("composition", flatJsonCompositionConverter.fromComposition(entryAccess.getTemplateId(), entryAccess.getComposition()));
-                    metaref = MetaBuilder.add2MetaMap(null, "href", Constants.URI_TAG+"?"+encodeURI(null, uid, 1, null));
-                    retmap.putAll(metaref);
-                    retObj =  retmap;
+                    try (TemplateConverterCache.Lease lease = converterCache.lease(getDataAccess().getKnowledgeManager(), entry.getTemplateId())) {
+                        rendering = EncodedJson.encode(entry.render((templateId, composition) -> lease.getConverter().fromComposition(templateId, composition)));
+                    }
                     break;
 
                 case RAW:
-                    global.getProperty().set(MethodName.RETURN_TYPE_PROPERTY, ""+MethodName.RETURN_JSON);
-                    Composition composition = entryAccess.getComposition();
+                    //the serializer output is already JSON
                     I_CompositionSerializer compositionSerializer = I_CompositionSerializer.getInstance(CompositionSerializer.WalkerOutputMode.RAW);
-                    retmap = new HashMap<>();
-                    retmap.put("format", CompositionFormat.RAW.toString());
-                    retmap.put("templateId", entryAccess.getTemplateId());
-                    Gson gson = EncodeUtil.getGsonBuilderInstance().setPrettyPrinting().create();
-                    Map rawEncoded = gson.fromJson(compositionSerializer.dbEncode(composition), Map.class);
-                    retmap.put("composition", rawEncoded);
-                    metaref = MetaBuilder.add2MetaMap(null, "href", Constants.URI_TAG+"?"+encodeURI(null, uid, 1, null));
-                    retmap.putAll(metaref);
-                    retObj =  retmap;
+                    rendering = new EncodedJson(entry.render((templateId, composition) -> compositionSerializer.dbEncode(composition)));
                     break;
 
                 default:
                     throw new ServiceManagerException(getGlobal(), SysErrorCode.USER_ILLEGALARGUMENT, ME, "Unsupported format:"+format);
             }
+            cached.putRendering(format.toString(), rendering);
         }
-        return retObj;
+
+        props.getResponseContext().setReturnType(MethodName.RETURN_JSON);
+        Map<String, Object> retmap = new HashMap<>();
+        retmap.put("format", format.toString());
+        retmap.put("templateId", entry.getTemplateId());
+        retmap.put("composition", rendering);
+        Map<String, Map<String, String>> metaref = MetaBuilder.add2MetaMap(null, "href", Constants.URI_TAG+"?"+encodeURI(null, uid, 1, null));
+        retmap.putAll(metaref);
+        return retmap;
     }
 
     @QuerySetting(dialect = {
@@ -315,7 +538,7 @@ public class CompositionService extends ServiceDataCluster implements I_Composit
             @QuerySyntax(mode = I_ServiceRunMode.DialectSpace.EHRSCAPE, httpMethod = "PUT", method = "put", path = "rest/v1/composition", responseType = ResponseType.Json)
     })
     public Object update(I_SessionClientProperties props) throws Exception {
-        auditSetter.handleProperties(getDataAccess(), props);
+        AuditSetter auditSetter = newAuditSetter(props);
         String sessionId = auditSetter.getSessionId();
         String templateId = props.getClientProperty(I_CompositionService.TEMPLATE_ID, (String)null);
         String uidStr = props.getClientProperty(I_CompositionService.UID, (String) null);
@@ -343,7 +566,7 @@ public class CompositionService extends ServiceDataCluster implements I_Composit
         switch (format){
             case XML:
                 CanonicalHandler canonicalHandler = new CanonicalHandler(getDataAccess(), templateId);
-                result = canonicalHandler.update(getDataAccess(), compositionId, content, auditSetter.getCommitterUuid(), auditSetter.getSystemUuid(), auditSetter.getDescription());
+                result = timed(UPDATE_TIMER, () -> canonicalHandler.update(getDataAccess(), compositionId, content, auditSetter.getCommitterUuid(), auditSetter.getSystemUuid(), auditSetter.getDescription()));
                 break;
 
             case ECISFLAT:
@@ -355,12 +578,12 @@ public class CompositionService extends ServiceDataCluster implements I_Composit
                 PvCompoHandler pvCompoHandler = new PvCompoHandler(this.getDataAccess(), compositionAccess, "*", null); //template id is not required
                 Map<String, Object> kvPairs;
                 try {
-                    kvPairs = FlatJsonUtil.inputStream2Map(new StringReader(new String(content.getBytes())));
+                    kvPairs = FlatJsonUtil.inputStream2Map(new StringReader(content));
                 }
                 catch (Exception e){
                     throw new ServiceManagerException(getGlobal(), SysErrorCode.USER_ILLEGALARGUMENT, ME, "Error interpreting JSON in content:"+e);
                 }
-                result = pvCompoHandler.updateComposition(kvPairs, auditSetter.getCommitterUuid(), auditSetter.getSystemUuid(), auditSetter.getDescription());
+                result = timed(UPDATE_TIMER, () -> pvCompoHandler.updateComposition(kvPairs, auditSetter.getCommitterUuid(), auditSetter.getSystemUuid(), auditSetter.getDescription()));
                 break;
 
             case FLAT:
@@ -370,7 +593,7 @@ public class CompositionService extends ServiceDataCluster implements I_Composit
 
                 //get the template id
                 I_FlatJsonHandler flatJsonHandler = new FlatJsonHandler(getDataAccess(), compositionAccess, null, null);
-                result = flatJsonHandler.update(getDataAccess(), compositionId, new String(content.getBytes()), auditSetter.getCommitterUuid(), auditSetter.getSystemUuid(), auditSetter.getDescription());
+                result = timed(UPDATE_TIMER, () -> flatJsonHandler.update(getDataAccess(), compositionId, content, auditSetter.getCommitterUuid(), auditSetter.getSystemUuid(), auditSetter.getDescription()));
                 break;
 
             default:
@@ -379,6 +602,8 @@ public class CompositionService extends ServiceDataCluster implements I_Composit
 
         //TODO: set committer if passed
 
+        compositionCache.invalidate(compositionId);
+
         if (!result)
             throw new ServiceManagerException(getGlobal(), SysErrorCode.USER_ILLEGALARGUMENT, ME, "Update failed on composition:"+compositionId);
 
@@ -401,14 +626,15 @@ public class CompositionService extends ServiceDataCluster implements I_Composit
             throw new ServiceManagerException(getGlobal(), SysErrorCode.USER_ILLEGALARGUMENT, ME, "A valid composition id must be supplied");
 
         UUID compositionId = getCompositionUid(uidStr);
-        auditSetter.handleProperties(getDataAccess(), props);
+        AuditSetter auditSetter = newAuditSetter(props);
         String sessionId = auditSetter.getSessionId();
 
         I_CompositionAccess compositionAccess = I_CompositionAccess.retrieveInstance(getDataAccess(), compositionId);
         if (compositionAccess == null)
             throw new ServiceManagerException(getGlobal(), SysErrorCode.RESOURCE_NOT_FOUND, ME, "Could not find composition:"+compositionId);
 
-        Integer result = compositionAccess.delete(auditSetter.getCommitterUuid(), auditSetter.getSystemUuid(), auditSetter.getDescription());
+        Integer result = timed(DELETE_TIMER, () -> compositionAccess.delete(auditSetter.getCommitterUuid(), auditSetter.getSystemUuid(), auditSetter.getDescription()));
+        compositionCache.invalidate(compositionId);
 
         if (result <= 0)
             throw new ServiceManagerException(getGlobal(), SysErrorCode.USER_ILLEGALARGUMENT, ME, "Delete failed on composition:"+compositionAccess.getId());
@@ -449,13 +675,14 @@ public class CompositionService extends ServiceDataCluster implements I_Composit
 
         //perform the query
         Map<String, Object> result;
+        final String statement = queryString;
 
         switch (queryMode){
             case SQL:
-                result = I_EntryAccess.queryJSON(getDataAccess(), queryString);
+                result = timed(SQL_QUERY_TIMER, () -> I_EntryAccess.queryJSON(getDataAccess(), statement));
                 break;
             case AQL:
-                result = I_EntryAccess.queryAqlJson(getDataAccess(), queryString);
+                result = timed(AQL_QUERY_TIMER, () -> I_EntryAccess.queryAqlJson(getDataAccess(), statement));
                 break;
 
             default:
@@ -463,7 +690,7 @@ public class CompositionService extends ServiceDataCluster implements I_Composit
         }
 
         if (result.size() == 0){
-            global.getProperty().set(MethodName.RETURN_TYPE_PROPERTY, ""+MethodName.RETURN_NO_CONTENT);
+            props.getResponseContext().setReturnType(MethodName.RETURN_NO_CONTENT);
             //build the relative part of the link to the existing last version
             Map<String, Object> retMap = new HashMap<>();
             retMap.put("Reason", "Query resultset is empty");
@@ -515,6 +742,28 @@ public class CompositionService extends ServiceDataCluster implements I_Composit
         compoXrefAccess.setLink(master, child);
     }
 
+    @Override
+    public String converterCacheStatus() {
+        return converterCache.status();
+    }
+
+    @Override
+    public String compositionCacheStatus() {
+        return compositionCache.status();
+    }
+
+    @Override
+    public String clearCompositionCache() {
+        compositionCache.clear();
+        return "Composition cache cleared";
+    }
+
+    @Override
+    public String clearConverterCache() {
+        converterCache.cacheReloaded();
+        return "Converter cache cleared";
+    }
+
 
 
 }
@@ -22,4 +22,27 @@ package com.ethercis.compositionservice;
  * Created by Christian Chevalley on 9/18/2015.
  */
 public interface CompositionServiceMBean {
+    /**
+     * per template converter cache: hits, misses, evictions and idle converters
+     * @return
+     */
+    String converterCacheStatus();
+
+    /**
+     * drop all cached converters
+     * @return
+     */
+    String clearConverterCache();
+
+    /**
+     * composition read cache: entries, hit rate and invalidations
+     * @return
+     */
+    String compositionCacheStatus();
+
+    /**
+     * drop all cached compositions
+     * @return
+     */
+    String clearCompositionCache();
 }
@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2015 Christian Chevalley
+ * This file is part of Project Ethercis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+//Copyright
+package com.ethercis.compositionservice;
+
+import com.ethercis.ehr.knowledge.I_KnowledgeCache;
+import com.ethercis.ehr.knowledge.I_KnowledgeCacheListener;
+import com.ethercis.ehr.util.FlatJsonCompositionConverter;
+import com.ethercis.ehr.util.I_FlatJsonCompositionConverter;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ETHERCIS Project VirtualEhr
+ * Per template pool of initialized FLAT json converters.
+ * <p>
+ * A converter resolves the OPT and builds its path mappings on first use for a template, a converter is
+ * therefore kept per template and reused by the following requests. Converters are not shared between
+ * concurrent requests: a request leases one and returns it when done, at most <code>maxIdle</code> converters
+ * are kept per template.
+ * <p>
+ * Pools are kept for at most <code>maxTemplates</code> templates in an access ordered map, the least
+ * recently used pool is dropped when a new template is added beyond this limit. The map is only accessed
+ * under its lock, lookup, insertion and eviction are therefore atomic.
+ * <p>
+ * The figures reported are converter reuse figures (a hit is a request served by an idle converter),
+ * not OPT cache figures, these are reported by the knowledge cache itself.
+ * <p>
+ * The pool of a template is dropped when the template is uploaded again, all pools are dropped on
+ * knowledge cache reload.
+ */
+public class TemplateConverterCache implements I_KnowledgeCacheListener {
+
+    private final class Pool {
+        final Queue<I_FlatJsonCompositionConverter> idle = new ConcurrentLinkedQueue<>();
+        final AtomicInteger idleCount = new AtomicInteger();
+        final AtomicLong hits = new AtomicLong();
+        final AtomicLong misses = new AtomicLong();
+        volatile boolean evicted = false;
+    }
+
+    /**
+     * a converter leased for the duration of a request
+     */
+    public final class Lease implements AutoCloseable {
+        private final String templateId;
+        private final Pool pool;
+        private final I_FlatJsonCompositionConverter converter;
+
+        private Lease(String templateId, Pool pool, I_FlatJsonCompositionConverter converter) {
+            this.templateId = templateId;
+            this.pool = pool;
+            this.converter = converter;
+        }
+
+        public I_FlatJsonCompositionConverter getConverter() {
+            return converter;
+        }
+
+        @Override
+        public void close() {
+            //do not return converters of an evicted pool
+            if (pool.evicted)
+                return;
+            if (pool.idleCount.incrementAndGet() <= maxIdle)
+                pool.idle.offer(converter);
+            else
+                pool.idleCount.decrementAndGet();
+        }
+    }
+
+    private final Map<String, Pool> pools;
+    private final int maxIdle;
+    private final int maxTemplates;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public TemplateConverterCache(int maxIdle, int maxTemplates) {
+        this.maxIdle = maxIdle;
+        this.maxTemplates = maxTemplates;
+        this.pools = new LinkedHashMap<String, Pool>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Pool> eldest) {
+                if (size() <= TemplateConverterCache.this.maxTemplates)
+                    return false;
+                evict(eldest.getValue());
+                return true;
+            }
+        };
+    }
+
+    /**
+     * lease a converter for a template, the lease must be closed after use
+     * @param knowledgeCache
+     * @param templateId
+     * @return
+     * @throws Exception
+     */
+    public Lease lease(I_KnowledgeCache knowledgeCache, String templateId) throws Exception {
+        Pool pool;
+        synchronized (pools) {
+            pool = pools.get(templateId);
+            if (pool == null) {
+                pool = new Pool();
+                pools.put(templateId, pool);
+            }
+        }
+
+        I_FlatJsonCompositionConverter converter = pool.idle.poll();
+        if (converter != null) {
+            pool.idleCount.decrementAndGet();
+            pool.hits.incrementAndGet();
+            hits.incrementAndGet();
+        }
+        else {
+            pool.misses.incrementAndGet();
+            misses.incrementAndGet();
+            converter = FlatJsonCompositionConverter.getInstance(knowledgeCache);
+        }
+        return new Lease(templateId, pool, converter);
+    }
+
+    private void evict(Pool pool) {
+        pool.evicted = true;
+        pool.idle.clear();
+        evictions.incrementAndGet();
+    }
+
+    @Override
+    public void templateUpdated(String templateId) {
+        if (templateId == null)
+            return;
+        synchronized (pools) {
+            Pool pool = pools.remove(templateId);
+            if (pool != null)
+                evict(pool);
+        }
+    }
+
+    @Override
+    public void cacheReloaded() {
+        synchronized (pools) {
+            for (Pool pool : pools.values())
+                evict(pool);
+            pools.clear();
+        }
+    }
+
+    @Override
+    public String statistics() {
+        return status();
+    }
+
+    public String status() {
+        Map<String, Pool> snapshot;
+        synchronized (pools) {
+            snapshot = new LinkedHashMap<>(pools);
+        }
+        StringBuffer stringBuffer = new StringBuffer();
+        stringBuffer.append("Converter cache: templates=" + snapshot.size() + "/" + maxTemplates + " converter hits=" + hits.get() + " misses=" + misses.get() + " evictions=" + evictions.get() + " max idle=" + maxIdle + "\n");
+        for (Map.Entry<String, Pool> entry : snapshot.entrySet()) {
+            Pool pool = entry.getValue();
+            stringBuffer.append("  " + entry.getKey() + ": converter hits=" + pool.hits.get() + " misses=" + pool.misses.get() + " idle=" + pool.idleCount.get() + "\n");
+        }
+        return stringBuffer.toString();
+    }
+}
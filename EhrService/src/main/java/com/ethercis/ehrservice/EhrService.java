@@ -26,6 +26,7 @@ import com.ethercis.ehr.encode.CompositionSerializer;
 import com.ethercis.ehr.encode.EncodeUtil;
 import com.ethercis.ehr.keyvalues.EcisFlattener;
 import com.ethercis.logonservice.session.I_SessionManager;
+import com.ethercis.persistence.AuditSetter;
 import com.ethercis.persistence.ServiceDataCluster;
 import com.ethercis.servicemanager.annotation.*;
 import com.ethercis.servicemanager.cluster.I_Info;
@@ -36,6 +37,7 @@ import com.ethercis.servicemanager.common.def.Constants;
 import com.ethercis.servicemanager.common.def.MethodName;
 import com.ethercis.servicemanager.common.def.SysErrorCode;
 import com.ethercis.servicemanager.exceptions.ServiceManagerException;
+import com.ethercis.servicemanager.metrics.LatencyTimer;
 import com.ethercis.servicemanager.runlevel.I_ServiceRunMode;
 import com.ethercis.servicemanager.service.ServiceInfo;
 import com.ethercis.transform.rawjson.RawJsonParser;
@@ -69,6 +71,10 @@ public class EhrService extends ServiceDataCluster implements I_EhrService, EhrS
 
     private EhrAccess.PARTY_MODE subjectMode;
 
+    private static final LatencyTimer CREATE_TIMER = dbTimer("ehr_create");
+    private static final LatencyTimer UPDATE_TIMER = dbTimer("ehr_update");
+    private static final LatencyTimer DELETE_TIMER = dbTimer("ehr_delete");
+
     private Logger log = LogManager.getLogger(EhrService.class);
 
     @Override
@@ -85,18 +91,27 @@ public class EhrService extends ServiceDataCluster implements I_EhrService, EhrS
         log.info("EhrService service started...");
     }
 
+    /**
+     * create an EHR outside of a request, the commit is not attributed to a committer
+     */
     @Override
     public UUID create(UUID partyId, UUID systemId) throws Exception {
-        //check if an Ehr already exists for this party
-        if (I_EhrAccess.checkExist(getDataAccess(), partyId))
-            throw new ServiceManagerException(getGlobal(), SysErrorCode.USER_ILLEGALARGUMENT, ME, "Specified party has already an EHR set (partyId="+partyId+")");
-
-        I_EhrAccess ehrAccess = I_EhrAccess.getInstance(getDataAccess(), partyId, systemId, null, null);
-        return ehrAccess.commit(auditSetter.getCommitterUuid(), auditSetter.getSystemUuid(), auditSetter.getDescription());
+        return create(partyId, systemId, null, null, new AuditSetter(getGlobal()));
     }
 
+    /**
+     * create an EHR outside of a request, the commit is not attributed to a committer
+     */
     @Override
     public UUID create(UUID partyId, UUID systemId, Object otherDetails, String otherDetailsTemplateId) throws Exception {
+        return create(partyId, systemId, otherDetails, otherDetailsTemplateId, new AuditSetter(getGlobal()));
+    }
+
+    /**
+     * create an EHR on behalf of a request
+     * @param auditSetter the audit setter resolved from the request properties
+     */
+    private UUID create(UUID partyId, UUID systemId, Object otherDetails, String otherDetailsTemplateId, AuditSetter auditSetter) throws Exception {
         //check if an Ehr already exists for this party
         if (I_EhrAccess.checkExist(getDataAccess(), partyId))
             throw new ServiceManagerException(getGlobal(), SysErrorCode.USER_ILLEGALARGUMENT, ME, "Specified party has already an EHR set (partyId="+partyId+")");
@@ -122,7 +137,7 @@ public class EhrService extends ServiceDataCluster implements I_EhrService, EhrS
             other_details.put(CompositionSerializer.TAG_OTHER_DETAILS.substring(1), otherDetails);
             ehrAccess.setOtherDetails(other_details, null);
         }
-        return ehrAccess.commit(auditSetter.getCommitterUuid(), auditSetter.getSystemUuid(), auditSetter.getDescription());
+        return timed(CREATE_TIMER, () -> ehrAccess.commit(auditSetter.getCommitterUuid(), auditSetter.getSystemUuid(), auditSetter.getDescription()));
     }
 
     @Override
@@ -143,7 +158,7 @@ public class EhrService extends ServiceDataCluster implements I_EhrService, EhrS
     @Override
     public Integer delete(UUID ehrId) throws Exception {
         I_EhrAccess ehrAccess = I_EhrAccess.retrieveInstance(getDataAccess(), ehrId);
-        return ehrAccess.delete();
+        return timed(DELETE_TIMER, () -> ehrAccess.delete());
     }
 
     @QuerySetting(dialect = {
@@ -151,7 +166,7 @@ public class EhrService extends ServiceDataCluster implements I_EhrService, EhrS
             @QuerySyntax(mode = I_ServiceRunMode.DialectSpace.EHRSCAPE, httpMethod = "GET", method = "get", path = "rest/v1/ehr", responseType = ResponseType.Json)
     })
     public Object retrieve(I_SessionClientProperties props) throws Exception {
-        auditSetter.handleProperties(getDataAccess(), props);
+        AuditSetter auditSetter = newAuditSetter(props);
         String subjectId = props.getClientProperty(I_EhrService.SUBJECTID_PARAMETER, (String) null);
         String nameSpace = props.getClientProperty(I_EhrService.SUBJECTNAMESPACE_PARAMETER, (String)null);
         String sessionId = auditSetter.getSessionId();
@@ -223,7 +238,7 @@ public class EhrService extends ServiceDataCluster implements I_EhrService, EhrS
             @QuerySyntax(mode = I_ServiceRunMode.DialectSpace.EHRSCAPE, httpMethod = "GET", method = "get", path = "rest/v1/ehr/status", responseType = ResponseType.Json)
     })
     public Object retrieveStatus(I_SessionClientProperties props) throws Exception {
-        auditSetter.handleProperties(getDataAccess(), props);
+        AuditSetter auditSetter = newAuditSetter(props);
         UUID ehrUuid;
 //        try {
         String ehrId = props.getClientProperty(I_EhrService.EHRID_PARAMETER, (String) null);
@@ -254,7 +269,7 @@ public class EhrService extends ServiceDataCluster implements I_EhrService, EhrS
             @QuerySyntax(mode = I_ServiceRunMode.DialectSpace.EHRSCAPE, httpMethod = "POST", method = "post", path = "rest/v1/ehr", responseType = ResponseType.Json)
     })
     public Object create(I_SessionClientProperties props) throws Exception {
-        auditSetter.handleProperties(getDataAccess(), props);
+        AuditSetter auditSetter = newAuditSetter(props);
         String subjectIdCode = props.getClientProperty(I_EhrService.SUBJECTID_PARAMETER, (String) null);
         String subjectNameSpace = props.getClientProperty(I_EhrService.SUBJECTNAMESPACE_PARAMETER, (String) null);
         String systemSettings = props.getClientProperty(SYSTEM_SETTINGS, (String) null);
@@ -304,7 +319,7 @@ public class EhrService extends ServiceDataCluster implements I_EhrService, EhrS
             }
         }
 
-        UUID ehrId = create(subjectUuid, systemId, otherDetails, otherDetailsTemplateId);
+        UUID ehrId = create(subjectUuid, systemId, otherDetails, otherDetailsTemplateId, auditSetter);
 
         Map<String, Object> retmap = new HashMap<>();
         retmap.put(I_EhrService.EHRID_PARAMETER, ehrId.toString());
@@ -322,7 +337,7 @@ public class EhrService extends ServiceDataCluster implements I_EhrService, EhrS
             @QuerySyntax(mode = I_ServiceRunMode.DialectSpace.EHRSCAPE, httpMethod = "PUT", method = "put", path = "rest/v1/ehr/status", responseType = ResponseType.Json)
     })
     public Object updateStatus(I_SessionClientProperties props) throws Exception {
-        auditSetter.handleProperties(getDataAccess(), props);
+        AuditSetter auditSetter = newAuditSetter(props);
         String sessionId = auditSetter.getSessionId();
         UUID ehrId = UUID.fromString(props.getClientProperty(I_EhrService.EHRID_PARAMETER, (String) null));
 
@@ -354,7 +369,7 @@ public class EhrService extends ServiceDataCluster implements I_EhrService, EhrS
                 //do other_details stuff
                 Locatable itemStructure = I_ContentBuilder.parseOtherDetailsXml(new ByteArrayInputStream(otherDetailsXml.getBytes()));
                 ehrAccess.setOtherDetails(itemStructure, otherDetailsTemplateId);
-                ehrAccess.update(auditSetter.getCommitterUuid(), auditSetter.getSystemUuid(), null, I_ConceptAccess.ContributionChangeType.modification, auditSetter.getDescription(), true);
+                timed(UPDATE_TIMER, () -> ehrAccess.update(auditSetter.getCommitterUuid(), auditSetter.getSystemUuid(), null, I_ConceptAccess.ContributionChangeType.modification, auditSetter.getDescription(), true));
             }
             else if (format.equals(I_CompositionService.CompositionFormat.RAW)){
                 Gson json = new GsonBuilder().create();
@@ -365,7 +380,7 @@ public class EhrService extends ServiceDataCluster implements I_EhrService, EhrS
                 String otherDetailsTemplateId = (String) attributes.getOrDefault(OTHER_DETAILS_TEMPLATE_ID, null);
                 //do other_details stuff
                 ehrAccess.setOtherDetails(serialized, otherDetailsTemplateId);
-                ehrAccess.update(auditSetter.getCommitterUuid(), auditSetter.getSystemUuid(), null, I_ConceptAccess.ContributionChangeType.modification, auditSetter.getDescription(), true);
+                timed(UPDATE_TIMER, () -> ehrAccess.update(auditSetter.getCommitterUuid(), auditSetter.getSystemUuid(), null, I_ConceptAccess.ContributionChangeType.modification, auditSetter.getDescription(), true));
 
             }
             else {
@@ -409,7 +424,7 @@ public class EhrService extends ServiceDataCluster implements I_EhrService, EhrS
 
                 }
             }
-            ehrAccess.update(auditSetter.getCommitterUuid(), auditSetter.getSystemUuid(), null, I_ConceptAccess.ContributionChangeType.modification, auditSetter.getDescription());
+            timed(UPDATE_TIMER, () -> ehrAccess.update(auditSetter.getCommitterUuid(), auditSetter.getSystemUuid(), null, I_ConceptAccess.ContributionChangeType.modification, auditSetter.getDescription()));
         }
 
         Map<String, Object> retmap = new HashMap<>();
@@ -434,7 +449,7 @@ public class EhrService extends ServiceDataCluster implements I_EhrService, EhrS
             @QuerySyntax(mode = I_ServiceRunMode.DialectSpace.EHRSCAPE, httpMethod = "DELETE", method = "delete", path = "rest/v1/ehr", responseType = ResponseType.String)
     })
     public String delete(I_SessionClientProperties props) throws ServiceManagerException {
-        auditSetter.handleProperties(getDataAccess(), props);
+        AuditSetter auditSetter = newAuditSetter(props);
         String ehrId = props.getClientProperty(I_EhrService.EHRID_PARAMETER, (String) null);
 
         if (ehrId == null || ehrId.length() == 0)
@@ -448,7 +463,7 @@ public class EhrService extends ServiceDataCluster implements I_EhrService, EhrS
             if (ehrAccess == null)
                 throw new ServiceManagerException(getGlobal(), SysErrorCode.RESOURCE_NOT_FOUND, ME, "Passed ehr Id does not match an existing EHR");
 
-            Integer result = ehrAccess.delete(auditSetter.getCommitterUuid(), auditSetter.getSystemUuid(), auditSetter.getDescription());
+            Integer result = timed(DELETE_TIMER, () -> ehrAccess.delete(auditSetter.getCommitterUuid(), auditSetter.getSystemUuid(), auditSetter.getDescription()));
 
             if (result > 0)
                 return "Done";
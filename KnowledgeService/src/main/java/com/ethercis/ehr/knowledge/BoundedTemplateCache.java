@@ -0,0 +1,232 @@
+/*
+ * Copyright (c) 2015 Christian Chevalley
+ * This file is part of Project Ethercis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+//Copyright
+package com.ethercis.ehr.knowledge;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * ETHERCIS Project VirtualEhr
+ * Heap bounded tier of parsed templates in front of their files.
+ * <p>
+ * A template is parsed from its file on first lookup and kept in heap within a budget. The weight of a template is
+ * the size of its file, the heap used by a parsed template is roughly proportional to it. When the budget is
+ * exceeded the least recently used templates are dropped, they are parsed again from their file on next lookup.
+ * <p>
+ * Admission is frequency based (TinyLFU like): a template which would evict others is only kept if it has been
+ * looked up at least as often as each of them, a scan over cold templates does not flush the hot ones. Lookup counts
+ * are halved every 10 lookups per known template to age them.
+ * <p>
+ * A template is identified by its file name without extension. A template uploaded after the scan is not in this
+ * tier, {@link #invalidate(String)} removes a template replaced by an upload.
+ */
+public class BoundedTemplateCache<T> {
+
+    /**
+     * parses a template file
+     */
+    public interface Parser<T> {
+        T parse(Path file) throws Exception;
+    }
+
+    private static final class Entry<T> {
+        final T template;
+        final long weight;
+
+        Entry(T template, long weight) {
+            this.template = template;
+            this.weight = weight;
+        }
+    }
+
+    private static final class Figures {
+        final AtomicLong hits = new AtomicLong();
+        final AtomicLong misses = new AtomicLong();
+        final AtomicLong evictions = new AtomicLong();
+    }
+
+    private final Map<String, Path> files;
+    private final Parser<T> parser;
+    private final long maxWeight;
+
+    //access ordered, guarded by this
+    private final LinkedHashMap<String, Entry<T>> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Integer> frequencies = new HashMap<>();
+    private long weight = 0;
+    private long lookups = 0;
+
+    private final Map<String, Figures> figures = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong rejections = new AtomicLong();
+
+    /**
+     * @param files template files by template id
+     * @param parser
+     * @param maxWeight heap budget, as the total size of the files of the cached templates
+     */
+    public BoundedTemplateCache(Map<String, Path> files, Parser<T> parser, long maxWeight) {
+        this.files = new ConcurrentHashMap<>(files);
+        this.parser = parser;
+        this.maxWeight = maxWeight;
+    }
+
+    /**
+     * list the template files of a directory and its sub-directories
+     * @param directory
+     * @param extension f.e. ".opt"
+     * @return the files by template id (file name without extension)
+     * @throws IOException
+     */
+    public static Map<String, Path> scan(Path directory, String extension) throws IOException {
+        Map<String, Path> files = new TreeMap<>();
+        if (!Files.isDirectory(directory))
+            return files;
+        try (Stream<Path> walk = Files.walk(directory)) {
+            for (Path file : walk.filter(Files::isRegularFile).collect(Collectors.toList())) {
+                String name = file.getFileName().toString();
+                if (name.toLowerCase().endsWith(extension.toLowerCase()))
+                    files.put(name.substring(0, name.length() - extension.length()), file);
+            }
+        }
+        return files;
+    }
+
+    /**
+     * @param templateId
+     * @return the parsed template or null if the template has no file in this tier
+     * @throws Exception if the file could not be parsed
+     */
+    public T get(String templateId) throws Exception {
+        Path file = files.get(templateId);
+        if (file == null)
+            return null;
+
+        Figures templateFigures = figures.computeIfAbsent(templateId, id -> new Figures());
+        synchronized (this) {
+            touch(templateId);
+            Entry<T> entry = entries.get(templateId);
+            if (entry != null) {
+                hits.incrementAndGet();
+                templateFigures.hits.incrementAndGet();
+                return entry.template;
+            }
+        }
+
+        misses.incrementAndGet();
+        templateFigures.misses.incrementAndGet();
+        //parsed outside the lock, concurrent misses on the same template may parse it twice
+        T template = parser.parse(file);
+        Entry<T> entry = new Entry<>(template, Files.size(file));
+        synchronized (this) {
+            if (files.get(templateId) == file)
+                admit(templateId, entry);
+        }
+        return template;
+    }
+
+    private void touch(String templateId) {
+        frequencies.merge(templateId, 1, Integer::sum);
+        if (++lookups >= 10L * Math.max(files.size(), 1)) {
+            frequencies.replaceAll((id, count) -> count / 2);
+            frequencies.values().removeIf(count -> count == 0);
+            lookups = 0;
+        }
+    }
+
+    private void admit(String templateId, Entry<T> entry) {
+        if (entries.containsKey(templateId))
+            return;
+        if (entry.weight > maxWeight) {
+            rejections.incrementAndGet();
+            return;
+        }
+
+        //least recently used first, the candidate must be at least as frequent as each victim
+        int frequency = frequencies.getOrDefault(templateId, 0);
+        List<String> victims = new ArrayList<>();
+        long freed = 0;
+        for (Iterator<Map.Entry<String, Entry<T>>> iterator = entries.entrySet().iterator(); weight - freed + entry.weight > maxWeight && iterator.hasNext(); ) {
+            Map.Entry<String, Entry<T>> victim = iterator.next();
+            if (frequencies.getOrDefault(victim.getKey(), 0) > frequency) {
+                rejections.incrementAndGet();
+                return;
+            }
+            victims.add(victim.getKey());
+            freed += victim.getValue().weight;
+        }
+
+        for (String victim : victims) {
+            weight -= entries.remove(victim).weight;
+            evictions.incrementAndGet();
+            Figures victimFigures = figures.get(victim);
+            if (victimFigures != null)
+                victimFigures.evictions.incrementAndGet();
+        }
+        entries.put(templateId, entry);
+        weight += entry.weight;
+    }
+
+    /**
+     * drop a template, its file is no longer used (f.e. the template has been uploaded again)
+     * @param templateId
+     */
+    public synchronized void invalidate(String templateId) {
+        files.remove(templateId);
+        Entry<T> entry = entries.remove(templateId);
+        if (entry != null)
+            weight -= entry.weight;
+    }
+
+    public synchronized boolean isCached(String templateId) {
+        return entries.containsKey(templateId);
+    }
+
+    public String statistics() {
+        Map<String, Long> cached = new HashMap<>();
+        long used;
+        synchronized (this) {
+            for (Map.Entry<String, Entry<T>> entry : entries.entrySet())
+                cached.put(entry.getKey(), entry.getValue().weight);
+            used = weight;
+        }
+        StringBuffer stringBuffer = new StringBuffer();
+        stringBuffer.append("Template heap tier: templates=" + cached.size() + "/" + files.size() + " weight=" + used + "/" + maxWeight
+                + " hits=" + hits.get() + " misses=" + misses.get() + " evictions=" + evictions.get() + " rejections=" + rejections.get() + "\n");
+        for (Map.Entry<String, Figures> entry : new TreeMap<>(figures).entrySet()) {
+            Figures templateFigures = entry.getValue();
+            Long size = cached.get(entry.getKey());
+            stringBuffer.append("  " + entry.getKey() + ": hits=" + templateFigures.hits.get() + " misses=" + templateFigures.misses.get()
+                    + " evictions=" + templateFigures.evictions.get() + (size != null ? " size=" + size : " not cached") + "\n");
+        }
+        return stringBuffer.toString();
+    }
+}
@@ -38,6 +38,7 @@ import com.ethercis.servicemanager.cluster.ClusterInfo;
 import com.ethercis.servicemanager.cluster.I_Info;
 import com.ethercis.servicemanager.common.I_SessionClientProperties;
 import com.ethercis.servicemanager.common.MetaBuilder;
+import com.ethercis.servicemanager.common.RequestBody;
 import com.ethercis.servicemanager.common.def.Constants;
 import com.ethercis.servicemanager.common.def.MethodName;
 import com.ethercis.servicemanager.common.def.SysErrorCode;
@@ -49,11 +50,27 @@ import org.openehr.rm.composition.Composition;
 import org.openehr.rm.composition.EventContext;
 import org.openehr.rm.datastructure.itemstructure.ItemStructure;
 import org.openehr.rm.support.identification.ObjectVersionID;
+import org.openehr.schemas.v1.OPERATIONALTEMPLATE;
+import org.openehr.schemas.v1.TemplateDocument;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static com.ethercis.ehr.building.util.CompositionAttributesHelper.createComposer;
 
@@ -67,13 +84,20 @@ import static com.ethercis.ehr.building.util.CompositionAttributesHelper.createC
  *              <li>knowledge.path.template : path for templates (OET)</li>
  *              <li>knowledge.path.opt : path for operational templates (OPT)</li>
  *              <li>knowledge.forcecache : "true|false" specifies if force caching is enabled</li>
+ *              <li>knowledge.snapshot.path : optional, file keeping the content hash of the resources. With force
+ *              caching, a load where no resource changed since the last full parse only references the resources,
+ *              each one is parsed on first use</li>
+ *              <li>knowledge.opt.heap_budget : optional, heap budget of the operational templates as the total size of
+ *              their OPT files. When set, operational templates are parsed on first lookup and the least recently used
+ *              ones are dropped from heap when over budget, to be parsed again from their file when next used</li>
  *         </ul>
  *         <br>
  *         The path search is recursive.
  *         forcecache tells the service to parse resources at load time.
  *         The service can be administered with JMX, the following commands are implemented:<br>
  *             <ul>
- *               <li>reload: reload the current caches </li>
+ *               <li>reload: reload the current caches in the background, the new cache is published
+ *               when fully loaded and requests in progress complete with the previous one</li>
  *               <li>statistics: get current statistics in cache</li>
  *               <li>showArchetypes: get the list of current archetypes</li>
  *               <li>showTemplates: get the list of templates</li>
@@ -96,8 +120,49 @@ public class CacheKnowledgeService extends ClusterInfo implements I_CacheKnowled
 	private String version="1.0";
 	private Logger log = LogManager.getLogger(ME);
 	private RunTimeSingleton global;
-	private I_KnowledgeCache cache;
+
+    /**
+     * a loaded cache, published as a whole once built
+     */
+    private static final class KnowledgeSnapshot {
+        final I_KnowledgeCache cache;
+        final long version;
+        final long loadedAt;
+        final long loadTime;
+        final int templateCount;
+        final boolean lazy;
+        //content hash of the loaded and uploaded resources
+        final KnowledgeManifest manifest;
+        //heap bounded tier of the operational templates, null if not configured
+        final BoundedTemplateCache<OPERATIONALTEMPLATE> templateCache;
+
+        KnowledgeSnapshot(I_KnowledgeCache cache, long version, long loadedAt, long loadTime, int templateCount, boolean lazy, KnowledgeManifest manifest, BoundedTemplateCache<OPERATIONALTEMPLATE> templateCache) {
+            this.cache = cache;
+            this.version = version;
+            this.loadedAt = loadedAt;
+            this.loadTime = loadTime;
+            this.templateCount = templateCount;
+            this.lazy = lazy;
+            this.manifest = manifest;
+            this.templateCache = templateCache;
+        }
+
+        KnowledgeSnapshot withManifest(KnowledgeManifest manifest) {
+            return new KnowledgeSnapshot(cache, version, loadedAt, loadTime, templateCount, lazy, manifest, templateCache);
+        }
+    }
+
+    private static final String FORCE_CACHE = "knowledge.forcecache";
+    private static final String MANIFEST_PATH = "knowledge.snapshot.path";
+    private static final String OPT_PATH = "knowledge.path.opt";
+    private static final String TEMPLATE_HEAP_BUDGET = "knowledge.opt.heap_budget";
+
+    private final AtomicReference<KnowledgeSnapshot> snapshot = new AtomicReference<>();
+    private final AtomicBoolean reloading = new AtomicBoolean(false);
+    private volatile String lastReloadError = null;
+    private ExecutorService reloadExecutor;
     private ServiceInfo serviceInfo = null; //used for JMX reload()
+    private final List<I_KnowledgeCacheListener> listeners = new CopyOnWriteArrayList<>();
 
 	public CacheKnowledgeService() {
 
@@ -108,7 +173,13 @@ public class CacheKnowledgeService extends ClusterInfo implements I_CacheKnowled
 	 */
 	@Override
 	public I_KnowledgeCache getKnowledgeCache(){
-		return cache;
+		KnowledgeSnapshot current = snapshot.get();
+		return current == null ? null : current.cache;
+	}
+
+	@Override
+	public void addKnowledgeCacheListener(I_KnowledgeCacheListener listener){
+		listeners.add(listener);
 	}
 
 	@Override
@@ -120,27 +191,159 @@ public class CacheKnowledgeService extends ClusterInfo implements I_CacheKnowled
 		
 		//initialize the ArchetypeRepository controller
         try {
-            this.cache = new KnowledgeCache(global.getProperty().getProperties(), serviceInfo.getParameters());
+            snapshot.set(load(1, serviceInfo.getParameters()));
         } catch (Exception e){
             throw new ServiceManagerException(global, SysErrorCode.INTERNAL_ILLEGALARGUMENT, ME, "Severe error while loading cache:"+e);
         }
 
+        reloadExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "knowledge-reload");
+            thread.setDaemon(true);
+            return thread;
+        });
+
         putObject(I_Info.JMX_PREFIX+ME, this);
 
         log.info(ME + " successfully started");
         log.info("Statistics:\n"+statistics());
 	}
 
+    @Override
+    public void shutdown() throws ServiceManagerException {
+        super.shutdown();
+        if (reloadExecutor != null)
+            reloadExecutor.shutdownNow();
+    }
+
+    private KnowledgeSnapshot load(long version, Properties parameters) throws Exception {
+        long start = System.currentTimeMillis();
+        Properties properties = global.getProperty().getProperties();
+        String manifestPath = global.getProperty().get(MANIFEST_PATH, (String)null);
+        long templateBudget = global.getProperty().get(TEMPLATE_HEAP_BUDGET, 0L);
+
+        //the manifest is the entity tag of the knowledge resources, it is computed on every load
+        KnowledgeManifest manifest = KnowledgeManifest.scan(properties, parameters);
+        boolean validated = templateBudget <= 0 && manifestPath != null && isForceCache(properties, parameters);
+        boolean lazy = false;
+        if (templateBudget > 0 && isForceCache(properties, parameters)) {
+            //the operational templates are parsed on first lookup by the heap bounded tier
+            log.info("Operational templates heap budget:" + templateBudget + ", resources are parsed on first use");
+            lazy = true;
+            properties = withoutForceCache(properties);
+            parameters = parameters == null ? null : withoutForceCache(parameters);
+        }
+        if (validated) {
+            int changes = manifest.changes(KnowledgeManifest.load(Paths.get(manifestPath)));
+            if (changes == 0) {
+                //all resources have been validated by the last full load
+                log.info("Knowledge resources unchanged since last load, resources are parsed on first use");
+                lazy = true;
+                properties = withoutForceCache(properties);
+                parameters = parameters == null ? null : withoutForceCache(parameters);
+            }
+            else
+                log.info(changes + " knowledge resource(s) changed since last load, parsing all resources");
+        }
+
+        I_KnowledgeCache loaded = new KnowledgeCache(properties, parameters);
+        BoundedTemplateCache<OPERATIONALTEMPLATE> templateCache = null;
+        if (templateBudget > 0) {
+            String optPath = parameters != null ? parameters.getProperty(OPT_PATH, properties.getProperty(OPT_PATH)) : properties.getProperty(OPT_PATH);
+            if (optPath != null) {
+                templateCache = new BoundedTemplateCache<>(BoundedTemplateCache.scan(Paths.get(optPath), ".opt"), CacheKnowledgeService::parseTemplate, templateBudget);
+                loaded = withTemplateCache(loaded, templateCache);
+            }
+            else
+                log.warn("No operational template path, " + TEMPLATE_HEAP_BUDGET + " is ignored");
+        }
+        long loadTime = System.currentTimeMillis() - start;
+
+        if (validated && !lazy) {
+            String errors = loaded.processingErrors();
+            if (errors == null || errors.trim().isEmpty()) {
+                try {
+                    manifest.store(Paths.get(manifestPath));
+                } catch (IOException e) {
+                    log.warn("Could not save knowledge manifest:" + manifestPath + ", reason:" + e);
+                }
+            }
+        }
+
+        int templateCount = 0;
+        try {
+            templateCount = loaded.listOperationalTemplates().size();
+        } catch (IOException e){
+            log.warn("Could not count operational templates:"+e);
+        }
+        return new KnowledgeSnapshot(loaded, version, System.currentTimeMillis(), loadTime, templateCount, lazy, manifest, templateCache);
+    }
+
+    private static OPERATIONALTEMPLATE parseTemplate(Path file) throws Exception {
+        try (InputStream inputStream = Files.newInputStream(file)) {
+            return TemplateDocument.Factory.parse(inputStream).getTemplate();
+        }
+    }
+
+    /**
+     * route the operational template lookups by template id of a knowledge cache through a heap bounded tier, the
+     * consumers of the cache (converters, builders) go through it as well. Other lookups go to the cache.
+     * @param cache
+     * @param templateCache
+     * @return
+     */
+    private static I_KnowledgeCache withTemplateCache(final I_KnowledgeCache cache, final BoundedTemplateCache<OPERATIONALTEMPLATE> templateCache) {
+        return (I_KnowledgeCache) Proxy.newProxyInstance(I_KnowledgeCache.class.getClassLoader(), new Class<?>[]{I_KnowledgeCache.class}, (proxy, method, args) -> {
+            if (method.getName().equals("retrieveOperationalTemplate") && args != null && args.length == 1 && args[0] instanceof String) {
+                OPERATIONALTEMPLATE template = templateCache.get((String) args[0]);
+                if (template != null)
+                    return template;
+            }
+            try {
+                return method.invoke(cache, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        });
+    }
+
+    /**
+     * @param resource
+     * @return a strong entity tag for a resource derived from the knowledge cache: the digest of the content of the
+     * loaded and uploaded resources, identical across restarts and nodes
+     */
+    private String knowledgeTag(String resource) {
+        return "\"" + resource + "::" + snapshot.get().manifest.digest() + "\"";
+    }
+
+    private static boolean isForceCache(Properties properties, Properties parameters) {
+        String forceCache = properties.getProperty(FORCE_CACHE);
+        if (parameters != null)
+            forceCache = parameters.getProperty(FORCE_CACHE, forceCache);
+        return Boolean.parseBoolean(forceCache);
+    }
+
+    private static Properties withoutForceCache(Properties properties) {
+        Properties copy = new Properties();
+        for (String name : properties.stringPropertyNames())
+            copy.setProperty(name, properties.getProperty(name));
+        copy.setProperty(FORCE_CACHE, "false");
+        return copy;
+    }
+
     @QuerySetting(dialect = {
             @QuerySyntax(mode = I_ServiceRunMode.DialectSpace.STANDARD, httpMethod = "GET", method = "get", path = "vehr/template", responseType = ResponseType.Json),
             @QuerySyntax(mode = I_ServiceRunMode.DialectSpace.EHRSCAPE, httpMethod = "GET", method = "get", path = "rest/v1/template", responseType = ResponseType.Json)
     })
     public Object retrieve(I_SessionClientProperties props) throws ServiceManagerException {
+        //the list changes only on reload or upload
+        if (props.getResponseContext().setETag(knowledgeTag("templates")))
+            return null;
+
 
         try {
             Map retmap = this.getKnowledgeCache().listOperationalTemplates();
             if (retmap.size() == 0){
-                global.getProperty().set(MethodName.RETURN_TYPE_PROPERTY, ""+MethodName.RETURN_NO_CONTENT);
+                props.getResponseContext().setReturnType(MethodName.RETURN_NO_CONTENT);
                 //build the relative part of the link to the existing last version
                 Map<String, Object> retMap = new HashMap<>();
                 retMap.put("Reason", "No templates");
@@ -166,11 +369,16 @@ public class CacheKnowledgeService extends ClusterInfo implements I_CacheKnowled
         if (templateId == null)
             throw new ServiceManagerException(global, SysErrorCode.INTERNAL_ILLEGALARGUMENT, ME, "No template Id give (templateId missing)");
 
+        if (props.getResponseContext().setETag(knowledgeTag("example::" + templateId + "::" + format)))
+            return null;
+
 
         Object retObj = null;
 
         try {
-            I_ContentBuilder contentBuilder = I_ContentBuilder.getInstance(null, I_ContentBuilder.OPT, this.getKnowledgeCache(), templateId);
+            //use the same cache snapshot for the whole request
+            I_KnowledgeCache knowledgeCache = this.getKnowledgeCache();
+            I_ContentBuilder contentBuilder = I_ContentBuilder.getInstance(null, I_ContentBuilder.OPT, knowledgeCache, templateId);
 
             Object generated = contentBuilder.generate();
 
@@ -192,14 +400,14 @@ public class CacheKnowledgeService extends ClusterInfo implements I_CacheKnowled
 
                 switch (format) {
                     case "XML":
-                        global.getProperty().set(MethodName.RETURN_TYPE_PROPERTY, ""+MethodName.RETURN_XML);
+                        props.getResponseContext().setReturnType(MethodName.RETURN_XML);
                         byte[] exportXml = contentBuilder.exportCanonicalXML((Composition) generated, true, true);
                         if (exportXml == null)
                             throw new ServiceManagerException(global, SysErrorCode.INTERNAL_ILLEGALARGUMENT, ME, "Could not export an example for template Id:" + templateId);
                         retObj = new String (exportXml);
                         break;
                     case "ECISFLAT":
-                        global.getProperty().set(MethodName.RETURN_TYPE_PROPERTY, ""+MethodName.RETURN_STRING);
+                        props.getResponseContext().setReturnType(MethodName.RETURN_STRING);
                         Map<String, String> testRetMap = new EcisFlattener(true).render((Composition) generated);
                         GsonBuilder builder = new GsonBuilder();
                         Gson gson = builder.setPrettyPrinting().disableHtmlEscaping().create();
@@ -207,7 +415,7 @@ public class CacheKnowledgeService extends ClusterInfo implements I_CacheKnowled
                         retObj = jsonString;
                         break;
                     case "EXPANDED":
-                        global.getProperty().set(MethodName.RETURN_TYPE_PROPERTY, ""+MethodName.RETURN_STRING);
+                        props.getResponseContext().setReturnType(MethodName.RETURN_STRING);
                         testRetMap = new EcisFlattener(true).render((Composition) generated);
                         builder = new GsonBuilder();
                         gson = builder.setPrettyPrinting().disableHtmlEscaping().create();
@@ -215,8 +423,8 @@ public class CacheKnowledgeService extends ClusterInfo implements I_CacheKnowled
                         retObj = jsonString;
                         break;
                     case "FLAT":
-                        global.getProperty().set(MethodName.RETURN_TYPE_PROPERTY, ""+MethodName.RETURN_STRING);
-                        I_FlatJsonCompositionConverter flatJsonCompositionConverter = FlatJsonCompositionConverter.getInstance(cache);
+                        props.getResponseContext().setReturnType(MethodName.RETURN_STRING);
+                        I_FlatJsonCompositionConverter flatJsonCompositionConverter = FlatJsonCompositionConverter.getInstance(knowledgeCache);
                         Map<String, Object> retMap = flatJsonCompositionConverter.fromComposition(templateId, (Composition)generated, true);
                         jsonString = JsonUtil.toJsonString(retMap);
                         retObj = jsonString;
@@ -225,14 +433,14 @@ public class CacheKnowledgeService extends ClusterInfo implements I_CacheKnowled
             } else if (generated instanceof Locatable) {
                 switch (format) {
                     case "XML":
-                        global.getProperty().set(MethodName.RETURN_TYPE_PROPERTY, "" + MethodName.RETURN_XML);
+                        props.getResponseContext().setReturnType(MethodName.RETURN_XML);
                         byte[] exportXml = contentBuilder.exportCanonicalXML((Locatable) generated, true, true);
                         if (exportXml == null)
                             throw new ServiceManagerException(global, SysErrorCode.INTERNAL_ILLEGALARGUMENT, ME, "Could not export an example for template Id:" + templateId);
                         retObj = new String(exportXml);
                         break;
                     case "ECISFLAT":
-                        global.getProperty().set(MethodName.RETURN_TYPE_PROPERTY, "" + MethodName.RETURN_JSON);
+                        props.getResponseContext().setReturnType(MethodName.RETURN_JSON);
                         Map<String, String> testRetMap = new EcisFlattener(true).render((Locatable) generated);
 
                         GsonBuilder builder = new GsonBuilder();
@@ -257,16 +465,26 @@ public class CacheKnowledgeService extends ClusterInfo implements I_CacheKnowled
     })
     public Object create(I_SessionClientProperties props) throws Exception {
 
-        //get body stuff
-        String content = props.getClientProperty(Constants.REQUEST_CONTENT, (String) null);
+        //get body stuff, use the raw bytes as received
+        RequestBody body = props.getRequestBody();
 
         String templateId;
+        byte[] content;
         try {
-            templateId = this.getKnowledgeCache().addOperationalTemplate(content.getBytes());
+            content = body != null ? body.getBytes() : props.getClientProperty(Constants.REQUEST_CONTENT, (String) null).getBytes();
+            templateId = this.getKnowledgeCache().addOperationalTemplate(content);
         } catch (Exception e){
             throw new ServiceManagerException(global, SysErrorCode.USER_ILLEGALARGUMENT, ME, "Could not add template, reason:" + e);
         }
 
+        BoundedTemplateCache<OPERATIONALTEMPLATE> templateCache = snapshot.get().templateCache;
+        if (templateCache != null)
+            templateCache.invalidate(templateId);
+        final String uploaded = "upload:" + templateId;
+        snapshot.updateAndGet(current -> current.withManifest(current.manifest.with(uploaded, content)));
+        for (I_KnowledgeCacheListener listener: listeners)
+            listener.templateUpdated(templateId);
+
         Map<String, Object> retmap = new HashMap<>();
         retmap.put("action", "CREATE");
         retmap.put("templateId", templateId);
@@ -310,48 +528,85 @@ public class CacheKnowledgeService extends ClusterInfo implements I_CacheKnowled
 
     @Override
     public String reload() {
+        if (!reloading.compareAndSet(false, true))
+            return "Reload already in progress\n";
+
+        final long version = snapshot.get().version + 1;
+        final Properties parameters = (serviceInfo != null && serviceInfo.getParameters().size() > 0) ? serviceInfo.getParameters() : null; //null: assume from environment
+
         try {
-            if (serviceInfo != null && serviceInfo.getParameters().size() > 0)
-                this.cache = new KnowledgeCache(global.getProperty().getProperties(), serviceInfo.getParameters());
-            else
-                this.cache = new KnowledgeCache(global.getProperty().getProperties(), null); //assume from environment
-        } catch (Exception e){
+            reloadExecutor.execute(() -> {
+                try {
+                    KnowledgeSnapshot loaded = load(version, parameters);
+                    snapshot.set(loaded);
+                    lastReloadError = null;
+                    log.info("Knowledge cache version " + version + " loaded in " + loaded.loadTime + " [ms]");
+                    for (I_KnowledgeCacheListener listener : listeners)
+                        listener.cacheReloaded();
+                } catch (Exception e) {
+                    lastReloadError = e.toString();
+                    log.error("Could not reload cache with exception:" + e);
+                } finally {
+                    reloading.set(false);
+                }
+            });
+        } catch (RuntimeException e){
+            reloading.set(false);
             return "Could not reload cache with exception:"+e;
         }
-        return "Reload successfully done\n";
+        return "Reload started, version:"+version+"\n";
     }
 
     @Override
     public String statistics(){
-        return cache.statistics();
+        KnowledgeSnapshot current = snapshot.get();
+        StringBuffer sb = new StringBuffer();
+        sb.append("Cache version:" + current.version + " loaded at:" + new Date(current.loadedAt) + "\n");
+        sb.append("Load time:" + current.loadTime + " [ms], operational templates:" + current.templateCount + (current.lazy ? " (parsed on first use)" : ""));
+        if (current.loadTime > 0)
+            sb.append(" (" + (current.templateCount * 1000L / current.loadTime) + " templates/s)");
+        sb.append("\n");
+        if (reloading.get())
+            sb.append("Reload in progress\n");
+        if (lastReloadError != null)
+            sb.append("Last reload failed:" + lastReloadError + "\n");
+        sb.append(current.cache.statistics());
+        if (current.templateCache != null)
+            sb.append("\n" + current.templateCache.statistics());
+        for (I_KnowledgeCacheListener listener : listeners) {
+            String listenerStatistics = listener.statistics();
+            if (listenerStatistics != null)
+                sb.append("\n" + listenerStatistics);
+        }
+        return sb.toString();
     }
 
     @Override
     public String showArcheypes(){
-        return cache.archeypesList();
+        return getKnowledgeCache().archeypesList();
     }
 
     @Override
     public String showTemplates(){
-        return cache.oetList();
+        return getKnowledgeCache().oetList();
     }
 
     @Override
     public String showOPT(){
-        return cache.optList();
+        return getKnowledgeCache().optList();
     }
 
     @Override
     public String setForceCache(boolean set){
-        cache.setForceCache(set);
+        getKnowledgeCache().setForceCache(set);
         return "Force Cache is now "+(set ? "enabled\n" : "disabled\n");
     }
 
     @Override
     public String settings(){
-        return cache.settings();
+        return getKnowledgeCache().settings();
     }
 
     @Override
-    public String errors() { return cache.processingErrors(); }
+    public String errors() { return getKnowledgeCache().processingErrors(); }
 }
@@ -24,4 +24,10 @@ public interface I_CacheKnowledgeService {
 	java.lang.String FORMAT = "format";
 
 	public abstract I_KnowledgeCache getKnowledgeCache();
+
+	/**
+	 * register a listener notified on template upload and cache reload
+	 * @param listener
+	 */
+	public abstract void addKnowledgeCacheListener(I_KnowledgeCacheListener listener);
 }
\ No newline at end of file
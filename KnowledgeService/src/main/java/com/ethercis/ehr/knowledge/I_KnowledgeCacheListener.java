@@ -0,0 +1,44 @@
+/*
+ * Copyright (c) 2015 Christian Chevalley
+ * This file is part of Project Ethercis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+//Copyright
+package com.ethercis.ehr.knowledge;
+
+/**
+ * ETHERCIS Project VirtualEhr
+ * Notified by the CacheKnowledgeService when a template is uploaded or the knowledge cache is reloaded, used
+ * by the services keeping template dependent state.
+ */
+public interface I_KnowledgeCacheListener {
+
+    /**
+     * a template has been added or replaced
+     * @param templateId
+     */
+    void templateUpdated(String templateId);
+
+    /**
+     * the whole cache has been reloaded
+     */
+    void cacheReloaded();
+
+    /**
+     * @return statistics of the template dependent state kept by the listener, shown with the cache statistics
+     */
+    default String statistics() {
+        return null;
+    }
+}
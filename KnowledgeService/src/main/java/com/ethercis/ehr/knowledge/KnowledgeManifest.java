@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2015 Christian Chevalley
+ * This file is part of Project Ethercis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+//Copyright
+package com.ethercis.ehr.knowledge;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * ETHERCIS Project VirtualEhr
+ * Content hash of the knowledge resources (archetypes, templates, operational templates).
+ * <p>
+ * The manifest is saved after a load that parsed every resource (force caching). If the resources did not change
+ * since, the next load can skip the eager parsing: every resource has already been validated and is parsed on
+ * first use only.<br>
+ * The digest of the manifest identifies the content of the resources, it is the same on every node loading the
+ * same resources and survives a restart.
+ */
+public class KnowledgeManifest {
+
+    public static final String[] RESOURCE_PATHS = {"knowledge.path.archetype", "knowledge.path.template", "knowledge.path.opt"};
+
+    private static Logger log = LogManager.getLogger(KnowledgeManifest.class);
+
+    private final Map<String, String> hashes;
+    private final String digest;
+
+    private KnowledgeManifest(Map<String, String> hashes) {
+        this.hashes = hashes;
+        StringBuilder content = new StringBuilder();
+        for (Map.Entry<String, String> entry : hashes.entrySet())
+            content.append(entry.getKey()).append('=').append(entry.getValue()).append('\n');
+        this.digest = hash(content.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * compute the hash of every file found in the resource directories
+     * @param properties global properties
+     * @param parameters service parameters, take precedence over properties, may be null
+     * @return
+     * @throws IOException
+     */
+    public static KnowledgeManifest scan(Properties properties, Properties parameters) throws IOException {
+        Map<String, String> hashes = new ConcurrentHashMap<>();
+        for (String key : RESOURCE_PATHS) {
+            String directory = parameters != null ? parameters.getProperty(key, properties.getProperty(key)) : properties.getProperty(key);
+            if (directory == null)
+                continue;
+            Path root = Paths.get(directory);
+            if (!Files.isDirectory(root))
+                continue;
+            try (Stream<Path> files = Files.walk(root)) {
+                files.filter(Files::isRegularFile)
+                        .collect(Collectors.toList())
+                        .parallelStream()
+                        .forEach(file -> hashes.put(key + ":" + root.relativize(file).toString(), hash(file)));
+            }
+        }
+        return new KnowledgeManifest(new TreeMap<>(hashes));
+    }
+
+    private static String hash(Path file) {
+        try {
+            return hash(Files.readAllBytes(file));
+        } catch (IOException e) {
+            //an unreadable file never matches a saved manifest
+            return "error:" + e;
+        }
+    }
+
+    private static String hash(byte[] content) {
+        try {
+            byte[] bytes = MessageDigest.getInstance("SHA-256").digest(content);
+            StringBuilder hex = new StringBuilder(bytes.length * 2);
+            for (byte b : bytes)
+                hex.append(String.format("%02x", b));
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not supported", e);
+        }
+    }
+
+    /**
+     * read a saved manifest
+     * @param path
+     * @return the manifest or null if not found or not readable
+     */
+    public static KnowledgeManifest load(Path path) {
+        if (!Files.isRegularFile(path))
+            return null;
+        Properties properties = new Properties();
+        try (InputStream inputStream = Files.newInputStream(path)) {
+            properties.load(inputStream);
+        } catch (IOException e) {
+            log.warn("Could not read knowledge manifest:" + path + ", reason:" + e);
+            return null;
+        }
+        Map<String, String> hashes = new TreeMap<>();
+        for (String name : properties.stringPropertyNames())
+            hashes.put(name, properties.getProperty(name));
+        return new KnowledgeManifest(hashes);
+    }
+
+    public void store(Path path) throws IOException {
+        Properties properties = new Properties();
+        properties.putAll(hashes);
+        if (path.getParent() != null)
+            Files.createDirectories(path.getParent());
+        try (OutputStream outputStream = Files.newOutputStream(path)) {
+            properties.store(outputStream, "knowledge resources content hash");
+        }
+    }
+
+    public int size() {
+        return hashes.size();
+    }
+
+    /**
+     * @return the SHA-256 of the resource names and content hashes
+     */
+    public String digest() {
+        return digest;
+    }
+
+    /**
+     * @param name
+     * @param content
+     * @return a copy of this manifest with a resource added or replaced (f.e. an uploaded template)
+     */
+    public KnowledgeManifest with(String name, byte[] content) {
+        Map<String, String> copy = new TreeMap<>(hashes);
+        copy.put(name, hash(content));
+        return new KnowledgeManifest(copy);
+    }
+
+    /**
+     * @param other
+     * @return the number of resources added, removed or changed compared to other
+     */
+    public int changes(KnowledgeManifest other) {
+        if (other == null)
+            return hashes.size();
+        int changes = 0;
+        for (Map.Entry<String, String> entry : hashes.entrySet()) {
+            if (!entry.getValue().equals(other.hashes.get(entry.getKey())))
+                changes++;
+        }
+        for (String name : other.hashes.keySet()) {
+            if (!hashes.containsKey(name))
+                changes++;
+        }
+        return changes;
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2015 Christian Chevalley
+ * This file is part of Project Ethercis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+//Copyright
+package com.ethercis.ehr.knowledge;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BoundedTemplateCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    File opt;
+    AtomicInteger parsed = new AtomicInteger();
+
+    @Before
+    public void setUp() throws Exception {
+        opt = folder.newFolder("opt");
+        //10 bytes each
+        for (String name : new String[]{"one", "two", "three"})
+            Files.write(new File(opt, name + ".opt").toPath(), String.format("%-10s", name).getBytes());
+    }
+
+    private BoundedTemplateCache<String> cache(long maxWeight) throws Exception {
+        return new BoundedTemplateCache<>(BoundedTemplateCache.scan(opt.toPath(), ".opt"), file -> {
+            parsed.incrementAndGet();
+            return new String(Files.readAllBytes(file)).trim();
+        }, maxWeight);
+    }
+
+    @Test
+    public void testLazyLoad() throws Exception {
+        BoundedTemplateCache<String> cache = cache(100);
+        assertEquals(0, parsed.get());
+        assertEquals("one", cache.get("one"));
+        assertEquals("one", cache.get("one"));
+        assertEquals(1, parsed.get());
+        assertNull(cache.get("unknown"));
+        assertTrue(cache.statistics().contains("one: hits=1 misses=1 evictions=0 size=10"));
+    }
+
+    @Test
+    public void testHeapBudget() throws Exception {
+        BoundedTemplateCache<String> cache = cache(20);
+        cache.get("one");
+        cache.get("two");
+        cache.get("three");
+        //least recently used is dropped and parsed again from its file
+        assertFalse(cache.isCached("one"));
+        assertTrue(cache.isCached("two"));
+        assertTrue(cache.isCached("three"));
+        assertEquals("one", cache.get("one"));
+        assertEquals(4, parsed.get());
+    }
+
+    @Test
+    public void testAdmission() throws Exception {
+        BoundedTemplateCache<String> cache = cache(20);
+        for (int i = 0; i < 3; i++) {
+            cache.get("one");
+            cache.get("two");
+        }
+        //a template looked up once does not evict the hot ones
+        assertEquals("three", cache.get("three"));
+        assertFalse(cache.isCached("three"));
+        assertTrue(cache.isCached("one"));
+        assertTrue(cache.isCached("two"));
+        assertTrue(cache.statistics().contains("rejections=1"));
+    }
+
+    @Test
+    public void testInvalidate() throws Exception {
+        BoundedTemplateCache<String> cache = cache(100);
+        cache.get("one");
+        cache.invalidate("one");
+        assertFalse(cache.isCached("one"));
+        assertNull(cache.get("one"));
+    }
+}
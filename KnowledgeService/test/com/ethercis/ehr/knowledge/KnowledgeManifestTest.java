@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2015 Christian Chevalley
+ * This file is part of Project Ethercis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+//Copyright
+package com.ethercis.ehr.knowledge;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+public class KnowledgeManifestTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    Properties properties;
+    File opt;
+
+    @Before
+    public void setUp() throws Exception {
+        opt = folder.newFolder("opt");
+        Files.write(new File(opt, "one.opt").toPath(), "<template>one</template>".getBytes());
+        Files.write(new File(opt, "two.opt").toPath(), "<template>two</template>".getBytes());
+
+        properties = new Properties();
+        properties.setProperty("knowledge.path.opt", opt.getAbsolutePath());
+    }
+
+    @Test
+    public void testUnchanged() throws Exception {
+        Path path = folder.getRoot().toPath().resolve("manifest.properties");
+        KnowledgeManifest manifest = KnowledgeManifest.scan(properties, null);
+        assertEquals(2, manifest.size());
+        manifest.store(path);
+
+        assertEquals(0, KnowledgeManifest.scan(properties, null).changes(KnowledgeManifest.load(path)));
+    }
+
+    @Test
+    public void testChanged() throws Exception {
+        Path path = folder.getRoot().toPath().resolve("manifest.properties");
+        KnowledgeManifest.scan(properties, null).store(path);
+
+        Files.write(new File(opt, "two.opt").toPath(), "<template>changed</template>".getBytes());
+        Files.write(new File(opt, "three.opt").toPath(), "<template>three</template>".getBytes());
+        assertEquals(2, KnowledgeManifest.scan(properties, null).changes(KnowledgeManifest.load(path)));
+
+        new File(opt, "one.opt").delete();
+        assertEquals(3, KnowledgeManifest.scan(properties, null).changes(KnowledgeManifest.load(path)));
+    }
+
+    @Test
+    public void testNoManifest() throws Exception {
+        assertNull(KnowledgeManifest.load(folder.getRoot().toPath().resolve("missing.properties")));
+        assertEquals(2, KnowledgeManifest.scan(properties, null).changes(null));
+    }
+
+    @Test
+    public void testDigest() throws Exception {
+        String digest = KnowledgeManifest.scan(properties, null).digest();
+
+        //same content in another directory, f.e. on another node
+        File copy = folder.newFolder("copy");
+        Files.write(new File(copy, "one.opt").toPath(), "<template>one</template>".getBytes());
+        Files.write(new File(copy, "two.opt").toPath(), "<template>two</template>".getBytes());
+        Properties other = new Properties();
+        other.setProperty("knowledge.path.opt", copy.getAbsolutePath());
+        assertEquals(digest, KnowledgeManifest.scan(other, null).digest());
+
+        KnowledgeManifest uploaded = KnowledgeManifest.scan(properties, null).with("upload:three", "<template>three</template>".getBytes());
+        assertNotEquals(digest, uploaded.digest());
+
+        Files.write(new File(opt, "two.opt").toPath(), "<template>changed</template>".getBytes());
+        assertNotEquals(digest, KnowledgeManifest.scan(properties, null).digest());
+    }
+}
@@ -28,6 +28,7 @@ import com.ethercis.servicemanager.common.def.Constants;
 import com.ethercis.servicemanager.common.def.SysErrorCode;
 import com.ethercis.servicemanager.common.session.I_ConnectProperties;
 import com.ethercis.servicemanager.common.session.I_SessionInfo;
+import com.ethercis.servicemanager.common.security.I_Principal;
 import com.ethercis.servicemanager.common.session.I_SessionProperties;
 import com.ethercis.servicemanager.exceptions.ServiceManagerException;
 import com.ethercis.servicemanager.runlevel.I_ServiceRunMode;
@@ -36,7 +37,9 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -77,6 +80,9 @@ public class LogonService extends ClusterInfo implements I_SessionManager {
 	// private SessionManager
 	SessionManager manager;
 
+	//issues signed session tokens when stateless sessions are enabled, null otherwise
+	private SessionTokenManager tokenManager;
+
 	@Override
 	public void doInit(RunTimeSingleton global, ServiceInfo serviceInfo)
 			throws ServiceManagerException {
@@ -89,7 +95,15 @@ public class LogonService extends ClusterInfo implements I_SessionManager {
         PASSWORD_PARAMETER = ParameterAnnotationHelper.parameterName(dialectSpace, "password", this.getClass().getAnnotations());
         SESSION_ID_PARAMETER = ParameterAnnotationHelper.parameterName(dialectSpace, "session_id", this.getClass().getAnnotations());
 
-		manager = new SessionManager(this.global);
+		if (global.getProperty().get("server.session.token.enabled", false)) {
+			String secret = global.getProperty().get("server.session.token.secret", (String) null);
+			if (secret == null || secret.length() < 16)
+				throw new ServiceManagerException(global, SysErrorCode.RESOURCE_CONFIGURATION, ME, "Session tokens are enabled but 'server.session.token.secret' is missing or shorter than 16 characters");
+			tokenManager = new SessionTokenManager(secret, global.getProperty().get("server.session.token.ttl", 1800000L));
+			log.info("Stateless session tokens enabled, ttl=" + tokenManager.getTtl() + " [ms]");
+		}
+
+		manager = new SessionManager(this.global, tokenManager);
 
 		// required for JMX usage
 		global.setAuthenticate(manager);
@@ -149,6 +163,9 @@ public class LogonService extends ClusterInfo implements I_SessionManager {
 	 * <li>Constants.CLIENTPROPERTY_RCVTIMESTAMPSTR: timestamp of session
 	 * creation</li>
 	 * </ul>
+	 * <p>
+	 * If 'server.session.token.enabled' is set, the secret session id is a signed session token which
+	 * can be validated by any node sharing 'server.session.token.secret'.
 	 */
 	public ResponseHolder connect(I_SessionClientProperties props, String sessionId)
 			throws ServiceManagerException {
@@ -180,6 +197,18 @@ public class LogonService extends ClusterInfo implements I_SessionManager {
         connectproperties.getSecurityProperties().setUserId(props.getClientProperty(LOGON_PARAMETER, connectproperties.getSecurityProperties().getUserId()));
         connectproperties.getSecurityProperties().setCredential(props.getClientProperty(PASSWORD_PARAMETER,	connectproperties.getSecurityProperties().getCredential()));
 
+		if (tokenManager != null) {
+			String userId = connectproperties.getSecurityProperties().getUserId();
+			if (SessionToken.isToken(secretSessionId)) {
+				//reconnect with a token: it must be valid and issued to the same subject
+				SessionToken sessionToken = validateToken(secretSessionId);
+				if (!sessionToken.getSubject().equals(userId))
+					throw new ServiceManagerException(global, SysErrorCode.USER_SECURITY_AUTHENTICATION_ILLEGALARGUMENT, "connect", "Session token was not issued to user:" + userId);
+			}
+			else
+				secretSessionId = tokenManager.issue(userId, null, null);
+		}
+
 		if (sessionName != null) {
 			SessionName name = new SessionName(global, sessionName); // set the public session name
 			connectproperties.getSessionProperties().setSessionName(name);
@@ -257,6 +286,9 @@ public class LogonService extends ClusterInfo implements I_SessionManager {
 
 		manager.disconnect(SSID, null);
 
+		if (tokenManager != null && SessionToken.isToken(SSID))
+			tokenManager.revoke(SSID);
+
 		Map<String, Object> retMap = new HashMap<>();
 		retMap.put("action", "DELETE");
 		retMap.put("sessionId", SSID);
@@ -264,6 +296,68 @@ public class LogonService extends ClusterInfo implements I_SessionManager {
         return retMap;
 	}
 
+	/**
+	 * issue a new session token carrying the EHR currently bound to the session and the subject roles
+	 * <p>
+	 * The returned token replaces the one passed in the request, which is revoked. This is used after
+	 * binding an EHR to the session so that other nodes can restore the binding from the token.
+	 * <p>
+	 * A revocation reaches the other nodes only with the replicated session store ('server.session.store'),
+	 * with the default memory store a revoked token remains valid on the other nodes until it expires.
+	 */
+	@QuerySetting(dialect = {
+			@QuerySyntax(mode = DialectSpace.STANDARD, httpMethod = "POST", method = "post", path = "vehr/session/token", responseType = ResponseType.Json),
+			@QuerySyntax(mode = DialectSpace.EHRSCAPE, httpMethod = "PUT", method = "put", path = "rest/v1/session/token", responseType = ResponseType.Json)
+	})
+	public Object renewToken(I_SessionClientProperties props) throws ServiceManagerException {
+		if (tokenManager == null)
+			throw new ServiceManagerException(global, SysErrorCode.USER_ILLEGALARGUMENT, ME, "Session tokens are not enabled on this server");
+
+		String SSID = props.getClientProperty(I_SessionManager.SECRET_SESSION_ID(dialectSpace), (String) null);
+		SessionInfo sessionInfo = check(SSID);
+
+		Object ehrId = sessionInfo.getUserObjectMap().get(I_SessionManager.EHR_ID);
+		List<String> roles = new ArrayList<>();
+		if (sessionInfo.getSecuritySession().getAuthenticate() != null) {
+			for (I_Principal principal : sessionInfo.getSecuritySession().getAuthenticate().getPrincipals())
+				roles.add(principal.getName());
+		}
+
+		String token = tokenManager.issue(sessionInfo.getSubjectInfo().getLoginName(), ehrId == null ? null : ehrId.toString(), roles);
+		manager.changeSecretSessionId(SSID, token);
+		if (SessionToken.isToken(SSID))
+			tokenManager.revoke(SSID);
+
+		Map<String, Object> retMap = new HashMap<>();
+		retMap.put("action", "RENEW");
+		retMap.put("sessionId", token);
+
+		return retMap;
+	}
+
+	/**
+	 * validate a session token
+	 * @param token
+	 * @return the decoded token
+	 * @throws ServiceManagerException if the token is invalid, expired or revoked
+	 */
+	private SessionToken validateToken(String token) throws ServiceManagerException {
+		try {
+			return tokenManager.validate(token);
+		} catch (IllegalArgumentException e) {
+			log.warn("Rejected session token: " + e.getMessage());
+			throw new ServiceManagerException(global, SysErrorCode.USER_SECURITY_AUTHENTICATION_ACCESSDENIED, ME, e.getMessage());
+		}
+	}
+
+	public String tokenStatus() {
+		return tokenManager == null ? "Session tokens are disabled\n" : tokenManager.status();
+	}
+
+	public String sessionStoreStatus() {
+		return manager.getSessionStore().status();
+	}
+
 	/**
 	 * terminate all sessions
 	 */
@@ -308,6 +402,12 @@ public class LogonService extends ClusterInfo implements I_SessionManager {
 
 	@Override
 	public SessionInfo check(String secretSessionId) throws ServiceManagerException {
+		if (tokenManager != null && SessionToken.isToken(secretSessionId)) {
+			SessionToken sessionToken = validateToken(secretSessionId);
+			//the session may have been opened on another node
+			if (!manager.sessionExists(secretSessionId))
+				manager.restoreSession(new ConnectProperties(global), sessionToken.getSubject(), sessionToken.getEhrId(), secretSessionId);
+		}
 		return manager.check(secretSessionId);
 	}
 
@@ -24,6 +24,7 @@ This code is therefore supplied under LGPL 2.1
 //Copyright
 package com.ethercis.logonservice.security;
 
+import com.ethercis.authenticate.DecisionCache;
 import com.ethercis.logonservice.session.Session;
 import com.ethercis.servicemanager.annotation.*;
 import com.ethercis.servicemanager.cluster.ClusterInfo;
@@ -180,9 +181,21 @@ public class ServiceSecurityManager extends ClusterInfo implements I_Manager, Se
 
         }
 
+		//decisions taken with a previous policy are discarded
+		DecisionCache.invalidateAll();
+
 		AnnotatedMBean.RegisterMBean(serviceId, ServiceSecurityManagerMBean.class, this);
 	}
 
+	public String decisionCacheStatus() {
+		return DecisionCache.status();
+	}
+
+	public String clearDecisionCache() {
+		DecisionCache.invalidateAll();
+		return "Authorization decisions cleared";
+	}
+
 	public String getType() {
 		return serviceId;
 	}
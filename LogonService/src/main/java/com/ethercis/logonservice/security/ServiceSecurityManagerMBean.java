@@ -29,5 +29,7 @@ import com.ethercis.servicemanager.exceptions.ServiceManagerException;
 public interface ServiceSecurityManagerMBean {
 	public void releaseSession(String sessionId, String qos_literal) throws ServiceManagerException;
 	public void changeSecretSessionId(String oldSessionId, String newSessionId) throws ServiceManagerException;
+	public String decisionCacheStatus();
+	public String clearDecisionCache();
 	
 }
@@ -24,6 +24,7 @@ This code is therefore supplied under LGPL 2.1
 //Copyright
 package com.ethercis.logonservice.security.delegates;
 
+import com.ethercis.authenticate.DecisionCache;
 import com.ethercis.authenticate.Permission;
 import com.ethercis.servicemanager.common.I_SessionClientProperties;
 import com.ethercis.servicemanager.common.def.Constants;
@@ -44,7 +45,8 @@ import java.util.Map;
 public class PrincipalSecurity implements I_Principal {
 	protected static final Logger logger = LogManager.getLogger(Constants.LOGGER_SECURITY);
 	protected I_Rights rights;
-	protected List<I_Permission> permissions = new ArrayList<I_Permission>();	
+	protected List<I_Permission> permissions = new ArrayList<I_Permission>();
+	protected DecisionCache decisionCache = new DecisionCache(256);	
 	/**
 	 * used to keep Permission abstract
 	 * @author Christian
@@ -63,6 +65,16 @@ public class PrincipalSecurity implements I_Principal {
 	
 	@Override
 	public boolean isAuthorized(I_ContextHolder holder){
+		String key = decisionCache.key(holder, permissions);
+		Boolean decision = decisionCache.get(key);
+		if (decision == null){
+			decision = evaluate(holder);
+			decisionCache.put(key, decision);
+		}
+		return decision;
+	}
+
+	private boolean evaluate(I_ContextHolder holder){
 		I_Right right = rights.forName(holder.getMethod().getMethodName());
 		//logger.debugst("rights=" +right);
 		MethodName mname = holder.getMethod();
@@ -74,6 +74,8 @@ public interface I_SessionManager extends I_ServiceRunMode {
 
     static String USER_ID = "user";
     static String USER_PASSWORD = "password";
+    /** key of the EHR bound to the session in the session user map (same as I_CompositionService.EHR_ID) */
+    static String EHR_ID = "ehrId";
 
 	//used for error messages
 	public static String ERROR_MESSAGE = "x-error-message";
@@ -119,6 +119,26 @@ public class Session implements I_Session {
 	       return securityProps; // no extra information
 	}
 
+	/**
+	 * initialize the session for a subject already authenticated by a signed session token<p>
+	 * The credential is not checked, the caller is responsible for validating the token beforehand
+	 * @param loginName
+	 * @param clientIp
+	 * @throws ServiceManagerException
+	 */
+	public void trust(String loginName, String clientIp) throws ServiceManagerException {
+		if (loginName == null)
+			throw new ServiceManagerException(runTimeSingleton, SysErrorCode.USER_SECURITY_AUTHENTICATION_ACCESSDENIED, ME, AuthErrorCode.USER_INVALID_CREDENTIALS.getFullMessage()+" id:null");
+
+		this.ipAddress = clientIp;
+		this.authenticate = Authenticate.newWrapper(runTimeSingleton, securityManager.getPolicyMode(), loginName);
+		this.authenticated = true;
+		log.debug("The user for " + loginName + " is authenticated by session token");
+
+		this.loginTime = Calendar.getInstance();
+		this.lastActivity = loginTime;
+	}
+
 	/**
 	 * returns true if the session is still valid
 	 * TODO: extend the verify to more than private credentials eg. inactivity, time of day, ...
@@ -34,7 +34,7 @@ import com.ethercis.servicemanager.common.ClientProperty;
 import com.ethercis.servicemanager.common.I_Timeout;
 import com.ethercis.servicemanager.common.IsoDateJoda;
 import com.ethercis.servicemanager.common.TimeStamp;
-import com.ethercis.servicemanager.common.Timeout;
+import com.ethercis.servicemanager.common.I_TimeoutManager;
 import com.ethercis.servicemanager.common.def.Constants;
 import com.ethercis.servicemanager.common.def.SysErrorCode;
 import com.ethercis.servicemanager.common.security.I_Session;
@@ -65,8 +65,10 @@ public final class SessionInfo implements I_Timeout, I_SessionInfo
    private long instanceId = 0L;
    /** The current connection address from the protocol plugin */
    private I_ConnectProperties connectProperties;
-   private Timeout expiryTimer;
-   private TimeStamp timerKey;
+   private I_TimeoutManager expiryTimer;
+   private volatile TimeStamp timerKey;
+   /** Last time the session was used, the expiry timer is re-armed from it when it fires */
+   private volatile long lastAccess;
    private RunTimeSingleton glob;
    private static Logger log = LogManager.getLogger(SessionInfo.class);
  
@@ -149,6 +151,7 @@ public final class SessionInfo implements I_Timeout, I_SessionInfo
 
 
       this.expiryTimer = glob.getSessionTimer();
+      this.lastAccess = System.currentTimeMillis();
       if (connectProps.getSessionProperties().getSessionTimeout() > 0L) {
          log.debug(ME+": Setting expiry timer for " + getLoginName() + " to " + connectProps.getSessionProperties().getSessionTimeout() + " msec");
          this.timerKey = this.expiryTimer.addTimeoutListener(this, connectProps.getSessionProperties().getSessionTimeout(), null);
@@ -347,11 +350,17 @@ public void removeExpiryTimer() {
  */
    @Override
 public final void refreshSession() throws ServiceManagerException {
-      if (connectProperties.getSessionProperties().getSessionTimeout() > 0L) {
-         synchronized (this.EXPIRY_TIMER_MONITOR) {
-            Timeout expiryTimer = this.expiryTimer;
-            if (expiryTimer != null) {
-               this.timerKey = expiryTimer.addOrRefreshTimeoutListener(this, connectProperties.getSessionProperties().getSessionTimeout(), null, this.timerKey);
+      long sessionTimeout = connectProperties.getSessionProperties().getSessionTimeout();
+      if (sessionTimeout > 0L) {
+         // touching the session only records the access time, the expiry timer
+         // is re-armed from it when it fires (see timeout())
+         this.lastAccess = System.currentTimeMillis();
+         if (this.timerKey == null) {
+            synchronized (this.EXPIRY_TIMER_MONITOR) {
+               I_TimeoutManager expiryTimer = this.expiryTimer;
+               if (this.timerKey == null && expiryTimer != null) {
+                  this.timerKey = expiryTimer.addTimeoutListener(this, sessionTimeout, null);
+               }
             }
          }
       }
@@ -360,6 +369,16 @@ public final void refreshSession() throws ServiceManagerException {
       }
    }
 
+   /**
+    * @return milliseconds until the session expires, -1 if it never expires
+    */
+   private long spanToTimeout() {
+      long sessionTimeout = connectProperties.getSessionProperties().getSessionTimeout();
+      if (sessionTimeout <= 0L || this.timerKey == null)
+         return -1;
+      return Math.max(0L, this.lastAccess + sessionTimeout - System.currentTimeMillis());
+   }
+
    /**
     * We are notified when this session expires.
     * @param userData You get bounced back your userData which you passed
@@ -371,8 +390,18 @@ public final void refreshSession() throws ServiceManagerException {
       // also can come at any time and the core must be capable to handle this.
       //this.lock.lock();
       //try {
+      long sessionTimeout = connectProperties.getSessionProperties().getSessionTimeout();
       synchronized (this.EXPIRY_TIMER_MONITOR) {
          this.timerKey = null;
+         if (sessionTimeout <= 0L)
+            return; // timeout disabled meanwhile
+         // the session has been used since the timer was armed, wait for the remaining time
+         long remaining = this.lastAccess + sessionTimeout - System.currentTimeMillis();
+         I_TimeoutManager expiryTimer = this.expiryTimer;
+         if (remaining > 0L && expiryTimer != null) {
+            this.timerKey = expiryTimer.addTimeoutListener(this, remaining, null);
+            return;
+         }
       }
       log.warn(ME+": Session timeout for " + getLoginName() + " occurred, session '" + getSecretSessionId() + "' is expired, autologout");
 
@@ -501,8 +530,7 @@ public boolean isSameSession(I_SessionInfo sessionInfo) {
 
       sb.append(offset).append("<SessionInfo id='").append(getId());
 
-      Timeout expiryTimer = this.expiryTimer;
-      long timeToLife = (expiryTimer != null) ? expiryTimer.spanToTimeout(timerKey) : 0;
+      long timeToLife = (this.expiryTimer != null) ? spanToTimeout() : 0;
       sb.append("' timeout='").append(timeToLife).append("'>");
 
       // Avoid dump of password
@@ -548,7 +576,7 @@ public final String getLoginDate() {
  */
 @Override
 public final String getSessionTimeoutExpireDate() {
-      long timeToLife = this.expiryTimer.spanToTimeout(timerKey);
+      long timeToLife = spanToTimeout();
       if (timeToLife == -1) {
          return "unlimited";
       }
@@ -586,6 +614,7 @@ public final String getPollingSinceDate() {
    public final void setSessionTimeout(long timeout) {
       getConnectProperties().getSessionProperties().setSessionTimeout(timeout);
       try {
+         removeExpiryTimer(); // re-armed with the new timeout
          refreshSession();
       } catch (ServiceManagerException e) {
          e.printStackTrace();
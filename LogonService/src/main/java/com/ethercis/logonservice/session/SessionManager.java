@@ -39,13 +39,20 @@ import com.ethercis.servicemanager.common.session.*;
 import com.ethercis.logonservice.access.ConnectProperties;
 import com.ethercis.logonservice.security.SecurityProperties;
 import com.ethercis.logonservice.security.ServiceSecurityManager;
+import com.ethercis.logonservice.session.store.I_SessionStore;
+import com.ethercis.logonservice.session.store.InMemorySessionStore;
+import com.ethercis.logonservice.session.store.ReplicatedSessionStore;
+import com.ethercis.logonservice.session.store.SessionRecord;
 import com.ethercis.servicemanager.service.I_Service;
 import com.ethercis.servicemanager.service.ServiceRegistry;
 //import com.ethercis.sessionlogger.I_SessionLoggerService;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 
 
@@ -54,7 +61,7 @@ import java.util.*;
  * <p>
  * The login method serves as a factory for a ehrserver.Server Reference
  */
-final public class SessionManager implements I_RunlevelListener, com.ethercis.servicemanager.common.session.I_Authenticate
+final public class SessionManager implements I_RunlevelListener, com.ethercis.servicemanager.common.session.I_Authenticate, I_SessionStore.Listener
 {
     final private String ME;
 
@@ -67,11 +74,14 @@ final public class SessionManager implements I_RunlevelListener, com.ethercis.se
 
     /**
      * With this map you can find a client using a sessionId.
+     * <p>
+     * Concurrent map: check() is invoked on every authenticated request and
+     * must not serialize on a lock.
      *
      * key   = sessionId A unique identifier
      * value = SessionInfo object, containing all data about a client
      */
-    final private Map sessionInfoMap = new HashMap();
+    final private ConcurrentMap<String, SessionInfo> sessionInfoMap = new ConcurrentHashMap<>();
 
     /**
      * With this map you can find a client using his login name.
@@ -86,6 +96,22 @@ final public class SessionManager implements I_RunlevelListener, com.ethercis.se
      */
     final private Set clientListenerSet = new HashSet();
 
+    /**
+     * Sessions authenticated elsewhere (session token or another node) currently being restored on this node,
+     * see restoreSession()
+     */
+    final private Set<String> restoringSessions = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Shares the sessions with the other nodes, if configured
+     */
+    final private I_SessionStore sessionStore;
+
+    /**
+     * Session tokens issued by the cluster, null if stateless sessions are disabled
+     */
+    final private SessionTokenManager tokenManager;
+
     private boolean acceptWrongSenderAddress;
 
     // My security delegate layer which is exposed to the protocol plugins
@@ -94,8 +120,18 @@ final public class SessionManager implements I_RunlevelListener, com.ethercis.se
     /**
      */
     public SessionManager(RunTimeSingleton global) throws ServiceManagerException
+    {
+        this(global, null);
+    }
+
+    /**
+     * @param global
+     * @param tokenManager the session token manager, a token disconnected on another node is revoked on this one
+     */
+    public SessionManager(RunTimeSingleton global, SessionTokenManager tokenManager) throws ServiceManagerException
     {
         this.glob = global;
+        this.tokenManager = tokenManager;
 
         this.ME = "Authenticate" + glob.getLogPrefixDashed();
 
@@ -105,6 +141,44 @@ final public class SessionManager implements I_RunlevelListener, com.ethercis.se
 
         // TODO: Decide by authorizer, see SessionInfo.java with specific setting
         this.acceptWrongSenderAddress = glob.getProperty().get("ehrserver/acceptWrongSenderAddress", false);
+
+        this.sessionStore = createSessionStore();
+        try {
+            sessionStore.start(this);
+        } catch (IOException e) {
+            throw new ServiceManagerException(glob, SysErrorCode.RESOURCE_CONFIGURATION, ME, "Could not start session store:" + e);
+        }
+        log.info(sessionStore.status());
+    }
+
+    private I_SessionStore createSessionStore() throws ServiceManagerException {
+        String store = glob.getProperty().get("server.session.store", "memory");
+        switch (store) {
+            case "memory":
+                return new InMemorySessionStore();
+            case "replicated":
+                String secret = glob.getProperty().get("server.session.store.secret", (String) null);
+                if (secret == null || secret.length() < 16)
+                    throw new ServiceManagerException(glob, SysErrorCode.RESOURCE_CONFIGURATION, ME, "Replicated session store requires 'server.session.store.secret' (16 characters min.)");
+                try {
+                    return new ReplicatedSessionStore(glob.getId(),
+                            glob.getProperty().get("server.session.store.bind", (String) null),
+                            glob.getProperty().get("server.session.store.port", 7801),
+                            ReplicatedSessionStore.parsePeers(glob.getProperty().get("server.session.store.peers", (String) null)),
+                            secret,
+                            glob.getProperty().get("server.session.store.flush_interval", 1000L),
+                            glob.getProperty().get("server.session.store.ttl", Constants.DAY_IN_MILLIS),
+                            glob.getProperty().get("server.session.store.timeout", ReplicatedSessionStore.DEFAULT_TIMEOUT));
+                } catch (IllegalArgumentException e) {
+                    throw new ServiceManagerException(glob, SysErrorCode.RESOURCE_CONFIGURATION, ME, "Invalid 'server.session.store.peers':" + e.getMessage());
+                }
+            default:
+                throw new ServiceManagerException(glob, SysErrorCode.RESOURCE_CONFIGURATION, ME, "Unknown session store '" + store + "', expected memory or replicated");
+        }
+    }
+
+    public I_SessionStore getSessionStore() {
+        return sessionStore;
     }
 
     /**
@@ -335,7 +409,11 @@ final public class SessionManager implements I_RunlevelListener, com.ethercis.se
             }
             sessionCtx = securityMgr.reserveSession(secretSessionId);  // always creates a new I_Session instance
 //            I_SecurityProperties retprops = sessionCtx.initializeSession(connectProps.getSecurityProperties());
-            if (connectProps.bypassCredentialCheck()) {
+            if (connectProps.bypassCredentialCheck() && restoringSessions.contains(secretSessionId)) {
+                // The subject has been authenticated by a validated session token or by another node
+                ((Session)sessionCtx).trust(connectProps.getSecurityProperties().getUserId(), connectProps.getSecurityProperties().getClientIp());
+            }
+            else if (connectProps.bypassCredentialCheck()) {
                 // This happens when a session is auto created by a PtP message
                 // Only ConnectQosServer (which is under control of the core) can set this flag
                 log.debug("SECURITY SWITCH OFF: Granted access to server without password, bypassCredentialCheck=true");
@@ -441,9 +519,9 @@ final public class SessionManager implements I_RunlevelListener, com.ethercis.se
                     // Create the new sessionInfo instance
                     log.debug("connect: sessionId='" + secretSessionId + "' connectQos='"  + connectProps.toXml() + "'");
                     sessionInfo.init(subjectInfo, sessionCtx, connectProps);
-                    synchronized(this.sessionInfoMap) {
-                        this.sessionInfoMap.put(secretSessionId, sessionInfo);
-                    }
+                    this.sessionInfoMap.put(secretSessionId, sessionInfo);
+                    sessionStore.sessionCreated(new SessionRecord(secretSessionId, subjectInfo.getLoginName(),
+                            connectProps.getSecurityProperties().getClientIp(), connectProps.getSessionProperties().getSessionTimeout(), null));
                 }
 
                 connectProps.getSessionProperties().setSecretSessionId(secretSessionId);
@@ -716,20 +794,21 @@ final public class SessionManager implements I_RunlevelListener, com.ethercis.se
      * Replace the old by the new session id
      */
     public final void changeSecretSessionId(String oldSessionId, String newSessionId) throws ServiceManagerException {
-        synchronized(this.sessionInfoMap) {
-            SessionInfo sessionInfo = (SessionInfo)this.sessionInfoMap.get(oldSessionId);
-            if (sessionInfo == null) {
-                throw new ServiceManagerException(glob, SysErrorCode.INTERNAL_UNKNOWN, ME+".changeSecretSessionId()", "Couldn't lookup secretSessionId.");
-            }
-            if (this.sessionInfoMap.get(newSessionId) != null) {
-                throw new ServiceManagerException(glob, SysErrorCode.INTERNAL_UNKNOWN, ME+".changeSecretSessionId()", "The new secretSessionId is already in use.");
-            }
-            this.sessionInfoMap.put(newSessionId, sessionInfo);
-            this.sessionInfoMap.remove(oldSessionId);
-
-            sessionInfo.getSecuritySession().changeSecretSessionId(newSessionId);
-            sessionInfo.getConnectProperties().setSecretSessionId(newSessionId);
+        SessionInfo sessionInfo = this.sessionInfoMap.get(oldSessionId);
+        if (sessionInfo == null) {
+            throw new ServiceManagerException(glob, SysErrorCode.INTERNAL_UNKNOWN, ME+".changeSecretSessionId()", "Couldn't lookup secretSessionId.");
         }
+        if (this.sessionInfoMap.putIfAbsent(newSessionId, sessionInfo) != null) {
+            throw new ServiceManagerException(glob, SysErrorCode.INTERNAL_UNKNOWN, ME+".changeSecretSessionId()", "The new secretSessionId is already in use.");
+        }
+        this.sessionInfoMap.remove(oldSessionId, sessionInfo);
+        sessionStore.sessionRemoved(oldSessionId);
+        sessionStore.sessionCreated(new SessionRecord(newSessionId, sessionInfo.getLoginName(),
+                sessionInfo.getConnectProperties().getSecurityProperties().getClientIp(),
+                sessionInfo.getConnectProperties().getSessionProperties().getSessionTimeout(), null));
+
+        sessionInfo.getSecuritySession().changeSecretSessionId(newSessionId);
+        sessionInfo.getConnectProperties().setSecretSessionId(newSessionId);
     }
 
     /**
@@ -738,11 +817,11 @@ final public class SessionManager implements I_RunlevelListener, com.ethercis.se
      * @return the SessionInfo object or null if not known
      */
     private final SessionInfo getSessionInfo(String secretSessionId) {
-        synchronized(this.sessionInfoMap) {
-            SessionInfo sessionInfo = (SessionInfo)this.sessionInfoMap.get(secretSessionId);
-            if (sessionInfo != null && sessionInfo.isInitialized())
-                return sessionInfo;
-        }
+        if (secretSessionId == null)
+            return null;
+        SessionInfo sessionInfo = this.sessionInfoMap.get(secretSessionId);
+        if (sessionInfo != null && sessionInfo.isInitialized())
+            return sessionInfo;
         return null;
     }
 
@@ -750,9 +829,7 @@ final public class SessionManager implements I_RunlevelListener, com.ethercis.se
      * Returns a current snapshot of all sessions, never returns null.
      */
     public final SessionInfo[] getSessionInfoArr() {
-        synchronized(this.sessionInfoMap) {
-            return (SessionInfo[])this.sessionInfoMap.values().toArray((new SessionInfo[this.sessionInfoMap.size()]));
-        }
+        return this.sessionInfoMap.values().toArray(new SessionInfo[0]);
     }
 
     /**
@@ -785,9 +862,7 @@ final public class SessionManager implements I_RunlevelListener, com.ethercis.se
     }
 
     public boolean sessionExists(String secretSessionId) {
-        synchronized(this.sessionInfoMap) {
-            return this.sessionInfoMap.containsKey(secretSessionId);
-        }
+        return secretSessionId != null && this.sessionInfoMap.containsKey(secretSessionId);
     }
 
     /**
@@ -813,10 +888,9 @@ final public class SessionManager implements I_RunlevelListener, com.ethercis.se
     {
         firePreRemovedClientEvent(sessionInfo);
         String secretSessionId = sessionInfo.getSecretSessionId();
-        Object obj;
-        synchronized(this.sessionInfoMap) {
-            obj = this.sessionInfoMap.remove(secretSessionId);
-        }
+        Object obj = (secretSessionId == null) ? null : this.sessionInfoMap.remove(secretSessionId);
+        if (obj != null)
+            sessionStore.sessionRemoved(secretSessionId);
 
         if (obj == null) {
             log.warn("Sorry, '" + sessionInfo.getId() + "' is not known, no logout.");
@@ -963,24 +1037,111 @@ final public class SessionManager implements I_RunlevelListener, com.ethercis.se
       }
       */
 
-        Object obj = null;
-        synchronized(this.sessionInfoMap) {
-            obj = this.sessionInfoMap.get(secretSessionId);
+        SessionInfo sessionInfo = (secretSessionId == null) ? null : this.sessionInfoMap.get(secretSessionId);
+
+        if (sessionInfo == null && secretSessionId != null) {
+            // the session may have been created on another node
+            SessionRecord record = sessionStore.lookup(secretSessionId);
+            if (record != null)
+                sessionInfo = restoreSession(record);
         }
 
-        if (obj == null) {
+        if (sessionInfo == null) {
             log.warn("SessionId '" + secretSessionId + "' is invalid, no access to ehrserver.");
             throw new ServiceManagerException(glob, SysErrorCode.USER_SECURITY, ME, "Your secretSessionId is invalid, no access to " + glob.getId() + ".");
         }
-        SessionInfo sessionInfo = (SessionInfo)obj;
 
-        sessionInfo.refreshSession(); // touch the session, expiry timer is spaned
+        sessionInfo.refreshSession(); // touch the session, records the access time
+        Object ehrId = sessionInfo.getUserObjectMap().get(I_SessionManager.EHR_ID);
+        sessionStore.sessionRefreshed(secretSessionId, ehrId == null ? null : ehrId.toString());
+
+        if (log.isDebugEnabled())
+            log.debug("Succesfully granted access for " + sessionInfo.toString());
+
+        return sessionInfo;
+    }
+
+
+    /**
+     * Materialize on this node a session authenticated elsewhere, by a validated session token or by
+     * another node of the cluster.<p>
+     * The session is created without credential check and the EHR bound to the session, if any, is
+     * restored into the session user map.
+     * @param connectProps connect properties of the session
+     * @param loginName the authenticated subject
+     * @param ehrId the EHR bound to the session or null
+     * @param secretSessionId the secret session id to restore
+     * @return the restored session
+     * @throws ServiceManagerException
+     */
+    public synchronized SessionInfo restoreSession(I_ConnectProperties connectProps, String loginName, String ehrId, String secretSessionId) throws ServiceManagerException
+    {
+        SessionInfo sessionInfo = getSessionInfo(secretSessionId);
+        if (sessionInfo != null)
+            return sessionInfo;
+
+        connectProps.getSecurityProperties().setUserId(loginName);
+        connectProps.getSessionProperties().setSessionName(null); //new session name for the subject
+        connectProps.bypassCredentialCheck(true);
+        restoringSessions.add(secretSessionId);
+        try {
+            connect(connectProps, secretSessionId);
+        }
+        finally {
+            restoringSessions.remove(secretSessionId);
+        }
+
+        sessionInfo = getSessionInfo(secretSessionId);
+        if (sessionInfo == null)
+            throw new ServiceManagerException(glob, SysErrorCode.USER_SECURITY, ME, "Could not restore session");
 
-        log.debug("Succesfully granted access for " + sessionInfo.toString());
+        // the session has been authenticated, it must not be reused as an unsafe session
+        sessionInfo.getConnectProperties().bypassCredentialCheck(false);
+        if (ehrId != null)
+            sessionInfo.getUserObjectMap().put(I_SessionManager.EHR_ID, UUID.fromString(ehrId));
 
+        log.info("Restored session for " + loginName);
         return sessionInfo;
     }
 
+    /**
+     * restore a session created on another node
+     */
+    private SessionInfo restoreSession(SessionRecord record) throws ServiceManagerException
+    {
+        ConnectProperties connectProps = new ConnectProperties(glob);
+        connectProps.getSecurityProperties().setClientIp(record.getClientIp());
+        connectProps.getSessionProperties().setSessionTimeout(record.getSessionTimeout());
+        return restoreSession(connectProps, record.getLoginName(), record.getEhrId(), record.getSecretSessionId());
+    }
+
+    @Override
+    public void remoteRefresh(SessionRecord record) {
+        SessionInfo sessionInfo = this.sessionInfoMap.get(record.getSecretSessionId());
+        if (sessionInfo == null)
+            return;
+        try {
+            sessionInfo.refreshSession();
+            if (record.getEhrId() != null)
+                sessionInfo.getUserObjectMap().put(I_SessionManager.EHR_ID, UUID.fromString(record.getEhrId()));
+        } catch (ServiceManagerException e) {
+            log.warn("Could not refresh session from remote node:" + e.getMessage());
+        }
+    }
+
+    @Override
+    public void remoteRemove(String secretSessionId) {
+        //a token must not restore a session disconnected elsewhere, even if it is not open on this node
+        if (tokenManager != null && SessionToken.isToken(secretSessionId))
+            tokenManager.revoke(secretSessionId);
+        if (!sessionExists(secretSessionId))
+            return;
+        try {
+            disconnect(secretSessionId, null);
+        } catch (ServiceManagerException e) {
+            log.debug("Session disconnected on remote node is already closed:" + e.getMessage());
+        }
+    }
 
     /**
      * Adds the specified client listener to receive login/logout events.
@@ -1100,6 +1261,8 @@ final public class SessionManager implements I_RunlevelListener, com.ethercis.se
 
         if (to < from) { // shutdown
             if (to == RunlevelManager.RUNLEVEL_HALTED) {
+                // stop replicating first: the sessions stay alive on the other nodes
+                sessionStore.shutdown();
                 log.debug("Killing " + this.sessionInfoMap.size() + " login sessions");
                 SessionInfo[] sessionInfoArr = getSessionInfoArr();
                 for (int ii=0; ii<sessionInfoArr.length; ii++) {
@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2015 Christian Chevalley
+ * This file is part of Project Ethercis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+//Copyright
+package com.ethercis.logonservice.session;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * A signed session token.<p>
+ * The token carries the subject login name, the EHR bound to the session, the subject roles and its
+ * validity period, it is signed with HMAC-SHA256 using a secret shared by all nodes so that any node
+ * can validate it without knowing the session.<br>
+ * Format: <code>token:&lt;base64url claims&gt;.&lt;base64url signature&gt;</code>, the claims are
+ * url-encoded key=value pairs separated by '&amp;'.
+ */
+public class SessionToken {
+
+    public static final String PREFIX = "token:";
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final ThreadLocal<Signer> SIGNER = ThreadLocal.withInitial(Signer::new);
+
+    private final String tokenId;
+    private final String subject;
+    private final String ehrId;
+    private final List<String> roles;
+    private final long issuedAt;
+    private final long expiresAt;
+
+    public SessionToken(String tokenId, String subject, String ehrId, List<String> roles, long issuedAt, long expiresAt) {
+        this.tokenId = tokenId;
+        this.subject = subject;
+        this.ehrId = ehrId;
+        this.roles = roles == null ? Collections.<String>emptyList() : Collections.unmodifiableList(new ArrayList<>(roles));
+        this.issuedAt = issuedAt;
+        this.expiresAt = expiresAt;
+    }
+
+    public static SessionToken newToken(String subject, String ehrId, List<String> roles, long ttl) {
+        long now = System.currentTimeMillis();
+        return new SessionToken(UUID.randomUUID().toString(), subject, ehrId, roles, now, now + ttl);
+    }
+
+    public static boolean isToken(String secretSessionId) {
+        return secretSessionId != null && secretSessionId.startsWith(PREFIX);
+    }
+
+    public String encode(SecretKeySpec key) {
+        Map<String, String> claims = new LinkedHashMap<>();
+        claims.put("jti", tokenId);
+        claims.put("sub", subject);
+        if (ehrId != null)
+            claims.put("ehr", ehrId);
+        if (!roles.isEmpty())
+            claims.put("roles", String.join(",", roles));
+        claims.put("iat", Long.toString(issuedAt));
+        claims.put("exp", Long.toString(expiresAt));
+
+        StringBuilder payload = new StringBuilder();
+        try {
+            for (Map.Entry<String, String> claim: claims.entrySet()) {
+                if (payload.length() > 0)
+                    payload.append('&');
+                payload.append(claim.getKey()).append('=').append(URLEncoder.encode(claim.getValue(), "UTF-8"));
+            }
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+
+        Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+        String encodedPayload = encoder.encodeToString(payload.toString().getBytes(StandardCharsets.UTF_8));
+        return PREFIX + encodedPayload + "." + encoder.encodeToString(sign(key, encodedPayload));
+    }
+
+    /**
+     * verify the signature and decode a token, the validity period is not checked
+     * @param token
+     * @param key
+     * @return the decoded token
+     * @throws IllegalArgumentException if the token is malformed or its signature is invalid
+     */
+    public static SessionToken decode(String token, SecretKeySpec key) {
+        if (!isToken(token))
+            throw new IllegalArgumentException("Not a session token");
+
+        String body = token.substring(PREFIX.length());
+        int separator = body.indexOf('.');
+        if (separator < 0)
+            throw new IllegalArgumentException("Malformed session token");
+
+        String encodedPayload = body.substring(0, separator);
+        byte[] signature;
+        String payload;
+        try {
+            signature = Base64.getUrlDecoder().decode(body.substring(separator + 1));
+            payload = new String(Base64.getUrlDecoder().decode(encodedPayload), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Malformed session token");
+        }
+
+        if (!MessageDigest.isEqual(signature, sign(key, encodedPayload)))
+            throw new IllegalArgumentException("Invalid session token signature");
+
+        Map<String, String> claims = new LinkedHashMap<>();
+        try {
+            for (String pair: payload.split("&")) {
+                int equal = pair.indexOf('=');
+                if (equal > 0)
+                    claims.put(pair.substring(0, equal), URLDecoder.decode(pair.substring(equal + 1), "UTF-8"));
+            }
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+
+        if (!claims.containsKey("jti") || !claims.containsKey("sub") || !claims.containsKey("exp"))
+            throw new IllegalArgumentException("Incomplete session token");
+
+        try {
+            return new SessionToken(claims.get("jti"), claims.get("sub"), claims.get("ehr"),
+                    claims.containsKey("roles") ? Arrays.asList(claims.get("roles").split(",")) : null,
+                    Long.parseLong(claims.getOrDefault("iat", "0")), Long.parseLong(claims.get("exp")));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Malformed session token");
+        }
+    }
+
+    /**
+     * a Mac is not thread safe and costly to get, one is kept per thread and initialized once per key
+     */
+    private static class Signer {
+        private Mac mac;
+        private SecretKeySpec key;
+
+        private byte[] sign(SecretKeySpec key, byte[] data) throws GeneralSecurityException {
+            if (mac == null)
+                mac = Mac.getInstance(ALGORITHM);
+            if (this.key != key) {
+                mac.init(key);
+                this.key = key;
+            }
+            return mac.doFinal(data);
+        }
+    }
+
+    private static byte[] sign(SecretKeySpec key, String encodedPayload) {
+        try {
+            return SIGNER.get().sign(key, encodedPayload.getBytes(StandardCharsets.US_ASCII));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Could not sign session token:" + e);
+        }
+    }
+
+    public static SecretKeySpec secretKey(String secret) {
+        return new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), ALGORITHM);
+    }
+
+    public String getTokenId() {
+        return tokenId;
+    }
+
+    public String getSubject() {
+        return subject;
+    }
+
+    public String getEhrId() {
+        return ehrId;
+    }
+
+    public List<String> getRoles() {
+        return roles;
+    }
+
+    public long getIssuedAt() {
+        return issuedAt;
+    }
+
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    public boolean isExpired() {
+        return System.currentTimeMillis() >= expiresAt;
+    }
+}
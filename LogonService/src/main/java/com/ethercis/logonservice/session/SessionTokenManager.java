@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2015 Christian Chevalley
+ * This file is part of Project Ethercis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+//Copyright
+package com.ethercis.logonservice.session;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Issues and validates signed session tokens.<p>
+ * A revoked token is kept in a revocation list until it expires, the list is therefore bounded by the
+ * number of tokens revoked within one token lifetime.<br>
+ * The list is local to the node: the removal of a token session is propagated to the other nodes by the
+ * replicated session store only (see SessionManager.remoteRemove()), a removal missed by a node, or any
+ * removal with the memory store, leaves the token valid on the other nodes until it expires.
+ */
+public class SessionTokenManager {
+
+    private final SecretKeySpec key;
+    private final long ttl;
+    //token id -> expiry
+    private final Map<String, Long> revoked = new ConcurrentHashMap<>();
+
+    private final AtomicLong issued = new AtomicLong();
+    private final AtomicLong validated = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    public SessionTokenManager(String secret, long ttl) {
+        this.key = SessionToken.secretKey(secret);
+        this.ttl = ttl;
+    }
+
+    public String issue(String subject, String ehrId, List<String> roles) {
+        issued.incrementAndGet();
+        return SessionToken.newToken(subject, ehrId, roles, ttl).encode(key);
+    }
+
+    /**
+     * @param token
+     * @return the decoded token
+     * @throws IllegalArgumentException if the token is invalid, expired or revoked
+     */
+    public SessionToken validate(String token) {
+        SessionToken sessionToken;
+        try {
+            sessionToken = SessionToken.decode(token, key);
+        } catch (IllegalArgumentException e) {
+            rejected.incrementAndGet();
+            throw e;
+        }
+        if (sessionToken.isExpired()) {
+            rejected.incrementAndGet();
+            throw new IllegalArgumentException("Session token has expired");
+        }
+        if (revoked.containsKey(sessionToken.getTokenId())) {
+            rejected.incrementAndGet();
+            throw new IllegalArgumentException("Session token has been revoked");
+        }
+        validated.incrementAndGet();
+        return sessionToken;
+    }
+
+    public void revoke(String tokenId, long expiresAt) {
+        long now = System.currentTimeMillis();
+        revoked.values().removeIf(expiry -> expiry <= now);
+        if (expiresAt > now)
+            revoked.put(tokenId, expiresAt);
+    }
+
+    public void revoke(String token) {
+        try {
+            SessionToken sessionToken = SessionToken.decode(token, key);
+            revoke(sessionToken.getTokenId(), sessionToken.getExpiresAt());
+        } catch (IllegalArgumentException e) {
+            //an invalid token does not need to be revoked
+        }
+    }
+
+    public long getTtl() {
+        return ttl;
+    }
+
+    public String status() {
+        return "Session tokens: issued=" + issued.get() + " validated=" + validated.get() + " rejected=" + rejected.get()
+                + " revoked=" + revoked.size() + " ttl=" + ttl + " [ms]\n";
+    }
+}
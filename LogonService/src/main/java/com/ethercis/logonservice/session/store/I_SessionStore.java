@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2015 Christian Chevalley
+ * This file is part of Project Ethercis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+//Copyright
+package com.ethercis.logonservice.session.store;
+
+import java.io.IOException;
+
+/**
+ * Session store SPI<p>
+ * The SessionManager notifies the store of each session creation, access and removal. A store may
+ * share this information with other nodes so that a session opened on a node can be used on another
+ * one (see lookup()).<p>
+ * Configured with 'server.session.store': <code>memory</code> (default) or <code>replicated</code>
+ */
+public interface I_SessionStore {
+
+    /**
+     * receives the session changes applied by other nodes
+     */
+    interface Listener {
+        /**
+         * a session has been accessed on another node
+         */
+        void remoteRefresh(SessionRecord record);
+
+        /**
+         * a session has been disconnected on another node
+         */
+        void remoteRemove(String secretSessionId);
+    }
+
+    void start(Listener listener) throws IOException;
+
+    void sessionCreated(SessionRecord record);
+
+    /**
+     * called on each session access, must be cheap
+     * @param secretSessionId
+     * @param ehrId the EHR currently bound to the session or null
+     */
+    void sessionRefreshed(String secretSessionId, String ehrId);
+
+    void sessionRemoved(String secretSessionId);
+
+    /**
+     * @param secretSessionId
+     * @return a live session not known locally or null
+     */
+    SessionRecord lookup(String secretSessionId);
+
+    void shutdown();
+
+    String status();
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2015 Christian Chevalley
+ * This file is part of Project Ethercis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+//Copyright
+package com.ethercis.logonservice.session.store;
+
+/**
+ * Sessions are kept in the SessionManager of this node only
+ */
+public class InMemorySessionStore implements I_SessionStore {
+
+    @Override
+    public void start(Listener listener) {
+    }
+
+    @Override
+    public void sessionCreated(SessionRecord record) {
+    }
+
+    @Override
+    public void sessionRefreshed(String secretSessionId, String ehrId) {
+    }
+
+    @Override
+    public void sessionRemoved(String secretSessionId) {
+    }
+
+    @Override
+    public SessionRecord lookup(String secretSessionId) {
+        return null;
+    }
+
+    @Override
+    public void shutdown() {
+    }
+
+    @Override
+    public String status() {
+        return "Session store: in-memory, sessions are local to this node\n";
+    }
+}
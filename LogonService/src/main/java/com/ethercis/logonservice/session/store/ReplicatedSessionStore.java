@@ -0,0 +1,632 @@
+/*
+ * Copyright (c) 2015 Christian Chevalley
+ * This file is part of Project Ethercis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+//Copyright
+package com.ethercis.logonservice.session.store;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Session store replicating session changes to the other nodes of the cluster over TCP.<p>
+ * Each node sends its own changes to every configured peer and applies the changes received from
+ * them. Session accesses are coalesced: a session accessed many times during a flush interval is
+ * sent once, with its full record, so that the replication traffic depends on the number of active
+ * sessions and not on the request rate. Creations and removals are sent without waiting for the
+ * flush interval.<p>
+ * A record allows to use a session without credential, frames are therefore protected with keys derived
+ * from a secret shared by the nodes: the payload is encrypted with AES-GCM, so that secret session ids are
+ * not sent in clear, and the frame is signed with HMAC-SHA256. The signed payload carries the sender
+ * timestamp and a sequence number, a frame older than <code>maxSkew</code> or not newer than the last one
+ * received from its sender is rejected as a replay. The node clocks must therefore be synchronized.<br>
+ * The store listens on the loopback interface unless a bind address is configured, the connections
+ * accepted are bounded and time out after <code>timeout</code> ms without frame, a frame is sent to each
+ * peer within <code>timeout</code> ms or its connection is dropped.<p>
+ * A change that could not be delivered to a peer is not retried: a live session is sent again on its
+ * next access, a removed session expires on the peer after its session timeout.
+ */
+public class ReplicatedSessionStore implements I_SessionStore {
+
+    private static Logger log = LogManager.getLogger(ReplicatedSessionStore.class);
+
+    private static final int MAGIC = 0x45535332;
+    //payloads are split to stay below this size, MAX_FRAME leaves room for a record of maximal size
+    private static final int FRAME_CHUNK = 64 * 1024;
+    private static final int MAX_FRAME = 512 * 1024;
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final String CIPHER = "AES/GCM/NoPadding";
+    private static final int IV_LENGTH = 12;
+    private static final int SIGNATURE_LENGTH = 32;
+    private static final byte UPDATE = 1;
+    private static final byte REMOVE = 2;
+    public static final long DEFAULT_TIMEOUT = 30000L;
+
+    private final String nodeId;
+    private final String bindAddress;
+    private final int port;
+    private final List<InetSocketAddress> peers;
+    private final SecretKeySpec key;
+    private final SecretKeySpec cipherKey;
+    private final long flushInterval;
+    private final long ttl;
+    private final long timeout;
+    private final long maxSkew;
+    private final long tombstoneTtl;
+    private final int maxConnections;
+    private final SecureRandom random = new SecureRandom();
+
+    //all the sessions known to this node, local or remote
+    private final Map<String, SessionRecord> records = new ConcurrentHashMap<>();
+    //recently removed sessions, late updates for these are ignored
+    private final Map<String, Long> tombstones = new ConcurrentHashMap<>();
+    //sessions to send on next flush, coalesced
+    private final Set<String> pendingUpdates = ConcurrentHashMap.newKeySet();
+    private final Queue<String> pendingRemovals = new ConcurrentLinkedQueue<>();
+    //open connections to the peers, used by the sender thread only
+    private final Map<InetSocketAddress, Connection> connections = new HashMap<>();
+    //sequence of the last frame accepted per sending node
+    private final Map<String, Long> sequences = new HashMap<>();
+    //frames are numbered from the start time so that a restarted node keeps sending increasing sequences
+    private final AtomicLong sequence = new AtomicLong(System.currentTimeMillis() * 1000L);
+
+    private final Object signal = new Object();
+    private volatile boolean running;
+    private volatile boolean urgent;
+    private ServerSocket serverSocket;
+    private ThreadPoolExecutor readers;
+    private ScheduledExecutorService watchdog;
+    private Thread sender;
+    private Listener listener;
+
+    private final AtomicLong refreshes = new AtomicLong();
+    private final AtomicLong framesSent = new AtomicLong();
+    private final AtomicLong recordsSent = new AtomicLong();
+    private final AtomicLong sendFailures = new AtomicLong();
+    private final AtomicLong recordsReceived = new AtomicLong();
+    private final AtomicLong framesRejected = new AtomicLong();
+    private final AtomicLong connectionsRejected = new AtomicLong();
+
+    private static class Connection {
+        private final Socket socket;
+        private long lastWrite = System.currentTimeMillis();
+
+        private Connection(Socket socket) {
+            this.socket = socket;
+        }
+    }
+
+    /**
+     * @param nodeId id of this node, for logging
+     * @param bindAddress address to listen on, null for the loopback interface
+     * @param port port to listen on, 0 for an ephemeral port
+     * @param peers the other nodes
+     * @param secret secret shared by the nodes to protect the frames
+     * @param flushInterval max delay before an access is replicated [ms]
+     * @param ttl time to live of a session without timeout [ms]
+     */
+    public ReplicatedSessionStore(String nodeId, String bindAddress, int port, List<InetSocketAddress> peers, String secret, long flushInterval, long ttl) {
+        this(nodeId, bindAddress, port, peers, secret, flushInterval, ttl, DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * @param nodeId id of this node, for logging
+     * @param bindAddress address to listen on, null for the loopback interface
+     * @param port port to listen on, 0 for an ephemeral port
+     * @param peers the other nodes
+     * @param secret secret shared by the nodes to protect the frames
+     * @param flushInterval max delay before an access is replicated [ms]
+     * @param ttl time to live of a session without timeout [ms]
+     * @param timeout read and write timeout of the peer connections, also max clock skew between nodes [ms]
+     */
+    public ReplicatedSessionStore(String nodeId, String bindAddress, int port, List<InetSocketAddress> peers, String secret, long flushInterval, long ttl, long timeout) {
+        this.nodeId = nodeId;
+        this.bindAddress = bindAddress;
+        this.port = port;
+        this.peers = new ArrayList<>(peers);
+        this.key = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), ALGORITHM);
+        this.cipherKey = new SecretKeySpec(deriveKey("session-store-cipher:" + secret), "AES");
+        this.flushInterval = flushInterval;
+        this.ttl = ttl;
+        this.timeout = timeout;
+        this.maxSkew = timeout;
+        //a removal must be remembered longer than a replayed update may be accepted
+        this.tombstoneTtl = Math.max(60000L, Math.max(10 * flushInterval, 2 * maxSkew));
+        //a peer may reconnect while its previous connection is timing out
+        this.maxConnections = Math.max(4, 2 * this.peers.size());
+    }
+
+    private static byte[] deriveKey(String seed) {
+        try {
+            return Arrays.copyOf(MessageDigest.getInstance("SHA-256").digest(seed.getBytes(StandardCharsets.UTF_8)), 16);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * parse a comma separated list of host:port
+     */
+    public static List<InetSocketAddress> parsePeers(String peers) {
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        if (peers == null)
+            return addresses;
+        for (String peer: peers.split(",")) {
+            peer = peer.trim();
+            if (peer.isEmpty())
+                continue;
+            int colon = peer.lastIndexOf(':');
+            if (colon < 1)
+                throw new IllegalArgumentException("Invalid peer, expected host:port:" + peer);
+            addresses.add(InetSocketAddress.createUnresolved(peer.substring(0, colon), Integer.parseInt(peer.substring(colon + 1))));
+        }
+        return addresses;
+    }
+
+    @Override
+    public void start(Listener listener) throws IOException {
+        this.listener = listener;
+        serverSocket = new ServerSocket(port, 50, bindAddress == null ? InetAddress.getLoopbackAddress() : InetAddress.getByName(bindAddress));
+        running = true;
+
+        readers = new ThreadPoolExecutor(0, maxConnections, 60L, TimeUnit.SECONDS, new SynchronousQueue<>(), runnable -> {
+            Thread reader = new Thread(runnable, "session-store-reader");
+            reader.setDaemon(true);
+            return reader;
+        });
+        watchdog = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "session-store-watchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        Thread acceptor = new Thread(this::accept, "session-store-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        sender = new Thread(this::send, "session-store-sender");
+        sender.setDaemon(true);
+        sender.start();
+
+        log.info("Replicated session store listening on " + serverSocket.getLocalSocketAddress() + ", peers=" + peers);
+    }
+
+    public int getLocalPort() {
+        return serverSocket == null ? -1 : serverSocket.getLocalPort();
+    }
+
+    @Override
+    public void sessionCreated(SessionRecord record) {
+        if (!running)
+            return;
+        if (records.putIfAbsent(record.getSecretSessionId(), record) == null) {
+            pendingUpdates.add(record.getSecretSessionId());
+            wakeUp();
+        }
+    }
+
+    @Override
+    public void sessionRefreshed(String secretSessionId, String ehrId) {
+        SessionRecord record = records.get(secretSessionId);
+        if (record == null)
+            return;
+        record.touch(ehrId);
+        refreshes.incrementAndGet();
+        pendingUpdates.add(secretSessionId);
+    }
+
+    @Override
+    public void sessionRemoved(String secretSessionId) {
+        if (!running)
+            return;
+        if (records.remove(secretSessionId) != null) {
+            pendingUpdates.remove(secretSessionId);
+            tombstones.put(secretSessionId, System.currentTimeMillis() + tombstoneTtl);
+            pendingRemovals.add(secretSessionId);
+            wakeUp();
+        }
+    }
+
+    @Override
+    public SessionRecord lookup(String secretSessionId) {
+        SessionRecord record = records.get(secretSessionId);
+        if (record == null || record.isExpired(System.currentTimeMillis(), ttl))
+            return null;
+        return record;
+    }
+
+    @Override
+    public void shutdown() {
+        if (!running)
+            return;
+        running = false;
+        wakeUp();
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            log.debug("Closing session store socket:" + e);
+        }
+        readers.shutdownNow();
+        watchdog.shutdownNow();
+    }
+
+    private void wakeUp() {
+        synchronized (signal) {
+            urgent = true;
+            signal.notify();
+        }
+    }
+
+    private void accept() {
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                try {
+                    socket.setSoTimeout((int) timeout);
+                    readers.execute(() -> receive(socket));
+                } catch (RejectedExecutionException e) {
+                    connectionsRejected.incrementAndGet();
+                    log.warn("Session store connection from " + socket.getRemoteSocketAddress() + " rejected, " + maxConnections + " connections already open");
+                    closeQuietly(socket);
+                }
+            } catch (IOException e) {
+                if (running)
+                    log.warn("Session store could not accept connection:" + e);
+            }
+        }
+    }
+
+    private void receive(Socket socket) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+            while (running) {
+                if (in.readInt() != MAGIC || !apply(readFrame(in))) {
+                    framesRejected.incrementAndGet();
+                    log.warn("Rejected session store frame from " + socket.getRemoteSocketAddress() + ", closing connection");
+                    return;
+                }
+            }
+        } catch (EOFException e) {
+            //peer closed the connection
+        } catch (IOException e) {
+            log.debug("Session store connection from " + socket.getRemoteSocketAddress() + " closed:" + e);
+        } finally {
+            closeQuietly(socket);
+        }
+    }
+
+    /**
+     * @return the decrypted payload or null if the frame is invalid
+     */
+    private byte[] readFrame(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length <= 0 || length > MAX_FRAME)
+            return null;
+        byte[] iv = new byte[IV_LENGTH];
+        in.readFully(iv);
+        byte[] encrypted = new byte[length];
+        in.readFully(encrypted);
+        byte[] signature = new byte[SIGNATURE_LENGTH];
+        in.readFully(signature);
+        if (!MessageDigest.isEqual(signature, sign(iv, encrypted)))
+            return null;
+        try {
+            Cipher cipher = Cipher.getInstance(CIPHER);
+            cipher.init(Cipher.DECRYPT_MODE, cipherKey, new GCMParameterSpec(128, iv));
+            return cipher.doFinal(encrypted);
+        } catch (GeneralSecurityException e) {
+            return null;
+        }
+    }
+
+    private boolean apply(byte[] payload) throws IOException {
+        if (payload == null)
+            return false;
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        String origin = in.readUTF();
+        long timestamp = in.readLong();
+        long frameSequence = in.readLong();
+        if (!isFresh(origin, timestamp, frameSequence))
+            return false;
+
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            byte type = in.readByte();
+            if (type == UPDATE) {
+                SessionRecord received = SessionRecord.read(in);
+                recordsReceived.incrementAndGet();
+                String id = received.getSecretSessionId();
+                if (tombstones.containsKey(id))
+                    continue;
+                SessionRecord record = records.putIfAbsent(id, received);
+                if (record != null)
+                    record.touch(received.getEhrId());
+                else
+                    record = received;
+                if (listener != null)
+                    listener.remoteRefresh(record);
+            } else if (type == REMOVE) {
+                String id = in.readUTF();
+                recordsReceived.incrementAndGet();
+                tombstones.put(id, System.currentTimeMillis() + tombstoneTtl);
+                if (records.remove(id) != null && listener != null)
+                    listener.remoteRemove(id);
+            } else {
+                log.warn("Unknown session store entry type " + type + " from node " + origin);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * reject a frame sent too long ago or already received (replay)
+     */
+    private boolean isFresh(String origin, long timestamp, long frameSequence) {
+        if (Math.abs(System.currentTimeMillis() - timestamp) > maxSkew) {
+            log.warn("Session store frame from node " + origin + " is outdated (or clocks are not synchronized), timestamp:" + timestamp);
+            return false;
+        }
+        synchronized (sequences) {
+            Long last = sequences.get(origin);
+            if (last != null && frameSequence <= last) {
+                log.warn("Session store frame from node " + origin + " has already been received, sequence:" + frameSequence);
+                return false;
+            }
+            sequences.put(origin, frameSequence);
+        }
+        return true;
+    }
+
+    private void send() {
+        long lastSweep = System.currentTimeMillis();
+        while (running) {
+            synchronized (signal) {
+                if (!urgent) {
+                    try {
+                        signal.wait(flushInterval);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+                urgent = false;
+            }
+            if (!running)
+                break;
+
+            try {
+                flush();
+            } catch (RuntimeException e) {
+                log.error("Session store flush failed:" + e);
+            }
+
+            long now = System.currentTimeMillis();
+            if (now - lastSweep > flushInterval * 10) {
+                sweep(now);
+                lastSweep = now;
+            }
+        }
+        for (Connection connection: connections.values())
+            closeQuietly(connection.socket);
+        connections.clear();
+    }
+
+    private void flush() {
+        List<String> removals = new ArrayList<>();
+        for (String id = pendingRemovals.poll(); id != null; id = pendingRemovals.poll())
+            removals.add(id);
+
+        List<SessionRecord> updates = new ArrayList<>();
+        for (Iterator<String> iterator = pendingUpdates.iterator(); iterator.hasNext(); ) {
+            String id = iterator.next();
+            iterator.remove();
+            SessionRecord record = records.get(id);
+            if (record != null)
+                updates.add(record);
+        }
+
+        if (removals.isEmpty() && updates.isEmpty())
+            return;
+
+        List<byte[]> frames;
+        try {
+            frames = frames(removals, updates);
+        } catch (IOException | GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+
+        for (InetSocketAddress peer: peers) {
+            try {
+                for (byte[] frame: frames)
+                    write(peer, frame);
+                framesSent.addAndGet(frames.size());
+                recordsSent.addAndGet(removals.size() + updates.size());
+            } catch (IOException e) {
+                sendFailures.incrementAndGet();
+                log.debug("Could not send session changes to " + peer + ":" + e);
+                Connection connection = connections.remove(peer);
+                if (connection != null)
+                    closeQuietly(connection.socket);
+            }
+        }
+    }
+
+    /**
+     * encode the changes in frames of at most FRAME_CHUNK bytes of payload
+     */
+    List<byte[]> frames(List<String> removals, List<SessionRecord> updates) throws IOException, GeneralSecurityException {
+        List<byte[]> frames = new ArrayList<>();
+        ByteArrayOutputStream entryBytes = new ByteArrayOutputStream();
+        DataOutputStream entries = new DataOutputStream(entryBytes);
+        int count = 0;
+
+        for (int i = 0; i < removals.size() + updates.size(); i++) {
+            if (i < removals.size()) {
+                entries.writeByte(REMOVE);
+                entries.writeUTF(removals.get(i));
+            }
+            else {
+                entries.writeByte(UPDATE);
+                updates.get(i - removals.size()).write(entries);
+            }
+            count++;
+            if (entryBytes.size() >= FRAME_CHUNK) {
+                frames.add(frame(count, entryBytes));
+                entryBytes.reset();
+                count = 0;
+            }
+        }
+        if (count > 0)
+            frames.add(frame(count, entryBytes));
+        return frames;
+    }
+
+    private byte[] frame(int count, ByteArrayOutputStream entries) throws IOException, GeneralSecurityException {
+        ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream(entries.size() + 64);
+        DataOutputStream payload = new DataOutputStream(payloadBytes);
+        payload.writeUTF(nodeId);
+        payload.writeLong(System.currentTimeMillis());
+        payload.writeLong(sequence.incrementAndGet());
+        payload.writeInt(count);
+        entries.writeTo(payload);
+        payload.flush();
+
+        byte[] iv = new byte[IV_LENGTH];
+        random.nextBytes(iv);
+        Cipher cipher = Cipher.getInstance(CIPHER);
+        cipher.init(Cipher.ENCRYPT_MODE, cipherKey, new GCMParameterSpec(128, iv));
+        byte[] encrypted = cipher.doFinal(payloadBytes.toByteArray());
+
+        ByteArrayOutputStream frameBytes = new ByteArrayOutputStream(encrypted.length + IV_LENGTH + SIGNATURE_LENGTH + 8);
+        DataOutputStream out = new DataOutputStream(frameBytes);
+        out.writeInt(MAGIC);
+        out.writeInt(encrypted.length);
+        out.write(iv);
+        out.write(encrypted);
+        out.write(sign(iv, encrypted));
+        out.flush();
+        return frameBytes.toByteArray();
+    }
+
+    /**
+     * write a frame to a peer, the connection is closed if the write does not complete within the timeout
+     */
+    private void write(InetSocketAddress peer, byte[] frame) throws IOException {
+        Connection connection = connections.get(peer);
+        //the peer closes a connection idle for its timeout, do not risk writing to a half closed one
+        if (connection != null && System.currentTimeMillis() - connection.lastWrite > timeout / 2) {
+            connections.remove(peer);
+            closeQuietly(connection.socket);
+            connection = null;
+        }
+        if (connection == null) {
+            Socket socket = new Socket();
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(peer.getHostString(), peer.getPort()), (int) Math.min(timeout, 1000L));
+            connection = new Connection(socket);
+            connections.put(peer, connection);
+        }
+
+        final Socket socket = connection.socket;
+        ScheduledFuture<?> stalled = watchdog.schedule(() -> closeQuietly(socket), timeout, TimeUnit.MILLISECONDS);
+        try {
+            OutputStream out = socket.getOutputStream();
+            out.write(frame);
+            out.flush();
+        } finally {
+            stalled.cancel(false);
+        }
+        connection.lastWrite = System.currentTimeMillis();
+    }
+
+    private void sweep(long now) {
+        records.values().removeIf(record -> record.isExpired(now, ttl));
+        tombstones.values().removeIf(expiry -> expiry < now);
+    }
+
+    private byte[] sign(byte[] iv, byte[] encrypted) {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(key);
+            mac.update(iv);
+            return mac.doFinal(encrypted);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Could not sign session store frame:" + e);
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        if (socket == null)
+            return;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            //ignore
+        }
+    }
+
+    long getFramesRejected() {
+        return framesRejected.get();
+    }
+
+    @Override
+    public String status() {
+        return "Session store: replicated, node=" + nodeId + " port=" + getLocalPort() + " peers=" + peers.size()
+                + " sessions=" + records.size() + " tombstones=" + tombstones.size()
+                + " refreshes=" + refreshes.get() + " frames sent=" + framesSent.get() + " records sent=" + recordsSent.get()
+                + " send failures=" + sendFailures.get() + " records received=" + recordsReceived.get()
+                + " frames rejected=" + framesRejected.get() + " connections rejected=" + connectionsRejected.get() + "\n";
+    }
+}
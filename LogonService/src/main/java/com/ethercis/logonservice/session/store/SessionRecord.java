@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2015 Christian Chevalley
+ * This file is part of Project Ethercis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+//Copyright
+package com.ethercis.logonservice.session.store;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * The replicated state of a session: enough to re-create it on another node
+ */
+public class SessionRecord {
+
+    private final String secretSessionId;
+    private final String loginName;
+    private final String clientIp;
+    private final long sessionTimeout;
+    private volatile String ehrId;
+    private volatile long lastAccess;
+
+    public SessionRecord(String secretSessionId, String loginName, String clientIp, long sessionTimeout, String ehrId) {
+        this.secretSessionId = secretSessionId;
+        this.loginName = loginName;
+        this.clientIp = clientIp;
+        this.sessionTimeout = sessionTimeout;
+        this.ehrId = ehrId;
+        this.lastAccess = System.currentTimeMillis();
+    }
+
+    public void touch(String ehrId) {
+        this.lastAccess = System.currentTimeMillis();
+        if (ehrId != null)
+            this.ehrId = ehrId;
+    }
+
+    /**
+     * @param now
+     * @param ttl the time to live of a session without timeout
+     * @return true if the session has not been accessed within its timeout
+     */
+    public boolean isExpired(long now, long ttl) {
+        long timeout = sessionTimeout > 0L ? sessionTimeout : ttl;
+        return lastAccess + timeout < now;
+    }
+
+    public void write(DataOutputStream out) throws IOException {
+        out.writeUTF(secretSessionId);
+        out.writeUTF(loginName);
+        writeNullable(out, clientIp);
+        out.writeLong(sessionTimeout);
+        writeNullable(out, ehrId);
+    }
+
+    /**
+     * read a record, its last access is the time of reception
+     */
+    public static SessionRecord read(DataInputStream in) throws IOException {
+        return new SessionRecord(in.readUTF(), in.readUTF(), readNullable(in), in.readLong(), readNullable(in));
+    }
+
+    private static void writeNullable(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null)
+            out.writeUTF(value);
+    }
+
+    private static String readNullable(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    public String getSecretSessionId() {
+        return secretSessionId;
+    }
+
+    public String getLoginName() {
+        return loginName;
+    }
+
+    public String getClientIp() {
+        return clientIp;
+    }
+
+    public long getSessionTimeout() {
+        return sessionTimeout;
+    }
+
+    public String getEhrId() {
+        return ehrId;
+    }
+
+    public long getLastAccess() {
+        return lastAccess;
+    }
+}
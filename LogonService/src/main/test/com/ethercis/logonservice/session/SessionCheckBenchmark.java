@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2015 Christian Chevalley
+ * This file is part of Project Ethercis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ethercis.logonservice.session;
+
+import com.ethercis.logonservice.LogonService;
+import com.ethercis.logonservice.security.ServiceSecurityManager;
+import com.ethercis.servicemanager.cluster.RunTimeSingleton;
+import com.ethercis.servicemanager.common.SessionClientProperties;
+import com.ethercis.servicemanager.common.TestService;
+import com.ethercis.servicemanager.exceptions.ServiceManagerException;
+import com.ethercis.servicemanager.runlevel.I_ServiceRunMode;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Throughput of SessionManager.check() (session lookup + touch) with 1, 8 and 64 threads.
+ * <p>
+ * Run with: <code>java -cp ... com.ethercis.logonservice.session.SessionCheckBenchmark</code>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SessionCheckBenchmark {
+
+    private static final int SESSIONS = 64;
+
+    @State(Scope.Benchmark)
+    public static class Sessions {
+        RunTimeSingleton controller;
+        ServiceSecurityManager manager;
+        LogonService logonService;
+        String[] secretSessionIds = new String[SESSIONS];
+        AtomicInteger next = new AtomicInteger();
+
+        @Setup
+        public void setUp() throws Exception {
+            controller = RunTimeSingleton.instance();
+
+            manager = new ServiceSecurityManager();
+            TestService.setnstart(manager, controller, "ServiceSecurityManager", "1.0",
+                    new String[][]{
+                            {"server.security.policy.type", "SHIRO"},
+                            {"server.security.shiro.inipath", "resources/authenticate.ini"}
+                    }
+            );
+
+            logonService = new LogonService();
+            TestService.setnstart(logonService, controller, "LogonService", "1.0", new String[][]{});
+
+            for (int i = 0; i < SESSIONS; i++) {
+                SessionClientProperties props = new SessionClientProperties(controller);
+                props.addClientProperty(I_SessionManager.USER_ID, "guest");
+                props.addClientProperty(I_SessionManager.USER_PASSWORD, "guest");
+                SessionClientProperties retprops = logonService.connect(props).getSessionClientProperties();
+                secretSessionIds[i] = retprops.getClientProperty(I_SessionManager.SECRET_SESSION_ID(I_ServiceRunMode.DialectSpace.STANDARD), (String) null);
+            }
+        }
+
+        @TearDown
+        public void tearDown() throws ServiceManagerException {
+            manager.shutdown();
+            logonService.shutdown();
+        }
+    }
+
+    /**
+     * each thread works on its own session
+     */
+    @State(Scope.Thread)
+    public static class ThreadSession {
+        String secretSessionId;
+
+        @Setup
+        public void setUp(Sessions sessions) {
+            secretSessionId = sessions.secretSessionIds[sessions.next.getAndIncrement() % SESSIONS];
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public SessionInfo check1(Sessions sessions, ThreadSession session) throws ServiceManagerException {
+        return sessions.logonService.check(session.secretSessionId);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public SessionInfo check8(Sessions sessions, ThreadSession session) throws ServiceManagerException {
+        return sessions.logonService.check(session.secretSessionId);
+    }
+
+    @Benchmark
+    @Threads(64)
+    public SessionInfo check64(Sessions sessions, ThreadSession session) throws ServiceManagerException {
+        return sessions.logonService.check(session.secretSessionId);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(SessionCheckBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
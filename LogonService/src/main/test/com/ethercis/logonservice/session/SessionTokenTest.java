@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2015 Christian Chevalley
+ * This file is part of Project Ethercis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ethercis.logonservice.session;
+
+import org.junit.Test;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class SessionTokenTest {
+
+    private final SecretKeySpec key = SessionToken.secretKey("0123456789abcdef0123456789abcdef");
+
+    @Test
+    public void testEncodeDecode() {
+        SessionToken token = SessionToken.newToken("joe", "2179b8c3-4a4c-4e1a-9c25-5c4b2a1f0b1e", Arrays.asList("admin", "user"), 60000L);
+        String encoded = token.encode(key);
+
+        assertTrue(SessionToken.isToken(encoded));
+
+        SessionToken decoded = SessionToken.decode(encoded, key);
+        assertEquals(token.getTokenId(), decoded.getTokenId());
+        assertEquals("joe", decoded.getSubject());
+        assertEquals("2179b8c3-4a4c-4e1a-9c25-5c4b2a1f0b1e", decoded.getEhrId());
+        assertEquals(Arrays.asList("admin", "user"), decoded.getRoles());
+        assertEquals(token.getExpiresAt(), decoded.getExpiresAt());
+        assertFalse(decoded.isExpired());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTamperedToken() {
+        String encoded = SessionToken.newToken("joe", null, null, 60000L).encode(key);
+        String forged = SessionToken.newToken("admin", null, null, 60000L).encode(SessionToken.secretKey("another secret key 0123456789"));
+        //combine the claims of the forged token with the signature of the genuine one
+        SessionToken.decode(forged.substring(0, forged.indexOf('.')) + encoded.substring(encoded.indexOf('.')), key);
+    }
+
+    @Test
+    public void testExpiredAndRevoked() {
+        SessionTokenManager manager = new SessionTokenManager("0123456789abcdef0123456789abcdef", 60000L);
+        String token = manager.issue("joe", null, null);
+        assertEquals("joe", manager.validate(token).getSubject());
+
+        manager.revoke(token);
+        try {
+            manager.validate(token);
+            fail("revoked token should be rejected");
+        } catch (IllegalArgumentException e) {
+            //expected
+        }
+
+        SessionTokenManager expiring = new SessionTokenManager("0123456789abcdef0123456789abcdef", -1L);
+        try {
+            expiring.validate(expiring.issue("joe", null, null));
+            fail("expired token should be rejected");
+        } catch (IllegalArgumentException e) {
+            //expected
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2015 Christian Chevalley
+ * This file is part of Project Ethercis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ethercis.logonservice.session.store;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.*;
+
+/**
+ * Two stores replicating over localhost
+ */
+public class ReplicatedSessionStoreTest {
+
+    private static final String SECRET = "0123456789abcdef0123456789abcdef";
+
+    private ReplicatedSessionStore nodeA;
+    private ReplicatedSessionStore nodeB;
+
+    private final List<String> refreshedOnA = new CopyOnWriteArrayList<>();
+    private final List<String> removedOnA = new CopyOnWriteArrayList<>();
+
+    private void startNodes(String secretB) throws Exception {
+        nodeA = new ReplicatedSessionStore("A", "localhost", 0, Collections.<InetSocketAddress>emptyList(), SECRET, 50L, 60000L);
+        nodeA.start(new I_SessionStore.Listener() {
+            @Override
+            public void remoteRefresh(SessionRecord record) {
+                refreshedOnA.add(record.getSecretSessionId());
+            }
+
+            @Override
+            public void remoteRemove(String secretSessionId) {
+                removedOnA.add(secretSessionId);
+            }
+        });
+        nodeB = new ReplicatedSessionStore("B", "localhost", 0,
+                ReplicatedSessionStore.parsePeers("localhost:" + nodeA.getLocalPort()), secretB, 50L, 60000L);
+        nodeB.start(null);
+    }
+
+    @After
+    public void tearDown() {
+        if (nodeA != null)
+            nodeA.shutdown();
+        if (nodeB != null)
+            nodeB.shutdown();
+    }
+
+    private static void await(long timeout, Condition condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (!condition.met() && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+    }
+
+    private interface Condition {
+        boolean met();
+    }
+
+    @Test
+    public void testReplication() throws Exception {
+        startNodes(SECRET);
+
+        nodeB.sessionCreated(new SessionRecord("session-1", "joe", "127.0.0.1", 30000L, null));
+        await(2000, () -> nodeA.lookup("session-1") != null);
+
+        SessionRecord record = nodeA.lookup("session-1");
+        assertNotNull(record);
+        assertEquals("joe", record.getLoginName());
+        assertNull(record.getEhrId());
+
+        //many accesses within a flush interval are coalesced
+        int before = refreshedOnA.size();
+        for (int i = 0; i < 1000; i++)
+            nodeB.sessionRefreshed("session-1", "2179b8c3-4a4c-4e1a-9c25-5c4b2a1f0b1e");
+        await(2000, () -> "2179b8c3-4a4c-4e1a-9c25-5c4b2a1f0b1e".equals(nodeA.lookup("session-1").getEhrId()));
+        assertEquals("2179b8c3-4a4c-4e1a-9c25-5c4b2a1f0b1e", nodeA.lookup("session-1").getEhrId());
+        assertTrue(refreshedOnA.size() - before < 10);
+
+        nodeB.sessionRemoved("session-1");
+        await(2000, () -> removedOnA.contains("session-1"));
+        assertNull(nodeA.lookup("session-1"));
+        assertTrue(removedOnA.contains("session-1"));
+
+        //a late refresh does not resurrect a removed session
+        nodeB.sessionRefreshed("session-1", null);
+        Thread.sleep(200);
+        assertNull(nodeA.lookup("session-1"));
+    }
+
+    @Test
+    public void testInvalidSignature() throws Exception {
+        startNodes("another secret key 0123456789");
+
+        nodeB.sessionCreated(new SessionRecord("session-2", "admin", "127.0.0.1", 30000L, null));
+        Thread.sleep(300);
+        assertNull(nodeA.lookup("session-2"));
+    }
+
+    @Test
+    public void testReplayedFrame() throws Exception {
+        startNodes(SECRET);
+
+        List<byte[]> frames = nodeB.frames(Collections.<String>emptyList(),
+                Collections.singletonList(new SessionRecord("session-3", "joe", "127.0.0.1", 30000L, null)));
+        assertEquals(1, frames.size());
+        //the secret session id is not sent in clear
+        assertFalse(new String(frames.get(0), StandardCharsets.ISO_8859_1).contains("session-3"));
+
+        try (Socket socket = new Socket("localhost", nodeA.getLocalPort())) {
+            OutputStream out = socket.getOutputStream();
+            out.write(frames.get(0));
+            out.flush();
+            await(2000, () -> nodeA.lookup("session-3") != null);
+            assertNotNull(nodeA.lookup("session-3"));
+
+            nodeA.sessionRemoved("session-3");
+            out.write(frames.get(0));
+            out.flush();
+            await(2000, () -> nodeA.getFramesRejected() > 0);
+        }
+        assertEquals(1, nodeA.getFramesRejected());
+        assertNull(nodeA.lookup("session-3"));
+    }
+}
@@ -23,6 +23,7 @@ import com.ethercis.servicemanager.annotation.*;
 import com.ethercis.servicemanager.cluster.RunTimeSingleton;
 import com.ethercis.servicemanager.common.I_SessionClientProperties;
 import com.ethercis.servicemanager.exceptions.ServiceManagerException;
+import com.ethercis.servicemanager.metrics.LatencyTimer;
 import com.ethercis.servicemanager.runlevel.I_ServiceRunMode;
 import com.ethercis.servicemanager.service.ServiceInfo;
 import org.apache.logging.log4j.LogManager;
@@ -45,6 +46,8 @@ public class PartyIdentifiedService extends ServiceDataCluster implements I_Part
     final private String ME = "PartyIdentifiedService";
     final private String Version = "1.0";
     private Logger log = LogManager.getLogger(PartyIdentifiedService.class);
+    private static final LatencyTimer CREATE_TIMER = dbTimer("party_create");
+    private static final LatencyTimer DELETE_TIMER = dbTimer("party_delete");
 
     @Override
     protected void doInit(RunTimeSingleton global, ServiceInfo serviceInfo) throws ServiceManagerException {
@@ -59,17 +62,24 @@ public class PartyIdentifiedService extends ServiceDataCluster implements I_Part
 
     @Override
     public UUID getOrCreateParty(PartyIdentified partyIdentified){
-        return I_PartyIdentifiedAccess.getOrCreateParty(getDataAccess(), partyIdentified);
+        return timed(CREATE_TIMER, () -> I_PartyIdentifiedAccess.getOrCreateParty(getDataAccess(), partyIdentified));
     }
 
     @Override
     public UUID getOrCreateParty(String name, String idCode, String issuer, String assigner, String typeName){
-        return I_PartyIdentifiedAccess.getOrCreateParty(getDataAccess(), name, idCode, issuer, assigner, typeName);
+        return timed(CREATE_TIMER, () -> I_PartyIdentifiedAccess.getOrCreateParty(getDataAccess(), name, idCode, issuer, assigner, typeName));
     }
 
     @Override
     public Integer deleteParty(UUID id){
-        return I_PartyIdentifiedAccess.deleteInstance(getDataAccess(), id);
+        Integer result = timed(DELETE_TIMER, () -> I_PartyIdentifiedAccess.deleteInstance(getDataAccess(), id));
+        invalidateParty(id);
+        return result;
+    }
+
+    private void invalidateParty(UUID id){
+        if (getAuditCache() != null)
+            getAuditCache().invalidateParty(id);
     }
 
     @QuerySetting(dialect = {
@@ -79,6 +89,8 @@ public class PartyIdentifiedService extends ServiceDataCluster implements I_Part
     )
     public Integer delete(I_SessionClientProperties props) throws ServiceManagerException {
         UUID uuid = UUID.fromString(props.getClientProperty("id", ""));
-        return I_PartyIdentifiedAccess.deleteInstance(getDataAccess(), uuid);
+        Integer result = timed(DELETE_TIMER, () -> I_PartyIdentifiedAccess.deleteInstance(getDataAccess(), uuid));
+        invalidateParty(uuid);
+        return result;
     }
 }
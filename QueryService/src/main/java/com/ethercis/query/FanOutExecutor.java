@@ -0,0 +1,254 @@
+/*
+ * Copyright (c) 2015 Christian Chevalley
+ * This file is part of Project Ethercis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+//Copyright
+package com.ethercis.query;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ETHERCIS Project VirtualEhr
+ * Runs a query over a list of values (typically EHR ids) by chunks and merges their result sets.
+ * <p>
+ * The values are split in chunks of <code>chunkSize</code>, the query is executed once per chunk. The chunks of a
+ * request are run by at most <code>maxPerRequest</code> tasks on a pool of <code>parallelism</code> threads, each
+ * task holds one DB connection at a time. The pool queue is bounded (<code>queueSize</code>), a request is rejected
+ * when none of its tasks can be queued.
+ * <p>
+ * The rows are merged in the order given by a column if any. A limit is applied to each chunk: when ordered, a chunk
+ * keeps its first <code>limit</code> rows, otherwise tasks stop querying once <code>limit</code> rows have been
+ * collected. The query is expected to apply the same order and limit to limit the rows fetched.
+ */
+public class FanOutExecutor {
+
+    /**
+     * performs the query for a chunk of values, returns the DAO result map
+     */
+    public interface Query<E> {
+        Map<String, Object> execute(List<E> chunk) throws Exception;
+    }
+
+    public static class Result {
+        private final Map<String, Object> header;
+        private final List<Object> rows;
+        private final int queries;
+
+        private Result(Map<String, Object> header, List<Object> rows, int queries) {
+            this.header = header;
+            this.rows = rows;
+            this.queries = queries;
+        }
+
+        public Map<String, Object> getHeader() {
+            return header;
+        }
+
+        public List<Object> getRows() {
+            return rows;
+        }
+
+        /**
+         * @return the number of queries actually executed
+         */
+        public int getQueries() {
+            return queries;
+        }
+    }
+
+    private final int chunkSize;
+    private final int maxPerRequest;
+    private final ThreadPoolExecutor executor;
+
+    private final AtomicLong executions = new AtomicLong();
+    private final AtomicLong queries = new AtomicLong();
+    private final AtomicLong rejections = new AtomicLong();
+    private final AtomicLong elapsed = new AtomicLong();
+
+    public FanOutExecutor(int parallelism, int queueSize, int maxPerRequest, int chunkSize) {
+        this.chunkSize = chunkSize;
+        this.maxPerRequest = Math.max(1, Math.min(maxPerRequest, parallelism));
+        this.executor = new ThreadPoolExecutor(parallelism, parallelism, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueSize), runnable -> {
+            Thread thread = new Thread(runnable, "query-fanout");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @param values the values to run the query over
+     * @param query
+     * @param resultSetKey the key of the row list in a query result
+     * @param orderBy the column to order the merged rows by, null to keep the rows unordered
+     * @param descending
+     * @param limit maximum number of rows to return
+     * @return
+     * @throws RejectedExecutionException if the pool queue is full
+     * @throws Exception the first failure of a query, the other tasks are then cancelled
+     */
+    @SuppressWarnings("unchecked")
+    public <E> Result execute(List<E> values, final Query<E> query, final String resultSetKey, final String orderBy, final boolean descending, final int limit) throws Exception {
+        long start = System.currentTimeMillis();
+        final Comparator<Object> comparator = orderBy == null ? null : rowComparator(orderBy, descending);
+        final AtomicInteger collected = new AtomicInteger();
+        final AtomicInteger executed = new AtomicInteger();
+        final Map<String, Object> header = Collections.synchronizedMap(new LinkedHashMap<>());
+
+        final List<List<E>> chunks = new ArrayList<>();
+        for (int i = 0; i < values.size(); i += chunkSize)
+            chunks.add(values.subList(i, Math.min(i + chunkSize, values.size())));
+        final AtomicInteger next = new AtomicInteger();
+
+        List<Future<List<Object>>> futures = new ArrayList<>();
+        try {
+            for (int i = 0; i < Math.min(maxPerRequest, chunks.size()); i++) {
+                futures.add(executor.submit(() -> {
+                    List<Object> taskRows = new ArrayList<>();
+                    for (int index = next.getAndIncrement(); index < chunks.size(); index = next.getAndIncrement()) {
+                        if (comparator == null && collected.get() >= limit)
+                            break;
+                        Map<String, Object> result = query.execute(chunks.get(index));
+                        executed.incrementAndGet();
+                        Object rows = result.get(resultSetKey);
+                        if (header.isEmpty()) {
+                            Map<String, Object> resultHeader = new LinkedHashMap<>(result);
+                            resultHeader.remove(resultSetKey);
+                            header.putAll(resultHeader);
+                        }
+                        if (!(rows instanceof List))
+                            continue;
+                        taskRows.addAll((List<Object>) rows);
+                        collected.addAndGet(((List<Object>) rows).size());
+                        if (comparator != null && taskRows.size() > limit) {
+                            taskRows.sort(comparator);
+                            taskRows = new ArrayList<>(taskRows.subList(0, limit));
+                        }
+                    }
+                    return taskRows;
+                }));
+            }
+        } catch (RejectedExecutionException e) {
+            //the queued tasks process all the chunks, fewer of them only take longer
+            if (futures.isEmpty()) {
+                rejections.incrementAndGet();
+                throw e;
+            }
+        }
+
+        List<Object> merged = new ArrayList<>();
+        try {
+            for (Future<List<Object>> future: futures)
+                merged.addAll(future.get());
+        } catch (ExecutionException e) {
+            for (Future<List<Object>> future: futures)
+                future.cancel(true);
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+
+        if (comparator != null)
+            merged.sort(comparator);
+        if (merged.size() > limit)
+            merged = new ArrayList<>(merged.subList(0, limit));
+
+        executions.incrementAndGet();
+        queries.addAndGet(executed.get());
+        elapsed.addAndGet(System.currentTimeMillis() - start);
+        return new Result(new LinkedHashMap<>(header), merged, executed.get());
+    }
+
+    /**
+     * order rows by a column, nulls last. Values are ordered by type first (numbers, booleans, strings, then other
+     * types by class name), then by value within a type
+     * @param column
+     * @param descending
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    static Comparator<Object> rowComparator(final String column, boolean descending) {
+        Comparator<Object> comparator = (row1, row2) -> {
+            Object value1 = row1 instanceof Map ? ((Map<String, Object>) row1).get(column) : null;
+            Object value2 = row2 instanceof Map ? ((Map<String, Object>) row2).get(column) : null;
+            if (value1 == null || value2 == null)
+                return value1 == value2 ? 0 : (value1 == null ? 1 : -1);
+            return compareValues(value1, value2);
+        };
+        if (!descending)
+            return comparator;
+        //keep nulls last when descending
+        return (row1, row2) -> {
+            Object value1 = row1 instanceof Map ? ((Map<String, Object>) row1).get(column) : null;
+            Object value2 = row2 instanceof Map ? ((Map<String, Object>) row2).get(column) : null;
+            if (value1 == null || value2 == null)
+                return comparator.compare(row1, row2);
+            return comparator.compare(row2, row1);
+        };
+    }
+
+    private static int typeRank(Object value) {
+        if (value instanceof Number)
+            return 0;
+        if (value instanceof Boolean)
+            return 1;
+        if (value instanceof String)
+            return 2;
+        return 3;
+    }
+
+    @SuppressWarnings("unchecked")
+    static int compareValues(Object value1, Object value2) {
+        int rank1 = typeRank(value1);
+        int rank2 = typeRank(value2);
+        if (rank1 != rank2)
+            return Integer.compare(rank1, rank2);
+        switch (rank1) {
+            case 0:
+                return Double.compare(((Number) value1).doubleValue(), ((Number) value2).doubleValue());
+            case 1:
+                return Boolean.compare((Boolean) value1, (Boolean) value2);
+            case 2:
+                return ((String) value1).compareTo((String) value2);
+            default:
+                if (!value1.getClass().equals(value2.getClass()))
+                    return value1.getClass().getName().compareTo(value2.getClass().getName());
+                if (value1 instanceof Comparable)
+                    return ((Comparable<Object>) value1).compareTo(value2);
+                return value1.toString().compareTo(value2.toString());
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    public String status() {
+        long count = executions.get();
+        return "Query fan-out: executions=" + count + " queries=" + queries.get() + " rejections=" + rejections.get()
+                + " active=" + executor.getActiveCount() + " queued=" + executor.getQueue().size()
+                + " average time=" + (count > 0 ? elapsed.get() / count : 0) + " [ms]\n";
+    }
+}
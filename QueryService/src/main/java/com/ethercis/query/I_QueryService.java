@@ -22,4 +22,11 @@ package com.ethercis.query;
  */
 public interface I_QueryService {
     String EXPLAIN = "explain";
+    String QUERY_PARAMETERS = "aqlParameters";
+    String OFFSET = "offset";
+    String FETCH = "fetch";
+    String CURSOR = "cursor";
+    String RESULT_SET = "resultSet";
+    String JOB_ID = "jobId";
+    String ORDER_BY = "orderBy";
 }
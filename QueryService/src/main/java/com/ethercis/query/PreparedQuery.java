@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2015 Christian Chevalley
+ * This file is part of Project Ethercis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+//Copyright
+package com.ethercis.query;
+
+import com.ethercis.dao.access.interfaces.I_DomainAccess;
+import com.google.gson.Gson;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ETHERCIS Project VirtualEhr
+ * Executes a SQL query with bound parameter values and returns its result in the same form as
+ * I_EntryAccess.queryJSON(): the executed statement and the rows keyed by column label, JSON columns are returned
+ * as JSON structures. The result is empty if no row is returned.
+ */
+public class PreparedQuery {
+
+    public static final String EXECUTED_SQL = "executedSQL";
+
+    private static final Gson gson = new Gson();
+
+    private PreparedQuery() {
+    }
+
+    public static Map<String, Object> queryJSON(I_DomainAccess domainAccess, String statement, List<Object> values) throws Exception {
+        List<Object> rows = new ArrayList<>();
+
+        try (Connection connection = domainAccess.getConnection();
+             PreparedStatement preparedStatement = connection.prepareStatement(statement)) {
+            for (int i = 0; i < values.size(); i++)
+                preparedStatement.setObject(i + 1, values.get(i));
+
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                ResultSetMetaData metaData = resultSet.getMetaData();
+                int columns = metaData.getColumnCount();
+                while (resultSet.next()) {
+                    Map<String, Object> row = new LinkedHashMap<>();
+                    for (int column = 1; column <= columns; column++) {
+                        String type = metaData.getColumnTypeName(column);
+                        if ("json".equalsIgnoreCase(type) || "jsonb".equalsIgnoreCase(type)) {
+                            String json = resultSet.getString(column);
+                            row.put(metaData.getColumnLabel(column), json == null ? null : gson.fromJson(json, Object.class));
+                        }
+                        else
+                            row.put(metaData.getColumnLabel(column), resultSet.getObject(column));
+                    }
+                    rows.add(row);
+                }
+            }
+        }
+
+        Map<String, Object> result = new HashMap<>();
+        if (rows.isEmpty())
+            return result;
+        result.put(EXECUTED_SQL, statement);
+        result.put(I_QueryService.RESULT_SET, rows);
+        return result;
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright (c) 2015 Christian Chevalley
+ * This file is part of Project Ethercis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+//Copyright
+package com.ethercis.query;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ETHERCIS Project VirtualEhr
+ * Server side cursors on query results, identified by an opaque token and owned by a session.
+ * <p>
+ * A SQL cursor keeps the statement and the next offset, each page is fetched from the DB on demand by executing
+ * the statement again with an OFFSET: it is not a snapshot, rows committed or deleted between two pages shift the
+ * following pages. A row cursor (AQL query or SQL statement which cannot be paged) keeps the whole result set in
+ * memory since it is delivered as a whole by the DAO.<br>
+ * Cursors expire after <code>ttl</code> ms without access and are closed when their session is removed. When a
+ * session opens more than <code>maxPerSession</code> cursors, its least recently used one is closed. The row cursors
+ * of all sessions hold at most <code>maxRows</code> rows: the least recently used ones are closed to make room for a
+ * new one, a result set larger than <code>maxRows</code> is not held at all.
+ */
+public class QueryCursorCache {
+
+    public static class Cursor {
+        private final String token;
+        private final String sessionId;
+        private final String statement;
+        private final List<Object> values;
+        private final List<Object> rows;
+        private final Map<String, Object> header;
+        private int position;
+        private volatile long lastAccess = System.currentTimeMillis();
+
+        private Cursor(String token, String sessionId, String statement, List<Object> values, List<Object> rows, Map<String, Object> header, int position) {
+            this.token = token;
+            this.sessionId = sessionId;
+            this.statement = statement;
+            this.values = values;
+            this.rows = rows;
+            this.header = header;
+            this.position = position;
+        }
+
+        public String getToken() {
+            return token;
+        }
+
+        /**
+         * @return the SQL statement to page through or null for a row cursor
+         */
+        public String getStatement() {
+            return statement;
+        }
+
+        /**
+         * @return the parameter values of the SQL statement
+         */
+        public List<Object> getValues() {
+            return values;
+        }
+
+        /**
+         * @return the result set of a row cursor or null for a SQL cursor
+         */
+        public List<Object> getRows() {
+            return rows;
+        }
+
+        /**
+         * @return the result attributes other than the result set (executed query etc.)
+         */
+        public Map<String, Object> getHeader() {
+            return header;
+        }
+
+        /**
+         * @return the offset of the next row to return
+         */
+        public int getPosition() {
+            return position;
+        }
+
+        public void setPosition(int position) {
+            this.position = position;
+        }
+    }
+
+    private final long ttl;
+    private final int maxPerSession;
+    private final long maxRows;
+    private final Map<String, Cursor> cursors = new ConcurrentHashMap<>();
+
+    private final AtomicLong opened = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+    private final AtomicLong evicted = new AtomicLong();
+    private final AtomicLong refused = new AtomicLong();
+
+    public QueryCursorCache(long ttl, int maxPerSession, long maxRows) {
+        this.ttl = ttl;
+        this.maxPerSession = maxPerSession;
+        this.maxRows = maxRows;
+    }
+
+    public Cursor openSql(String sessionId, String statement, List<Object> values, Map<String, Object> header, int position) {
+        return open(new Cursor(UUID.randomUUID().toString(), sessionId, statement, values, null, header, position));
+    }
+
+    /**
+     * @param sessionId
+     * @param rows the whole result set
+     * @param header
+     * @param position
+     * @return the cursor or null if the result set is larger than maxRows
+     */
+    public Cursor openRows(String sessionId, List<Object> rows, Map<String, Object> header, int position) {
+        return open(new Cursor(UUID.randomUUID().toString(), sessionId, null, null, rows, header, position));
+    }
+
+    private synchronized Cursor open(Cursor cursor) {
+        if (cursor.sessionId == null)
+            throw new IllegalArgumentException("A cursor can only be opened within a session");
+        if (cursor.rows != null && cursor.rows.size() > maxRows) {
+            refused.incrementAndGet();
+            return null;
+        }
+        sweep();
+
+        Cursor oldest = null;
+        int count = 0;
+        for (Cursor existing: cursors.values()) {
+            if (existing.sessionId.equals(cursor.sessionId)) {
+                count++;
+                if (oldest == null || existing.lastAccess < oldest.lastAccess)
+                    oldest = existing;
+            }
+        }
+        if (oldest != null && count >= maxPerSession)
+            cursors.remove(oldest.token);
+        if (cursor.rows != null)
+            reserve(cursor.rows.size());
+
+        cursors.put(cursor.token, cursor);
+        opened.incrementAndGet();
+        return cursor;
+    }
+
+    /**
+     * close the least recently used row cursors until <code>rows</code> more rows fit within maxRows
+     * @param rows
+     */
+    private void reserve(int rows) {
+        List<Cursor> held = new ArrayList<>();
+        long total = 0;
+        for (Cursor existing: cursors.values()) {
+            if (existing.rows != null) {
+                held.add(existing);
+                total += existing.rows.size();
+            }
+        }
+        held.sort(Comparator.comparingLong(existing -> existing.lastAccess));
+        for (Iterator<Cursor> iterator = held.iterator(); total + rows > maxRows && iterator.hasNext(); ) {
+            Cursor existing = iterator.next();
+            if (cursors.remove(existing.token) != null) {
+                total -= existing.rows.size();
+                evicted.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * @param token
+     * @param sessionId
+     * @return the cursor or null if it does not exist, has expired or is owned by another session
+     */
+    public Cursor get(String token, String sessionId) {
+        Cursor cursor = cursors.get(token);
+        if (cursor == null || !cursor.sessionId.equals(sessionId))
+            return null;
+        if (System.currentTimeMillis() - cursor.lastAccess > ttl) {
+            if (cursors.remove(token) != null)
+                expired.incrementAndGet();
+            return null;
+        }
+        cursor.lastAccess = System.currentTimeMillis();
+        return cursor;
+    }
+
+    public boolean close(String token, String sessionId) {
+        Cursor cursor = cursors.get(token);
+        return cursor != null && cursor.sessionId.equals(sessionId) && cursors.remove(token) != null;
+    }
+
+    public void closeSession(String sessionId) {
+        cursors.values().removeIf(cursor -> cursor.sessionId.equals(sessionId));
+    }
+
+    public void sweep() {
+        long now = System.currentTimeMillis();
+        for (Iterator<Cursor> iterator = cursors.values().iterator(); iterator.hasNext(); ) {
+            if (now - iterator.next().lastAccess > ttl) {
+                iterator.remove();
+                expired.incrementAndGet();
+            }
+        }
+    }
+
+    public void clear() {
+        cursors.clear();
+    }
+
+    public String status() {
+        sweep();
+        long heldRows = 0;
+        for (Cursor cursor: cursors.values()) {
+            if (cursor.rows != null)
+                heldRows += cursor.rows.size();
+        }
+        return "Query cursors: open=" + cursors.size() + " opened=" + opened.get() + " expired=" + expired.get()
+                + " evicted=" + evicted.get() + " refused=" + refused.get()
+                + " held rows=" + heldRows + "/" + maxRows + " ttl=" + ttl + " [ms]\n";
+    }
+}
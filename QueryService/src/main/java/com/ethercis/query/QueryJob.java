@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2015 Christian Chevalley
+ * This file is part of Project Ethercis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+//Copyright
+package com.ethercis.query;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Future;
+
+/**
+ * ETHERCIS Project VirtualEhr
+ * State of a query submitted for asynchronous execution.
+ * <p>
+ * A job is owned by the authenticated subject of the session which submitted it (not by a client supplied committer)
+ * rather than by the session itself, its state and results remain available to the owner after a disconnection until
+ * the job expires.
+ */
+public class QueryJob {
+
+    public enum Status {QUEUED, RUNNING, COMPLETED, FAILED, CANCELLED}
+
+    /**
+     * the query execution, rows are passed to the job as they are retrieved
+     */
+    public interface Task {
+        void execute(QueryJob job) throws Exception;
+    }
+
+    private final String id = UUID.randomUUID().toString();
+    private final String owner;
+    private final String query;
+    private final QueryResultSpill spill;
+    private final long submitted = System.currentTimeMillis();
+    private volatile Status status = Status.QUEUED;
+    private volatile long started;
+    private volatile long finished;
+    private volatile String error;
+    private volatile Map<String, Object> header = new LinkedHashMap<>();
+    private volatile Future<?> future;
+
+    QueryJob(String owner, String query, QueryResultSpill spill) {
+        this.owner = owner;
+        this.query = query;
+        this.spill = spill;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public boolean isCancelled() {
+        return status == Status.CANCELLED;
+    }
+
+    public boolean isDone() {
+        return status == Status.COMPLETED || status == Status.FAILED || status == Status.CANCELLED;
+    }
+
+    public long getFinished() {
+        return finished;
+    }
+
+    /**
+     * @return the result attributes other than the result set (executed query etc.)
+     */
+    public Map<String, Object> getHeader() {
+        return header;
+    }
+
+    public void setHeader(Map<String, Object> header) {
+        this.header = header;
+    }
+
+    public void append(List<Object> rows) throws IOException {
+        if (isCancelled())
+            throw new IllegalStateException("Query job has been cancelled");
+        spill.append(rows);
+    }
+
+    public QueryResultSpill getSpill() {
+        return spill;
+    }
+
+    void setFuture(Future<?> future) {
+        this.future = future;
+    }
+
+    synchronized boolean start() {
+        if (status != Status.QUEUED)
+            return false;
+        status = Status.RUNNING;
+        started = System.currentTimeMillis();
+        return true;
+    }
+
+    synchronized void complete() {
+        if (status == Status.RUNNING)
+            status = Status.COMPLETED;
+        finished = System.currentTimeMillis();
+    }
+
+    synchronized void fail(String error) {
+        if (status == Status.RUNNING) {
+            status = Status.FAILED;
+            this.error = error;
+        }
+        finished = System.currentTimeMillis();
+    }
+
+    /**
+     * @return the status before cancellation
+     */
+    synchronized Status cancel() {
+        Status previous = status;
+        if (isDone())
+            return previous;
+        status = Status.CANCELLED;
+        if (previous == Status.QUEUED)
+            finished = System.currentTimeMillis();
+        if (future != null)
+            future.cancel(true);
+        return previous;
+    }
+
+    public Map<String, Object> describe() {
+        Map<String, Object> description = new LinkedHashMap<>();
+        description.put("jobId", id);
+        description.put("status", status.name());
+        description.put("query", query);
+        description.put("submitted", submitted);
+        if (started > 0)
+            description.put("started", started);
+        if (finished > 0) {
+            description.put("finished", finished);
+            description.put("elapsed", finished - (started > 0 ? started : submitted));
+        }
+        description.put("rows", spill.getRowCount());
+        if (error != null)
+            description.put("error", error);
+        return description;
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright (c) 2015 Christian Chevalley
+ * This file is part of Project Ethercis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+//Copyright
+package com.ethercis.query;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ETHERCIS Project VirtualEhr
+ * Runs query jobs on a bounded executor and keeps their results in spill files until they expire.
+ * <p>
+ * At most <code>threads</code> jobs run concurrently and <code>queueSize</code> are waiting, further submissions are
+ * rejected. A job and its spill file are discarded <code>ttl</code> ms after it is done.
+ * <p>
+ * The spill directory is private: it must be owned by the user running the server and is restricted to it. Spill file
+ * names are prefixed by the instance id, several instances may share the directory, each one only discards its own
+ * files left by a previous run.
+ */
+public class QueryJobManager {
+
+    private static final String SPILL_SUFFIX = ".spill";
+
+    private Logger log = LogManager.getLogger(QueryJobManager.class);
+
+    private final Path spillDirectory;
+    private final String spillPrefix;
+    private final int blockRows;
+    private final long ttl;
+    private final ThreadPoolExecutor executor;
+    private final Map<String, QueryJob> jobs = new ConcurrentHashMap<>();
+
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * @param spillDirectory
+     * @param instance id of this server instance, identical across restarts
+     * @param threads
+     * @param queueSize
+     * @param blockRows
+     * @param ttl
+     * @throws IOException if the spill directory cannot be created or is not owned by the current user
+     */
+    public QueryJobManager(Path spillDirectory, String instance, int threads, int queueSize, int blockRows, long ttl) throws IOException {
+        this.spillDirectory = spillDirectory;
+        this.spillPrefix = "query-" + instance.replaceAll("[^A-Za-z0-9_.]", "_") + "-";
+        this.blockRows = blockRows;
+        this.ttl = ttl;
+
+        createPrivateDirectory(spillDirectory);
+        //spill files left by a previous run of this instance cannot be served anymore
+        try (DirectoryStream<Path> stale = Files.newDirectoryStream(spillDirectory, spillPrefix + "*" + SPILL_SUFFIX)) {
+            for (Path path: stale)
+                Files.deleteIfExists(path);
+        }
+
+        executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueSize), runnable -> {
+            Thread thread = new Thread(runnable, "query-job");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private static void createPrivateDirectory(Path directory) throws IOException {
+        PosixFileAttributeView posix = Files.getFileAttributeView(directory.getParent() != null ? directory.getParent() : directory, PosixFileAttributeView.class);
+        if (posix == null) {
+            //no POSIX permissions, rely on the location of the directory
+            Files.createDirectories(directory);
+            return;
+        }
+
+        Set<PosixFilePermission> ownerOnly = PosixFilePermissions.fromString("rwx------");
+        if (!Files.isDirectory(directory))
+            Files.createDirectories(directory, PosixFilePermissions.asFileAttribute(ownerOnly));
+        String owner = Files.getOwner(directory).getName();
+        if (!owner.equals(System.getProperty("user.name")))
+            throw new IOException("Spill directory " + directory + " is owned by " + owner);
+        Files.setPosixFilePermissions(directory, ownerOnly);
+    }
+
+    /**
+     * @param owner the subject id of the submitter
+     * @param query the query expression, for reporting
+     * @param task
+     * @return the queued job
+     * @throws IOException if the spill file cannot be created
+     * @throws RejectedExecutionException if the job queue is full
+     */
+    public QueryJob submit(String owner, String query, QueryJob.Task task) throws IOException {
+        sweep();
+
+        Path path = Files.createTempFile(spillDirectory, spillPrefix, SPILL_SUFFIX);
+        final QueryJob job = new QueryJob(owner, query, new QueryResultSpill(path, blockRows));
+        jobs.put(job.getId(), job);
+
+        try {
+            job.setFuture(executor.submit(() -> run(job, task)));
+        } catch (RejectedExecutionException e) {
+            jobs.remove(job.getId());
+            job.getSpill().delete();
+            rejected.incrementAndGet();
+            throw e;
+        }
+        submitted.incrementAndGet();
+        return job;
+    }
+
+    private void run(QueryJob job, QueryJob.Task task) {
+        if (!job.start())
+            return;
+        try {
+            task.execute(job);
+            job.getSpill().close();
+            job.complete();
+        } catch (Exception e) {
+            if (!job.isCancelled())
+                log.warn("Query job " + job.getId() + " failed:" + e);
+            job.fail(e.getMessage() != null ? e.getMessage() : e.toString());
+        }
+        if (job.getStatus() != QueryJob.Status.COMPLETED)
+            job.getSpill().delete();
+    }
+
+    /**
+     * @param jobId
+     * @param owner
+     * @return the job or null if it does not exist, has expired or is owned by someone else
+     */
+    public QueryJob get(String jobId, String owner) {
+        QueryJob job = jobs.get(jobId);
+        if (job == null || !job.getOwner().equals(owner))
+            return null;
+        return job;
+    }
+
+    public boolean cancel(String jobId, String owner) {
+        QueryJob job = get(jobId, owner);
+        if (job == null)
+            return false;
+        //a running job deletes its spill when its task returns
+        if (job.cancel() == QueryJob.Status.QUEUED)
+            job.getSpill().delete();
+        return true;
+    }
+
+    public void sweep() {
+        long now = System.currentTimeMillis();
+        for (Iterator<QueryJob> iterator = jobs.values().iterator(); iterator.hasNext(); ) {
+            QueryJob job = iterator.next();
+            if (job.isDone() && job.getFinished() > 0 && now - job.getFinished() > ttl) {
+                iterator.remove();
+                job.getSpill().delete();
+            }
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+        for (QueryJob job: jobs.values()) {
+            job.cancel();
+            job.getSpill().delete();
+        }
+        jobs.clear();
+    }
+
+    public String status() {
+        sweep();
+        int running = 0;
+        int done = 0;
+        long spilled = 0;
+        for (QueryJob job: jobs.values()) {
+            if (job.getStatus() == QueryJob.Status.RUNNING)
+                running++;
+            else if (job.isDone())
+                done++;
+            spilled += job.getSpill().getLength();
+        }
+        return "Query jobs: running=" + running + " queued=" + executor.getQueue().size() + " done=" + done
+                + " submitted=" + submitted.get() + " rejected=" + rejected.get() + " spilled=" + spilled + " [bytes]"
+                + " ttl=" + ttl + " [ms]\n";
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright (c) 2015 Christian Chevalley
+ * This file is part of Project Ethercis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+//Copyright
+package com.ethercis.query;
+
+import java.io.*;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * ETHERCIS Project VirtualEhr
+ * Result rows of a query job written to a local file.
+ * <p>
+ * Rows are grouped in blocks of <code>blockRows</code>, each block is written and gzipped and the file offset of
+ * each block is kept in memory. A page is read by seeking to the first block it spans, so that only the blocks of the
+ * requested page are loaded.
+ * <p>
+ * Rows are written as plain tagged values: null, strings, numbers, booleans, maps and lists. Any other value is written
+ * as its string representation. No class is instantiated when reading a spill back.
+ */
+public class QueryResultSpill implements Closeable {
+
+    private final Path path;
+    private final int blockRows;
+    private final List<Long> blockOffsets = new ArrayList<>();
+    private final List<Object> pending = new ArrayList<>();
+    private DataOutputStream output;
+    private long length = 0;
+    private int rowCount = 0;
+
+    public QueryResultSpill(Path path, int blockRows) throws IOException {
+        this.path = path;
+        this.blockRows = blockRows;
+        this.output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)));
+    }
+
+    public synchronized void append(List<Object> rows) throws IOException {
+        for (Object row: rows) {
+            pending.add(row);
+            rowCount++;
+            if (pending.size() >= blockRows)
+                writeBlock();
+        }
+    }
+
+    private void writeBlock() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream blockOutput = new DataOutputStream(new GZIPOutputStream(bytes))) {
+            blockOutput.writeInt(pending.size());
+            for (Object row: pending)
+                writeValue(blockOutput, row);
+        }
+        pending.clear();
+
+        blockOffsets.add(length);
+        output.writeInt(bytes.size());
+        bytes.writeTo(output);
+        length += 4 + bytes.size();
+    }
+
+    /**
+     * write the pending rows, the spill is readable once closed
+     * @throws IOException
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (output == null)
+            return;
+        try {
+            if (!pending.isEmpty())
+                writeBlock();
+        } finally {
+            output.close();
+            output = null;
+        }
+    }
+
+    public synchronized List<Object> read(int offset, int fetch) throws IOException {
+        if (output != null)
+            throw new IllegalStateException("Query result is not complete");
+
+        List<Object> page = new ArrayList<>();
+        if (offset >= rowCount)
+            return page;
+
+        int block = offset / blockRows;
+        int skip = offset % blockRows;
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "r")) {
+            while (page.size() < fetch && block < blockOffsets.size()) {
+                file.seek(blockOffsets.get(block));
+                byte[] bytes = new byte[file.readInt()];
+                file.readFully(bytes);
+                List<Object> rows = new ArrayList<>();
+                try (DataInputStream blockInput = new DataInputStream(new GZIPInputStream(new ByteArrayInputStream(bytes)))) {
+                    for (int count = blockInput.readInt(); count > 0; count--)
+                        rows.add(readValue(blockInput));
+                }
+                int to = Math.min(rows.size(), skip + fetch - page.size());
+                page.addAll(rows.subList(skip, to));
+                skip = 0;
+                block++;
+            }
+        }
+        return page;
+    }
+
+    private static final byte NULL = 0;
+    private static final byte STRING = 1;
+    private static final byte INTEGER = 2;
+    private static final byte LONG = 3;
+    private static final byte DOUBLE = 4;
+    private static final byte BOOLEAN = 5;
+    private static final byte MAP = 6;
+    private static final byte LIST = 7;
+    private static final byte DECIMAL = 8;
+
+    private static void writeValue(DataOutput output, Object value) throws IOException {
+        if (value == null)
+            output.writeByte(NULL);
+        else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            output.writeByte(INTEGER);
+            output.writeInt(((Number) value).intValue());
+        }
+        else if (value instanceof Long) {
+            output.writeByte(LONG);
+            output.writeLong((Long) value);
+        }
+        else if (value instanceof Double || value instanceof Float) {
+            output.writeByte(DOUBLE);
+            output.writeDouble(((Number) value).doubleValue());
+        }
+        else if (value instanceof Number) {
+            output.writeByte(DECIMAL);
+            writeString(output, value.toString());
+        }
+        else if (value instanceof Boolean) {
+            output.writeByte(BOOLEAN);
+            output.writeBoolean((Boolean) value);
+        }
+        else if (value instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) value;
+            output.writeByte(MAP);
+            output.writeInt(map.size());
+            for (Map.Entry<?, ?> entry: map.entrySet()) {
+                writeString(output, String.valueOf(entry.getKey()));
+                writeValue(output, entry.getValue());
+            }
+        }
+        else if (value instanceof Iterable) {
+            List<Object> list = new ArrayList<>();
+            for (Object item: (Iterable<?>) value)
+                list.add(item);
+            output.writeByte(LIST);
+            output.writeInt(list.size());
+            for (Object item: list)
+                writeValue(output, item);
+        }
+        else {
+            output.writeByte(STRING);
+            writeString(output, value.toString());
+        }
+    }
+
+    private static Object readValue(DataInput input) throws IOException {
+        byte tag = input.readByte();
+        switch (tag) {
+            case NULL:
+                return null;
+            case STRING:
+                return readString(input);
+            case INTEGER:
+                return input.readInt();
+            case LONG:
+                return input.readLong();
+            case DOUBLE:
+                return input.readDouble();
+            case BOOLEAN:
+                return input.readBoolean();
+            case DECIMAL:
+                return new BigDecimal(readString(input));
+            case MAP: {
+                Map<String, Object> map = new LinkedHashMap<>();
+                for (int count = input.readInt(); count > 0; count--)
+                    map.put(readString(input), readValue(input));
+                return map;
+            }
+            case LIST: {
+                List<Object> list = new ArrayList<>();
+                for (int count = input.readInt(); count > 0; count--)
+                    list.add(readValue(input));
+                return list;
+            }
+            default:
+                throw new IOException("Invalid value tag in query result:" + tag);
+        }
+    }
+
+    //writeUTF is limited to 64k
+    private static void writeString(DataOutput output, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    private static String readString(DataInput input) throws IOException {
+        byte[] bytes = new byte[input.readInt()];
+        input.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public synchronized int getRowCount() {
+        return rowCount;
+    }
+
+    public synchronized long getLength() {
+        return length;
+    }
+
+    public void delete() {
+        try {
+            close();
+        } catch (IOException e) {
+            //file is deleted anyway
+        }
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            path.toFile().deleteOnExit();
+        }
+    }
+}
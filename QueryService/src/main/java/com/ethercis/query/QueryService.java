@@ -20,7 +20,10 @@ package com.ethercis.query;
 import com.ethercis.compositionservice.I_CompositionService;
 import com.ethercis.dao.access.interfaces.I_EntryAccess;
 import com.ethercis.ehr.knowledge.I_CacheKnowledgeService;
+import com.ethercis.logonservice.session.ClientEvent;
+import com.ethercis.logonservice.session.I_ClientListener;
 import com.ethercis.logonservice.session.I_SessionManager;
+import com.ethercis.persistence.AuditSetter;
 import com.ethercis.persistence.ServiceDataCluster;
 import com.ethercis.servicemanager.annotation.*;
 import com.ethercis.servicemanager.cluster.I_Info;
@@ -30,15 +33,28 @@ import com.ethercis.servicemanager.common.def.Constants;
 import com.ethercis.servicemanager.common.def.MethodName;
 import com.ethercis.servicemanager.common.def.SysErrorCode;
 import com.ethercis.servicemanager.exceptions.ServiceManagerException;
+import com.ethercis.servicemanager.metrics.LatencyTimer;
 import com.ethercis.servicemanager.runlevel.I_ServiceRunMode;
 import com.ethercis.servicemanager.service.ServiceInfo;
 import com.ethercis.systemservice.I_SystemService;
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -69,6 +85,21 @@ public class QueryService extends ServiceDataCluster implements QueryServiceMBea
     private I_SystemService systemService;
     private boolean useNamespaceInCompositionId = false;
     private boolean supportCompositionXRef = false; //if set to false, will not try to link compositions
+    private QueryCursorCache queryCursorCache;
+    private int maxRows;
+    private QueryJobManager queryJobManager;
+    private FanOutExecutor fanOutExecutor;
+    private int fanOutMaxValues;
+    private int fanOutChunkSize;
+    private int jobChunkRows;
+
+    private static final LatencyTimer SQL_QUERY_TIMER = dbTimer("sql_query");
+    private static final LatencyTimer AQL_QUERY_TIMER = dbTimer("aql_query");
+    private static final LatencyTimer AQL_EXPLAIN_TIMER = dbTimer("aql_explain");
+    private static final Pattern QUERY_KEY_PATTERN = Pattern.compile("(?<=\\\")(.*?)(?=\")");
+    private static final Pattern PAGEABLE_PATTERN = Pattern.compile("^\\s*(\\(\\s*)*(select|values|table|with)\\b", Pattern.CASE_INSENSITIVE);
+    private static final Pattern COLUMN_PATTERN = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+    private static final Pattern DML_PATTERN = Pattern.compile("\\b(insert|update|delete|merge)\\b", Pattern.CASE_INSENSITIVE);
 
     @Override
     public void doInit(RunTimeSingleton global, ServiceInfo serviceInfo)throws ServiceManagerException {
@@ -85,6 +116,33 @@ public class QueryService extends ServiceDataCluster implements QueryServiceMBea
         if (knowledgeCache == null)
             throw new ServiceManagerException(global, SysErrorCode.RESOURCE_CONFIGURATION, ME, "Cache knowledge service [CacheKnowledgeService,1.0] is not running, aborting");
 
+        maxRows = global.getProperty().get("query.max_rows", 1000);
+        queryCursorCache = new QueryCursorCache(global.getProperty().get("query.cursor.ttl", 300000L),
+                global.getProperty().get("query.cursor.max_per_session", 4),
+                global.getProperty().get("query.cursor.max_rows", 100000L));
+        closeCursorsOnLogout();
+
+        int fanOutParallelism = global.getProperty().get("query.fanout.parallelism", 4);
+        fanOutChunkSize = global.getProperty().get("query.fanout.chunk_size", 50);
+        fanOutExecutor = new FanOutExecutor(fanOutParallelism,
+                global.getProperty().get("query.fanout.queue", 4 * fanOutParallelism),
+                global.getProperty().get("query.fanout.max_per_request", Math.max(1, fanOutParallelism / 2)),
+                fanOutChunkSize);
+        fanOutMaxValues = global.getProperty().get("query.fanout.max_values", 10000);
+
+        jobChunkRows = global.getProperty().get("query.job.chunk_rows", 5000);
+        String spillPath = global.getProperty().get("query.job.spill.path", System.getProperty("java.io.tmpdir") + File.separator + "ethercis-query-jobs-" + System.getProperty("user.name"));
+        try {
+            queryJobManager = new QueryJobManager(Paths.get(spillPath),
+                    global.getId() != null ? global.getId() : "local",
+                    global.getProperty().get("query.job.threads", 2),
+                    global.getProperty().get("query.job.queue", 20),
+                    global.getProperty().get("query.job.block_rows", 500),
+                    global.getProperty().get("query.job.ttl", 3600000L));
+        } catch (IOException e) {
+            throw new ServiceManagerException(global, SysErrorCode.RESOURCE_CONFIGURATION, ME, "Could not initialize query job spill directory:" + spillPath + ", error:" + e);
+        }
+
         putObject(I_Info.JMX_PREFIX+ME, this);
 
         log.info("QueryService service started...");
@@ -111,21 +169,102 @@ public class QueryService extends ServiceDataCluster implements QueryServiceMBea
         return ehrId;
     }
 
+    @Override
+    public void shutdown() throws ServiceManagerException {
+        super.shutdown();
+        if (queryJobManager != null)
+            queryJobManager.shutdown();
+        if (fanOutExecutor != null)
+            fanOutExecutor.shutdown();
+    }
+
+    /**
+     * release the cursors held by a session when it is removed
+     */
+    private void closeCursorsOnLogout() {
+        I_SessionManager sessionManager;
+        try {
+            sessionManager = getRegisteredService(getGlobal(), "LogonService", "1.0");
+        } catch (Exception e) {
+            log.warn("LogonService is not available, query cursors will be released on expiry only");
+            return;
+        }
+        if (sessionManager == null)
+            return;
+
+        sessionManager.addClientListener(new I_ClientListener() {
+            @Override
+            public void sessionAdded(ClientEvent e) throws ServiceManagerException {
+            }
+
+            @Override
+            public void sessionUpdated(ClientEvent e) throws ServiceManagerException {
+            }
+
+            @Override
+            public void subjectAdded(ClientEvent e) throws ServiceManagerException {
+            }
+
+            @Override
+            public void sessionPreRemoved(ClientEvent e) throws ServiceManagerException {
+            }
+
+            @Override
+            public void sessionRemoved(ClientEvent e) throws ServiceManagerException {
+                queryCursorCache.closeSession(e.getSessionInfo().getSecretSessionId());
+            }
+
+            @Override
+            public void subjectRemoved(ClientEvent e) throws ServiceManagerException {
+            }
+        });
+    }
+
     private enum QueryMode {SQL, AQL, UNDEF}
 
-    @QuerySetting(dialect = {
-            @QuerySyntax(mode = I_ServiceRunMode.DialectSpace.STANDARD, httpMethod = "POST", method = "post", path = "vehr/query", responseType = ResponseType.Json),
-            @QuerySyntax(mode = I_ServiceRunMode.DialectSpace.EHRSCAPE, httpMethod = "POST", method = "post", path = "rest/v1/query", responseType = ResponseType.Json)
-    })
-    public Object query(I_SessionClientProperties props) throws Exception {
-        auditSetter.handleProperties(getDataAccess(), props);
-        Boolean explain = props.getClientProperty(I_QueryService.EXPLAIN, false);
-        String sessionId = auditSetter.getSessionId();
-        QueryMode queryMode = QueryMode.UNDEF;
-        UUID committerUuid = auditSetter.getCommitterUuid();
-        UUID systemUuid = auditSetter.getSystemUuid();
-//
-//        String sessionId = props.getClientProperty(I_SessionManager.SECRET_SESSION_ID_INTERNAL, (String)null);
+    private static class BoundQuery {
+        private final QueryMode mode;
+        //AQL: the expression with its parameters substituted, SQL: the statement and its parameter values
+        private final QueryTemplate.BoundStatement statement;
+        //a query with a list parameter is run by chunks of its values, null if the query is not fanned out
+        private final QueryTemplate template;
+        private final Map<String, Object> parameters;
+        private final String fanOutParameter;
+        private final List<Object> fanOut;
+
+        private BoundQuery(QueryMode mode, QueryTemplate.BoundStatement statement) {
+            this(mode, statement, null, null, null, null);
+        }
+
+        private BoundQuery(QueryMode mode, QueryTemplate.BoundStatement statement, QueryTemplate template, Map<String, Object> parameters, String fanOutParameter, List<Object> fanOut) {
+            this.mode = mode;
+            this.statement = statement;
+            this.template = template;
+            this.parameters = parameters;
+            this.fanOutParameter = fanOutParameter;
+            this.fanOut = fanOut;
+        }
+
+        /**
+         * @param chunk values of the list parameter
+         * @return the query bound to a chunk of values
+         */
+        private QueryTemplate.BoundStatement bind(List<Object> chunk) {
+            Map<String, Object> bindings = new HashMap<>(parameters);
+            bindings.put(fanOutParameter, chunk);
+            return QueryService.bind(template, mode, bindings);
+        }
+    }
+
+    /**
+     * get the query expression from the request body and bind its parameters
+     * @param props
+     * @return
+     * @throws ServiceManagerException
+     */
+    @SuppressWarnings("unchecked")
+    private BoundQuery bindQuery(I_SessionClientProperties props) throws ServiceManagerException {
+        QueryMode queryMode;
 
         //get body stuff
         String content = props.getClientProperty(Constants.REQUEST_CONTENT, (String)null);
@@ -134,7 +273,17 @@ public class QueryService extends ServiceDataCluster implements QueryServiceMBea
             throw new ServiceManagerException(getGlobal(), SysErrorCode.USER_ILLEGALARGUMENT, ME, "Query is not specified (HTTP content is empty)");
 
 //        Map<String, String> kvPairs = FlatJsonUtil.inputStream2Map(new StringReader(new String(content.getBytes())));
-        Map<String, String> kvPairs = extractQuery(new String(content.getBytes()));
+        Map<String, String> kvPairs;
+        Map<String, Object> parameters = null;
+
+        //a parameterized query must be valid JSON, other queries may use the pseudo json construct
+        if (content.contains("\"" + I_QueryService.QUERY_PARAMETERS + "\"")) {
+            kvPairs = new HashMap<>();
+            parameters = new HashMap<>();
+            extractParameterizedQuery(content, kvPairs, parameters);
+        }
+        else
+            kvPairs = extractQuery(content);
 
         String queryString;
 
@@ -151,18 +300,129 @@ public class QueryService extends ServiceDataCluster implements QueryServiceMBea
            throw new ServiceManagerException(global, SysErrorCode.USER_ILLEGALARGUMENT, "No query parameter supplied");
         }
 
+        //only a query posted with parameters is a template, any other query ($$ quoting, literal $...) is left untouched
+        QueryTemplate.BoundStatement statement = new QueryTemplate.BoundStatement(queryString, Collections.emptyList());
+        QueryTemplate queryTemplate = parameters == null ? null : QueryTemplate.parse(queryString);
+        if (queryTemplate != null && queryTemplate.hasParameters()) {
+            try {
+                String fanOutParameter = null;
+                for (String name: queryTemplate.getParameterNames()) {
+                    if (parameters.get(name) instanceof List) {
+                        if (fanOutParameter != null)
+                            throw new IllegalArgumentException("Only one query parameter can be given a list of values");
+                        fanOutParameter = name;
+                    }
+                }
+
+                if (fanOutParameter == null)
+                    statement = bind(queryTemplate, queryMode, parameters);
+                else {
+                    List<Object> values = (List<Object>) parameters.get(fanOutParameter);
+                    if (values.size() > fanOutMaxValues)
+                        throw new ServiceManagerException(global, SysErrorCode.USER_REQUEST_TOOLARGE, ME, "Too many values for query parameter:" + fanOutParameter + ", max:" + fanOutMaxValues);
+                    BoundQuery boundQuery = new BoundQuery(queryMode, null, queryTemplate, parameters, fanOutParameter, values);
+                    //check the bindings before running any chunk
+                    boundQuery.bind(values);
+                    return boundQuery;
+                }
+            } catch (IllegalArgumentException e) {
+                throw new ServiceManagerException(global, SysErrorCode.USER_ILLEGALARGUMENT, ME, e.getMessage());
+            }
+        }
+
+        return new BoundQuery(queryMode, statement);
+    }
+
+    /**
+     * SQL parameters are bound to a prepared statement, AQL parameters are substituted with literals
+     */
+    private static QueryTemplate.BoundStatement bind(QueryTemplate queryTemplate, QueryMode queryMode, Map<String, Object> values) {
+        if (queryMode == QueryMode.SQL)
+            return queryTemplate.prepare(values);
+        return new QueryTemplate.BoundStatement(queryTemplate.bind(values), Collections.emptyList());
+    }
+
+    private Map<String, Object> querySql(String statement, List<Object> values) throws Exception {
+        if (values.isEmpty())
+            return timed(SQL_QUERY_TIMER, () -> I_EntryAccess.queryJSON(getDataAccess(), statement));
+        return timed(SQL_QUERY_TIMER, () -> PreparedQuery.queryJSON(getDataAccess(), statement, values));
+    }
+
+    private Map<String, Object> queryAql(String expression) throws Exception {
+        return timed(AQL_QUERY_TIMER, () -> I_EntryAccess.queryAqlJson(getDataAccess(), expression));
+    }
+
+    private Map<String, Object> execute(QueryMode queryMode, QueryTemplate.BoundStatement statement) throws Exception {
+        return queryMode == QueryMode.SQL ? querySql(statement.getStatement(), statement.getValues()) : queryAql(statement.getStatement());
+    }
+
+    /**
+     * execute a query. The result is returned by pages of at most query.max_rows rows (or fetch if it is smaller),
+     * a cursor token is returned when more rows are pending.<br>
+     * A SQL query statement is paged in the DB, a SQL page is a new execution of the statement, pages are not a
+     * consistent snapshot. Any other statement can not be paged explicitly (offset or fetch), it is executed as is.
+     * Its rows, as the rows of an AQL query, are then held by a row cursor until the last page is read, the cursor is
+     * closed or it expires. A result set larger than query.cursor.max_rows can not be held and is rejected, it should
+     * be submitted as a query job.
+     * @param props
+     * @return
+     * @throws Exception
+     */
+    @QuerySetting(dialect = {
+            @QuerySyntax(mode = I_ServiceRunMode.DialectSpace.STANDARD, httpMethod = "POST", method = "post", path = "vehr/query", responseType = ResponseType.Json),
+            @QuerySyntax(mode = I_ServiceRunMode.DialectSpace.EHRSCAPE, httpMethod = "POST", method = "post", path = "rest/v1/query", responseType = ResponseType.Json)
+    })
+    public Object query(I_SessionClientProperties props) throws Exception {
+        AuditSetter auditSetter = newAuditSetter(props);
+        Boolean explain = props.getClientProperty(I_QueryService.EXPLAIN, false);
+        String sessionId = auditSetter.getSessionId();
+        int offset = props.getClientProperty(I_QueryService.OFFSET, 0);
+        int fetch = props.getClientProperty(I_QueryService.FETCH, maxRows);
+        String cursorToken = props.getClientProperty(I_QueryService.CURSOR, (String)null);
+        boolean paged = props.getClientProperty(I_QueryService.OFFSET, (String)null) != null
+                || props.getClientProperty(I_QueryService.FETCH, (String)null) != null;
+
+        if (offset < 0 || fetch <= 0)
+            throw new ServiceManagerException(getGlobal(), SysErrorCode.USER_ILLEGALARGUMENT, ME, "Invalid offset or fetch, offset should be positive and fetch greater than 0");
+        fetch = Math.min(fetch, maxRows);
+
+        if (cursorToken != null)
+            return nextPage(sessionId, cursorToken, fetch);
+
+        UUID committerUuid = auditSetter.getCommitterUuid();
+        UUID systemUuid = auditSetter.getSystemUuid();
+//
+//        String sessionId = props.getClientProperty(I_SessionManager.SECRET_SESSION_ID_INTERNAL, (String)null);
+
+        BoundQuery boundQuery = bindQuery(props);
+        QueryMode queryMode = boundQuery.mode;
+
+        if (boundQuery.fanOut != null) {
+            if (explain)
+                throw new ServiceManagerException(global, SysErrorCode.USER_ILLEGALARGUMENT, ME, "Explain is not supported on a query with a list of parameter values");
+            return fanOut(props, boundQuery, offset, fetch);
+        }
+
+        String queryString = boundQuery.statement.getStatement();
+        List<Object> values = boundQuery.statement.getValues();
+
         //perform the query
         Map<String, Object> result;
+        boolean pageable = queryMode == QueryMode.SQL && isPageable(queryString);
 
         switch (queryMode){
             case SQL:
-                result = I_EntryAccess.queryJSON(getDataAccess(), queryString);
+                if (paged && !pageable)
+                    throw new ServiceManagerException(global, SysErrorCode.USER_ILLEGALARGUMENT, ME, "Only a query statement (select, values, with ... select) can be paged");
+                //fetch one more row to know if there is a next page
+                String statement = pageable ? pageStatement(queryString, offset, fetch + 1) : queryString;
+                result = querySql(statement, values);
                 break;
             case AQL:
                 if (explain)
-                    result = I_EntryAccess.explainAqlJson(getDataAccess(), queryString);
+                    result = timed(AQL_EXPLAIN_TIMER, () -> I_EntryAccess.explainAqlJson(getDataAccess(), queryString));
                 else
-                    result = I_EntryAccess.queryAqlJson(getDataAccess(), queryString);
+                    result = queryAql(queryString);
                 break;
 
             default:
@@ -170,15 +430,366 @@ public class QueryService extends ServiceDataCluster implements QueryServiceMBea
         }
 
         if (result.size() == 0){
-            global.getProperty().set(MethodName.RETURN_TYPE_PROPERTY, ""+MethodName.RETURN_NO_CONTENT);
+            props.getResponseContext().setReturnType(MethodName.RETURN_NO_CONTENT);
             //build the relative part of the link to the existing last version
             Map<String, Object> retMap = new HashMap<>();
             retMap.put("Reason", "Query resultset is empty");
             return retMap;
         }
 
-        return result;
+        List<Object> rows = getRows(result);
+        if (explain || rows == null)
+            return result;
+
+        Map<String, Object> header = getHeader(result);
+
+        //a cursor is owned by a session, none is opened for a request without session
+        if (pageable) {
+            boolean more = rows.size() > fetch;
+            Map<String, Object> page = page(header, more ? rows.subList(0, fetch) : rows, offset);
+            if (more && sessionId != null)
+                page.put(I_QueryService.CURSOR, queryCursorCache.openSql(sessionId, queryString, values, header, offset + fetch).getToken());
+            return page;
+        }
+        else {
+            int from = Math.min(offset, rows.size());
+            int to = Math.min(from + fetch, rows.size());
+            Map<String, Object> page = page(header, rows.subList(from, to), offset);
+            if (to < rows.size() && sessionId != null) {
+                QueryCursorCache.Cursor cursor = queryCursorCache.openRows(sessionId, rows, header, to);
+                if (cursor == null)
+                    throw new ServiceManagerException(global, SysErrorCode.USER_REQUEST_TOOLARGE, ME, "Query result of " + rows.size() + " rows is too large to be paged, submit it as a query job");
+                page.put(I_QueryService.CURSOR, cursor.getToken());
+            }
+            return page;
+        }
+    }
+
+    /**
+     * run a query by chunks of the values of its list parameter and merge the results. A SQL query statement is
+     * limited to offset + fetch rows, in the requested order if any, by each chunk.
+     * @param props
+     * @param boundQuery
+     * @param offset
+     * @param fetch
+     * @return
+     * @throws Exception
+     */
+    private Map<String, Object> fanOut(I_SessionClientProperties props, BoundQuery boundQuery, int offset, int fetch) throws Exception {
+        String orderBy = props.getClientProperty(I_QueryService.ORDER_BY, (String)null);
+        boolean descending = false;
+        if (orderBy != null) {
+            String[] terms = orderBy.trim().split("\\s+");
+            orderBy = terms[0];
+            descending = terms.length > 1 && terms[1].equalsIgnoreCase("desc");
+            if (boundQuery.mode == QueryMode.SQL && !COLUMN_PATTERN.matcher(orderBy).matches())
+                throw new ServiceManagerException(global, SysErrorCode.USER_ILLEGALARGUMENT, ME, "Invalid order by column:" + orderBy);
+        }
+
+        final String orderColumn = orderBy;
+        final boolean orderDescending = descending;
+        final int limit = offset + fetch;
+        FanOutExecutor.Query<Object> query = chunk -> {
+            QueryTemplate.BoundStatement statement = boundQuery.bind(chunk);
+            if (boundQuery.mode == QueryMode.SQL && isPageable(statement.getStatement()))
+                statement = new QueryTemplate.BoundStatement(limitStatement(statement.getStatement(), orderColumn, orderDescending, limit), statement.getValues());
+            return execute(boundQuery.mode, statement);
+        };
+
+        FanOutExecutor.Result result;
+        try {
+            result = fanOutExecutor.execute(boundQuery.fanOut, query, I_QueryService.RESULT_SET, orderBy, descending, limit);
+        } catch (RejectedExecutionException e) {
+            throw new ServiceManagerException(getGlobal(), SysErrorCode.RESOURCE_EXHAUST, ME, "Too many pending queries, please retry later");
+        }
 
+        List<Object> rows = result.getRows();
+        Map<String, Object> page = page(result.getHeader(), rows.subList(Math.min(offset, rows.size()), rows.size()), offset);
+        page.put("queries", result.getQueries());
+        return page;
+    }
+
+    /**
+     * return the next page of an open cursor, the cursor is closed once the last page is returned
+     * @param sessionId
+     * @param cursorToken
+     * @param fetch
+     * @return
+     * @throws Exception
+     */
+    private Map<String, Object> nextPage(String sessionId, String cursorToken, int fetch) throws Exception {
+        QueryCursorCache.Cursor cursor = queryCursorCache.get(cursorToken, sessionId);
+        if (cursor == null)
+            throw new ServiceManagerException(getGlobal(), SysErrorCode.RESOURCE_NOT_FOUND, ME, "Query cursor not found or expired:" + cursorToken);
+
+        synchronized (cursor) {
+            int position = cursor.getPosition();
+            List<Object> rows;
+            boolean more;
+
+            if (cursor.getStatement() != null) {
+                rows = getRows(querySql(pageStatement(cursor.getStatement(), position, fetch + 1), cursor.getValues()));
+                if (rows == null)
+                    rows = new ArrayList<>();
+                more = rows.size() > fetch;
+                if (more)
+                    rows = rows.subList(0, fetch);
+            }
+            else {
+                int to = Math.min(position + fetch, cursor.getRows().size());
+                rows = cursor.getRows().subList(position, to);
+                more = to < cursor.getRows().size();
+            }
+
+            Map<String, Object> page = page(cursor.getHeader(), rows, position);
+            if (more) {
+                cursor.setPosition(position + rows.size());
+                page.put(I_QueryService.CURSOR, cursor.getToken());
+            }
+            else
+                queryCursorCache.close(cursorToken, sessionId);
+            return page;
+        }
+    }
+
+    @QuerySetting(dialect = {
+            @QuerySyntax(mode = I_ServiceRunMode.DialectSpace.STANDARD, httpMethod = "DELETE", method = "delete", path = "vehr/query", responseType = ResponseType.Json),
+            @QuerySyntax(mode = I_ServiceRunMode.DialectSpace.EHRSCAPE, httpMethod = "DELETE", method = "delete", path = "rest/v1/query", responseType = ResponseType.Json)
+    })
+    public Object closeCursor(I_SessionClientProperties props) throws Exception {
+        AuditSetter auditSetter = newAuditSetter(props);
+        String cursorToken = props.getClientProperty(I_QueryService.CURSOR, (String)null);
+
+        if (cursorToken == null)
+            throw new ServiceManagerException(getGlobal(), SysErrorCode.USER_ILLEGALARGUMENT, ME, "A cursor must be supplied");
+
+        if (!queryCursorCache.close(cursorToken, auditSetter.getSessionId()))
+            throw new ServiceManagerException(getGlobal(), SysErrorCode.RESOURCE_NOT_FOUND, ME, "Query cursor not found or expired:" + cursorToken);
+
+        Map<String, Object> retMap = new HashMap<>();
+        retMap.put("action", "CLOSED");
+        retMap.put(I_QueryService.CURSOR, cursorToken);
+        return retMap;
+    }
+
+    /**
+     * submit a query for asynchronous execution, the result is retrieved page-wise once the job is completed
+     * @param props
+     * @return the job id and status
+     * @throws Exception
+     */
+    @QuerySetting(dialect = {
+            @QuerySyntax(mode = I_ServiceRunMode.DialectSpace.STANDARD, httpMethod = "POST", method = "post", path = "vehr/query/job", responseType = ResponseType.Json),
+            @QuerySyntax(mode = I_ServiceRunMode.DialectSpace.EHRSCAPE, httpMethod = "POST", method = "post", path = "rest/v1/query/job", responseType = ResponseType.Json)
+    })
+    public Object submitJob(I_SessionClientProperties props) throws Exception {
+        String owner = jobOwner(props);
+        BoundQuery boundQuery = bindQuery(props);
+        final String expression = boundQuery.fanOut != null ? boundQuery.template.getExpression() : boundQuery.statement.getStatement();
+        final List<Object> values = boundQuery.fanOut != null ? null : boundQuery.statement.getValues();
+
+        QueryJob.Task task;
+        if (boundQuery.fanOut != null) {
+            final List<Object> fanOut = boundQuery.fanOut;
+            task = job -> {
+                for (int i = 0; i < fanOut.size(); i += fanOutChunkSize) {
+                    if (job.isCancelled())
+                        break;
+                    Map<String, Object> result = execute(boundQuery.mode, boundQuery.bind(fanOut.subList(i, Math.min(i + fanOutChunkSize, fanOut.size()))));
+                    if (job.getHeader().isEmpty())
+                        job.setHeader(getHeader(result));
+                    List<Object> rows = getRows(result);
+                    if (rows != null)
+                        job.append(rows);
+                }
+            };
+        }
+        else if (boundQuery.mode == QueryMode.SQL && isPageable(expression)) {
+            //the statement is run by chunks so that only one chunk is held in memory
+            task = job -> {
+                int position = 0;
+                while (!job.isCancelled()) {
+                    String statement = pageStatement(expression, position, jobChunkRows);
+                    Map<String, Object> result = querySql(statement, values);
+                    if (position == 0)
+                        job.setHeader(getHeader(result));
+                    List<Object> rows = getRows(result);
+                    if (rows == null || rows.isEmpty())
+                        break;
+                    job.append(rows);
+                    if (rows.size() < jobChunkRows)
+                        break;
+                    position += rows.size();
+                }
+            };
+        }
+        else {
+            final QueryMode queryMode = boundQuery.mode;
+            final QueryTemplate.BoundStatement statement = boundQuery.statement;
+            task = job -> {
+                Map<String, Object> result = execute(queryMode, statement);
+                job.setHeader(getHeader(result));
+                List<Object> rows = getRows(result);
+                if (rows != null)
+                    job.append(rows);
+            };
+        }
+
+        QueryJob job;
+        try {
+            job = queryJobManager.submit(owner, expression, task);
+        } catch (RejectedExecutionException e) {
+            throw new ServiceManagerException(getGlobal(), SysErrorCode.RESOURCE_EXHAUST, ME, "Too many pending query jobs, please retry later");
+        }
+
+        return job.describe();
+    }
+
+    @QuerySetting(dialect = {
+            @QuerySyntax(mode = I_ServiceRunMode.DialectSpace.STANDARD, httpMethod = "GET", method = "get", path = "vehr/query/job", responseType = ResponseType.Json),
+            @QuerySyntax(mode = I_ServiceRunMode.DialectSpace.EHRSCAPE, httpMethod = "GET", method = "get", path = "rest/v1/query/job", responseType = ResponseType.Json)
+    })
+    public Object jobStatus(I_SessionClientProperties props) throws Exception {
+        return getJob(props).describe();
+    }
+
+    /**
+     * get a page of the result of a completed job
+     * @param props
+     * @return
+     * @throws Exception
+     */
+    @QuerySetting(dialect = {
+            @QuerySyntax(mode = I_ServiceRunMode.DialectSpace.STANDARD, httpMethod = "GET", method = "get", path = "vehr/query/job/result", responseType = ResponseType.Json),
+            @QuerySyntax(mode = I_ServiceRunMode.DialectSpace.EHRSCAPE, httpMethod = "GET", method = "get", path = "rest/v1/query/job/result", responseType = ResponseType.Json)
+    })
+    public Object jobResult(I_SessionClientProperties props) throws Exception {
+        QueryJob job = getJob(props);
+        int offset = props.getClientProperty(I_QueryService.OFFSET, 0);
+        int fetch = Math.min(props.getClientProperty(I_QueryService.FETCH, maxRows), maxRows);
+
+        if (offset < 0 || fetch <= 0)
+            throw new ServiceManagerException(getGlobal(), SysErrorCode.USER_ILLEGALARGUMENT, ME, "Invalid offset or fetch, offset should be positive and fetch greater than 0");
+
+        if (job.getStatus() != QueryJob.Status.COMPLETED)
+            throw new ServiceManagerException(getGlobal(), SysErrorCode.USER_ILLEGALARGUMENT, ME, "Query job " + job.getId() + " is " + job.getStatus() + ", result is not available");
+
+        Map<String, Object> page = page(job.getHeader(), job.getSpill().read(offset, fetch), offset);
+        page.put("jobId", job.getId());
+        page.put("rows", job.getSpill().getRowCount());
+        return page;
+    }
+
+    @QuerySetting(dialect = {
+            @QuerySyntax(mode = I_ServiceRunMode.DialectSpace.STANDARD, httpMethod = "DELETE", method = "delete", path = "vehr/query/job", responseType = ResponseType.Json),
+            @QuerySyntax(mode = I_ServiceRunMode.DialectSpace.EHRSCAPE, httpMethod = "DELETE", method = "delete", path = "rest/v1/query/job", responseType = ResponseType.Json)
+    })
+    public Object cancelJob(I_SessionClientProperties props) throws Exception {
+        String owner = jobOwner(props);
+        String jobId = props.getClientProperty(I_QueryService.JOB_ID, (String)null);
+
+        if (jobId == null || !queryJobManager.cancel(jobId, owner))
+            throw new ServiceManagerException(getGlobal(), SysErrorCode.RESOURCE_NOT_FOUND, ME, "Query job not found or expired:" + jobId);
+
+        return queryJobManager.get(jobId, owner).describe();
+    }
+
+    /**
+     * resolve the owner of a query job: the authenticated subject of the request session. Committer parameters are
+     * ignored since they can be set by the client, the lookup does not write anything to the DB
+     * @param props
+     * @return the session subject id
+     * @throws ServiceManagerException if the session is not valid
+     */
+    private String jobOwner(I_SessionClientProperties props) throws ServiceManagerException {
+        String sessionId = props.getClientProperty(I_SessionManager.SECRET_SESSION_ID_INTERNAL, (String)null);
+        if (sessionId == null)
+            throw new ServiceManagerException(getGlobal(), SysErrorCode.USER_SECURITY_AUTHORIZATION_NOTAUTHORIZED, ME, "Query jobs require a valid session");
+        I_SessionManager sessionManager = getRegisteredService(getGlobal(), "LogonService", "1.0");
+        try {
+            return sessionManager.getSubjectId(sessionId);
+        } catch (IllegalArgumentException e) {
+            throw new ServiceManagerException(getGlobal(), SysErrorCode.USER_SECURITY_AUTHORIZATION_NOTAUTHORIZED, ME, "Query jobs require a valid session");
+        }
+    }
+
+    private QueryJob getJob(I_SessionClientProperties props) throws ServiceManagerException {
+        String owner = jobOwner(props);
+        String jobId = props.getClientProperty(I_QueryService.JOB_ID, (String)null);
+
+        if (jobId == null)
+            throw new ServiceManagerException(getGlobal(), SysErrorCode.USER_ILLEGALARGUMENT, ME, "A job id must be supplied");
+
+        QueryJob job = queryJobManager.get(jobId, owner);
+        if (job == null)
+            throw new ServiceManagerException(getGlobal(), SysErrorCode.RESOURCE_NOT_FOUND, ME, "Query job not found or expired:" + jobId);
+        return job;
+    }
+
+    private static Map<String, Object> getHeader(Map<String, Object> result) {
+        Map<String, Object> header = new LinkedHashMap<>(result);
+        header.remove(I_QueryService.RESULT_SET);
+        return header;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Object> getRows(Map<String, Object> result) {
+        Object rows = result.get(I_QueryService.RESULT_SET);
+        return rows instanceof List ? (List<Object>) rows : null;
+    }
+
+    private static Map<String, Object> page(Map<String, Object> header, List<Object> rows, int offset) {
+        Map<String, Object> page = new LinkedHashMap<>(header);
+        page.put(I_QueryService.OFFSET, offset);
+        page.put(I_QueryService.FETCH, rows.size());
+        page.put(I_QueryService.RESULT_SET, new ArrayList<>(rows));
+        return page;
+    }
+
+    /**
+     * check if a SQL statement can be used as a sub-query, that is a query statement. A WITH statement containing a
+     * data modifying query is rejected (Postgres only allows it at top level)
+     * @param statement
+     * @return
+     */
+    public static boolean isPageable(String statement){
+        Matcher matcher = PAGEABLE_PATTERN.matcher(statement);
+        if (!matcher.find())
+            return false;
+        return !matcher.group(2).equalsIgnoreCase("with") || !DML_PATTERN.matcher(statement).find();
+    }
+
+    /**
+     * limit a SQL statement to a page of its result set.<br>
+     * NB. each page is a separate execution of the statement, pages are therefore not a consistent snapshot and the
+     * statement should have an ORDER BY for the pages to be deterministic
+     * @param statement
+     * @param offset
+     * @param limit
+     * @return
+     */
+    public static String pageStatement(String statement, int offset, int limit){
+        return "select * from (" + trimStatement(statement) + ") as paged_query limit " + limit + " offset " + offset;
+    }
+
+    /**
+     * limit a SQL statement to its first rows in the order of a column, nulls last
+     * @param statement
+     * @param orderBy the column name or null
+     * @param descending
+     * @param limit
+     * @return
+     */
+    public static String limitStatement(String statement, String orderBy, boolean descending, int limit){
+        String order = orderBy == null ? "" : " order by \"" + orderBy + "\"" + (descending ? " desc" : "") + " nulls last";
+        return "select * from (" + trimStatement(statement) + ") as limited_query" + order + " limit " + limit;
+    }
+
+    private static String trimStatement(String statement){
+        String trimmed = statement.trim();
+        while (trimmed.endsWith(";"))
+            trimmed = trimmed.substring(0, trimmed.length() - 1).trim();
+        return trimmed;
     }
 
     /**
@@ -188,9 +799,8 @@ public class QueryService extends ServiceDataCluster implements QueryServiceMBea
      * @return
      */
     public static Map<String, String> extractQuery(String content){
-        Pattern patternKey = Pattern.compile("(?<=\\\")(.*?)(?=\")");
 //        Pattern patternExpression = Pattern.compile("(?<=\\:)(.*?)(?!.*\\})");
-        Matcher matcherKey = patternKey.matcher(content);
+        Matcher matcherKey = QUERY_KEY_PATTERN.matcher(content);
 //        Matcher matcherExpression = patternExpression.matcher(content);
         if (matcherKey.find()) {
             String type = matcherKey.group(1);
@@ -204,4 +814,77 @@ public class QueryService extends ServiceDataCluster implements QueryServiceMBea
             throw new IllegalArgumentException("Could not identified query type (sql or aql) in content:"+content);
 
     }
+
+    /**
+     * get the query expression and its parameter values from a JSON body
+     * {"aql":"... where e/ehr_id/value = $ehrId", "aqlParameters":{"ehrId":"..."}}
+     * @param content
+     * @param queryMap the query expression keyed by type (sql or aql)
+     * @param parameters the parameter values, strings are kept as is, numbers and booleans as Number and Boolean,
+     *                   a JSON array of values as a List
+     */
+    public static void extractParameterizedQuery(String content, Map<String, String> queryMap, Map<String, Object> parameters){
+        JsonObject jsonObject;
+        try {
+            jsonObject = new Gson().fromJson(content, JsonObject.class);
+        } catch (JsonParseException e){
+            throw new IllegalArgumentException("Parameterized query is not valid JSON:" + e.getMessage());
+        }
+
+        if (jsonObject == null)
+            throw new IllegalArgumentException("Could not identified query type (sql or aql) in content:"+content);
+
+        for (Map.Entry<String, JsonElement> entry: jsonObject.entrySet()) {
+            String key = entry.getKey();
+            if (key.equals(I_QueryService.QUERY_PARAMETERS)) {
+                if (!entry.getValue().isJsonObject())
+                    throw new IllegalArgumentException(I_QueryService.QUERY_PARAMETERS + " should be a JSON object");
+                for (Map.Entry<String, JsonElement> parameter: entry.getValue().getAsJsonObject().entrySet()) {
+                    JsonElement value = parameter.getValue();
+                    if (value.isJsonArray()) {
+                        List<Object> values = new ArrayList<>();
+                        for (JsonElement item: value.getAsJsonArray())
+                            values.add(parameterValue(parameter.getKey(), item));
+                        parameters.put(parameter.getKey(), values);
+                    }
+                    else
+                        parameters.put(parameter.getKey(), parameterValue(parameter.getKey(), value));
+                }
+            }
+            else if (entry.getValue().isJsonPrimitive())
+                queryMap.put(key.toLowerCase(), entry.getValue().getAsString());
+        }
+    }
+
+    private static Object parameterValue(String name, JsonElement value){
+        if (!value.isJsonPrimitive())
+            throw new IllegalArgumentException("Query parameter value should be a string, a number or a boolean:" + name);
+        if (value.getAsJsonPrimitive().isNumber())
+            return value.getAsNumber();
+        else if (value.getAsJsonPrimitive().isBoolean())
+            return value.getAsBoolean();
+        else
+            return value.getAsString();
+    }
+
+    @Override
+    public String queryCursorStatus() {
+        return queryCursorCache.status();
+    }
+
+    @Override
+    public String closeQueryCursors() {
+        queryCursorCache.clear();
+        return "Query cursors closed";
+    }
+
+    @Override
+    public String queryJobStatus() {
+        return queryJobManager.status();
+    }
+
+    @Override
+    public String queryFanOutStatus() {
+        return fanOutExecutor.status();
+    }
 }
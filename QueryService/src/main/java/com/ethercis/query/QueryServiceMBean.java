@@ -20,4 +20,8 @@ package com.ethercis.query;/*
  * Created by Christian Chevalley on 9/18/2015.
  */
 public interface QueryServiceMBean {
+    String queryCursorStatus();
+    String closeQueryCursors();
+    String queryJobStatus();
+    String queryFanOutStatus();
 }
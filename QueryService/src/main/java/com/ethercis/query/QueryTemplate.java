@@ -0,0 +1,231 @@
+/*
+ * Copyright (c) 2015 Christian Chevalley
+ * This file is part of Project Ethercis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+//Copyright
+package com.ethercis.query;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * ETHERCIS Project VirtualEhr
+ * A query expression with named parameters (<code>$ehrId</code>, <code>$templateId</code>...).
+ * <p>
+ * A parameter name starts with a letter followed by letters, digits or '_', hence <code>$1</code> or <code>$_x</code>
+ * are not parameter references, neither is a '$' within an identifier. Dollar quoted strings (<code>$$...$$</code>,
+ * <code>$tag$...$tag$</code>) are skipped like quoted strings.
+ * <p>
+ * The expression is split into literal segments and parameter references, parameters found within quoted
+ * strings are left untouched.
+ * <ul>
+ * <li>SQL: {@link #prepare(Map)} replaces each reference with a JDBC placeholder, the values are bound to the
+ * prepared statement. A '?' operator in a parameterized SQL query must therefore be written '??'.</li>
+ * <li>AQL: the AQL engine takes a query text, {@link #bind(Map)} substitutes each reference with the value rendered
+ * as a literal: numbers and booleans as is, anything else as a single quoted string. A string containing a quote,
+ * a backslash or a control character is rejected since it could escape its literal.</li>
+ * </ul>
+ * A list value is expanded to its comma separated values, f.e. <code>in ($ids)</code> in SQL or
+ * <code>matches {$ids}</code> in AQL.
+ */
+public class QueryTemplate {
+
+    /**
+     * a SQL statement with its positional parameter values
+     */
+    public static class BoundStatement {
+        private final String statement;
+        private final List<Object> values;
+
+        public BoundStatement(String statement, List<Object> values) {
+            this.statement = statement;
+            this.values = values;
+        }
+
+        public String getStatement() {
+            return statement;
+        }
+
+        public List<Object> getValues() {
+            return values;
+        }
+    }
+
+    private final String expression;
+    //segments.size() == parameters.size() + 1
+    private final List<String> segments;
+    private final List<String> parameters;
+
+    private QueryTemplate(String expression, List<String> segments, List<String> parameters) {
+        this.expression = expression;
+        this.segments = segments;
+        this.parameters = parameters;
+    }
+
+    public static QueryTemplate parse(String expression) {
+        List<String> segments = new ArrayList<>();
+        List<String> parameters = new ArrayList<>();
+        StringBuilder segment = new StringBuilder();
+        char quote = 0;
+        int length = expression.length();
+        int i = 0;
+
+        while (i < length) {
+            char c = expression.charAt(i);
+            if (quote != 0) {
+                if (c == quote)
+                    quote = 0;
+                segment.append(c);
+                i++;
+            }
+            else if (c == '\'' || c == '"') {
+                quote = c;
+                segment.append(c);
+                i++;
+            }
+            else if (c == '$' && (i == 0 || !isNamePart(expression.charAt(i - 1)))) {
+                int end = i + 1;
+                while (end < length && isNamePart(expression.charAt(end)))
+                    end++;
+                if (end < length && expression.charAt(end) == '$') {
+                    //dollar quoted string ($$...$$ or $tag$...$tag$), kept as is up to its closing tag
+                    String tag = expression.substring(i, end + 1);
+                    int close = expression.indexOf(tag, end + 1);
+                    end = close < 0 ? length : close + tag.length();
+                    segment.append(expression, i, end);
+                }
+                else if (end > i + 1 && Character.isLetter(expression.charAt(i + 1))) {
+                    segments.add(segment.toString());
+                    segment.setLength(0);
+                    parameters.add(expression.substring(i + 1, end));
+                }
+                else
+                    segment.append(expression, i, end);
+                i = end;
+            }
+            else {
+                segment.append(c);
+                i++;
+            }
+        }
+        segments.add(segment.toString());
+
+        return new QueryTemplate(expression, Collections.unmodifiableList(segments), Collections.unmodifiableList(parameters));
+    }
+
+    private static boolean isNamePart(char c) {
+        return Character.isLetterOrDigit(c) || c == '_';
+    }
+
+    public String getExpression() {
+        return expression;
+    }
+
+    /**
+     * @return the names of the referenced parameters
+     */
+    public Set<String> getParameterNames() {
+        return new LinkedHashSet<>(parameters);
+    }
+
+    public boolean hasParameters() {
+        return !parameters.isEmpty();
+    }
+
+    /**
+     * substitute the parameter references with literals (AQL)
+     * @param values parameter values by name
+     * @return the expression to execute
+     * @throws IllegalArgumentException if a parameter is missing or its value cannot be rendered
+     */
+    public String bind(Map<String, Object> values) {
+        if (parameters.isEmpty())
+            return expression;
+
+        StringBuilder bound = new StringBuilder(expression.length() + 16 * parameters.size());
+        for (int i = 0; i < parameters.size(); i++) {
+            String name = parameters.get(i);
+            bound.append(segments.get(i));
+            Object value = value(values, name);
+            if (value instanceof List) {
+                for (int j = 0; j < ((List<?>) value).size(); j++)
+                    bound.append(j > 0 ? "," : "").append(literal(name, ((List<?>) value).get(j)));
+            }
+            else
+                bound.append(literal(name, value));
+        }
+        bound.append(segments.get(parameters.size()));
+        return bound.toString();
+    }
+
+    /**
+     * replace the parameter references with JDBC placeholders (SQL)
+     * @param values parameter values by name
+     * @return the statement and its values in placeholder order
+     * @throws IllegalArgumentException if a parameter is missing
+     */
+    public BoundStatement prepare(Map<String, Object> values) {
+        if (parameters.isEmpty())
+            return new BoundStatement(expression, Collections.emptyList());
+
+        StringBuilder statement = new StringBuilder(expression.length() + parameters.size());
+        List<Object> bound = new ArrayList<>(parameters.size());
+        for (int i = 0; i < parameters.size(); i++) {
+            String name = parameters.get(i);
+            statement.append(segments.get(i));
+            Object value = value(values, name);
+            if (value instanceof List) {
+                for (int j = 0; j < ((List<?>) value).size(); j++) {
+                    statement.append(j > 0 ? ", ?" : "?");
+                    bound.add(((List<?>) value).get(j));
+                }
+            }
+            else {
+                statement.append('?');
+                bound.add(value);
+            }
+        }
+        statement.append(segments.get(parameters.size()));
+        return new BoundStatement(statement.toString(), Collections.unmodifiableList(bound));
+    }
+
+    private static Object value(Map<String, Object> values, String name) {
+        if (values == null || !values.containsKey(name))
+            throw new IllegalArgumentException("No value supplied for query parameter:" + name);
+        Object value = values.get(name);
+        if (value == null || (value instanceof List && ((List<?>) value).contains(null)))
+            throw new IllegalArgumentException("Null value for query parameter:" + name);
+        if (value instanceof List && ((List<?>) value).isEmpty())
+            throw new IllegalArgumentException("Empty list of values for query parameter:" + name);
+        return value;
+    }
+
+    private static String literal(String name, Object value) {
+        if (value instanceof Number || value instanceof Boolean)
+            return value.toString();
+
+        String string = value.toString();
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            if (c == '\'' || c == '\\' || Character.isISOControl(c))
+                throw new IllegalArgumentException("Quote, backslash or control character is not allowed in value of query parameter:" + name);
+        }
+        return "'" + string + "'";
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2015 Christian Chevalley
+ * This file is part of Project Ethercis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ethercis.query;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+
+public class FanOutExecutorTest extends TestCase {
+
+    private static Map<String, Object> result(String ehrId, int... values) {
+        List<Object> rows = new ArrayList<>();
+        for (int value: values) {
+            Map<String, Object> row = new HashMap<>();
+            row.put("ehrId", ehrId);
+            row.put("value", value);
+            rows.add(row);
+        }
+        Map<String, Object> result = new HashMap<>();
+        result.put("executedAQL", ehrId);
+        result.put("resultSet", rows);
+        return result;
+    }
+
+    public void testOrderedMergeWithLimit() throws Exception {
+        FanOutExecutor executor = new FanOutExecutor(3, 10, 2, 1);
+        Map<String, Map<String, Object>> results = new HashMap<>();
+        results.put("a", result("a", 5, 1));
+        results.put("b", result("b", 4, 9));
+        results.put("c", result("c"));
+        results.put("d", result("d", 2, 7, 3));
+        results.put("e", result("e", 8));
+
+        FanOutExecutor.Result merged = executor.execute(Arrays.asList("a", "b", "c", "d", "e"), chunk -> results.get(chunk.get(0)), "resultSet", "value", true, 4);
+
+        assertEquals(5, merged.getQueries());
+        assertEquals(4, merged.getRows().size());
+        assertEquals(9, ((Map) merged.getRows().get(0)).get("value"));
+        assertEquals(5, ((Map) merged.getRows().get(3)).get("value"));
+        assertFalse(merged.getHeader().containsKey("resultSet"));
+        executor.shutdown();
+    }
+
+    public void testQueryFailure() throws Exception {
+        FanOutExecutor executor = new FanOutExecutor(2, 10, 2, 1);
+        try {
+            executor.execute(Arrays.asList("a", "b"), chunk -> {
+                if (chunk.get(0).equals("b"))
+                    throw new IllegalStateException("failed");
+                return result(chunk.get(0), 1);
+            }, "resultSet", null, false, 10);
+            fail("failure should be propagated");
+        } catch (IllegalStateException e) {
+            assertEquals("failed", e.getMessage());
+        }
+        executor.shutdown();
+    }
+
+    public void testOneQueryPerChunk() throws Exception {
+        FanOutExecutor executor = new FanOutExecutor(2, 10, 2, 2);
+        List<Integer> sizes = Collections.synchronizedList(new ArrayList<>());
+
+        FanOutExecutor.Result merged = executor.execute(Arrays.asList("a", "b", "c", "d", "e"), chunk -> {
+            sizes.add(chunk.size());
+            return result(String.join(",", chunk), chunk.size());
+        }, "resultSet", null, false, 100);
+
+        assertEquals(3, merged.getQueries());
+        assertEquals(3, merged.getRows().size());
+        Collections.sort(sizes);
+        assertEquals(Arrays.asList(1, 2, 2), sizes);
+        executor.shutdown();
+    }
+
+    public void testRejectedWhenQueueIsFull() throws Exception {
+        final FanOutExecutor executor = new FanOutExecutor(1, 1, 1, 1);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        FanOutExecutor.Query<String> blocking = chunk -> {
+            started.countDown();
+            release.await();
+            return result(chunk.get(0), 1);
+        };
+
+        Thread running = new Thread(() -> {
+            try {
+                executor.execute(Collections.singletonList("a"), blocking, "resultSet", null, false, 10);
+            } catch (Exception e) {
+                //released
+            }
+        });
+        running.start();
+        started.await();
+        Thread queued = new Thread(() -> {
+            try {
+                executor.execute(Collections.singletonList("b"), blocking, "resultSet", null, false, 10);
+            } catch (Exception e) {
+                //released
+            }
+        });
+        queued.start();
+        while (!executor.status().contains("queued=1"))
+            Thread.sleep(5);
+
+        try {
+            executor.execute(Collections.singletonList("c"), blocking, "resultSet", null, false, 10);
+            fail("request should be rejected when the queue is full");
+        } catch (RejectedExecutionException e) {
+            //expected
+        }
+        release.countDown();
+        running.join();
+        queued.join();
+        executor.shutdown();
+    }
+
+    public void testMixedTypesOrder() throws Exception {
+        List<Object> values = Arrays.asList("b", 2, true, null, 1.5d, "a", 10L, false);
+        List<Object> rows = new ArrayList<>();
+        for (Object value: values) {
+            Map<String, Object> row = new HashMap<>();
+            row.put("value", value);
+            rows.add(row);
+        }
+
+        Comparator<Object> comparator = FanOutExecutor.rowComparator("value", false);
+        for (Object row1: rows) {
+            for (Object row2: rows)
+                assertEquals(Integer.signum(comparator.compare(row1, row2)), -Integer.signum(comparator.compare(row2, row1)));
+        }
+
+        rows.sort(comparator);
+        List<Object> sorted = new ArrayList<>();
+        for (Object row: rows)
+            sorted.add(((Map) row).get("value"));
+        assertEquals(Arrays.asList(1.5d, 2, 10L, false, true, "a", "b", null), sorted);
+    }
+}
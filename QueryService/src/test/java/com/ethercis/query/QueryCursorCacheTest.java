@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2015 Christian Chevalley
+ * This file is part of Project Ethercis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ethercis.query;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class QueryCursorCacheTest extends TestCase {
+
+    private static List<Object> rows(int count) {
+        List<Object> rows = new ArrayList<>();
+        for (int i = 0; i < count; i++)
+            rows.add(i);
+        return rows;
+    }
+
+    public void testRowsAreBoundedAcrossSessions() throws Exception {
+        QueryCursorCache cache = new QueryCursorCache(60000L, 4, 10);
+
+        QueryCursorCache.Cursor first = cache.openRows("a", rows(6), Collections.emptyMap(), 2);
+        Thread.sleep(5);
+        QueryCursorCache.Cursor second = cache.openRows("b", rows(4), Collections.emptyMap(), 2);
+        Thread.sleep(5);
+        assertNotNull(cache.get(first.getToken(), "a"));
+        Thread.sleep(5);
+
+        //the least recently used cursor of any session is closed to make room
+        QueryCursorCache.Cursor third = cache.openRows("b", rows(4), Collections.emptyMap(), 2);
+        assertNotNull(third);
+        assertNull(cache.get(second.getToken(), "b"));
+        assertNotNull(cache.get(first.getToken(), "a"));
+
+        //a result set larger than the budget is not held
+        assertNull(cache.openRows("c", rows(11), Collections.emptyMap(), 2));
+        assertNotNull(cache.get(third.getToken(), "b"));
+
+        //SQL cursors hold no rows
+        assertNotNull(cache.openSql("c", "select 1", Collections.emptyList(), Collections.emptyMap(), 1));
+        assertNotNull(cache.get(first.getToken(), "a"));
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2015 Christian Chevalley
+ * This file is part of Project Ethercis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ethercis.query;
+
+import junit.framework.TestCase;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+public class QueryJobManagerTest extends TestCase {
+
+    public void testJobIsOnlyVisibleToItsOwner() throws Exception {
+        Path directory = Files.createTempDirectory("query-jobs");
+        QueryJobManager manager = new QueryJobManager(directory, "node-1", 1, 2, 10, 60000L);
+
+        Map<String, Object> row = new HashMap<>();
+        row.put("index", 1);
+        QueryJob job = manager.submit("subject-1", "select 1", submitted -> submitted.append(Collections.singletonList(row)));
+
+        //a session of another subject cannot read or cancel the job, even knowing its id
+        assertNull(manager.get(job.getId(), "subject-2"));
+        assertFalse(manager.cancel(job.getId(), "subject-2"));
+
+        //the owner sees it from any of its sessions
+        assertSame(job, manager.get(job.getId(), "subject-1"));
+        for (int i = 0; i < 100 && !job.isDone(); i++)
+            Thread.sleep(20);
+        assertEquals(QueryJob.Status.COMPLETED, job.getStatus());
+        assertEquals(1, job.getSpill().getRowCount());
+
+        manager.shutdown();
+    }
+
+    public void testOnlyOwnStaleSpillsAreDiscarded() throws Exception {
+        Path directory = Files.createTempDirectory("query-jobs");
+        Path own = Files.createFile(directory.resolve("query-node_1-1.spill"));
+        Path other = Files.createFile(directory.resolve("query-node_2-1.spill"));
+
+        QueryJobManager manager = new QueryJobManager(directory, "node/1", 1, 2, 10, 60000L);
+        assertFalse(Files.exists(own));
+        assertTrue(Files.exists(other));
+        assertEquals("rwx------", PosixFilePermissions.toString(Files.getPosixFilePermissions(directory)));
+
+        manager.shutdown();
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2015 Christian Chevalley
+ * This file is part of Project Ethercis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ethercis.query;
+
+import junit.framework.TestCase;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class QueryResultSpillTest extends TestCase {
+
+    public void testReadAcrossBlocks() throws Exception {
+        Path path = Files.createTempFile("query-", ".spill");
+        QueryResultSpill spill = new QueryResultSpill(path, 4);
+
+        List<Object> rows = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            Map<String, Object> row = new HashMap<>();
+            row.put("index", i);
+            rows.add(row);
+        }
+        spill.append(rows.subList(0, 3));
+        spill.append(rows.subList(3, 10));
+        spill.close();
+
+        assertEquals(10, spill.getRowCount());
+
+        List<Object> page = spill.read(3, 6);
+        assertEquals(6, page.size());
+        assertEquals(3, ((Map) page.get(0)).get("index"));
+        assertEquals(8, ((Map) page.get(5)).get("index"));
+
+        assertEquals(1, spill.read(9, 5).size());
+        assertTrue(spill.read(10, 5).isEmpty());
+
+        spill.delete();
+        assertFalse(Files.exists(path));
+    }
+
+    public void testValueTypes() throws Exception {
+        Path path = Files.createTempFile("query-", ".spill");
+        QueryResultSpill spill = new QueryResultSpill(path, 4);
+
+        Map<String, Object> row = new HashMap<>();
+        row.put("string", "value");
+        row.put("long", 1L);
+        row.put("double", 1.5);
+        row.put("boolean", true);
+        row.put("null", null);
+        row.put("list", Arrays.asList(1, "two"));
+        row.put("other", new StringBuilder("text"));
+        spill.append(Arrays.asList(row));
+        spill.close();
+
+        Map read = (Map) spill.read(0, 1).get(0);
+        assertEquals("value", read.get("string"));
+        assertEquals(1L, read.get("long"));
+        assertEquals(1.5, read.get("double"));
+        assertEquals(true, read.get("boolean"));
+        assertTrue(read.containsKey("null"));
+        assertEquals(Arrays.asList(1, "two"), read.get("list"));
+        assertEquals("text", read.get("other"));
+
+        spill.delete();
+    }
+}
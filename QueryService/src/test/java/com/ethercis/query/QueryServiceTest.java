@@ -19,6 +19,8 @@ package com.ethercis.query;
 
 import junit.framework.TestCase;
 
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Map;
 
 /**
@@ -70,4 +72,83 @@ public class QueryServiceTest extends TestCase {
 
         assertNotNull(decoded.get("aql"));
     }
-}
\ No newline at end of file
+
+    public void testParameterizedQuery() throws Exception {
+        String json = "{\"aql\":\"select a/uid/value from EHR e [ehr_id/value = $ehrId] contains COMPOSITION a where a/name/value='$notAParameter' and a/uid/value = $uid\"," +
+                "\"aqlParameters\":{\"ehrId\":\"bb872277-40c4-44fb-8691-530be31e1ee9\", \"uid\":\"O'Brien\"}}";
+
+        Map<String, String> queryMap = new HashMap<>();
+        Map<String, Object> parameters = new HashMap<>();
+        QueryService.extractParameterizedQuery(json, queryMap, parameters);
+
+        QueryTemplate template = QueryTemplate.parse(queryMap.get("aql"));
+        assertEquals(2, template.getParameterNames().size());
+
+        parameters.put("uid", "8c2d");
+        assertEquals("select a/uid/value from EHR e [ehr_id/value = 'bb872277-40c4-44fb-8691-530be31e1ee9'] contains COMPOSITION a where a/name/value='$notAParameter' and a/uid/value = '8c2d'",
+                template.bind(parameters));
+
+        for (String value: new String[]{"x' or '1'='1", "x\\", "x\n"}) {
+            parameters.put("uid", value);
+            try {
+                template.bind(parameters);
+                fail("quote, backslash or control character should be rejected in AQL parameter");
+            } catch (IllegalArgumentException e) {
+                //expected
+            }
+        }
+
+        //SQL values are bound to placeholders and passed as is
+        QueryTemplate.BoundStatement statement = QueryTemplate.parse("select * from ehr.entry where ehr_id = $ehrId and entry_id = $uid").prepare(parameters);
+        assertEquals("select * from ehr.entry where ehr_id = ? and entry_id = ?", statement.getStatement());
+        assertEquals("x\n", statement.getValues().get(1));
+
+        parameters.remove("ehrId");
+        try {
+            template.bind(parameters);
+            fail("missing parameter should be rejected");
+        } catch (IllegalArgumentException e){
+            //expected
+        }
+    }
+
+    public void testParameterNames() throws Exception {
+        //dollar quoting, positional and '_' prefixed references are not named parameters
+        assertFalse(QueryTemplate.parse("select $$ $a $$ as body, $q$ $b $q$, $1, $_x, a$b from ehr.entry").hasParameters());
+        QueryTemplate template = QueryTemplate.parse("select * from ehr.entry where template_id = $template_Id2");
+        assertEquals("template_Id2", template.getParameterNames().iterator().next());
+    }
+
+    public void testPageStatement() throws Exception {
+        assertEquals("select * from (select * from ehr.entry) as paged_query limit 11 offset 20",
+                QueryService.pageStatement(" select * from ehr.entry; ", 20, 11));
+    }
+
+    public void testListParameter() throws Exception {
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put("ids", Arrays.asList("a", "b", 3));
+
+        QueryTemplate.BoundStatement statement = QueryTemplate.parse("select * from ehr.entry where id in ($ids)").prepare(parameters);
+        assertEquals("select * from ehr.entry where id in (?, ?, ?)", statement.getStatement());
+        assertEquals(Arrays.asList("a", "b", 3), statement.getValues());
+
+        assertEquals("select e from EHR e where e/ehr_id/value matches {'a','b',3}",
+                QueryTemplate.parse("select e from EHR e where e/ehr_id/value matches {$ids}").bind(parameters));
+    }
+
+    public void testLimitStatement() throws Exception {
+        assertEquals("select * from (select * from ehr.entry) as limited_query order by \"value\" desc nulls last limit 10",
+                QueryService.limitStatement(" select * from ehr.entry; ", "value", true, 10));
+        assertEquals("select * from (select * from ehr.entry) as limited_query limit 10",
+                QueryService.limitStatement("select * from ehr.entry", null, false, 10));
+    }
+
+    public void testPageable() throws Exception {
+        assertTrue(QueryService.isPageable(" SELECT * from ehr.entry"));
+        assertTrue(QueryService.isPageable("(select 1) union (select 2)"));
+        assertTrue(QueryService.isPageable("with e as (select * from ehr.entry) select * from e"));
+        assertFalse(QueryService.isPageable("with d as (delete from ehr.entry returning *) select * from d"));
+        assertFalse(QueryService.isPageable("update ehr.entry set template_id = 'x'"));
+        assertFalse(QueryService.isPageable("selection"));
+    }
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright (c) 2015 Christian Chevalley
+ * This file is part of Project Ethercis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ethercis.persistence;
+
+import com.ethercis.dao.access.interfaces.I_DomainAccess;
+import com.ethercis.dao.access.interfaces.I_PartyIdentifiedAccess;
+import com.ethercis.dao.access.interfaces.I_SystemAccess;
+import com.ethercis.logonservice.session.ClientEvent;
+import com.ethercis.logonservice.session.I_ClientListener;
+import com.ethercis.logonservice.session.I_SessionManager;
+import com.ethercis.servicemanager.cluster.ClusterInfo;
+import com.ethercis.servicemanager.cluster.RunTimeSingleton;
+import com.ethercis.servicemanager.common.identification.IdentificationDef;
+import com.ethercis.servicemanager.exceptions.ServiceManagerException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ETHERCIS Project VirtualEhr
+ * <p>
+ * Cache of the audit identities used by the write operations:
+ * <ul>
+ * <li>committer (name, id, scheme) -&gt; party UUID</li>
+ * <li>system address -&gt; system UUID</li>
+ * </ul>
+ * Both maps are LRU bounded by <code>server.audit.cache.size</code> and entries expire after
+ * <code>server.audit.cache.ttl</code> milliseconds. When bound to the LogonService, the committer
+ * of a new session is resolved when the session connects.
+ * <p>
+ * Entries referencing a deleted party or system are invalidated with {@link #invalidateParty(UUID)}
+ * or {@link #invalidateSystem(UUID)} by PartyIdentifiedService and SystemService.
+ */
+public class AuditCache {
+
+    public static final String CACHE_SIZE_PROPERTY = "server.audit.cache.size";
+    public static final String CACHE_TTL_PROPERTY = "server.audit.cache.ttl";
+
+    private static Logger log = LogManager.getLogger(AuditCache.class);
+
+    private static final class Entry {
+        final UUID uuid;
+        final long expires;
+
+        Entry(UUID uuid, long expires) {
+            this.uuid = uuid;
+            this.expires = expires;
+        }
+    }
+
+    private final IdentificationDef identificationDef;
+    private final long ttl;
+    private final Map<String, Entry> parties;
+    private final Map<String, Entry> systems;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    private volatile I_SessionManager sessionManager;
+
+    public AuditCache(RunTimeSingleton global) {
+        this.identificationDef = new IdentificationDef(global);
+        this.ttl = global.getProperty().get(CACHE_TTL_PROPERTY, 600000L);
+        int size = global.getProperty().get(CACHE_SIZE_PROPERTY, 10000);
+        this.parties = newLruMap(size);
+        this.systems = newLruMap(size);
+    }
+
+    private static Map<String, Entry> newLruMap(final int size) {
+        return new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > size;
+            }
+        };
+    }
+
+    private UUID lookup(Map<String, Entry> map, String key) {
+        Entry entry;
+        synchronized (map) {
+            entry = map.get(key);
+            if (entry != null && entry.expires < System.currentTimeMillis()) {
+                map.remove(key);
+                entry = null;
+            }
+        }
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry.uuid;
+    }
+
+    private void store(Map<String, Entry> map, String key, UUID uuid) {
+        if (uuid == null)
+            return;
+        synchronized (map) {
+            map.put(key, new Entry(uuid, System.currentTimeMillis() + ttl));
+        }
+    }
+
+    private void invalidate(Map<String, Entry> map, UUID uuid) {
+        synchronized (map) {
+            Iterator<Entry> iterator = map.values().iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().uuid.equals(uuid))
+                    iterator.remove();
+            }
+        }
+    }
+
+    private String partyKey(String name, String id) {
+        return name + "|" + id + "|" + identificationDef.getIdenficationScheme();
+    }
+
+    /**
+     * get the party identifying a committer, the party is created if it does not exist
+     * @param domainAccess
+     * @param name committer name
+     * @param id committer id
+     * @return the party UUID
+     */
+    public UUID getOrCreateParty(I_DomainAccess domainAccess, String name, String id) {
+        String key = partyKey(name, id);
+        UUID partyId = lookup(parties, key);
+        if (partyId == null) {
+            partyId = I_PartyIdentifiedAccess.getOrCreatePartyByExternalRef(domainAccess, name, id,
+                    identificationDef.getIdenficationScheme(),
+                    identificationDef.getIdendificationNamespace(),
+                    identificationDef.getIdenficationType());
+            store(parties, key, partyId);
+        }
+        return partyId;
+    }
+
+    /**
+     * get the id of a system, the system is created if it does not exist
+     * @param domainAccess
+     * @param description used on creation
+     * @param systemAddress
+     * @return the system UUID
+     */
+    public UUID getOrCreateSystem(I_DomainAccess domainAccess, String description, String systemAddress) {
+        UUID systemId = lookup(systems, systemAddress);
+        if (systemId != null)
+            return systemId;
+
+        try {
+            systemId = I_SystemAccess.retrieveInstanceId(domainAccess, systemAddress);
+        } catch (Exception e){
+            ;
+        }
+
+        if (systemId == null){
+            try {
+                I_SystemAccess systemAccess = I_SystemAccess.getInstance(domainAccess, description, systemAddress);
+                systemId = systemAccess.commit();
+            }
+            catch (Exception e){
+                throw new IllegalArgumentException("Could not create client with settings:"+systemAddress);
+            }
+        }
+
+        store(systems, systemAddress, systemId);
+        return systemId;
+    }
+
+    /**
+     * @return the cached party of a committer or null, the DB is not accessed
+     */
+    UUID cachedParty(String name, String id) {
+        return lookup(parties, partyKey(name, id));
+    }
+
+    void cacheParty(String name, String id, UUID partyId) {
+        store(parties, partyKey(name, id), partyId);
+    }
+
+    public void invalidateParty(UUID partyId) {
+        invalidate(parties, partyId);
+    }
+
+    public void invalidateSystem(UUID systemId) {
+        invalidate(systems, systemId);
+    }
+
+    public void clear() {
+        synchronized (parties) {
+            parties.clear();
+        }
+        synchronized (systems) {
+            systems.clear();
+        }
+    }
+
+    /**
+     * @return the bound session manager or null
+     */
+    public I_SessionManager getSessionManager() {
+        return sessionManager;
+    }
+
+    /**
+     * bind to the LogonService to resolve the committer of new sessions at connect time.
+     * Does nothing if already bound.
+     * @param global
+     * @param domainAccess
+     */
+    public synchronized void bind(RunTimeSingleton global, final I_DomainAccess domainAccess) {
+        if (sessionManager != null)
+            return;
+
+        final I_SessionManager logonService;
+        try {
+            logonService = ClusterInfo.getRegisteredService(global, "LogonService", "1.0");
+        } catch (Exception e) {
+            log.debug("LogonService is not available, audit identities are resolved on first use");
+            return;
+        }
+        if (logonService == null)
+            return;
+
+        logonService.addClientListener(new I_ClientListener() {
+            @Override
+            public void sessionAdded(ClientEvent e) throws ServiceManagerException {
+                String secretSessionId = e.getSessionInfo().getSecretSessionId();
+                try {
+                    getOrCreateParty(domainAccess, logonService.getSubjectName(secretSessionId), logonService.getSubjectId(secretSessionId));
+                } catch (Exception ex) {
+                    log.debug("Could not resolve committer for session:" + ex);
+                }
+            }
+
+            @Override
+            public void sessionUpdated(ClientEvent e) throws ServiceManagerException {
+            }
+
+            @Override
+            public void subjectAdded(ClientEvent e) throws ServiceManagerException {
+            }
+
+            @Override
+            public void sessionPreRemoved(ClientEvent e) throws ServiceManagerException {
+            }
+
+            @Override
+            public void sessionRemoved(ClientEvent e) throws ServiceManagerException {
+            }
+
+            @Override
+            public void subjectRemoved(ClientEvent e) throws ServiceManagerException {
+            }
+        });
+        sessionManager = logonService;
+    }
+
+    public String status() {
+        int partyCount;
+        int systemCount;
+        synchronized (parties) {
+            partyCount = parties.size();
+        }
+        synchronized (systems) {
+            systemCount = systems.size();
+        }
+        return "Audit cache: parties=" + partyCount + " systems=" + systemCount + " hits=" + hits.get() + " misses=" + misses.get() + " ttl=" + ttl + " [ms]\n";
+    }
+}
@@ -38,6 +38,7 @@ public class AuditSetter {
     String DESCRIPTION = "description";
     private IdentificationDef identificationDef;
     private RunTimeSingleton global;
+    private AuditCache auditCache;
 
     String committerId;
     String committerName;
@@ -52,10 +53,23 @@ public class AuditSetter {
         this.identificationDef = new IdentificationDef(global);
     }
 
+    public AuditSetter(RunTimeSingleton global, AuditCache auditCache) {
+        this(global);
+        this.auditCache = auditCache;
+    }
+
     public void handleProperties(I_DomainAccess domainAccess, I_SessionClientProperties props) throws ServiceManagerException {
         sessionId = props.getClientProperty(I_SessionManager.SECRET_SESSION_ID_INTERNAL, (String)null);
-        committerId = props.getClientProperty(COMMITTER_ID, getSessionSubjectId(sessionId));
-        committerName = props.getClientProperty(COMMITTER_NAME, getSessionSubjectName(sessionId));
+        committerId = props.getClientProperty(COMMITTER_ID, (String)null);
+        committerName = props.getClientProperty(COMMITTER_NAME, (String)null);
+        //resolve from the session only what has not been passed explicitly
+        if (committerId == null || committerName == null) {
+            I_SessionManager sessionManager = getSessionManager();
+            if (committerId == null)
+                committerId = sessionManager.getSubjectId(sessionId);
+            if (committerName == null)
+                committerName = sessionManager.getSubjectName(sessionId);
+        }
         description = props.getClientProperty(DESCRIPTION, (String)null);
         committerUuid = getCommitter(domainAccess, committerName, committerId);
         systemUuid = getOrCreateSystemId(domainAccess, committerName+"-session", committerName+"@"+props.getClientProperty(I_SessionManager.CLIENT_IP, "LOCAL"));
@@ -63,6 +77,8 @@ public class AuditSetter {
 
     //TODO: refactor into IdentificationService
     public UUID getCommitter(I_DomainAccess domainAccess, String name, String id){
+        if (auditCache != null)
+            return auditCache.getOrCreateParty(domainAccess, name, id);
         UUID committerId = I_PartyIdentifiedAccess.getOrCreatePartyByExternalRef(domainAccess, name, id,
                 identificationDef.getIdenficationScheme(),
                 identificationDef.getIdendificationNamespace(),
@@ -70,20 +86,25 @@ public class AuditSetter {
         return committerId;
     }
 
-    public String getSessionSubjectName(String sessionId) throws ServiceManagerException {
-        I_SessionManager sessionManager = ClusterInfo.getRegisteredService(global, "LogonService", "1.0");
+    private I_SessionManager getSessionManager() throws ServiceManagerException {
+        if (auditCache != null && auditCache.getSessionManager() != null)
+            return auditCache.getSessionManager();
         //retrieve the session manager
-        return sessionManager.getSubjectName(sessionId);
+        return ClusterInfo.getRegisteredService(global, "LogonService", "1.0");
+    }
+
+    public String getSessionSubjectName(String sessionId) throws ServiceManagerException {
+        return getSessionManager().getSubjectName(sessionId);
     }
 
     public String getSessionSubjectId(String sessionId) throws ServiceManagerException {
-        I_SessionManager sessionManager = ClusterInfo.getRegisteredService(global, "LogonService", "1.0");
-        //retrieve the session manager
-        return sessionManager.getSubjectId(sessionId);
+        return getSessionManager().getSubjectId(sessionId);
     }
 
     //this is to avoid circular references
     public UUID getOrCreateSystemId(I_DomainAccess domainAccess, String description, String systemAddress){
+        if (auditCache != null)
+            return auditCache.getOrCreateSystem(domainAccess, description, systemAddress);
         UUID systemId = null;
         try {
             systemId = I_SystemAccess.retrieveInstanceId(domainAccess, systemAddress);
@@ -25,4 +25,6 @@ import com.ethercis.dao.access.interfaces.I_DomainAccess;
  */
 public interface I_ResourceService {
     I_DomainAccess getDomainAccess();
+
+    AuditCache getAuditCache();
 }
@@ -58,6 +58,7 @@ public class ResourceService extends ClusterInfo implements ResourceServiceMBean
     private Logger log = LogManager.getLogger(ResourceService.class);
 
     private I_DomainAccess domainAccess;
+    private AuditCache auditCache;
 
     private enum ConnectionMode{JDBC_DRIVER, DBCP2_POOL, PG_CONNECTION_POOL}
 
@@ -151,6 +152,8 @@ public class ResourceService extends ClusterInfo implements ResourceServiceMBean
 
         }
 
+        auditCache = new AuditCache(global);
+
         putObject(I_Info.JMX_PREFIX+ME, this);
 
         log.info("ResourceService started...");
@@ -161,6 +164,11 @@ public class ResourceService extends ClusterInfo implements ResourceServiceMBean
         return domainAccess;
     }
 
+    @Override
+    public AuditCache getAuditCache(){
+        return auditCache;
+    }
+
     @Override
     public String settings() throws SQLException {
         StringBuffer stringBuffer = new StringBuffer();
@@ -207,4 +215,15 @@ public class ResourceService extends ClusterInfo implements ResourceServiceMBean
         return "Not implemented yet, restart ethercis to reconnect do DB server";
     }
 
+    @Override
+    public String auditCacheStatus(){
+        return auditCache.status();
+    }
+
+    @Override
+    public String clearAuditCache(){
+        auditCache.clear();
+        return "Audit cache cleared";
+    }
+
 }
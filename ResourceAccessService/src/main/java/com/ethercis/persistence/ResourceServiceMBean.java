@@ -29,4 +29,8 @@ public interface ResourceServiceMBean {
     String checkDBConnection();
 
     String restartDBConnection();
+
+    String auditCacheStatus();
+
+    String clearAuditCache();
 }
@@ -27,6 +27,8 @@ import com.ethercis.servicemanager.cluster.RunTimeSingleton;
 import com.ethercis.servicemanager.common.I_SessionClientProperties;
 import com.ethercis.servicemanager.common.identification.IdentificationDef;
 import com.ethercis.servicemanager.exceptions.ServiceManagerException;
+import com.ethercis.servicemanager.metrics.LatencyTimer;
+import com.ethercis.servicemanager.metrics.MetricsRegistry;
 import com.ethercis.servicemanager.service.ServiceInfo;
 
 import java.util.UUID;
@@ -37,8 +39,16 @@ import java.util.UUID;
  */
 public abstract class ServiceDataCluster extends ClusterInfo {
 
+    /**
+     * a DB access timed by {@link #timed(LatencyTimer, DbAccess)}
+     * @param <E> the exception thrown by the access, an access throwing no checked exception can be timed in a method
+     *           that does not declare any
+     */
+    protected interface DbAccess<T, E extends Exception> {
+        T execute() throws E;
+    }
+
     private I_ResourceService resourceService;
-    protected AuditSetter auditSetter;
 
 
     protected void doInit(RunTimeSingleton global, ServiceInfo serviceInfo)throws ServiceManagerException  {
@@ -47,7 +57,56 @@ public abstract class ServiceDataCluster extends ClusterInfo {
         initCompatibilityMode();
 
         resourceService = ClusterInfo.getRegisteredService(global, "ResourceService", "1.0", new Object[] {null});
-        auditSetter = new AuditSetter(global);
+        if (resourceService != null && resourceService.getAuditCache() != null)
+            resourceService.getAuditCache().bind(global, resourceService.getDomainAccess());
+    }
+
+    /**
+     * create the audit setter for the current request, the instance must be passed to whatever
+     * needs it while handling this request
+     * @param props request properties
+     * @return the audit setter resolved from the request properties
+     * @throws ServiceManagerException
+     */
+    protected AuditSetter newAuditSetter(I_SessionClientProperties props) throws ServiceManagerException {
+        AuditSetter setter = new AuditSetter(global, resourceService == null ? null : resourceService.getAuditCache());
+        setter.handleProperties(getDataAccess(), props);
+        return setter;
+    }
+
+    /**
+     * @return the audit identity cache, null if ResourceService is not available
+     */
+    protected AuditCache getAuditCache() {
+        return resourceService == null ? null : resourceService.getAuditCache();
+    }
+
+    /**
+     * get the timer of a DB operation, the timer should be kept by the caller
+     * @param operation operation name (f.ex. "aql_query", "composition_create")
+     * @return
+     */
+    protected static LatencyTimer dbTimer(String operation) {
+        return MetricsRegistry.getInstance().timer(MetricsRegistry.DB, "operation", operation);
+    }
+
+    /**
+     * perform a DB access and record its latency
+     * @param timer
+     * @param access
+     * @return the result of the access
+     * @throws E whatever the access throws, it is counted as error
+     */
+    protected static <T, E extends Exception> T timed(LatencyTimer timer, DbAccess<T, E> access) throws E {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            T result = access.execute();
+            failed = false;
+            return result;
+        } finally {
+            timer.record(start, failed);
+        }
     }
 
     protected I_DomainAccess getDataAccess(){
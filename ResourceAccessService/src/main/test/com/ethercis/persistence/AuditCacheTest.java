@@ -0,0 +1,30 @@
+//Copyright
+package com.ethercis.persistence;
+
+import com.ethercis.servicemanager.cluster.RunTimeSingleton;
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * ETHERCIS Project VirtualEhr
+ */
+public class AuditCacheTest {
+
+    @Test
+    public void testDeletedPartyIsNotServed() {
+        AuditCache auditCache = new AuditCache(RunTimeSingleton.instance());
+        UUID deleted = UUID.randomUUID();
+        UUID kept = UUID.randomUUID();
+        auditCache.cacheParty("joe", "1234", deleted);
+        auditCache.cacheParty("jane", "5678", kept);
+        assertEquals(deleted, auditCache.cachedParty("joe", "1234"));
+
+        auditCache.invalidateParty(deleted);
+
+        assertNull(auditCache.cachedParty("joe", "1234"));
+        assertEquals(kept, auditCache.cachedParty("jane", "5678"));
+    }
+}
@@ -157,7 +157,7 @@ public class RunTimeSingleton implements Cloneable
 	private int currRunlevel = 0;
 
 	private Map<Object, Object> weakRegistry = new WeakHashMap<Object, Object>();
-	private Timeout sessionTimer;
+	private I_TimeoutManager sessionTimer;
 	private I_Authenticate authenticate;
 
 	/**
@@ -937,13 +937,15 @@ public class RunTimeSingleton implements Cloneable
 	
 	/**
 	 * Access the handle of the user session timer thread.
-	 * @return The Timeout instance
+	 * <p>
+	 * The implementation is selected with <code>server.timeout.manager</code>, see {@link TimingWheel}
+	 * @return The timeout manager instance
 	 */
-	public final Timeout getSessionTimer() {
+	public final I_TimeoutManager getSessionTimer() {
 		if (this.sessionTimer == null) {
 			synchronized(this) {
 				if (this.sessionTimer == null)
-					this.sessionTimer = new Timeout("EhrServer.SessionTimer");
+					this.sessionTimer = TimingWheel.newTimeoutManager(this, "EhrServer.SessionTimer", false);
 			}
 		}
 		return this.sessionTimer;
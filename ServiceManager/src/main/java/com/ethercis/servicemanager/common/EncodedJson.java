@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2015 Christian Chevalley
+ * This file is part of Project Ethercis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ethercis.servicemanager.common;
+
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.map.JsonSerializable;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.ObjectWriter;
+import org.codehaus.jackson.map.SerializerProvider;
+
+import java.io.IOException;
+
+/**
+ * A value already encoded as JSON.<p>
+ * It is written as is when a response is serialized, a service can therefore keep the encoded form of a result
+ * it serves repeatedly instead of an object tree encoded on every request. The encoded value is compact, it is not
+ * indented within a pretty printed response.
+ * <p>
+ * ETHERCIS Project VirtualEhr
+ */
+public class EncodedJson implements JsonSerializable {
+
+    private static final ObjectWriter writer = new ObjectMapper().writer();
+
+    private final String json;
+
+    public EncodedJson(String json) {
+        this.json = json;
+    }
+
+    /**
+     * @param value
+     * @return the compact JSON encoding of value
+     * @throws IOException
+     */
+    public static EncodedJson encode(Object value) throws IOException {
+        return new EncodedJson(writer.writeValueAsString(value));
+    }
+
+    @Override
+    public void serialize(JsonGenerator generator, SerializerProvider provider) throws IOException {
+        generator.writeRawValue(json);
+    }
+
+    @Override
+    public String toString() {
+        return json;
+    }
+}
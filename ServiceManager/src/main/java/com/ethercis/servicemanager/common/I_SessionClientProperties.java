@@ -190,4 +190,22 @@ public interface I_SessionClientProperties {
 
 	public abstract void addClientProperty(String key, Object value);
 
+	/**
+	 * Access the response envelope attached to this request (return type
+	 * override, headers, status).
+	 * 
+	 * @return never null
+	 */
+	public abstract ResponseContext getResponseContext();
+
+	/**
+	 * Access the raw request body. The content is also visible as a String
+	 * through {@link Constants#REQUEST_CONTENT}, decoded on first access.
+	 * 
+	 * @return the body or null if the request had no content
+	 */
+	public abstract RequestBody getRequestBody();
+
+	public abstract void setRequestBody(RequestBody requestBody);
+
 }
\ No newline at end of file
@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2015 Christian Chevalley
+ * This file is part of Project Ethercis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ethercis.servicemanager.common;
+
+import com.ethercis.servicemanager.cluster.RunTimeSingleton;
+import com.ethercis.servicemanager.common.def.SysErrorCode;
+import com.ethercis.servicemanager.exceptions.ServiceManagerException;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Raw body of a request.<p>
+ * The body is read once from the request stream into a byte array and is then handed to the
+ * services without further copies: services can consume it as bytes, as a stream, a reader or a string
+ * (decoded once on first access).
+ * <p>
+ * Bodies of unknown length (chunked transfer) are read using pooled read buffers.
+ * <p>
+ * ETHERCIS Project VirtualEhr
+ */
+public class RequestBody {
+
+    /**
+     * property giving the maximum body size in bytes
+     */
+    public static final String MAX_BODY_SIZE_PROPERTY = "server.request.max_body_size";
+    public static final int DEFAULT_MAX_BODY_SIZE = 64 * 1024 * 1024;
+
+    private static final String ME = "RequestBody";
+    private static final int READ_BUFFER_SIZE = 8192;
+    private static final ArrayBlockingQueue<byte[]> bufferPool = new ArrayBlockingQueue<>(64);
+
+    private final byte[] data;
+    private final int length;
+    private final Charset charset;
+    private final String contentType;
+    private String decoded = null;
+
+    public RequestBody(byte[] data, int length, Charset charset, String contentType) {
+        this.data = data;
+        this.length = length;
+        this.charset = charset == null ? StandardCharsets.UTF_8 : charset;
+        this.contentType = contentType;
+    }
+
+    public RequestBody(String content, String contentType) {
+        this(content.getBytes(StandardCharsets.UTF_8), -1, StandardCharsets.UTF_8, contentType);
+    }
+
+    /**
+     * read a body from an input stream
+     * @param global
+     * @param inputStream the request stream
+     * @param contentLength the declared length or -1 if unknown
+     * @param maxLength the maximum accepted length
+     * @param charset the body encoding, UTF-8 if null
+     * @param contentType the body MIME type
+     * @return the body or null if empty
+     * @throws ServiceManagerException if the body exceeds maxLength
+     * @throws IOException
+     */
+    public static RequestBody read(RunTimeSingleton global, InputStream inputStream, int contentLength, int maxLength, Charset charset, String contentType) throws ServiceManagerException, IOException {
+        if (inputStream == null || contentLength == 0)
+            return null;
+
+        if (contentLength > maxLength)
+            throw new ServiceManagerException(global, SysErrorCode.USER_REQUEST_TOOLARGE, ME, "Request body too large:" + contentLength + " bytes, max:" + maxLength);
+
+        if (contentLength > 0) { //known length, read in place
+            byte[] data = new byte[contentLength];
+            int offset = 0;
+            int read;
+            while (offset < contentLength && (read = inputStream.read(data, offset, contentLength - offset)) > 0)
+                offset += read;
+            if (offset == 0)
+                return null;
+            return new RequestBody(data, offset, charset, contentType);
+        }
+
+        //unknown length
+        byte[] buffer = bufferPool.poll();
+        if (buffer == null)
+            buffer = new byte[READ_BUFFER_SIZE];
+
+        try {
+            byte[] data = new byte[0];
+            int length = 0;
+            int read;
+            while ((read = inputStream.read(buffer)) > 0) {
+                if (length + read > maxLength)
+                    throw new ServiceManagerException(global, SysErrorCode.USER_REQUEST_TOOLARGE, ME, "Request body too large, max:" + maxLength);
+                if (length + read > data.length)
+                    data = Arrays.copyOf(data, Math.min(maxLength, Math.max(length + read, data.length * 2)));
+                System.arraycopy(buffer, 0, data, length, read);
+                length += read;
+            }
+            if (length == 0)
+                return null;
+            return new RequestBody(data, length, charset, contentType);
+        } finally {
+            bufferPool.offer(buffer);
+        }
+    }
+
+    /**
+     * @return the length of the body in bytes
+     */
+    public int length() {
+        return length < 0 ? data.length : length;
+    }
+
+    /**
+     * @return the body bytes, the returned array must not be modified
+     */
+    public byte[] getBytes() {
+        if (length >= 0 && length != data.length)
+            return Arrays.copyOf(data, length);
+        return data;
+    }
+
+    /**
+     * @return a stream on the body (no copy)
+     */
+    public InputStream getInputStream() {
+        return new ByteArrayInputStream(data, 0, length());
+    }
+
+    /**
+     * @return a reader on the body decoded with its charset
+     */
+    public Reader getReader() {
+        return new InputStreamReader(getInputStream(), charset);
+    }
+
+    /**
+     * @return the body decoded with its charset, the decoding is done once
+     */
+    public String asString() {
+        if (decoded == null)
+            decoded = new String(data, 0, length(), charset);
+        return decoded;
+    }
+
+    public Charset getCharset() {
+        return charset;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    @Override
+    public String toString() {
+        return "RequestBody [contentType=" + contentType + ", length=" + length() + "]";
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2015 Christian Chevalley
+ * This file is part of Project Ethercis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ethercis.servicemanager.common;
+
+import com.ethercis.servicemanager.common.def.MethodName;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Request scoped response envelope.<p>
+ * A service method uses this to override the return type declared in its mapping, to add
+ * response headers or to force an HTTP status. The envelope travels with the query parameters
+ * (see {@link I_SessionClientProperties#getResponseContext()}) from the gateway to the service
+ * and back, hence it is never shared between concurrent requests.
+ * <p>
+ * ETHERCIS Project VirtualEhr
+ */
+public class ResponseContext {
+
+    public static final int STATUS_UNDEFINED = -1;
+
+    private int returnType = MethodName.RETURN_UNDEFINED;
+    private int status = STATUS_UNDEFINED;
+    private Map<String, String> headers = null;
+    private boolean compact = false;
+    private String ifNoneMatch = null;
+    private String eTag = null;
+
+    /**
+     * force the return type of the response
+     * @param returnType one of the MethodName.RETURN_* constants
+     */
+    public void setReturnType(int returnType) {
+        this.returnType = returnType;
+    }
+
+    /**
+     * @return the return type set by the service or MethodName.RETURN_UNDEFINED
+     */
+    public int getReturnType() {
+        return returnType;
+    }
+
+    /**
+     * resolve the actual return type
+     * @param mappedType the return type declared for the method
+     * @return the overriding type if any, mappedType otherwise
+     */
+    public int resolveReturnType(int mappedType) {
+        return returnType == MethodName.RETURN_UNDEFINED ? mappedType : returnType;
+    }
+
+    /**
+     * force an HTTP status code
+     * @param status
+     */
+    public void setStatus(int status) {
+        this.status = status;
+    }
+
+    /**
+     * @return the forced status or STATUS_UNDEFINED
+     */
+    public int getStatus() {
+        return status;
+    }
+
+    public boolean hasStatus() {
+        return status != STATUS_UNDEFINED;
+    }
+
+    /**
+     * add an entry to the response header
+     * @param name
+     * @param value
+     */
+    public void setHeader(String name, String value) {
+        if (headers == null)
+            headers = new LinkedHashMap<>();
+        headers.put(name, value);
+    }
+
+    /**
+     * @return the headers set for this response, never null
+     */
+    public Map<String, String> getHeaders() {
+        if (headers == null)
+            return Collections.emptyMap();
+        return Collections.unmodifiableMap(headers);
+    }
+
+    /**
+     * request a compact rendering of the response (f.ex. json without indentation)
+     * @param compact
+     */
+    public void setCompact(boolean compact) {
+        this.compact = compact;
+    }
+
+    public boolean isCompact() {
+        return compact;
+    }
+
+    /**
+     * set by the gateway from the If-None-Match request header
+     * @param ifNoneMatch
+     */
+    public void setIfNoneMatch(String ifNoneMatch) {
+        this.ifNoneMatch = ifNoneMatch;
+    }
+
+    public String getIfNoneMatch() {
+        return ifNoneMatch;
+    }
+
+    /**
+     * set the entity tag of the response (sent as ETag header)
+     * @param eTag a quoted strong entity tag
+     * @return true if the client copy is current, the service may then skip building the response
+     */
+    public boolean setETag(String eTag) {
+        this.eTag = eTag;
+        return isNotModified();
+    }
+
+    public String getETag() {
+        return eTag;
+    }
+
+    /**
+     * @return true if the entity tag matches one of the If-None-Match tags (weak comparison)
+     */
+    public boolean isNotModified() {
+        if (eTag == null || ifNoneMatch == null)
+            return false;
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/"))
+                candidate = candidate.substring(2);
+            if (candidate.equals("*") || candidate.equals(eTag))
+                return true;
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return "ResponseContext [returnType=" + returnType + ", status=" + status + ", headers=" + getHeaders() + ", eTag=" + eTag + "]";
+    }
+}
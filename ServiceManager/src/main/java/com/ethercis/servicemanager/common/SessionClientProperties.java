@@ -39,6 +39,16 @@ public class SessionClientProperties implements I_SessionClientProperties {
 
     RunTimeSingleton glob;
 
+    /**
+     * request scoped response envelope, created on first access
+     */
+    private ResponseContext responseContext;
+
+    /**
+     * raw request body, null if none
+     */
+    private RequestBody requestBody;
+
     /**
      * Sets the client property to the given value
      */
@@ -196,6 +206,8 @@ public class SessionClientProperties implements I_SessionClientProperties {
 	public final boolean propertyExists(String name) {
 	if (name == null)
 	    return false;
+	if (requestBody != null && Constants.REQUEST_CONTENT.equals(name))
+	    return true;
 	return (this.clientProperties.get(name) != null);
     }
 
@@ -207,8 +219,11 @@ public class SessionClientProperties implements I_SessionClientProperties {
 	if (name == null)
 	    return defaultValue;
 	ClientProperty p = (ClientProperty) this.clientProperties.get(name);
-	if (p == null)
+	if (p == null) {
+	    if (requestBody != null && Constants.REQUEST_CONTENT.equals(name))
+		return requestBody.asString();
 	    return defaultValue;
+	}
 	return p.getStringValue();
     }
 
@@ -457,6 +472,32 @@ public class SessionClientProperties implements I_SessionClientProperties {
 	return retmap;
     }
 
+    /* (non-Javadoc)
+	 * @see I_SessionClientProperties#getResponseContext()
+	 */
+    @Override
+	public ResponseContext getResponseContext() {
+	if (responseContext == null)
+	    responseContext = new ResponseContext();
+	return responseContext;
+    }
+
+    /* (non-Javadoc)
+	 * @see I_SessionClientProperties#getRequestBody()
+	 */
+    @Override
+	public RequestBody getRequestBody() {
+	return requestBody;
+    }
+
+    /* (non-Javadoc)
+	 * @see I_SessionClientProperties#setRequestBody(RequestBody)
+	 */
+    @Override
+	public void setRequestBody(RequestBody requestBody) {
+	this.requestBody = requestBody;
+    }
+
     @Override
 	public String toString() {
 	   StringBuffer sb =new StringBuffer();
@@ -0,0 +1,386 @@
+/*
+ * Copyright (c) 2015 Christian Chevalley
+ * This file is part of Project Ethercis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ethercis.servicemanager.common;
+
+import com.ethercis.servicemanager.cluster.RunTimeSingleton;
+import com.ethercis.servicemanager.common.def.SysErrorCode;
+import com.ethercis.servicemanager.exceptions.ServiceManagerException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hashed timing wheel implementation of {@link I_TimeoutManager}.
+ * <p>
+ * Timers are hashed into <code>wheelSize</code> buckets of <code>tick</code> milliseconds each; delays longer
+ * than one revolution of the wheel are handled with a remaining rounds counter, so a timer of any length costs
+ * one bucket slot. Adding a timer does not lock: the timer is registered in a concurrent handle map and
+ * queued, the wheel thread moves the queued timers into their bucket on the next tick. Removing a timer only
+ * flags it, it is unlinked when the wheel passes over its bucket.
+ * <p>
+ * The callbacks expired on a tick are dispatched as one batch to a small executor so that a slow
+ * I_Timeout.timeout() does not hold the wheel.
+ * <p>
+ * Timeouts are notified with a precision of one tick (default 100 ms).
+ * <p>
+ * Use {@link #newTimeoutManager(RunTimeSingleton, String, boolean)} to get the manager selected by
+ * <code>server.timeout.manager</code> (<code>tree</code>, the default {@link Timeout}, or <code>wheel</code>).
+ */
+public class TimingWheel implements I_TimeoutManager {
+
+   public static final String TIMEOUT_MANAGER_PROPERTY = "server.timeout.manager";
+   public static final String TICK_PROPERTY = "server.timeout.wheel.tick";
+   public static final String SIZE_PROPERTY = "server.timeout.wheel.size";
+   public static final String DISPATCHERS_PROPERTY = "server.timeout.wheel.dispatchers";
+
+   private static String ME = "TimingWheel";
+   private static Logger log = LogManager.getLogger(TimingWheel.class);
+
+   private static final int PENDING = 0;
+   private static final int CANCELLED = 1;
+   private static final int EXPIRED = 2;
+
+   /** a registered timer */
+   private static final class Entry {
+      final TimeStamp key;
+      final Container container;
+      final AtomicInteger state = new AtomicInteger(PENDING);
+      long rounds;
+      Entry next; // bucket list, only accessed by the wheel thread
+
+      Entry(TimeStamp key, Container container) {
+         this.key = key;
+         this.container = container;
+      }
+   }
+
+   private final String name;
+   private final long tick;
+   private final int mask;
+   private final Entry[] buckets;
+   private final boolean useWeakReference;
+
+   private final ConcurrentHashMap<TimeStamp, Entry> entries = new ConcurrentHashMap<>();
+   private final ConcurrentLinkedQueue<Entry> pendingEntries = new ConcurrentLinkedQueue<>();
+   private final ExecutorService dispatcher;
+   private final Thread worker;
+
+   private volatile boolean running = true;
+   private final long startTime;
+   private long currentTick = 0; // wheel thread only
+
+   /**
+    * @param name the name of the wheel thread
+    * @param tick the duration of a tick in milliseconds
+    * @param wheelSize the number of buckets, rounded up to a power of 2
+    * @param dispatchers the number of threads notifying the expired timers
+    * @param useWeakReference if true only a weak reference is held on the callbacks
+    */
+   public TimingWheel(String name, long tick, int wheelSize, int dispatchers, boolean useWeakReference) {
+      if (tick <= 0 || wheelSize <= 0 || dispatchers <= 0)
+         throw new IllegalArgumentException(ME + ": invalid wheel configuration, tick=" + tick + " size=" + wheelSize + " dispatchers=" + dispatchers);
+
+      int size = Integer.highestOneBit(wheelSize);
+      if (size < wheelSize)
+         size <<= 1;
+
+      this.name = name;
+      this.tick = tick;
+      this.mask = size - 1;
+      this.buckets = new Entry[size];
+      this.useWeakReference = useWeakReference;
+      this.dispatcher = Executors.newFixedThreadPool(dispatchers, new ThreadFactory() {
+         private final AtomicInteger count = new AtomicInteger();
+
+         @Override
+         public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, TimingWheel.this.name + "-dispatch-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+         }
+      });
+
+      this.startTime = System.currentTimeMillis();
+      this.worker = new Thread(new Runnable() {
+         @Override
+         public void run() {
+            TimingWheel.this.run();
+         }
+      }, name);
+      this.worker.setDaemon(true);
+      this.worker.start();
+   }
+
+   public TimingWheel(String name) {
+      this(name, 100L, 512, 2, false);
+   }
+
+   /**
+    * create the timeout manager configured by <code>server.timeout.manager</code>
+    * @param global
+    * @param name the name of the timer thread
+    * @param useWeakReference if true only a weak reference is held on the callbacks
+    * @return a {@link Timeout} (tree, default) or a {@link TimingWheel} (wheel)
+    */
+   public static I_TimeoutManager newTimeoutManager(RunTimeSingleton global, String name, boolean useWeakReference) {
+      String type = global.getProperty().get(TIMEOUT_MANAGER_PROPERTY, "tree");
+      if ("wheel".equalsIgnoreCase(type)) {
+         long tick = global.getProperty().get(TICK_PROPERTY, 100L);
+         int size = global.getProperty().get(SIZE_PROPERTY, 512);
+         int dispatchers = global.getProperty().get(DISPATCHERS_PROPERTY, 2);
+         log.info("Using timing wheel for " + name + ", tick:" + tick + " [ms] size:" + size);
+         return new TimingWheel(name, tick, size, dispatchers, useWeakReference);
+      }
+      if (!"tree".equalsIgnoreCase(type))
+         log.warn("Unknown timeout manager:" + type + ", using tree");
+      return new Timeout(name, useWeakReference);
+   }
+
+   private void run() {
+      while (running) {
+         long deadline = startTime + (currentTick + 1) * tick;
+         long sleep = deadline - System.currentTimeMillis();
+         if (sleep > 0) {
+            try {
+               Thread.sleep(sleep);
+            } catch (InterruptedException e) {
+               continue; // shutdown
+            }
+         }
+
+         transferPending();
+
+         List<Entry> expired = expireBucket((int) (currentTick & mask));
+         if (!expired.isEmpty())
+            dispatch(expired);
+
+         currentTick++;
+      }
+   }
+
+   /**
+    * move the newly registered timers into their bucket
+    */
+   private void transferPending() {
+      Entry entry;
+      while ((entry = pendingEntries.poll()) != null) {
+         if (entry.state.get() != PENDING)
+            continue;
+         long calculated = Math.max(0L, entry.key.getMillis() - startTime) / tick;
+         entry.rounds = (calculated - currentTick) / buckets.length;
+         int index = (int) (Math.max(calculated, currentTick) & mask);
+         entry.next = buckets[index];
+         buckets[index] = entry;
+      }
+   }
+
+   private List<Entry> expireBucket(int index) {
+      List<Entry> expired = new ArrayList<>();
+      Entry previous = null;
+      Entry entry = buckets[index];
+      while (entry != null) {
+         Entry next = entry.next;
+         boolean unlink;
+         if (entry.state.get() != PENDING) {
+            unlink = true;
+         } else if (entry.rounds <= 0) {
+            unlink = true;
+            if (entry.state.compareAndSet(PENDING, EXPIRED)) {
+               entries.remove(entry.key, entry);
+               expired.add(entry);
+            }
+         } else {
+            entry.rounds--;
+            unlink = false;
+         }
+
+         if (unlink) {
+            if (previous == null)
+               buckets[index] = next;
+            else
+               previous.next = next;
+            entry.next = null;
+         } else {
+            previous = entry;
+         }
+         entry = next;
+      }
+      return expired;
+   }
+
+   private void dispatch(final List<Entry> expired) {
+      try {
+         dispatcher.execute(new Runnable() {
+            @Override
+            public void run() {
+               for (Entry entry : expired) {
+                  I_Timeout callback = entry.container.getCallback();
+                  if (callback == null)
+                     continue;
+                  try {
+                     callback.timeout(entry.container.getUserData());
+                  } catch (Throwable e) {
+                     log.warn(ME + ": timeout callback failed:" + e);
+                  }
+               }
+            }
+         });
+      } catch (RejectedExecutionException e) {
+         log.debug(ME + ": dispatcher is shut down, dropping " + expired.size() + " timeouts");
+      }
+   }
+
+   public int getSize() {
+      return entries.size();
+   }
+
+   public String toString() {
+      return "TimingWheel currently registered and pending timers=" + getSize() + " useWeakReference=" + useWeakReference;
+   }
+
+   public String dumpStatus() {
+      StringBuilder buf = new StringBuilder(256);
+      buf.append("TimingWheel currently registered and pending timers=").append(getSize());
+      buf.append(" tick=").append(tick).append(" size=").append(buckets.length);
+      for (Entry entry : entries.values()) {
+         I_Timeout callback = entry.container.getCallback();
+         buf.append("\n");
+         buf.append("callback=").append(callback).append(": userData=").append(entry.container.getUserData());
+      }
+      return buf.toString();
+   }
+
+   public final TimeStamp addTimeoutListener(I_Timeout listener, long delay, Object userData) {
+      if (listener == null) {
+         throw new IllegalArgumentException(ME + ": addTimeoutListener() with listener=null");
+      }
+      if (!running)
+         throw new IllegalStateException(ME + ": addTimeoutListener() on a stopped timer");
+
+      Container container = new Container(this.useWeakReference, listener, userData);
+      long endNanos = (System.currentTimeMillis() + Math.max(0L, delay)) * TimeStamp.MILLION;
+      Entry entry;
+      while (true) {
+         entry = new Entry(new TimeStamp(endNanos), container);
+         if (entries.putIfAbsent(entry.key, entry) == null)
+            break;
+         endNanos++; // avoid two similar keys, this should happen very seldom
+      }
+      pendingEntries.offer(entry);
+      return entry.key;
+   }
+
+   public final TimeStamp refreshTimeoutListener(TimeStamp key, long delay) throws ServiceManagerException {
+      if (key == null) {
+         throw new ServiceManagerException(RunTimeSingleton.instance(),
+               SysErrorCode.INTERNAL_NULLPOINTER, ME + "addTimeoutListener",
+               "The timeout handle is null, no timeout refresh done");
+      }
+      Entry entry = cancel(key);
+      if (entry == null) {
+         throw new ServiceManagerException(RunTimeSingleton.instance(),
+               SysErrorCode.RESOURCE_UNAVAILABLE, ME, "The timeout handle '" + key
+                     + "' is unknown, no timeout refresh done");
+      }
+      I_Timeout callback = entry.container.getCallback();
+      if (callback == null) {
+         throw new ServiceManagerException(RunTimeSingleton.instance(),
+               SysErrorCode.INTERNAL_UNKNOWN, ME,
+               "The weak callback reference for timeout handle '" + key
+                     + "' is garbage collected, no timeout refresh done");
+      }
+      return addTimeoutListener(callback, delay, entry.container.getUserData());
+   }
+
+   public final TimeStamp addOrRefreshTimeoutListener(I_Timeout listener, long delay, Object userData, TimeStamp key) throws ServiceManagerException {
+      if (key == null) {
+         return addTimeoutListener(listener, delay, userData);
+      } else {
+         try {
+            return refreshTimeoutListener(key, delay);
+         } catch (ServiceManagerException e) {
+            if (SysErrorCode.RESOURCE_UNAVAILABLE == e.getErrorCode()) {
+               return addTimeoutListener(listener, delay, userData);
+            }
+            throw e;
+         }
+      }
+   }
+
+   /**
+    * unregister a timer if it has not expired yet
+    * @return the cancelled entry or null
+    */
+   private Entry cancel(TimeStamp key) {
+      Entry entry = entries.remove(key);
+      if (entry == null || !entry.state.compareAndSet(PENDING, CANCELLED))
+         return null;
+      return entry;
+   }
+
+   public final void removeTimeoutListener(TimeStamp key) {
+      if (key == null)
+         return;
+      Entry entry = cancel(key);
+      if (entry != null)
+         entry.container.reset();
+   }
+
+   public final boolean isExpired(TimeStamp key) {
+      return key == null || !entries.containsKey(key);
+   }
+
+   public final long spanToTimeout(TimeStamp key) {
+      if (key == null || !entries.containsKey(key))
+         return -1;
+      return getTimeout(key) - System.currentTimeMillis();
+   }
+
+   public final long elapsed(TimeStamp key) {
+      Entry entry = (key == null) ? null : entries.get(key);
+      if (entry == null)
+         return -1;
+      return System.currentTimeMillis() - entry.container.creation;
+   }
+
+   public final long getTimeout(TimeStamp key) {
+      if (key == null)
+         return -1;
+      return key.getMillis();
+   }
+
+   public final void removeAll() {
+      for (TimeStamp key : entries.keySet())
+         removeTimeoutListener(key);
+   }
+
+   public void shutdown() {
+      removeAll();
+      running = false;
+      worker.interrupt();
+      dispatcher.shutdown();
+   }
+}
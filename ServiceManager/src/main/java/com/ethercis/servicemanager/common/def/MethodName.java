@@ -28,15 +28,22 @@ public final class MethodName implements java.io.Serializable, Comparable<Object
 {
 	private static final long serialVersionUID = -6644144030401574462L;
 	private final static Hashtable<String, MethodName> hash = new Hashtable<String, MethodName>(); // The key is the 'methodName' String and the value is an 'MethodName' instance
+	private static int count = 0; // number of instances, used to assign the ordinal
 	private final String methodName;
 	private final int argType;
 	private final int returnType;
+	private final int ordinal; // index of this instance, allows array lookups by method name
 
 	private transient byte[] methodNameBytes; // for better performance in SOCKET protocol
 
 	// The possible method return types, useful for SOCKET protocol (see requirement 'protocol.socket')
 
-	//used to force a return type from a service via the RunTimeSingleton
+	/**
+	 * used to force a return type from a service via the RunTimeSingleton
+	 * @deprecated the global property is shared by concurrent requests, use
+	 * {@link com.ethercis.servicemanager.common.ResponseContext#setReturnType(int)} instead
+	 */
+	@Deprecated
 	public static final String RETURN_TYPE_PROPERTY = "return.type.property";
 
 	public static final int RETURN_VOID = 0;
@@ -141,9 +148,24 @@ public final class MethodName implements java.io.Serializable, Comparable<Object
 		this.methodName = methodName;
 		this.argType = argType;
 		this.returnType = returnType;
+		this.ordinal = count++;
 		hash.put(methodName, this);
 	}
 
+	/**
+	 * @return the index of this method name in the range [0..count()[
+	 */
+	public int ordinal() {
+		return ordinal;
+	}
+
+	/**
+	 * @return the number of defined method names
+	 */
+	public static int count() {
+		return count;
+	}
+
 	public static MethodName[] getAll() {
 		return new MethodName[] { CONNECT, DISCONNECT, GET, POST, READ, EXECUTE, CHANGE, DELETE, EXTEND, EXIST, COMMUNICATE, QUERY,
 				PING, VIEW, PUT, SESSION, CREATE /*, DUMMY, UNKNOWN, EXCEPTION*/ };
@@ -676,6 +676,13 @@ public final class SysErrorCode implements java.io.Serializable
          HttpServletResponse.SC_NOT_ACCEPTABLE
       );
 
+   public static final SysErrorCode USER_REQUEST_TOOLARGE = new SysErrorCode("user.request.tooLarge",
+         "The request body exceeds the maximum size accepted by the server (see server.request.max_body_size).",
+         new ResourceInfo[] {
+         },
+         HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE
+      );
+
    public static final SysErrorCode USER_QUERY_INVALID = new SysErrorCode("user.query.invalid",
          "You have invoked get(), subscribe(), unSubscribe() or erase() with an illegal query syntax.",
          new ResourceInfo[] {
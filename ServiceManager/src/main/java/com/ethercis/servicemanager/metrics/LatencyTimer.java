@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2015 Christian Chevalley
+ * This file is part of Project Ethercis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ethercis.servicemanager.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency distribution and error count of an instrumented operation, identified by a metric family
+ * and a set of labels (f.ex. ethercis_route{action="get",path="rest/v1/ehr",method="get"}).
+ * <p>
+ * Usage:
+ * <pre>
+ * long start = System.nanoTime();
+ * ...
+ * timer.record(start, failed);
+ * </pre>
+ * ETHERCIS Project VirtualEhr
+ */
+public class LatencyTimer {
+
+    private final String family;
+    private final String[] labels;
+    private final String labelString;
+    private final LatencyHistogram histogram = new LatencyHistogram();
+    private final LongAdder errors = new LongAdder();
+
+    /**
+     * @param family metric family name
+     * @param labels alternate label names and values
+     */
+    LatencyTimer(String family, String... labels) {
+        if (labels.length % 2 != 0)
+            throw new IllegalArgumentException("Labels must be name/value pairs");
+        this.family = family;
+        this.labels = labels.clone();
+        this.labelString = labelString(labels);
+    }
+
+    static String labelString(String... labels) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0)
+                sb.append(',');
+            sb.append(labels[i]).append("=\"");
+            String value = labels[i + 1] == null ? "" : labels[i + 1];
+            for (int c = 0; c < value.length(); c++) {
+                char ch = value.charAt(c);
+                if (ch == '\\' || ch == '"')
+                    sb.append('\\').append(ch);
+                else if (ch == '\n')
+                    sb.append("\\n");
+                else
+                    sb.append(ch);
+            }
+            sb.append('"');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * record an operation started at the given System.nanoTime()
+     * @param startNanos
+     * @param error true if the operation failed
+     */
+    public void record(long startNanos, boolean error) {
+        histogram.recordNanos(System.nanoTime() - startNanos);
+        if (error)
+            errors.increment();
+    }
+
+    public String getFamily() {
+        return family;
+    }
+
+    public String[] getLabels() {
+        return labels.clone();
+    }
+
+    /**
+     * @return the labels in exposition format, f.ex. <code>action="get",path="rest/v1/ehr"</code>
+     */
+    public String getLabelString() {
+        return labelString;
+    }
+
+    public LatencyHistogram getHistogram() {
+        return histogram;
+    }
+
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    public void reset() {
+        histogram.reset();
+        errors.reset();
+    }
+}
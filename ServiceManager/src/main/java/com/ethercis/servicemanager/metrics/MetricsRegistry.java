@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2015 Christian Chevalley
+ * This file is part of Project Ethercis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ethercis.servicemanager.metrics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Registry of the latency timers of the server.<p>
+ * Timers are created once per family and label set, the caller is expected to keep the returned timer
+ * (f.ex. in a route) rather than look it up for each request. The registry renders its content
+ * in Prometheus text exposition format (version 0.0.4) as summaries with quantiles 0.5, 0.99 and 0.999
+ * and is exposed as MBean.
+ * <p>
+ * ETHERCIS Project VirtualEhr
+ */
+public class MetricsRegistry implements MetricsRegistryMBean {
+
+    public static final String ROUTE = "ethercis_route";
+    public static final String SERVICE_METHOD = "ethercis_service_method";
+    public static final String DB = "ethercis_db";
+    public static final String RESPONSE_FORMAT = "ethercis_response_format";
+
+    private static final double[] QUANTILES = {0.5, 0.99, 0.999};
+
+    private static final MetricsRegistry instance = new MetricsRegistry();
+
+    private final ConcurrentMap<String, LatencyTimer> timers = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, String> help = new ConcurrentHashMap<>();
+    private volatile long resetTime = System.currentTimeMillis();
+
+    public MetricsRegistry() {
+        describe(ROUTE, "Latency of the requests per route");
+        describe(SERVICE_METHOD, "Latency of the service method invocations");
+        describe(DB, "Latency of the DB accesses");
+        describe(RESPONSE_FORMAT, "Latency of the response formatting");
+    }
+
+    public static MetricsRegistry getInstance() {
+        return instance;
+    }
+
+    /**
+     * get or create the timer for a family and a set of labels
+     * @param family metric family name
+     * @param labels alternate label names and values
+     * @return
+     */
+    public LatencyTimer timer(String family, String... labels) {
+        String key = family + "{" + LatencyTimer.labelString(labels) + "}";
+        return timers.computeIfAbsent(key, k -> new LatencyTimer(family, labels));
+    }
+
+    /**
+     * set the help text of a family
+     * @param family
+     * @param text
+     */
+    public void describe(String family, String text) {
+        help.put(family, text);
+    }
+
+    private List<LatencyTimer> sorted() {
+        List<LatencyTimer> list = new ArrayList<>(timers.values());
+        Collections.sort(list, Comparator.comparing(LatencyTimer::getFamily).thenComparing(LatencyTimer::getLabelString));
+        return list;
+    }
+
+    private static String seconds(long micros) {
+        return Double.toString(micros / 1_000_000.0);
+    }
+
+    /**
+     * render the timers in Prometheus text format
+     * @return
+     */
+    public String toPrometheus() {
+        StringBuilder sb = new StringBuilder();
+        String family = null;
+        for (LatencyTimer timer : sorted()) {
+            if (!timer.getFamily().equals(family)) {
+                family = timer.getFamily();
+                if (help.containsKey(family))
+                    sb.append("# HELP ").append(family).append("_seconds ").append(help.get(family)).append('\n');
+                sb.append("# TYPE ").append(family).append("_seconds summary\n");
+            }
+            String labels = timer.getLabelString();
+            String separator = labels.isEmpty() ? "" : ",";
+            LatencyHistogram histogram = timer.getHistogram();
+            for (double quantile : QUANTILES) {
+                sb.append(family).append("_seconds{").append(labels).append(separator)
+                        .append("quantile=\"").append(quantile).append("\"} ")
+                        .append(seconds(histogram.percentile(quantile))).append('\n');
+            }
+            sb.append(family).append("_seconds_sum{").append(labels).append("} ").append(seconds(histogram.getSum())).append('\n');
+            sb.append(family).append("_seconds_count{").append(labels).append("} ").append(histogram.getCount()).append('\n');
+        }
+        family = null;
+        for (LatencyTimer timer : sorted()) {
+            if (!timer.getFamily().equals(family)) {
+                family = timer.getFamily();
+                sb.append("# TYPE ").append(family).append("_errors_total counter\n");
+            }
+            sb.append(family).append("_errors_total{").append(timer.getLabelString()).append("} ").append(timer.getErrors()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private String describe(LatencyTimer timer, double elapsedSeconds) {
+        LatencyHistogram histogram = timer.getHistogram();
+        long count = histogram.getCount();
+        return timer.getFamily() + "{" + timer.getLabelString() + "}"
+                + " count=" + count
+                + " errors=" + timer.getErrors()
+                + " throughput=" + String.format("%.2f/s", elapsedSeconds > 0 ? count / elapsedSeconds : 0.0)
+                + " p50=" + histogram.percentile(0.5) + "us"
+                + " p99=" + histogram.percentile(0.99) + "us"
+                + " p999=" + histogram.percentile(0.999) + "us"
+                + " max=" + histogram.getMax() + "us";
+    }
+
+    @Override
+    public String status() {
+        return showFamily(null);
+    }
+
+    @Override
+    public String showFamily(String family) {
+        double elapsed = (System.currentTimeMillis() - resetTime) / 1000.0;
+        StringBuilder sb = new StringBuilder();
+        for (LatencyTimer timer : sorted()) {
+            if (family != null && !family.isEmpty() && !timer.getFamily().equals(family))
+                continue;
+            if (timer.getHistogram().getCount() == 0)
+                continue;
+            sb.append(describe(timer, elapsed)).append('\n');
+        }
+        return sb.length() == 0 ? "no measurement" : sb.toString();
+    }
+
+    @Override
+    public String prometheus() {
+        return toPrometheus();
+    }
+
+    @Override
+    public String reset() {
+        for (Map.Entry<String, LatencyTimer> entry : timers.entrySet())
+            entry.getValue().reset();
+        resetTime = System.currentTimeMillis();
+        return "metrics reset";
+    }
+}
@@ -0,0 +1,26 @@
+//Copyright
+package com.ethercis.servicemanager.common;
+
+import junit.framework.TestCase;
+import org.codehaus.jackson.map.ObjectMapper;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class EncodedJsonTest extends TestCase {
+
+    public void testWrittenAsIs() throws Exception {
+        Map<String, Object> composition = new LinkedHashMap<>();
+        composition.put("/name", "Adverse reaction \"list\"");
+        composition.put("/items", 2);
+
+        Map<String, Object> response = new HashMap<>();
+        response.put("composition", EncodedJson.encode(composition));
+
+        ObjectMapper mapper = new ObjectMapper();
+        assertEquals("{\"composition\":{\"/name\":\"Adverse reaction \\\"list\\\"\",\"/items\":2}}", mapper.writeValueAsString(response));
+        assertEquals(mapper.readTree(mapper.writeValueAsString(composition)),
+                mapper.readTree(mapper.writerWithDefaultPrettyPrinter().writeValueAsString(response)).get("composition"));
+    }
+}
@@ -0,0 +1,27 @@
+//Copyright
+package com.ethercis.servicemanager.common;
+
+import junit.framework.TestCase;
+
+public class ResponseContextTest extends TestCase {
+
+    public void testNotModified() {
+        ResponseContext context = new ResponseContext();
+        assertFalse(context.setETag("\"abc::1::FLAT\""));
+
+        context.setIfNoneMatch("\"abc::1::XML\", W/\"abc::1::FLAT\"");
+        assertTrue(context.isNotModified());
+
+        assertFalse(context.setETag("\"abc::2::FLAT\""));
+
+        context.setIfNoneMatch("*");
+        assertTrue(context.isNotModified());
+    }
+
+    public void testNoETag() {
+        ResponseContext context = new ResponseContext();
+        context.setIfNoneMatch("*");
+        assertFalse(context.isNotModified());
+        assertNull(context.getETag());
+    }
+}
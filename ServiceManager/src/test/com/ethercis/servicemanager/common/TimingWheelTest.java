@@ -0,0 +1,64 @@
+//Copyright
+package com.ethercis.servicemanager.common;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class TimingWheelTest extends TestCase {
+
+    public void testTimeout() throws Exception {
+        TimingWheel wheel = new TimingWheel("TestWheel", 10L, 8, 1, false);
+        final CountDownLatch latch = new CountDownLatch(1);
+
+        // longer than one revolution of the wheel (80 ms)
+        TimeStamp key = wheel.addTimeoutListener(new I_Timeout() {
+            public void timeout(Object userData) {
+                assertEquals("wheel", userData);
+                latch.countDown();
+            }
+        }, 200L, "wheel");
+
+        assertFalse(wheel.isExpired(key));
+        assertEquals(1, wheel.getSize());
+        assertTrue(latch.await(2, TimeUnit.SECONDS));
+        assertTrue(wheel.isExpired(key));
+        assertEquals(0, wheel.getSize());
+        wheel.shutdown();
+    }
+
+    public void testRemove() throws Exception {
+        TimingWheel wheel = new TimingWheel("TestWheel", 10L, 8, 1, false);
+        final CountDownLatch latch = new CountDownLatch(1);
+
+        TimeStamp key = wheel.addTimeoutListener(new I_Timeout() {
+            public void timeout(Object userData) {
+                latch.countDown();
+            }
+        }, 50L, null);
+        wheel.removeTimeoutListener(key);
+
+        assertFalse(latch.await(300, TimeUnit.MILLISECONDS));
+        assertEquals(-1, wheel.spanToTimeout(key));
+        wheel.shutdown();
+    }
+
+    public void testRefresh() throws Exception {
+        TimingWheel wheel = new TimingWheel("TestWheel", 10L, 8, 1, false);
+        final CountDownLatch latch = new CountDownLatch(1);
+
+        TimeStamp key = wheel.addTimeoutListener(new I_Timeout() {
+            public void timeout(Object userData) {
+                latch.countDown();
+            }
+        }, 50L, null);
+        TimeStamp refreshed = wheel.refreshTimeoutListener(key, 1000L);
+
+        assertTrue(wheel.isExpired(key));
+        assertFalse(wheel.isExpired(refreshed));
+        assertFalse(latch.await(300, TimeUnit.MILLISECONDS));
+        assertTrue(latch.await(2, TimeUnit.SECONDS));
+        wheel.shutdown();
+    }
+}
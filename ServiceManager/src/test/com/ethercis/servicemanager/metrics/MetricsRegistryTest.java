@@ -0,0 +1,53 @@
+//Copyright
+package com.ethercis.servicemanager.metrics;
+
+import junit.framework.TestCase;
+
+public class MetricsRegistryTest extends TestCase {
+
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++)
+            histogram.recordNanos(i * 1000L); //1..1000 us
+
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1000, histogram.getMax());
+        assertEquals(500, histogram.percentile(0.5), 500 * 0.03);
+        assertEquals(990, histogram.percentile(0.99), 990 * 0.03);
+        assertEquals(999, histogram.percentile(0.999), 999 * 0.03);
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.percentile(0.99));
+    }
+
+    public void testBuckets() {
+        long previous = -1;
+        for (long value = 0; value < (1L << 40); value = value * 2 + 1) {
+            int index = LatencyHistogram.index(value);
+            assertTrue(index > previous || index == LatencyHistogram.index(Long.MAX_VALUE));
+            if (value < (1L << 36))
+                assertEquals(value, LatencyHistogram.value(index), Math.max(1, value * 0.03));
+            previous = index;
+        }
+    }
+
+    public void testPrometheus() {
+        MetricsRegistry registry = new MetricsRegistry();
+        LatencyTimer timer = registry.timer(MetricsRegistry.ROUTE, "action", "GET", "path", "rest/v1/\"ehr\"", "method", "get");
+        assertSame(timer, registry.timer(MetricsRegistry.ROUTE, "action", "GET", "path", "rest/v1/\"ehr\"", "method", "get"));
+
+        timer.record(System.nanoTime() - 2_000_000L, false);
+        timer.record(System.nanoTime(), true);
+
+        String text = registry.toPrometheus();
+        assertTrue(text.contains("# TYPE ethercis_route_seconds summary"));
+        assertTrue(text.contains("ethercis_route_seconds{action=\"GET\",path=\"rest/v1/\\\"ehr\\\"\",method=\"get\",quantile=\"0.99\"}"));
+        assertTrue(text.contains("ethercis_route_seconds_count{action=\"GET\",path=\"rest/v1/\\\"ehr\\\"\",method=\"get\"} 2"));
+        assertTrue(text.contains("ethercis_route_errors_total{action=\"GET\",path=\"rest/v1/\\\"ehr\\\"\",method=\"get\"} 1"));
+
+        registry.reset();
+        assertEquals(0, timer.getErrors());
+        assertEquals("no measurement", registry.status());
+    }
+}
@@ -23,6 +23,7 @@ import com.ethercis.servicemanager.annotation.RunLevelActions;
 import com.ethercis.servicemanager.annotation.Service;
 import com.ethercis.servicemanager.cluster.RunTimeSingleton;
 import com.ethercis.servicemanager.exceptions.ServiceManagerException;
+import com.ethercis.servicemanager.metrics.LatencyTimer;
 import com.ethercis.servicemanager.service.ServiceInfo;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -44,6 +45,8 @@ public class SystemService extends ServiceDataCluster implements I_SystemService
     final private String ME = "SystemService";
     final private String Version = "1.0";
     private Logger log = LogManager.getLogger(SystemService.class);
+    private static final LatencyTimer CREATE_TIMER = dbTimer("system_create");
+    private static final LatencyTimer DELETE_TIMER = dbTimer("system_delete");
 
     @Override
     protected void doInit(RunTimeSingleton global, ServiceInfo serviceInfo) throws ServiceManagerException {
@@ -53,13 +56,16 @@ public class SystemService extends ServiceDataCluster implements I_SystemService
     @Override
     public UUID create(String description, String settings) throws Exception {
         I_SystemAccess systemAccess = I_SystemAccess.getInstance(getDataAccess(), description, settings);
-        return systemAccess.commit();
+        return timed(CREATE_TIMER, () -> systemAccess.commit());
     }
 
     @Override
     public Integer delete(UUID id) throws Exception {
         I_SystemAccess systemAccess = I_SystemAccess.retrieveInstance(getDataAccess(), id);
-        return systemAccess.delete();
+        Integer result = timed(DELETE_TIMER, () -> systemAccess.delete());
+        if (getAuditCache() != null)
+            getAuditCache().invalidateSystem(id);
+        return result;
     }
 
     @Override
@@ -25,6 +25,7 @@ import com.ethercis.logonservice.session.ResponseHolder;
 import com.ethercis.logonservice.session.SessionInfo;
 import com.ethercis.servicemanager.annotation.*;
 import com.ethercis.servicemanager.cluster.ClusterInfo;
+import com.ethercis.servicemanager.cluster.ContextNode;
 import com.ethercis.servicemanager.cluster.RunTimeSingleton;
 import com.ethercis.servicemanager.common.ClientProperty;
 import com.ethercis.servicemanager.common.I_SessionClientProperties;
@@ -42,6 +43,7 @@ import com.ethercis.servicemanager.common.session.I_SessionHolder;
 import com.ethercis.servicemanager.common.session.I_SessionInfo;
 import com.ethercis.servicemanager.exceptions.ServiceManagerException;
 import com.ethercis.servicemanager.jmx.SerializeHelper;
+import com.ethercis.servicemanager.metrics.LatencyTimer;
 import com.ethercis.servicemanager.runlevel.I_ServiceRunMode;
 import com.ethercis.servicemanager.service.ServiceInfo;
 import com.ethercis.servicemanager.service.ServiceRegistry;
@@ -122,6 +124,7 @@ public class AccessGateService extends ClusterInfo implements AccessGateServiceM
 	private LogonService logonService;
 	private I_PolicyManager policyManager;
 	private I_SessionLoggerService sessionLoggerService = null;
+	private AccessLogWriter accessLogWriter = null;
 
     private String CONNECT_PATH;
     private String CONNECT_METHOD;
@@ -184,6 +187,17 @@ public class AccessGateService extends ClusterInfo implements AccessGateServiceM
 			log.warn("sessionLoggerService is not loaded, no session logging will be done");
 		}
 
+		try {
+			accessLogWriter = new AccessLogWriter(global);
+			accessLogWriter.setSessionLogger(sessionLoggerService, global.getProperty().get("server.node.id", "local"));
+			AccessLog.install(accessLogWriter);
+			global.registerMBean(new ContextNode(ContextNode.SERVICE_MARKER_TAG, "AccessLog", global.getScopeContextNode()), accessLogWriter);
+		} catch (IOException e) {
+			log.warn("Could not open access log, access is logged synchronously:" + e.getMessage());
+		} catch (ServiceManagerException e) {
+			log.warn("Could not register access log MBean:" + e.getMessage());
+		}
+
 //		String policyType = global.getProperty().get(Constants.POLICY_TYPE_TAG,
 //				Constants.STR_POLICY_XML); // default mode is XML
 //
@@ -197,6 +211,11 @@ public class AccessGateService extends ClusterInfo implements AccessGateServiceM
 	public void shutdown() throws ServiceManagerException {
 		super.shutdown();
 
+		if (accessLogWriter != null) {
+			AccessLog.uninstall();
+			accessLogWriter.shutdown(); //pending session log entries are written before the purge
+		}
+
 		if (sessionLoggerService != null)
 			sessionLoggerService.purge(global.getProperty().get("server.node.id", "local"));
 	}
@@ -258,7 +277,16 @@ public class AccessGateService extends ClusterInfo implements AccessGateServiceM
 
 		if (isConnectAction(path, action, method)) {
 			ResponseHolder responseHolder = (ResponseHolder)serviceConnect(hdrprops, path, action, method, parameters);
-			if (sessionLoggerService != null) {
+			if (sessionLoggerService != null && accessLogWriter != null) {
+				accessLogWriter.session(
+						((SessionClientProperties) parameters[0]).getClientProperty("username"),
+						responseHolder.getSessionClientProperties().getClientProperty("Ehr-Session"),
+						responseHolder.getSessionClientProperties().getClientProperty("x-session-name"),
+						responseHolder.getSessionClientProperties().getClientProperty("__rcvTimestampStr"),
+						((SessionClientProperties) parameters[0]).getClientProperty("x-client-ip")
+				);
+			}
+			else if (sessionLoggerService != null) {
 				sessionLoggerService.log(
 						((SessionClientProperties) parameters[0]).getClientProperty("username").getStringValue(),
 						global.getProperty().get("server.node.id", "local"),
@@ -301,7 +329,7 @@ public class AccessGateService extends ClusterInfo implements AccessGateServiceM
 		// Log query
 		//AccessLog.log(subjectSecurityContext.gtName(), method.getMethodName(),path);
 		//AccessLog.info(qryunit.toString());
-		AccessLog.info("userId="+subjectSecurityContext.getUserId()+",method="+method.getMethodName()+",path="+path+",qryparams="+qryparms.toString());
+		AccessLog.access(subjectSecurityContext.getUserId(), method.getMethodName(), path, qryparms);
 
 		if (!sessionSecurityContext.isAuthorized(sessionholder, contextholder)) {
 			String msg = "Subject:" + subjectSecurityContext.getUserId()
@@ -450,6 +478,23 @@ public class AccessGateService extends ClusterInfo implements AccessGateServiceM
 		return requestDispatcher.isMappedMethodAsync(action, path, method);
 	}
 
+	public RouteTable.Route getRoute(MethodName action, String path,
+			MethodName method) {
+		return requestDispatcher.getRoute(action, path, method);
+	}
+
+	public LatencyTimer getRouteTimer(MethodName action, RouteTable.Route route) {
+		return requestDispatcher.getRouteTimer(action, route);
+	}
+
+	/**
+	 * return the paths known by the dispatcher
+	 * @return
+	 */
+	public Set<String> getMappedPaths() {
+		return requestDispatcher.getMappedPaths();
+	}
+
 
 	/**
 	 * little helper to get a ClientProperty and deal with array of parameters
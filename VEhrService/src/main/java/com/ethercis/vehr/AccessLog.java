@@ -16,46 +16,70 @@
  */
 package com.ethercis.vehr;
 
+import com.ethercis.servicemanager.common.I_SessionClientProperties;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.io.File;
 
-//TODO: make this guy a service
+/**
+ * Access log facade<p>
+ * Records are passed to the asynchronous AccessLogWriter when installed, otherwise they are logged
+ * synchronously to the ETHERCIS_AUDIT_LOG logger. The writer passes them on to the same logger unless
+ * <code>server.access_log.log4j</code> is false.
+ */
 public class AccessLog {
 	static Logger logger= LogManager.getLogger("ETHERCIS_AUDIT_LOG");
-	static {
+
+	private static volatile AccessLogWriter writer;
+
+	/**
+	 * @return $ETHERCIS_HOME/logs or ~/logs
+	 */
+	public static String defaultDirectory() {
 		String baseDir = System.getenv("ETHERCIS_HOME");
 		if(baseDir==null){
 			baseDir= System.getProperty("user.home");
 		}
-		File dir = new File(baseDir + File.separator + "logs");
-		if (!dir.exists()) {
-			dir.mkdirs();
-		}
-		//TODO: configure externally
+		return baseDir + File.separator + "logs";
+	}
 
-//		FileAppender fa = new FileAppender();
-//		fa.setName(AccessLog.class.getCanonicalName());
-//		fa.setFile(dir.getAbsolutePath() + File.separator + "access.log");
-//		fa.setLayout(new PatternLayout("%d %m%n"));
-//		fa.setThreshold(Level.INFO);
-//		fa.setAppend(true);
-//		fa.activateOptions();
-//
-//		// add appender to any Logger (here is root)
-//		logger.addAppender(fa);
+	public static void install(AccessLogWriter accessLogWriter) {
+		writer = accessLogWriter;
 	}
-	
+
+	public static void uninstall() {
+		writer = null;
+	}
+
 	/**
 	 * 
 	 * @param user
 	 * @param method
 	 * @param path
-	 * @param query
 	 */
 	public static void log(String user,String method,String path){
-		logger.info(user + ":" +method +":" + path);		
+		AccessLogWriter accessLogWriter = writer;
+		if (accessLogWriter != null)
+			accessLogWriter.connect(user, method, path);
+		else
+			logger.info(user + ":" +method +":" + path);
+	}
+
+	/**
+	 * log a query before its authorization is checked, denied queries are logged as well. The parameters
+	 * are not formatted by the caller
+	 * @param user
+	 * @param method
+	 * @param path
+	 * @param parameters
+	 */
+	public static void access(String user, String method, String path, I_SessionClientProperties parameters){
+		AccessLogWriter accessLogWriter = writer;
+		if (accessLogWriter != null)
+			accessLogWriter.access(user, method, path, parameters);
+		else if (logger.isInfoEnabled())
+			logger.info("userId="+user+",method="+method+",path="+path+",qryparams="+parameters);
 	}
 	
 	public static void info(String msg)
@@ -0,0 +1,518 @@
+/*
+ * Copyright (c) 2015 Christian Chevalley
+ * This file is part of Project Ethercis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ethercis.vehr;
+
+import com.ethercis.servicemanager.cluster.RunTimeSingleton;
+import com.ethercis.servicemanager.common.ClientProperty;
+import com.ethercis.servicemanager.common.I_SessionClientProperties;
+import com.ethercis.sessionlogger.I_SessionLoggerService;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * ETHERCIS Project VirtualEhr
+ * <p>
+ * Asynchronous access log.<p>
+ * Request threads only claim a slot in a lock free ring buffer of preallocated records and copy references
+ * into it, the records are formatted and written by a single background thread. Session logger calls are
+ * queued on the same path and invoked from the writer thread.<p>
+ * Configuration:
+ * <ul>
+ * <li><code>server.access_log.path</code>: log directory, default $ETHERCIS_HOME/logs
+ * <li><code>server.access_log.format</code>: text (access.log, default) or binary (gzip compressed access.bin.gz)
+ * <li><code>server.access_log.buffer_size</code>: number of records in the ring buffer, rounded to a power of 2 (8192)
+ * <li><code>server.access_log.overflow</code>: drop (default) discards a record when the buffer is full, block waits
+ * up to <code>server.access_log.block_timeout</code> ms for the writer before dropping it
+ * <li><code>server.access_log.max_size</code>: size in bytes triggering a rotation (100MB)
+ * <li><code>server.access_log.rotate_interval</code>: max age of the current file in ms (1 day)
+ * <li><code>server.access_log.max_files</code>: number of rotated files kept (10, 0 keeps all)
+ * <li><code>server.access_log.log4j</code>: also pass the records to the ETHERCIS_AUDIT_LOG logger, from the writer
+ * thread (true). Set to false when the access log file replaces the log4j audit appender.
+ * </ul>
+ * A failed rotation keeps writing to the current file and is retried with an increasing delay.
+ */
+public class AccessLogWriter implements AccessLogWriterMBean {
+
+	public static final String PATH_PROPERTY = "server.access_log.path";
+	public static final String FORMAT_PROPERTY = "server.access_log.format";
+	public static final String BUFFER_SIZE_PROPERTY = "server.access_log.buffer_size";
+	public static final String OVERFLOW_PROPERTY = "server.access_log.overflow";
+	public static final String BLOCK_TIMEOUT_PROPERTY = "server.access_log.block_timeout";
+	public static final String MAX_SIZE_PROPERTY = "server.access_log.max_size";
+	public static final String ROTATE_INTERVAL_PROPERTY = "server.access_log.rotate_interval";
+	public static final String MAX_FILES_PROPERTY = "server.access_log.max_files";
+	public static final String LOG4J_PROPERTY = "server.access_log.log4j";
+
+	private static Logger log = LogManager.getLogger(AccessLogWriter.class);
+
+	private static final byte ACCESS = 1;
+	private static final byte CONNECT = 2;
+	private static final byte SESSION = 3;
+
+	private static final int MAX_BATCH = 512;
+	private static final long MIN_ROTATE_RETRY = 1000L;
+	private static final long MAX_ROTATE_RETRY = 60000L;
+	private static final ClientProperty[] NO_PARAMETERS = new ClientProperty[0];
+
+	/**
+	 * a slot of the ring buffer, fields are written by the claiming thread and read by the writer thread
+	 */
+	private static final class Record {
+		byte type;
+		long timestamp;
+		String userId;
+		String method;
+		String path;
+		ClientProperty[] parameters;
+		//session logger
+		ClientProperty sessionUser;
+		ClientProperty sessionId;
+		ClientProperty sessionName;
+		ClientProperty sessionTimestamp;
+		ClientProperty clientIp;
+
+		void clear() {
+			userId = method = path = null;
+			parameters = null;
+			sessionUser = sessionId = sessionName = sessionTimestamp = clientIp = null;
+		}
+	}
+
+	private final boolean binary;
+	private final boolean log4j;
+	private final boolean block;
+	private final long blockTimeoutNanos;
+	private final long maxSize;
+	private final long rotateInterval;
+	private final int maxFiles;
+	private final File directory;
+	private final String baseName;
+	private final String extension;
+
+	private final Record[] ring;
+	private final int mask;
+	//sequence of the record published in each slot
+	private final AtomicLongArray published;
+	//next sequence to claim
+	private final AtomicLong claimed = new AtomicLong();
+	//next sequence to write, updated by the writer thread only
+	private volatile long consumed = 0;
+
+	private final Thread writer;
+	private volatile boolean running = true;
+	private volatile boolean rotateRequested = false;
+
+	private volatile I_SessionLoggerService sessionLoggerService;
+	private volatile String nodeId;
+
+	//owned by the writer thread
+	private CountingOutputStream fileStream;
+	private OutputStream out;
+	private long openedAt;
+	private long rotateRetryAt = 0;
+	private long rotateRetryDelay = MIN_ROTATE_RETRY;
+	private final SimpleDateFormat timestampFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+	private final StringBuilder line = new StringBuilder(512);
+	private final StringBuilder message = new StringBuilder(512);
+
+	//metrics
+	private final AtomicLong written = new AtomicLong();
+	private final AtomicLong batches = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong backpressured = new AtomicLong();
+	private final AtomicLong errors = new AtomicLong();
+	private final AtomicLong rotations = new AtomicLong();
+
+	public AccessLogWriter(RunTimeSingleton global) throws IOException {
+		this.binary = "binary".equals(global.getProperty().get(FORMAT_PROPERTY, "text"));
+		this.log4j = global.getProperty().get(LOG4J_PROPERTY, true);
+		this.block = "block".equals(global.getProperty().get(OVERFLOW_PROPERTY, "drop"));
+		this.blockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(global.getProperty().get(BLOCK_TIMEOUT_PROPERTY, 10L));
+		this.maxSize = global.getProperty().get(MAX_SIZE_PROPERTY, 100L * 1024 * 1024);
+		this.rotateInterval = global.getProperty().get(ROTATE_INTERVAL_PROPERTY, 24L * 3600 * 1000);
+		this.maxFiles = global.getProperty().get(MAX_FILES_PROPERTY, 10);
+		this.directory = new File(global.getProperty().get(PATH_PROPERTY, AccessLog.defaultDirectory()));
+		this.baseName = "access";
+		this.extension = binary ? ".bin.gz" : ".log";
+
+		int size = Math.max(16, global.getProperty().get(BUFFER_SIZE_PROPERTY, 8192));
+		int capacity = Integer.bitCount(size) == 1 ? size : Integer.highestOneBit(size) << 1;
+		this.ring = new Record[capacity];
+		for (int i = 0; i < capacity; i++)
+			ring[i] = new Record();
+		this.mask = capacity - 1;
+		this.published = new AtomicLongArray(capacity);
+		for (int i = 0; i < capacity; i++)
+			published.set(i, -1L);
+
+		timestampFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+		if (!directory.exists())
+			directory.mkdirs();
+		open();
+
+		writer = new Thread(this::drain, "access-log-writer");
+		writer.setDaemon(true);
+		writer.start();
+
+		log.info("Access log: " + new File(directory, baseName + extension) + ", buffer=" + capacity + ", overflow=" + (block ? "block" : "drop"));
+	}
+
+	/**
+	 * session logger calls are made from the writer thread
+	 */
+	public void setSessionLogger(I_SessionLoggerService sessionLoggerService, String nodeId) {
+		this.nodeId = nodeId;
+		this.sessionLoggerService = sessionLoggerService;
+	}
+
+	/**
+	 * log a query before its authorization is checked, the parameters are formatted by the writer thread
+	 */
+	public void access(String userId, String method, String path, I_SessionClientProperties parameters) {
+		long sequence = claim();
+		if (sequence < 0)
+			return;
+		Record record = ring[(int) (sequence & mask)];
+		record.type = ACCESS;
+		record.timestamp = System.currentTimeMillis();
+		record.userId = userId;
+		record.method = method;
+		record.path = path;
+		//snapshot, the parameters are modified further down the request
+		record.parameters = parameters == null ? NO_PARAMETERS : parameters.getClientPropertyArr();
+		published.set((int) (sequence & mask), sequence);
+	}
+
+	/**
+	 * log a connect or disconnect
+	 */
+	public void connect(String userId, String method, String path) {
+		long sequence = claim();
+		if (sequence < 0)
+			return;
+		Record record = ring[(int) (sequence & mask)];
+		record.type = CONNECT;
+		record.timestamp = System.currentTimeMillis();
+		record.userId = userId;
+		record.method = method;
+		record.path = path;
+		published.set((int) (sequence & mask), sequence);
+	}
+
+	/**
+	 * queue a session logger entry for a new session
+	 */
+	public void session(ClientProperty user, ClientProperty sessionId, ClientProperty sessionName, ClientProperty timestamp, ClientProperty clientIp) {
+		if (sessionLoggerService == null)
+			return;
+		long sequence = claim();
+		if (sequence < 0)
+			return;
+		Record record = ring[(int) (sequence & mask)];
+		record.type = SESSION;
+		record.timestamp = System.currentTimeMillis();
+		record.sessionUser = user;
+		record.sessionId = sessionId;
+		record.sessionName = sessionName;
+		record.sessionTimestamp = timestamp;
+		record.clientIp = clientIp;
+		published.set((int) (sequence & mask), sequence);
+	}
+
+	/**
+	 * @return the claimed sequence or -1 if the record is dropped
+	 */
+	private long claim() {
+		if (!running) {
+			dropped.incrementAndGet();
+			return -1;
+		}
+		long deadline = 0;
+		while (true) {
+			long sequence = claimed.get();
+			if (sequence - consumed >= ring.length) {
+				if (!block) {
+					dropped.incrementAndGet();
+					return -1;
+				}
+				if (deadline == 0) {
+					backpressured.incrementAndGet();
+					deadline = System.nanoTime() + blockTimeoutNanos;
+				} else if (System.nanoTime() - deadline > 0) {
+					dropped.incrementAndGet();
+					return -1;
+				}
+				LockSupport.parkNanos(50000);
+				continue;
+			}
+			if (claimed.compareAndSet(sequence, sequence + 1))
+				return sequence;
+		}
+	}
+
+	private void drain() {
+		while (true) {
+			long next = consumed;
+			int batch = 0;
+			while (batch < MAX_BATCH && published.get((int) (next & mask)) == next) {
+				Record record = ring[(int) (next & mask)];
+				try {
+					write(record);
+				} catch (Exception e) {
+					errors.incrementAndGet();
+					log.warn("Could not write access log record:" + e);
+				}
+				record.clear();
+				consumed = ++next;
+				batch++;
+			}
+			if (batch > 0) {
+				try {
+					out.flush();
+				} catch (IOException e) {
+					errors.incrementAndGet();
+					log.warn("Could not flush access log:" + e);
+				}
+				written.addAndGet(batch);
+				batches.incrementAndGet();
+			}
+
+			long now = System.currentTimeMillis();
+			if ((rotateRequested || fileStream.count >= maxSize || now - openedAt >= rotateInterval) && now >= rotateRetryAt) {
+				rotateRequested = false;
+				try {
+					rotateFile();
+					rotateRetryDelay = MIN_ROTATE_RETRY;
+				} catch (IOException e) {
+					errors.incrementAndGet();
+					log.error("Could not rotate access log, retrying in " + rotateRetryDelay + " ms:" + e);
+					rotateRetryAt = now + rotateRetryDelay;
+					rotateRetryDelay = Math.min(rotateRetryDelay * 2, MAX_ROTATE_RETRY);
+				}
+			}
+
+			if (batch == 0) {
+				if (!running && claimed.get() == consumed)
+					break;
+				LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(5));
+			}
+		}
+		try {
+			out.close();
+		} catch (IOException e) {
+			log.warn("Could not close access log:" + e);
+		}
+	}
+
+	private void write(Record record) throws IOException {
+		if (record.type == SESSION) {
+			I_SessionLoggerService sessionLogger = this.sessionLoggerService;
+			if (sessionLogger != null)
+				sessionLogger.log(value(record.sessionUser), nodeId, value(record.sessionId), value(record.sessionName), value(record.sessionTimestamp), value(record.clientIp));
+			return;
+		}
+
+		String text = null;
+		if (log4j && AccessLog.logger.isInfoEnabled()) {
+			text = format(record);
+			AccessLog.logger.info(text);
+		}
+
+		if (binary) {
+			DataOutputStream data = (DataOutputStream) out;
+			data.writeByte(record.type);
+			data.writeLong(record.timestamp);
+			writeNullable(data, record.userId);
+			writeNullable(data, record.method);
+			writeNullable(data, record.path);
+			ClientProperty[] parameters = record.type == ACCESS ? record.parameters : NO_PARAMETERS;
+			data.writeShort(parameters.length);
+			for (ClientProperty parameter : parameters) {
+				writeNullable(data, parameter == null ? null : parameter.getName());
+				writeNullable(data, value(parameter));
+			}
+			return;
+		}
+
+		line.setLength(0);
+		line.append(timestampFormat.format(new Date(record.timestamp))).append(' ');
+		line.append(text != null ? text : format(record));
+		line.append('\n');
+		out.write(line.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	private String format(Record record) {
+		message.setLength(0);
+		if (record.type == ACCESS) {
+			message.append("userId=").append(record.userId).append(",method=").append(record.method).append(",path=").append(record.path).append(",qryparams={");
+			for (ClientProperty parameter : record.parameters) {
+				if (parameter == null)
+					continue;
+				message.append(parameter.getName()).append('=').append(parameter.getStringValue()).append(';');
+			}
+			message.append('}');
+		} else
+			message.append(record.userId).append(':').append(record.method).append(':').append(record.path);
+		return message.toString();
+	}
+
+	private static String value(ClientProperty property) {
+		return property == null ? null : property.getStringValue();
+	}
+
+	private static void writeNullable(DataOutputStream data, String value) throws IOException {
+		data.writeBoolean(value != null);
+		if (value != null)
+			data.writeUTF(value);
+	}
+
+	private void open() throws IOException {
+		File file = new File(directory, baseName + extension);
+		//a compressed stream cannot be appended to, the previous file is rotated
+		if (binary && file.exists() && file.length() > 0)
+			file.renameTo(rotatedFile(file.lastModified()));
+		CountingOutputStream counting = new CountingOutputStream(new FileOutputStream(file, !binary), file.length());
+		try {
+			out = binary ? new DataOutputStream(new GZIPOutputStream(new BufferedOutputStream(counting, 65536), 65536, true))
+					: new BufferedOutputStream(counting, 65536);
+		} catch (IOException e) {
+			counting.close();
+			throw e;
+		}
+		fileStream = counting;
+		openedAt = System.currentTimeMillis();
+	}
+
+	private File rotatedFile(long time) {
+		String suffix = new SimpleDateFormat("yyyyMMdd-HHmmss-SSS").format(new Date(time));
+		File file = new File(directory, baseName + "-" + suffix + extension);
+		for (int i = 1; file.exists(); i++)
+			file = new File(directory, baseName + "-" + suffix + "-" + i + extension);
+		return file;
+	}
+
+	/**
+	 * the current stream is closed only once the new file is open, an open stream keeps writing to the
+	 * renamed file
+	 */
+	private void rotateFile() throws IOException {
+		File file = new File(directory, baseName + extension);
+		File renamed = rotatedFile(System.currentTimeMillis());
+		if (!file.renameTo(renamed))
+			throw new IOException("Could not rename access log " + file);
+		OutputStream previous = out;
+		try {
+			open();
+		} catch (IOException e) {
+			if (!renamed.renameTo(file))
+				log.warn("Could not restore access log " + file + ", records are written to " + renamed);
+			throw e;
+		}
+		try {
+			previous.close();
+		} catch (IOException e) {
+			errors.incrementAndGet();
+			log.warn("Could not close rotated access log " + renamed + ":" + e);
+		}
+		rotations.incrementAndGet();
+
+		if (maxFiles > 0) {
+			File[] rotated = directory.listFiles((dir, name) -> name.startsWith(baseName + "-") && name.endsWith(extension));
+			if (rotated != null && rotated.length > maxFiles) {
+				Arrays.sort(rotated);
+				for (int i = 0; i < rotated.length - maxFiles; i++)
+					rotated[i].delete();
+			}
+		}
+	}
+
+	/**
+	 * stop accepting records and wait for the pending ones to be written
+	 */
+	public void shutdown() {
+		running = false;
+		try {
+			writer.join(5000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static final class CountingOutputStream extends FilterOutputStream {
+		long count;
+
+		CountingOutputStream(OutputStream out, long count) {
+			super(out);
+			this.count = count;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+	}
+
+	@Override
+	public String status() {
+		return "Access log: format=" + (binary ? "binary" : "text") + " overflow=" + (block ? "block" : "drop")
+				+ " buffer=" + ring.length + " pending=" + (claimed.get() - consumed)
+				+ " written=" + written.get() + " batches=" + batches.get() + " dropped=" + dropped.get()
+				+ " backpressured=" + backpressured.get() + " errors=" + errors.get() + " rotations=" + rotations.get() + "\n";
+	}
+
+	@Override
+	public String rotate() {
+		rotateRequested = true;
+		return "Rotation requested";
+	}
+
+	@Override
+	public String resetCounters() {
+		written.set(0);
+		batches.set(0);
+		dropped.set(0);
+		backpressured.set(0);
+		errors.set(0);
+		rotations.set(0);
+		return "Counters reset";
+	}
+}
@@ -0,0 +1,354 @@
+/*
+ * Copyright (c) 2015 Christian Chevalley
+ * This file is part of Project Ethercis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ethercis.vehr;
+
+import com.ethercis.servicemanager.cluster.RunTimeSingleton;
+import com.ethercis.servicemanager.common.def.SysErrorCode;
+import com.ethercis.servicemanager.exceptions.ServiceManagerException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.lang.reflect.Method;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ETHERCIS Project VirtualEhr
+ * <p>
+ * Executor used by the gate servlet to service asynchronous queries.<p>
+ * The execution strategy is selected with <code>server.executor</code>:
+ * <ul>
+ * <li>fixed: a fixed pool of <code>server.threadpoolsize</code> threads (default)
+ * <li>virtual: one virtual thread per task, requires a JVM providing virtual threads, falls back to forkjoin otherwise
+ * <li>forkjoin: a ForkJoinPool of <code>server.threadpoolsize</code> workers, blocking calls are run as managed blocks
+ * so that the pool compensates for workers blocked on JDBC
+ * </ul>
+ * The number of tasks accepted (running or queued) is bounded by <code>server.executor.queue_size</code> on top of
+ * the pool size, when saturated a request is rejected immediately with a 503 instead of waiting for the callback timeout.
+ * <p>
+ * Per route concurrency limits (bulkheads) are compiled from the dispatcher mapped paths. The default limit is given
+ * by <code>server.executor.route_limit</code> (0 = no limit) and can be overridden for a path with
+ * <code>server.executor.route_limit.&lt;path&gt;</code>. Bulkheads apply to synchronous and asynchronous requests.
+ */
+public class DispatchExecutor implements DispatchExecutorMBean {
+
+    public enum Strategy { FIXED, VIRTUAL, FORKJOIN }
+
+    public static final String EXECUTOR_PROPERTY = "server.executor";
+    public static final String QUEUE_SIZE_PROPERTY = "server.executor.queue_size";
+    public static final String ROUTE_LIMIT_PROPERTY = "server.executor.route_limit";
+
+    private static final String ME = "DispatchExecutor";
+    private static Logger log = LogManager.getLogger(DispatchExecutor.class);
+
+    private final RunTimeSingleton global;
+    private final Strategy strategy;
+    private final ExecutorService executor;
+    private final int poolSize;
+    private final int capacity;
+    private final Semaphore slots;
+
+    private volatile Map<String, Bulkhead> bulkheads = Collections.emptyMap();
+
+    //metrics
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong waitTimeNanos = new AtomicLong();
+    private final AtomicLong maxWaitTimeNanos = new AtomicLong();
+
+    /**
+     * per path concurrency limit
+     */
+    public static final class Bulkhead {
+        private final String path;
+        private final int limit;
+        private final Semaphore permits;
+        private final AtomicLong rejected = new AtomicLong();
+
+        Bulkhead(String path, int limit) {
+            this.path = path;
+            this.limit = limit;
+            this.permits = new Semaphore(limit);
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public int getLimit() {
+            return limit;
+        }
+
+        public int getActive() {
+            return limit - permits.availablePermits();
+        }
+
+        public long getRejected() {
+            return rejected.get();
+        }
+
+        public void release() {
+            permits.release();
+        }
+    }
+
+    public DispatchExecutor(RunTimeSingleton global, int poolSize) {
+        this.global = global;
+        this.poolSize = poolSize;
+
+        Strategy selected;
+        String strategyValue = global.getProperty().get(EXECUTOR_PROPERTY, Strategy.FIXED.toString());
+        try {
+            selected = Strategy.valueOf(strategyValue.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            log.warn("Unknown executor strategy:" + strategyValue + ", using fixed");
+            selected = Strategy.FIXED;
+        }
+
+        ExecutorService service = null;
+        if (selected == Strategy.VIRTUAL) {
+            service = newVirtualThreadExecutor();
+            if (service == null) {
+                log.warn("Virtual threads are not supported by this JVM, using forkjoin");
+                selected = Strategy.FORKJOIN;
+            }
+        }
+
+        switch (selected) {
+            case FORKJOIN:
+                service = new ForkJoinPool(poolSize, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+                break;
+            case FIXED:
+                service = Executors.newFixedThreadPool(poolSize);
+                break;
+            default:
+                break;
+        }
+
+        this.strategy = selected;
+        this.executor = service;
+
+        int queueSize = global.getProperty().get(QUEUE_SIZE_PROPERTY, 1000);
+        //with virtual threads every accepted task runs at once, the queue size bounds the tasks in flight
+        this.capacity = strategy == Strategy.VIRTUAL ? queueSize : poolSize + queueSize;
+        this.slots = new Semaphore(capacity);
+
+        log.info("Servlet executor:" + strategy.toString().toLowerCase() + ", pool size:" + poolSize + ", capacity:" + capacity);
+    }
+
+    /**
+     * uses Executors.newVirtualThreadPerTaskExecutor() if available at runtime
+     * @return the executor or null if not supported
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * build the bulkheads for the dispatcher mapped paths
+     * @param paths
+     */
+    public void compileBulkheads(Collection<String> paths) {
+        int defaultLimit = global.getProperty().get(ROUTE_LIMIT_PROPERTY, 0);
+        Map<String, Bulkhead> compiled = new TreeMap<>();
+
+        for (String path : paths) {
+            int limit = global.getProperty().get(ROUTE_LIMIT_PROPERTY + "." + path, defaultLimit);
+            if (limit > 0)
+                compiled.put(path, new Bulkhead(path, limit));
+        }
+
+        bulkheads = Collections.unmodifiableMap(compiled);
+        log.info("Compiled " + compiled.size() + " route bulkheads");
+    }
+
+    /**
+     * enter the bulkhead for a path
+     * @param path the mapped path
+     * @return the bulkhead to release when done or null if the path is not limited
+     * @throws ServiceManagerException if the route is saturated
+     */
+    public Bulkhead enter(String path) throws ServiceManagerException {
+        Bulkhead bulkhead = path == null ? null : bulkheads.get(path);
+        if (bulkhead == null)
+            return null;
+
+        if (!bulkhead.permits.tryAcquire()) {
+            bulkhead.rejected.incrementAndGet();
+            throw new ServiceManagerException(global, SysErrorCode.RESOURCE_TEMPORARY_UNAVAILABLE, ME, "Too many concurrent requests on:" + path + ", please try again");
+        }
+        return bulkhead;
+    }
+
+    /**
+     * submit a task
+     * @param task
+     * @throws ServiceManagerException if the executor is saturated or shut down
+     */
+    public void execute(final Runnable task) throws ServiceManagerException {
+        if (!slots.tryAcquire()) {
+            rejected.incrementAndGet();
+            throw new ServiceManagerException(global, SysErrorCode.RESOURCE_TEMPORARY_UNAVAILABLE, ME, "Server is busy (" + capacity + " pending requests), please try again");
+        }
+
+        final long enqueued = System.nanoTime();
+        queued.incrementAndGet();
+        submitted.incrementAndGet();
+
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    queued.decrementAndGet();
+                    running.incrementAndGet();
+                    recordWait(System.nanoTime() - enqueued);
+                    try {
+                        if (strategy == Strategy.FORKJOIN)
+                            runBlocking(task);
+                        else
+                            task.run();
+                    } finally {
+                        running.decrementAndGet();
+                        slots.release();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            queued.decrementAndGet();
+            slots.release();
+            rejected.incrementAndGet();
+            throw new ServiceManagerException(global, SysErrorCode.RESOURCE_UNAVAILABLE, ME, "Executor is not accepting requests:" + e);
+        }
+    }
+
+    private void recordWait(long wait) {
+        waitTimeNanos.addAndGet(wait);
+        long max = maxWaitTimeNanos.get();
+        while (wait > max && !maxWaitTimeNanos.compareAndSet(max, wait))
+            max = maxWaitTimeNanos.get();
+    }
+
+    /**
+     * run a task as a managed block, the pool may then add a worker while this one waits on I/O
+     * @param task
+     */
+    private static void runBlocking(final Runnable task) {
+        try {
+            ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+                private boolean done = false;
+
+                @Override
+                public boolean block() {
+                    task.run();
+                    done = true;
+                    return true;
+                }
+
+                @Override
+                public boolean isReleasable() {
+                    return done;
+                }
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * record an asynchronous request that timed out before completion
+     */
+    public void timedOut() {
+        timeouts.incrementAndGet();
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(5, TimeUnit.SECONDS))
+                executor.shutdownNow();
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public Strategy getStrategy() {
+        return strategy;
+    }
+
+    public int getQueueDepth() {
+        return queued.get();
+    }
+
+    public int getRunning() {
+        return running.get();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    public String status() {
+        StringBuffer sb = new StringBuffer();
+        long started = submitted.get() - queued.get();
+        sb.append("Executor:" + strategy.toString().toLowerCase() + " pool size:" + poolSize + " capacity:" + capacity + "\n");
+        sb.append("queued=" + queued.get() + " running=" + running.get() + " submitted=" + submitted.get());
+        sb.append(" rejected=" + rejected.get() + " timeouts=" + timeouts.get() + "\n");
+        sb.append("wait time avg=" + (started > 0 ? TimeUnit.NANOSECONDS.toMicros(waitTimeNanos.get() / started) : 0) + "us");
+        sb.append(" max=" + TimeUnit.NANOSECONDS.toMicros(maxWaitTimeNanos.get()) + "us\n");
+        return sb.toString();
+    }
+
+    public String showBulkheads() {
+        StringBuffer sb = new StringBuffer();
+        sb.append("---- Bulkheads (active/limit rejected) -------\n");
+        for (Bulkhead bulkhead : bulkheads.values()) {
+            sb.append(bulkhead.getPath() + " " + bulkhead.getActive() + "/" + bulkhead.getLimit());
+            sb.append(" rejected=" + bulkhead.getRejected() + "\n");
+        }
+        return sb.toString();
+    }
+
+    public String resetCounters() {
+        submitted.set(queued.get());
+        rejected.set(0);
+        timeouts.set(0);
+        waitTimeNanos.set(0);
+        maxWaitTimeNanos.set(0);
+        for (Bulkhead bulkhead : bulkheads.values())
+            bulkhead.rejected.set(0);
+        return "Executor counters reset\n";
+    }
+}
@@ -26,12 +26,13 @@ import com.ethercis.servicemanager.cluster.RunTimeSingleton;
 import com.ethercis.servicemanager.cluster.ClusterInfo;
 import com.ethercis.servicemanager.cluster.ContextNode;
 import com.ethercis.servicemanager.common.I_SessionClientProperties;
-import com.ethercis.servicemanager.common.SessionClientProperties;
 import com.ethercis.servicemanager.common.def.Constants;
 import com.ethercis.servicemanager.common.def.MethodName;
 import com.ethercis.servicemanager.common.def.SysErrorCode;
 import com.ethercis.servicemanager.common.session.I_QueryUnit;
 import com.ethercis.servicemanager.exceptions.ServiceManagerException;
+import com.ethercis.servicemanager.metrics.LatencyTimer;
+import com.ethercis.servicemanager.metrics.MetricsRegistry;
 import com.ethercis.servicemanager.service.I_Service;
 import com.ethercis.servicemanager.service.ServiceInfo;
 import org.apache.logging.log4j.LogManager;
@@ -41,12 +42,14 @@ import org.apache.xmlbeans.XmlException;
 import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.Array;
-import java.lang.reflect.InvocationTargetException;
+import java.lang.invoke.WrongMethodTypeException;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 
 /**
@@ -111,6 +114,7 @@ public class RequestDispatcher extends ClusterInfo implements RequestDispatcherM
 	private Object mbeanHandle;
 	private ContextNode contextNode;
 	private I_DispatchMapper dispatchMapFactory;
+	private volatile RouteTable routeTable = new RouteTable(); //compiled from actionmap
 
 	public static class ServiceAttribute {
 		/**
@@ -399,6 +403,8 @@ public class RequestDispatcher extends ClusterInfo implements RequestDispatcherM
 				}
 			}
 
+			compileRoutes();
+
 		} catch (XmlException e) {
 			log.warn("Could not parse config file:" + pathToConfig + ","
 					+ e.getMessage());
@@ -498,17 +504,8 @@ public class RequestDispatcher extends ClusterInfo implements RequestDispatcherM
 	 */
 	public int getMappedMethodReturnType(MethodName action, String path,
 			MethodName method) {
-		if (actionmap.containsKey(action.getMethodName())) {
-			Map<String, ServiceAttribute> servicemap = actionmap.get(action
-					.getMethodName());
-			//System.respond.println("servicemap=" +action.getMethodName() +":" +path + ":"+method.getMethodName() );
-			if (servicemap.containsKey(path)) {
-				ServiceAttribute sa = servicemap.get(path);
-				// get the method
-				return sa.getMethodReturnType(method);
-			}
-		}
-		return MethodName.RETURN_UNDEFINED;
+		RouteTable.Route route = routeTable.lookup(action, path, method);
+		return route == null ? MethodName.RETURN_UNDEFINED : route.getReturnType();
 	}
 
 	/**
@@ -520,35 +517,77 @@ public class RequestDispatcher extends ClusterInfo implements RequestDispatcherM
 	 * @return
 	 */
 	public boolean isMappedMethodAsync(MethodName action, String path,MethodName method) {
-		if (actionmap.containsKey(action.getMethodName())) {
-			Map<String, ServiceAttribute> servicemap = actionmap.get(action.getMethodName());
+		RouteTable.Route route = routeTable.lookup(action, path, method);
+		return route != null && route.isAsync();
+	}
 
-			if (servicemap.containsKey(path)) {
-				ServiceAttribute sa = servicemap.get(path);
-				// get the method
-				return sa.isMethodAsync(method);
-			}
-		}
-		return false;
+	/**
+	 * return the compiled route of a query
+	 * 
+	 * @param action
+	 * @param path
+	 * @param method
+	 * @return the route or null if not mapped
+	 */
+	public RouteTable.Route getRoute(MethodName action, String path, MethodName method) {
+		return routeTable.lookup(action, path, method);
 	}
 
-	private boolean existAction(MethodName action) {
-		return actionmap.containsKey(action.getMethodName());
+	/**
+	 * return the latency timer of a route
+	 * <p>
+	 * Requests to unmapped routes share a single timer per action to keep the label cardinality bounded
+	 * @param action
+	 * @param route the route returned by getRoute(), may be null
+	 * @return the timer, never null
+	 */
+	public LatencyTimer getRouteTimer(MethodName action, RouteTable.Route route) {
+		if (route != null)
+			return route.getRouteTimer();
+		return MetricsRegistry.getInstance().timer(MetricsRegistry.ROUTE,
+				"action", action.getMethodName(), "path", "unmapped", "method", "unmapped");
 	}
 
-	private boolean existPath(MethodName action, String path) {
-		if (existAction(action)) {
-			return (actionmap.get(action.getMethodName()).containsKey(path));
+	/**
+	 * compile the action map into the flat route table used by dispatch()
+	 * @throws ServiceManagerException if a service method cannot be bound
+	 */
+	void compileRoutes() throws ServiceManagerException {
+		RouteTable table = new RouteTable();
+
+		for (Map.Entry<String, Map<String, ServiceAttribute>> actionEntry : actionmap.entrySet()) {
+			MethodName action = MethodName.toMethodName(actionEntry.getKey());
+			for (Map.Entry<String, ServiceAttribute> pathEntry : actionEntry.getValue().entrySet()) {
+				ServiceAttribute sa = pathEntry.getValue();
+				for (String methodName : sa.getMethods().keySet()) {
+					MethodName method = MethodName.toMethodName(methodName);
+					try {
+						table.add(new RouteTable.Route(action, pathEntry.getKey(), method,
+								sa.getRuntimeService(), sa.getMethod(method), sa.getSignature(method),
+								sa.getMethodReturnType(method), sa.isMethodAsync(method)));
+					} catch (IllegalAccessException e) {
+						log.warn("Could not bind method:" + methodName + " for path:" + pathEntry.getKey(), e);
+						throw new ServiceManagerException(global,
+								SysErrorCode.USER_CONFIGURATION, ME,
+								"Could not bind method:" + methodName + " for path:" + pathEntry.getKey() + ", " + e.getMessage());
+					}
+				}
+			}
 		}
-		return false;
+
+		routeTable = table;
+		log.info("Compiled " + table.size() + " routes");
 	}
 
-	private I_Service getRuntimeService(MethodName action, String path) {
-		if (existPath(action, path)) {
-			return actionmap.get(action.getMethodName()).get(path)
-					.getRuntimeService();
-		}
-		return null;
+	/**
+	 * return the paths mapped for all actions (used to compile the URI parser routes)
+	 * @return a set of paths, never null
+	 */
+	public Set<String> getMappedPaths() {
+		Set<String> paths = new HashSet<>();
+		for (Map<String, ServiceAttribute> servicemap : actionmap.values())
+			paths.addAll(servicemap.keySet());
+		return paths;
 	}
 
 	/**
@@ -584,6 +623,7 @@ public class RequestDispatcher extends ClusterInfo implements RequestDispatcherM
 		dispatchMapFactory=new QuerySyntaxMapper(global);
 		dispatchMapFactory.loadConfiguration(this);
 		//loadConfiguration(mappath);
+		compileRoutes();
 
 		this.contextNode = new ContextNode(ContextNode.SERVICE_MARKER_TAG,
 				"Dispatcher", global.getScopeContextNode());
@@ -617,31 +657,30 @@ public class RequestDispatcher extends ClusterInfo implements RequestDispatcherM
 			return "Service is currently disabled\n";
 		}
 
-		if (!existPath(action, path)) {
-			log.warn("No mapping defined for path:" + path + " for action:"
-					+ action);
+		RouteTable.Route route = routeTable.lookup(action, path, method);
+
+		if (route == null) {
+			if (!routeTable.exists(action, path)) {
+				log.warn("No mapping defined for path:" + path + " for action:"
+						+ action);
+				throw new ServiceManagerException(global,
+						SysErrorCode.RESOURCE_CONFIGURATION, ME,
+						"No mapping defined for path:" + path);
+			}
+			log.warn("No mapping for method:" + method + " in service:" + path);
 			throw new ServiceManagerException(global,
-					SysErrorCode.RESOURCE_CONFIGURATION, ME,
-					"No mapping defined for path:" + path);
+					SysErrorCode.INTERNAL_ILLEGALARGUMENT, ME,
+					"No mapping for method:" + method + " in service:" + path);
 		}
 
-		I_Service service = getRuntimeService(action, path);
-
-		if (service == null) {
+		if (route.getService() == null) {
 			log.warn("No service implementation::" + path);
 			throw new ServiceManagerException(global,
 					SysErrorCode.RESOURCE_CONFIGURATION, ME,
 					"No service implementation:" + path);
 		}
 
-		Method servicemethod;
-		log.debug("Service="+service +";parameters=" +parameters.length);
-		if (parameters.length == 1 && parameters[0] instanceof SessionClientProperties) { // default
-			servicemethod = getMappedMethod(action, path, method);
-		} else{
-			servicemethod = getMappedMethod(action, path, method, parameters);
-		}
-		if (servicemethod == null) {
+		if (!route.isInvocable() || !route.accept(parameters)) {
 			log.warn("No mapping for method:" + method + " in service:" + path);
 			throw new ServiceManagerException(global,
 					SysErrorCode.INTERNAL_ILLEGALARGUMENT, ME,
@@ -650,34 +689,29 @@ public class RequestDispatcher extends ClusterInfo implements RequestDispatcherM
 
 		// perform the invocation
 		Object result;
+		String methodName = route.getImplMethod().getName();
 
 		try {
-			result = servicemethod.invoke(service, parameters);
-		} catch (IllegalArgumentException e) {
-			log.warn("Bad arguments to method:" + servicemethod.getName() + ":"
+			result = route.invoke(parameters);
+		} catch (ServiceManagerException e) {
+			throw e;
+		} catch (WrongMethodTypeException e) {
+			log.warn("Bad arguments to method:" + methodName + ":"
 					+ e.getMessage());
 			throw new ServiceManagerException(global,
 					SysErrorCode.INTERNAL_ILLEGALARGUMENT, ME,
-					"Bad arguments to method:" + servicemethod.getName() + ":"
+					"Bad arguments to method:" + methodName + ":"
 							+ e.getMessage());
-		} catch (IllegalAccessException e) {
-			log.warn("Illegal access to method:" + servicemethod.getName()
-					+ ":" + e.getMessage());
-			throw new ServiceManagerException(global, SysErrorCode.INTERNAL_UNKNOWN,
-					ME, "Illegal access to method:" + servicemethod.getName()
-							+ ":" + e.getMessage());
-		} catch (InvocationTargetException e) {
-			if (e.getTargetException() instanceof ServiceManagerException) {
-				throw (ServiceManagerException) e.getTargetException();
-			} else {
-				log.warn("Invocation exception to method:"
-						+ servicemethod.getName(),e.getTargetException());
-				throw new ServiceManagerException(global,
-						SysErrorCode.INTERNAL_UNKNOWN, ME,
-						"Invocation exception to method:"
-								+ servicemethod.getName() + ":"
-								+ e.getTargetException());
-			}
+		} catch (VirtualMachineError e) {
+			throw e;
+		} catch (Throwable e) {
+			log.warn("Invocation exception to method:"
+					+ methodName, e);
+			throw new ServiceManagerException(global,
+					SysErrorCode.INTERNAL_UNKNOWN, ME,
+					"Invocation exception to method:"
+							+ methodName + ":"
+							+ e);
 		}
 
 		/*
@@ -741,6 +775,23 @@ public class RequestDispatcher extends ClusterInfo implements RequestDispatcherM
 		return sb.toString();
 	}
 
+	public String showRoutes() {
+		StringBuffer sb = new StringBuffer();
+		sb.append("---- Routes (calls/errors) -------\n");
+		for (RouteTable.Route route : routeTable.getRoutes()) {
+			sb.append(route.getAction().getMethodName() + " " + route.getPath() + ":" + route.getMethod().getMethodName());
+			sb.append(" calls=" + route.getCalls() + " errors=" + route.getErrors());
+			sb.append(route.isAsync() ? " async\n" : "\n");
+		}
+		return sb.toString();
+	}
+
+	public String resetRouteCounters() {
+		for (RouteTable.Route route : routeTable.getRoutes())
+			route.resetCounters();
+		return "Route counters reset\n";
+	}
+
 	public String enable() {
 		this.enabled = true;
 		return "Dispatcher enabled\n";
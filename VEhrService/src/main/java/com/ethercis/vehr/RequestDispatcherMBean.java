@@ -26,4 +26,6 @@ public interface RequestDispatcherMBean {
 	public String enable();
 	public String disable();
 	public String status();
+	public String showRoutes();
+	public String resetRouteCounters();
 }
@@ -0,0 +1,247 @@
+/*
+ * Copyright (c) 2015 Christian Chevalley
+ * This file is part of Project Ethercis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ethercis.vehr;
+
+import com.ethercis.servicemanager.common.I_SessionClientProperties;
+import com.ethercis.servicemanager.common.def.MethodName;
+import com.ethercis.servicemanager.metrics.LatencyTimer;
+import com.ethercis.servicemanager.metrics.MetricsRegistry;
+import com.ethercis.servicemanager.service.I_Service;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ETHERCIS Project VirtualEhr
+ * <p>
+ * Flat dispatch table compiled from the dispatcher action map.<p>
+ * Each (action, path, method) triple is resolved once into a {@link Route} holding the runtime service,
+ * a method handle bound to the service, the return type and the async flag. A lookup is a single hash
+ * probe on the path followed by two array accesses indexed by {@link MethodName#ordinal()}.
+ * <p>
+ * The table is immutable once compiled, only the route counters are updated at runtime. Each route holds
+ * its latency timers (request and service method) so that no registry lookup is done per request.
+ */
+public class RouteTable {
+
+    private static final MethodType INVOKER_TYPE = MethodType.methodType(Object.class, Object[].class);
+
+    public static final class Route {
+        private final MethodName action;
+        private final String path;
+        private final MethodName method;
+        private final I_Service service;
+        private final Method implMethod;
+        private final MethodHandle invoker;
+        private final Class<?>[] signature;
+        private final int returnType;
+        private final boolean async;
+
+        private final AtomicLong calls = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+        private final LatencyTimer routeTimer;
+        private final LatencyTimer methodTimer;
+
+        Route(MethodName action, String path, MethodName method, I_Service service, Method implMethod, Class<?>[] signature, int returnType, boolean async) throws IllegalAccessException {
+            this.action = action;
+            this.path = path;
+            this.method = method;
+            this.service = service;
+            this.implMethod = implMethod;
+            this.signature = signature;
+            this.returnType = returnType;
+            this.async = async;
+
+            if (service != null && implMethod != null) {
+                implMethod.setAccessible(true);
+                this.invoker = MethodHandles.lookup().unreflect(implMethod)
+                        .bindTo(service)
+                        .asSpreader(Object[].class, implMethod.getParameterCount())
+                        .asType(INVOKER_TYPE);
+            }
+            else
+                this.invoker = null;
+
+            MetricsRegistry metrics = MetricsRegistry.getInstance();
+            this.routeTimer = metrics.timer(MetricsRegistry.ROUTE,
+                    "action", action.getMethodName(), "path", path, "method", method.getMethodName());
+            this.methodTimer = implMethod == null ? null : metrics.timer(MetricsRegistry.SERVICE_METHOD,
+                    "service", implMethod.getDeclaringClass().getSimpleName(), "method", implMethod.getName());
+        }
+
+        /**
+         * invoke the service method
+         * @param parameters
+         * @return the result of the invocation
+         * @throws Throwable whatever the service method throws
+         */
+        public Object invoke(Object... parameters) throws Throwable {
+            calls.incrementAndGet();
+            long start = System.nanoTime();
+            boolean failed = false;
+            try {
+                return (Object) invoker.invokeExact(parameters);
+            } catch (Throwable t){
+                errors.incrementAndGet();
+                failed = true;
+                throw t;
+            } finally {
+                methodTimer.record(start, failed);
+            }
+        }
+
+        /**
+         * check if the parameters match the method signature
+         * @param parameters
+         * @return true if the method can be invoked with these parameters
+         */
+        public boolean accept(Object... parameters) {
+            if (signature == null) //default signature
+                return parameters.length == 1 && parameters[0] instanceof I_SessionClientProperties;
+
+            if (parameters.length != signature.length)
+                return false;
+            for (int i = 0; i < parameters.length; i++) {
+                if (!signature[i].isInstance(parameters[i]))
+                    return false;
+            }
+            return true;
+        }
+
+        public MethodName getAction() {
+            return action;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public MethodName getMethod() {
+            return method;
+        }
+
+        public I_Service getService() {
+            return service;
+        }
+
+        public Method getImplMethod() {
+            return implMethod;
+        }
+
+        public boolean isInvocable() {
+            return invoker != null;
+        }
+
+        public int getReturnType() {
+            return returnType;
+        }
+
+        public boolean isAsync() {
+            return async;
+        }
+
+        public long getCalls() {
+            return calls.get();
+        }
+
+        public long getErrors() {
+            return errors.get();
+        }
+
+        /**
+         * @return the timer of the complete request (dispatch and response encoding)
+         */
+        public LatencyTimer getRouteTimer() {
+            return routeTimer;
+        }
+
+        void resetCounters() {
+            calls.set(0);
+            errors.set(0);
+        }
+    }
+
+    //path -> [action ordinal][method ordinal]
+    private final Map<String, Route[][]> routes = new HashMap<>();
+    private final List<Route> routeList = new ArrayList<>();
+
+    RouteTable(){}
+
+    /**
+     * add a route to the table, only used while compiling
+     */
+    void add(Route route) {
+        Route[][] byAction = routes.get(route.getPath());
+        if (byAction == null) {
+            byAction = new Route[MethodName.count()][];
+            routes.put(route.getPath(), byAction);
+        }
+        Route[] byMethod = byAction[route.getAction().ordinal()];
+        if (byMethod == null) {
+            byMethod = new Route[MethodName.count()];
+            byAction[route.getAction().ordinal()] = byMethod;
+        }
+        byMethod[route.getMethod().ordinal()] = route;
+        routeList.add(route);
+    }
+
+    /**
+     * lookup a route
+     * @param action
+     * @param path
+     * @param method
+     * @return the route or null if not mapped
+     */
+    public Route lookup(MethodName action, String path, MethodName method) {
+        if (path == null)
+            return null;
+        Route[][] byAction = routes.get(path);
+        if (byAction == null)
+            return null;
+        Route[] byMethod = byAction[action.ordinal()];
+        return byMethod == null ? null : byMethod[method.ordinal()];
+    }
+
+    /**
+     * @return true if at least one method is mapped for this action and path
+     */
+    public boolean exists(MethodName action, String path) {
+        if (path == null)
+            return false;
+        Route[][] byAction = routes.get(path);
+        return byAction != null && byAction[action.ordinal()] != null;
+    }
+
+    /**
+     * @return all compiled routes
+     */
+    public List<Route> getRoutes() {
+        return Collections.unmodifiableList(routeList);
+    }
+
+    public int size() {
+        return routeList.size();
+    }
+}
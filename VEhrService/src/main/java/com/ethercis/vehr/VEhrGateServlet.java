@@ -19,6 +19,7 @@ package com.ethercis.vehr;
 import com.ethercis.logonservice.session.I_SessionManager;
 import com.ethercis.logonservice.session.ResponseHolder;
 import com.ethercis.servicemanager.cluster.ClusterInfo;
+import com.ethercis.servicemanager.cluster.ContextNode;
 import com.ethercis.servicemanager.cluster.I_SignalListener;
 import com.ethercis.servicemanager.cluster.RunTimeSingleton;
 import com.ethercis.servicemanager.cluster.SignalCatcher;
@@ -28,11 +29,14 @@ import com.ethercis.servicemanager.common.def.MethodName;
 import com.ethercis.servicemanager.common.def.SysErrorCode;
 import com.ethercis.servicemanager.exceptions.I_ServiceManagerExceptionHandler;
 import com.ethercis.servicemanager.exceptions.ServiceManagerException;
+import com.ethercis.servicemanager.metrics.LatencyTimer;
+import com.ethercis.servicemanager.metrics.MetricsRegistry;
 import com.ethercis.servicemanager.runlevel.I_RunlevelListener;
 import com.ethercis.servicemanager.runlevel.I_ServiceRunMode;
 import com.ethercis.servicemanager.runlevel.RunlevelManager;
 import com.ethercis.servicemanager.service.ServiceRegistry;
 import com.ethercis.vehr.parser.I_URIParser;
+import com.ethercis.vehr.parser.ParsedRequest;
 import com.ethercis.vehr.response.*;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -47,14 +51,13 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpServletResponseWrapper;
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.Enumeration;
+import java.util.Map;
 import java.util.Properties;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 //use Jetty servlet-api
 
@@ -80,6 +83,22 @@ public class VEhrGateServlet extends HttpServlet implements
 	private RunTimeSingleton global = null;
 	private static Logger log = LogManager.getLogger(VEhrGateServlet.class);
 	private boolean isAsynchQuery = false;
+	private boolean compactJson = false; // json output without indentation (server.json.compact)
+	private int maxBodySize = RequestBody.DEFAULT_MAX_BODY_SIZE; // server.request.max_body_size
+	private boolean metricsEndpoint = false; // GET /metrics in Prometheus text format, unauthenticated (server.metrics.endpoint)
+
+	public static final String METRICS_PATH = "/metrics";
+	public static final String METRICS_CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	//response encoding timers indexed by return type
+	private static final String[] RESPONSE_FORMATS = {"void", "string", "stringarr", "property", "html", "json", "xml", "base64", "xmlarray", "dyna", "nocontent"};
+	private static final LatencyTimer[] formatTimers = new LatencyTimer[RESPONSE_FORMATS.length];
+	private static final LatencyTimer undefinedFormatTimer = MetricsRegistry.getInstance().timer(MetricsRegistry.RESPONSE_FORMAT, "format", "undefined");
+
+	static {
+		for (int i = 0; i < RESPONSE_FORMATS.length; i++)
+			formatTimers[i] = MetricsRegistry.getInstance().timer(MetricsRegistry.RESPONSE_FORMAT, "format", RESPONSE_FORMATS[i]);
+	}
 	// private final String header =
 	// "<html><meta http-equiv='no-cache'><meta http-equiv='Cache-Control' content='no-cache'><meta http-equiv='expires' content='Wed, 26 Feb 1997 08:21:57 GMT'>";
 
@@ -105,8 +124,9 @@ public class VEhrGateServlet extends HttpServlet implements
 	/**
 	 * used to service asynchronous queries
 	 */
-	private ExecutorService executor;
+	private DispatchExecutor executor;
 	private int threadPoolSize = 3;
+	private boolean threadPoolSizeParameter = false; // threadpoolsize init-param overrides server.threadpoolsize
 	private int callback_timeout = 60000;
 
     //select the URI parser depending on the runtime dialect
@@ -119,7 +139,7 @@ public class VEhrGateServlet extends HttpServlet implements
 	 * <p>
 	 * <ul>
 	 * <li>threadpoolsize: max number of threads in pool for servicing
-	 * asynchronous queries
+	 * asynchronous queries, overrides <code>server.threadpoolsize</code>
 	 * </ul>
 	 * 
 	 * @param conf
@@ -162,8 +182,10 @@ public class VEhrGateServlet extends HttpServlet implements
             else
                 global.init(args);
 
-			if (getInitParameter("threadpoolsize") != null)
+			if (getInitParameter("threadpoolsize") != null) {
 				threadPoolSize = Integer.parseInt(getInitParameter("threadpoolsize"));
+				threadPoolSizeParameter = true;
+			}
 			else { //check in services.properties
 				threadPoolSize = global.getProperty().get("server.threadpoolsize", 10);
 			}
@@ -178,10 +200,15 @@ public class VEhrGateServlet extends HttpServlet implements
 
 			isAsynchQuery = global.getProperty().get("server.query.asynchronous", false);
 
+			compactJson = global.getProperty().get("server.json.compact", false);
+			maxBodySize = global.getProperty().get(RequestBody.MAX_BODY_SIZE_PROPERTY, RequestBody.DEFAULT_MAX_BODY_SIZE);
+			metricsEndpoint = global.getProperty().get("server.metrics.endpoint", false);
+
 			if (isAsynchQuery)
 				log.info("Server mode is set to ASYNCHRONOUS");
 
-			executor = Executors.newFixedThreadPool(threadPoolSize);
+			if (executor == null || threadPoolSizeParameter)
+				startExecutor(); //replaces an executor already started by init(args)
 		}
 
 
@@ -201,6 +228,10 @@ public class VEhrGateServlet extends HttpServlet implements
 
         global = RunTimeSingleton.instance().getClone(args);
 
+        compactJson = global.getProperty().get("server.json.compact", false);
+        maxBodySize = global.getProperty().get(RequestBody.MAX_BODY_SIZE_PROPERTY, RequestBody.DEFAULT_MAX_BODY_SIZE);
+        metricsEndpoint = global.getProperty().get("server.metrics.endpoint", false);
+
         //setup the dialect parser
         String compatibilityValue = global.getProperty().get(I_ServiceRunMode.SERVER_DIALECT_PARAMETER, I_ServiceRunMode.DialectSpace.STANDARD.toString());
         I_ServiceRunMode.DialectSpace dialectSpace =  I_ServiceRunMode.DialectSpace.valueOf(compatibilityValue);
@@ -273,10 +304,41 @@ public class VEhrGateServlet extends HttpServlet implements
 			System.exit(-1);
 		}
 
+		//compile the mapped paths for the parser
+		uriParser.compileRoutes(controller.getMappedPaths());
+
+		//executor for asynchronous queries and per route bulkheads
+		if (!threadPoolSizeParameter)
+			threadPoolSize = global.getProperty().get("server.threadpoolsize", 10);
+		callback_timeout = global.getProperty().get("server.callback_timeout", 60000);
+		isAsynchQuery = global.getProperty().get("server.query.asynchronous", false);
+		startExecutor();
+		try {
+			global.registerMBean(new ContextNode(ContextNode.SERVICE_MARKER_TAG, "Metrics", global.getScopeContextNode()), MetricsRegistry.getInstance());
+		} catch (ServiceManagerException e) {
+			log.warn("Could not register metrics MBean:" + e.getMessage());
+		}
+
         initialized = true;
         log.info("VEhrGate initializeSession complete");
     }
 
+	/**
+	 * start the dispatch executor with the current pool size, an executor already started is shut down
+	 */
+	private void startExecutor() {
+		if (executor != null)
+			executor.shutdown();
+		executor = new DispatchExecutor(global, threadPoolSize);
+		if (controller != null)
+			executor.compileBulkheads(controller.getMappedPaths());
+		try {
+			global.registerMBean(new ContextNode(ContextNode.SERVICE_MARKER_TAG, "DispatchExecutor", global.getScopeContextNode()), executor);
+		} catch (ServiceManagerException e) {
+			log.warn("Could not register executor MBean:" + e.getMessage());
+		}
+	}
+
 	public void destroy() {
 		log.info("Shutdown requested by context, closing down...");
 		// tell the runlevel manager to shutdown gracefully the services...
@@ -291,7 +353,8 @@ public class VEhrGateServlet extends HttpServlet implements
 		} catch (ServiceManagerException e) {
 			log.error("Shutdown could not be done properly with exception:" + e);
 		}
-		executor.shutdown();
+		if (executor != null)
+			executor.shutdown();
 
 		log.info("Shutdown completed...");
 	}
@@ -442,6 +505,11 @@ public class VEhrGateServlet extends HttpServlet implements
 	public void doGet(HttpServletRequest req, HttpServletResponse res)
 			throws ServletException, IOException {
 
+		if (metricsEndpoint && METRICS_PATH.equals(req.getPathInfo() != null ? req.getPathInfo() : req.getServletPath())) {
+			metricsOutput(res);
+			return;
+		}
+
 		processRequest(MethodName.GET, req, res, null);
 
 		if (res.containsHeader(CrossOriginFilter.ACCESS_CONTROL_ALLOW_ORIGIN_HEADER)){ //ugly patch...
@@ -462,7 +530,13 @@ public class VEhrGateServlet extends HttpServlet implements
 	 */
 	public void doPost(HttpServletRequest req, HttpServletResponse res)
 			throws ServletException, IOException {
-		I_SessionClientProperties bodyprops = requestBodyAsProps(req);
+		I_SessionClientProperties bodyprops;
+		try {
+			bodyprops = requestBodyAsProps(req);
+		} catch (ServiceManagerException e) {
+			errorOutput(res, e);
+			return;
+		}
 		processRequest(MethodName.POST, req, res, bodyprops);
 
 		if (res.containsHeader(CrossOriginFilter.ACCESS_CONTROL_ALLOW_ORIGIN_HEADER)){ //ugly patch...
@@ -473,68 +547,56 @@ public class VEhrGateServlet extends HttpServlet implements
 	}
 
 	/**
-	 * read the request body logonservice sent from the client
+	 * read the request body as sent from the client.<p>
+	 * The body is read once in its raw form, bodies without a declared length (chunked)
+	 * are accepted up to the configured maximum size.
 	 * 
 	 * @param req
-	 * @return
+	 * @return the body or null if empty
+	 * @throws ServiceManagerException if the body exceeds the maximum size
 	 * @throws java.io.IOException
 	 */
-	private String getRequestBody(HttpServletRequest req) throws IOException {
-		StringBuilder stringBuilder = new StringBuilder();
-		BufferedReader reader = null;
-		// String content = "";
-
-		try {
-			InputStream inputStream = req.getInputStream();
-			if (inputStream != null) {
-				reader = new BufferedReader(new InputStreamReader(inputStream));
-				char[] charBuffer = new char[128];
-				int bytesRead = -1;
-				while ((bytesRead = reader.read(charBuffer)) > 0) {
-					stringBuilder.append(charBuffer, 0, bytesRead);
-				}
-			} else {
-				stringBuilder.append("");
-			}
-		} catch (IOException ex) {
-			throw ex;
-		} finally {
-			if (reader != null) {
-				try {
-					reader.close();
-				} catch (IOException ex) {
-					throw ex;
-				}
+	private RequestBody getRequestBody(HttpServletRequest req) throws ServiceManagerException, IOException {
+		Charset charset = StandardCharsets.UTF_8;
+		String encoding = req.getCharacterEncoding();
+		if (encoding != null) {
+			try {
+				charset = Charset.forName(encoding);
+			} catch (IllegalArgumentException e) {
+				log.warn("Unsupported request encoding:" + encoding + ", using UTF-8");
 			}
 		}
 
-		return stringBuilder.toString();
+		try (InputStream inputStream = req.getInputStream()) {
+			return RequestBody.read(global, inputStream, req.getContentLength(), maxBodySize, charset, req.getContentType());
+		}
 	}
 
 	/**
 	 * set up request content properties:
 	 * <p>
 	 * <ul>
-	 * <li>x-request-content the actual content
+	 * <li>the raw content, see {@link I_SessionClientProperties#getRequestBody()}
+	 * (also accessible as x-request-content)
 	 * <li>x-request-content-type the content MIME type
 	 * <li>x-request-content-length content length
 	 * </ul>
 	 * 
 	 * @param req
 	 * @return SessionClientProperties or null if no content
+	 * @throws ServiceManagerException if the body exceeds the maximum size
 	 * @throws java.io.IOException
 	 */
 	private I_SessionClientProperties requestBodyAsProps(HttpServletRequest req)
-			throws IOException {
+			throws ServiceManagerException, IOException {
 		SessionClientProperties bodyprops = null;
-		int body_length = req.getContentLength();
-		if (body_length > 0) {
-			String content = getRequestBody(req);
-			if (content != null && content.length() > 0) {
+		if (req.getContentLength() != 0) {
+			RequestBody body = getRequestBody(req);
+			if (body != null) {
 				bodyprops = new SessionClientProperties(global);
-				bodyprops.addClientProperty(Constants.REQUEST_CONTENT, content);
+				bodyprops.setRequestBody(body);
 				bodyprops.addClientProperty(Constants.REQUEST_CONTENT_TYPE,req.getContentType());
-				bodyprops.addClientProperty(Constants.REQUEST_CONTENT_LENGTH,req.getContentLength());
+				bodyprops.addClientProperty(Constants.REQUEST_CONTENT_LENGTH,body.length());
 			}
 		}
 		return bodyprops;
@@ -563,7 +625,13 @@ public class VEhrGateServlet extends HttpServlet implements
 	 */
 	public void doPut(HttpServletRequest req, HttpServletResponse res)
 			throws ServletException, IOException {
-		I_SessionClientProperties bodyprops = requestBodyAsProps(req);
+		I_SessionClientProperties bodyprops;
+		try {
+			bodyprops = requestBodyAsProps(req);
+		} catch (ServiceManagerException e) {
+			errorOutput(res, e);
+			return;
+		}
 		processRequest(MethodName.PUT, req, res, bodyprops);
 		if (res.containsHeader(CrossOriginFilter.ACCESS_CONTROL_ALLOW_ORIGIN_HEADER)){ //ugly patch...
 			res.setHeader(CrossOriginFilter.ACCESS_CONTROL_ALLOW_ORIGIN_HEADER, "*");
@@ -572,6 +640,19 @@ public class VEhrGateServlet extends HttpServlet implements
 			res.addHeader(CrossOriginFilter.ACCESS_CONTROL_ALLOW_ORIGIN_HEADER, "*");
 	}
 
+	/**
+	 * write the server metrics in Prometheus text format
+	 * @param res
+	 * @throws IOException
+	 */
+	private void metricsOutput(HttpServletResponse res) throws IOException {
+		byte[] body = MetricsRegistry.getInstance().toPrometheus().getBytes(StandardCharsets.UTF_8);
+		res.setStatus(HttpServletResponse.SC_OK);
+		res.setContentType(METRICS_CONTENT_TYPE);
+		res.setContentLength(body.length);
+		res.getOutputStream().write(body);
+	}
+
 	/**
 	 * Process request from the browser, usually to do a query. TODO: add
 	 * session info in the dispatch query
@@ -580,8 +661,11 @@ public class VEhrGateServlet extends HttpServlet implements
                                HttpServletResponse servletResponse, I_SessionClientProperties sessionClientProperties)
 			throws ServletException, IOException {
 
+		long start = System.nanoTime();
+		ParsedRequest parsedRequest;
+
 		try {
-			uriParser.parse(servletRequest);
+			parsedRequest = uriParser.parse(servletRequest);
 		} catch (ServiceManagerException e1) {
 			throw new ServletException("badly formed path:" + servletRequest.getRequestURI() + ", error:" + e1.getMessage());
 		}
@@ -590,40 +674,64 @@ public class VEhrGateServlet extends HttpServlet implements
 //		HttpParameters httpParameters = HttpParameters.getInstance(global, servletRequest.getParameterMap());
 //		I_SessionClientProperties props = httpParameters.getProperties();
 
-		I_SessionClientProperties props = uriParser.identifyParametersAsProperties();
+		I_SessionClientProperties props = parsedRequest.getParameters();
 
         props.addClientProperty(I_SessionManager.CLIENT_IP, servletRequest.getRemoteAddr());
 
 		// add the additional properties (f.ex. request body) if any
-		if (sessionClientProperties != null)
+		if (sessionClientProperties != null) {
 			props.getClientProperties().putAll(sessionClientProperties.getClientProperties());
+			props.setRequestBody(sessionClientProperties.getRequestBody());
+		}
+
+		// json indentation can be disabled globally or per query
+		props.getResponseContext().setCompact(props.getClientProperty(JsonHttpResponse.COMPACT_PARAMETER, compactJson));
+		// conditional GET, the service compares it with the entity tag of the resource
+		props.getResponseContext().setIfNoneMatch(servletRequest.getHeader(HttpHeader.IF_NONE_MATCH.asString()));
 
 		// sets the meta-data from header
-		I_SessionClientProperties hdrprops = HttpParameters.getInstanceFromHeader(global, servletRequest);
+		I_SessionClientProperties hdrprops = parsedRequest.getHeaders();
+		if (hdrprops == null)
+			hdrprops = HttpParameters.getInstanceFromHeader(global, servletRequest);
 		MethodName method;
-		String path = uriParser.identifyPath();
+		String path = parsedRequest.getPath();
 
 		try {
-			method = MethodName.toMethodName(uriParser.identifyMethod());
+			method = MethodName.toMethodName(parsedRequest.getMethod());
 		} catch (IllegalArgumentException e) {
 			throw new ServletException("No service for path/method call:"
 					+ servletRequest.getPathInfo() + ", error:" + e.getMessage());
-		} catch (ServiceManagerException e2) {
-			if (e2.getErrorCode() == SysErrorCode.INTERNAL_ILLEGALARGUMENT)
-				throw new ServletException("No service for path/method call:"
-						+ servletRequest.getPathInfo() + ", error:" + e2.getMessage());
-			else // process the error and return it to the sender
-			{
-				log.info("Error trapped:" + e2.getErrorCodeStr());
-				errorOutput(servletResponse, e2);
+		}
+
+		// resolved once for the timer and the execution mode
+		RouteTable.Route route = controller.getRoute(action, path, method);
+		LatencyTimer timer = controller.getRouteTimer(action, route);
+
+		// shed the request if its route is saturated
+		DispatchExecutor.Bulkhead bulkhead = null;
+		if (executor != null) {
+			try {
+				bulkhead = executor.enter(path);
+			} catch (ServiceManagerException e) {
+				servletResponse.setHeader(HttpHeader.RETRY_AFTER.asString(), "1");
+				errorOutput(servletResponse, e);
+				timer.record(start, true);
 				return;
 			}
 		}
 
-		if (controller.isMappedMethodAsync(action, path, method) || isAsynchQuery) {
-			asyncExecute(action, hdrprops, path, method, props, servletRequest, servletResponse);
+		if ((route != null && route.isAsync()) || isAsynchQuery) {
+			asyncExecute(action, hdrprops, path, method, props, servletRequest, servletResponse, bulkhead, timer, start);
 		} else {
-			syncExecute(action, hdrprops, path, method, props, servletResponse);
+			boolean failed = true;
+			try {
+				syncExecute(action, hdrprops, path, method, props, servletResponse);
+				failed = servletResponse.getStatus() >= HttpServletResponse.SC_BAD_REQUEST;
+			} finally {
+				if (bulkhead != null)
+					bulkhead.release();
+				timer.record(start, failed);
+			}
 		}
 	}
 
@@ -658,11 +766,13 @@ public class VEhrGateServlet extends HttpServlet implements
 			}
 		}
 
-		handleOutput(controller.getMappedMethodReturnType(action, path, method), output, res, path);
+		handleOutput(controller.getMappedMethodReturnType(action, path, method), parameters.getResponseContext(), output, res, path);
 	}
 
 	/**
 	 * performs an asynchronous method service (e.g. non blocking)
+	 * <p>
+	 * The request is rejected with a 503 if the executor is saturated
 	 * 
 	 * @param action
 	 * @param header
@@ -671,28 +781,74 @@ public class VEhrGateServlet extends HttpServlet implements
 	 * @param parameters
 	 * @param req
 	 * @param res
+	 * @param bulkhead the route bulkhead held by this request, released when the task is done, may be null
+	 * @param timer the route timer, updated when the task is done
+	 * @param start System.nanoTime() at request reception
 	 * @throws ServletException
 	 */
 	public void asyncExecute(MethodName action, I_SessionClientProperties header,
 			String path, MethodName method, I_SessionClientProperties parameters,
-			HttpServletRequest req, HttpServletResponse res)
+			HttpServletRequest req, HttpServletResponse res, DispatchExecutor.Bulkhead bulkhead,
+			LatencyTimer timer, long start)
 			throws ServletException {
 
+		if (executor == null) {
+			if (bulkhead != null)
+				bulkhead.release();
+			timer.record(start, true);
+			throw new ServletException("Asynchronous executor is not initialized");
+		}
+
+		// from here the bulkhead and the timer are owned by this request until the task is enqueued
+		final AsyncContext context;
 		try {
 			if (!req.isAsyncSupported()) {
 				// set explicitly the async nature
 				req.setAttribute("org.apache.catalina.ASYNC_SUPPORTED", true);
 			}
+
+			context = req.startAsync();
+			// set the timeout
+			context.setTimeout(callback_timeout);
+
+			// attach listener to respond to lifecycle events of this AsyncContext
+			context.addListener(asyncListener(context, path));
 		} catch (Exception e){
+			if (bulkhead != null)
+				bulkhead.release();
+			timer.record(start, true);
 			throw new ServletException("Could not set the servlet in async mode:"+e);
 		}
 
-		final AsyncContext context = req.startAsync();
-		// set the timeout
-		context.setTimeout(callback_timeout);
+		// spawn some task to be run in executor
+		try {
+			enqueueTask(context, action, header, path, method, parameters, res, bulkhead, timer, start);
+		} catch (ServiceManagerException e) {
+			if (bulkhead != null)
+				bulkhead.release();
+			timer.record(start, true);
+			res.setHeader(HttpHeader.RETRY_AFTER.asString(), "1");
+			errorOutput(res, e);
+			context.complete();
+		} catch (RuntimeException e) {
+			if (bulkhead != null)
+				bulkhead.release();
+			timer.record(start, true);
+			context.complete();
+			throw new ServletException("Could not enqueue the request:"+e);
+		}
+
+//		context.complete();
+	}
 
-		// attach listener to respond to lifecycle events of this AsyncContext
-		context.addListener(new AsyncListener() {
+	/**
+	 * listener responding to the lifecycle events of an AsyncContext
+	 * @param context
+	 * @param path
+	 * @return
+	 */
+	private AsyncListener asyncListener(final AsyncContext context, final String path) {
+		return new AsyncListener() {
 			/**
 			 * complete() has already been called on the async context, nothing
 			 * to do
@@ -702,10 +858,10 @@ public class VEhrGateServlet extends HttpServlet implements
 
 			/** timeout has occurred in async task... handle it */
 			public void onTimeout(AsyncEvent event) throws IOException {
-				log.info("onTimeout called:"+event.toString());
-				Thread.dumpStack();
+				log.warn("Request timeout after " + callback_timeout + " [ms] on path:" + path);
+				executor.timedOut();
 				try {
-					errorOutput(context.getResponse(), new ServiceManagerException(global, SysErrorCode.USER_ILLEGALARGUMENT, "Request timeout"));
+					errorOutput(context.getResponse(), new ServiceManagerException(global, SysErrorCode.RESOURCE_TEMPORARY_UNAVAILABLE, ME, "Request timeout"));
 				} catch (ServletException e) {
 					e.printStackTrace();
 				}
@@ -730,12 +886,7 @@ public class VEhrGateServlet extends HttpServlet implements
 			/** async context has started, nothing to do */
 			public void onStartAsync(AsyncEvent event) throws IOException {
 			}
-		});
-
-		// spawn some task to be run in executor
-		enqueueTask(context, action, header, path, method, parameters, res);
-
-//		context.complete();
+		};
 	}
 
 	/**
@@ -747,15 +898,33 @@ public class VEhrGateServlet extends HttpServlet implements
 	 * @param path
 	 * @param method
 	 * @param parameters
+	 * @param bulkhead released when the task completes, may be null
+	 * @param timer the route timer, updated when the task completes
+	 * @param start System.nanoTime() at request reception
+	 * @throws ServiceManagerException if the executor is saturated
 	 */
 	private void enqueueTask(final AsyncContext ctx, final MethodName action,
 			final I_SessionClientProperties header, final String path,
-			final MethodName method, final I_SessionClientProperties parameters, HttpServletResponse response) {
+			final MethodName method, final I_SessionClientProperties parameters, final HttpServletResponse response,
+			final DispatchExecutor.Bulkhead bulkhead, final LatencyTimer timer, final long start) throws ServiceManagerException {
 
 		executor.execute(new Runnable() {
-			Object output;
-
 			public void run() {
+				boolean succeeded = false;
+				try {
+					succeeded = execute();
+				} finally {
+					if (bulkhead != null)
+						bulkhead.release();
+					timer.record(start, !succeeded);
+				}
+			}
+
+			/**
+			 * @return true if a response has been encoded without error
+			 */
+			private boolean execute() {
+				Object output = null;
 
 				try {
 					output = controller.queryHandler(action, header, path,method, parameters);
@@ -773,7 +942,7 @@ public class VEhrGateServlet extends HttpServlet implements
 						}
 						if (ctx != null)
 							ctx.complete();
-						return;
+						return false;
 					}
 				}
 
@@ -784,9 +953,11 @@ public class VEhrGateServlet extends HttpServlet implements
 					ServletResponse response = ctx.getResponse();
 
 					if (response != null) {
-						handleOutput(controller.getMappedMethodReturnType(action, path, method), output, response, path);
+						handleOutput(controller.getMappedMethodReturnType(action, path, method), parameters.getResponseContext(), output, response, path);
+						boolean succeeded = !(response instanceof HttpServletResponse) || ((HttpServletResponse) response).getStatus() < HttpServletResponse.SC_BAD_REQUEST;
 						if (ctx != null) //if AsyncContext is supported, otherwise ignore...
 							ctx.complete();
+						return succeeded;
 					} else {
 						throw new IllegalStateException(
 								"Response object from context is null!");
@@ -795,7 +966,7 @@ public class VEhrGateServlet extends HttpServlet implements
 					log("Problem processing task", e);
 					e.printStackTrace();
 				}
-
+				return false;
 			}
 		});
 	}
@@ -804,26 +975,55 @@ public class VEhrGateServlet extends HttpServlet implements
 	/**
 	 * encode the response according to the method return type.
 	 * 
-	 * @param returnType
+	 * @param returnType the return type declared for the mapped method
+	 * @param responseContext the request response envelope, may override the return type
 	 * @param output
 	 * @param res
 	 * @throws ServletException
 	 * @throws java.io.IOException
 	 */
-	private void handleOutput(int returnType, Object output, Object res, String path) throws ServletException, IOException, IllegalArgumentException {
+	private void handleOutput(int returnType, ResponseContext responseContext, Object output, Object res, String path) throws ServletException, IOException, IllegalArgumentException {
+
+		if (responseContext != null) {
+			returnType = responseContext.resolveReturnType(returnType);
+
+			if (res instanceof HttpServletResponse) {
+				HttpServletResponse httpServletResponse = (HttpServletResponse) res;
+				for (Map.Entry<String, String> header : responseContext.getHeaders().entrySet())
+					httpServletResponse.setHeader(header.getKey(), header.getValue());
+				if (responseContext.hasStatus())
+					httpServletResponse.setStatus(responseContext.getStatus());
+				if (responseContext.getETag() != null) {
+					httpServletResponse.setHeader(HttpHeader.ETAG.asString(), responseContext.getETag());
+					if (responseContext.isNotModified()) {
+						httpServletResponse.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+						return;
+					}
+				}
+			}
+		}
 
-		if (getGlobal().getProperty().propertyExists(MethodName.RETURN_TYPE_PROPERTY)) {
-			int changedType = getGlobal().getProperty().get(MethodName.RETURN_TYPE_PROPERTY, MethodName.RETURN_UNDEFINED);
-			if (changedType != MethodName.RETURN_UNDEFINED)
-				returnType = changedType;
+		LatencyTimer formatTimer = returnType >= 0 && returnType < formatTimers.length ? formatTimers[returnType] : undefinedFormatTimer;
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			encodeOutput(returnType, responseContext, output, res, path);
+			failed = false;
+		} finally {
+			formatTimer.record(start, failed);
 		}
+	}
 
+	/**
+	 * encode the output according to the resolved return type
+	 */
+	private void encodeOutput(int returnType, ResponseContext responseContext, Object output, Object res, String path) throws ServletException, IOException, IllegalArgumentException {
 		switch (returnType) {
 		case MethodName.RETURN_HTML:
 			new HtmlHttpResponse(res).respond((String) output);
 			break;
 		case MethodName.RETURN_JSON:
-			new JsonHttpResponse(res).respond(output, path);
+			new JsonHttpResponse(res).respond(output, path, responseContext != null && responseContext.isCompact());
 			break;
 		case MethodName.RETURN_XML:
 			new XmlHttpResponse(res).respond(output, path);
@@ -866,12 +1066,6 @@ public class VEhrGateServlet extends HttpServlet implements
 			new TextHttpResponse(res).respond("undefined or unhandled return type for method");
 			break;
 		}
-		try {
-			global.getProperty().set(MethodName.RETURN_TYPE_PROPERTY, ""+MethodName.RETURN_UNDEFINED);
-		} catch (ServiceManagerException e){
-			throw new IllegalArgumentException("Could not reset global return type property");
-		}
-
 	}
 
 	/**
@@ -892,13 +1086,6 @@ public class VEhrGateServlet extends HttpServlet implements
 			response.setHeader(HttpHeader.WWW_AUTHENTICATE.asString(), "Basic realm=\"Shiro-Authenticate\"");
 
 
-		try {
-			global.getProperty().set(MethodName.RETURN_TYPE_PROPERTY, ""+MethodName.RETURN_UNDEFINED);
-		} catch (ServiceManagerException e){
-//			throw new IllegalArgumentException("Could not reset global return type property");
-			//do nothing
-		}
-
 		try {
 			response.sendError(code, exception.getRawMessage());
 		} catch (IOException e) {
@@ -921,13 +1108,6 @@ public class VEhrGateServlet extends HttpServlet implements
 			response.setHeader(HttpHeader.WWW_AUTHENTICATE.asString(), "Basic realm=\"Shiro-Authenticate\"");
 
 
-		try {
-			global.getProperty().set(MethodName.RETURN_TYPE_PROPERTY, ""+MethodName.RETURN_UNDEFINED);
-		} catch (ServiceManagerException e){
-//			throw new IllegalArgumentException("Could not reset global return type property");
-			//do nothing
-		}
-
 		try {
 			response.sendError(code, exception.getRawMessage());
 		} catch (IOException e) {
@@ -23,7 +23,7 @@ import com.ethercis.servicemanager.common.def.MethodName;
 /**
  * Created by christian on 12/9/2015.
  */
-public class CompositionQueryParser {
+public class CompositionQueryParser implements I_QueryParser {
 
     private I_SessionClientProperties parameters;
     private String resourceToken = null;
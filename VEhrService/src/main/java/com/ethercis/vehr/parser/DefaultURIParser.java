@@ -17,7 +17,6 @@
 package com.ethercis.vehr.parser;
 
 import com.ethercis.servicemanager.cluster.RunTimeSingleton;
-import com.ethercis.servicemanager.common.I_SessionClientProperties;
 import com.ethercis.servicemanager.exceptions.ServiceManagerException;
 import com.ethercis.servicemanager.service.ServiceInfo;
 
@@ -40,9 +39,4 @@ public class DefaultURIParser extends URIParser {
     protected void doInit(RunTimeSingleton global, ServiceInfo serviceInfo) throws ServiceManagerException {
 
     }
-
-    @Override
-    public I_SessionClientProperties identifyParametersAsProperties() {
-        return null;
-    }
 }
@@ -31,11 +31,11 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import javax.servlet.http.HttpServletRequest;
-import java.io.IOException;
 import java.io.UnsupportedEncodingException;
-import java.net.URLDecoder;
 import java.util.Arrays;
-import java.util.List;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
 
 /**
  * ETHERCIS Project VirtualEhr
@@ -53,7 +53,32 @@ public class EhrScapeURIParser extends URIParser {
     final private String Version = "1.0";
     private Logger log = LogManager.getLogger(EhrScapeURIParser.class);
 
-//    private Map<String, String> parameters;
+    /**
+     * binds the path tokens following a resource to query parameters and returns the actual resource
+     */
+    interface I_ResourceBinder {
+        I_QueryParser bind(MethodName methodName, String resourceToken, String[] tokens, I_SessionClientProperties parameters, I_SessionClientProperties headers);
+    }
+
+    //resources whose path tokens are ignored
+    private static final I_ResourceBinder IGNORE_TOKENS = null;
+
+    //resource binders, resources are matched ignoring case
+    private static final Map<String, I_ResourceBinder> binders = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+
+    static {
+        binders.put("session", IGNORE_TOKENS);
+        binders.put("ehr", EhrQueryParser::new);
+        binders.put("composition", CompositionQueryParser::new);
+        binders.put("template", TemplateQueryParser::new);
+        binders.put("query", IGNORE_TOKENS);
+        binders.put("demographics", IGNORE_TOKENS);
+        binders.put("guide", IGNORE_TOKENS);
+        binders.put("smart", IGNORE_TOKENS);
+        binders.put("import", IGNORE_TOKENS);
+    }
+
+    private String rootPath; //query root without leading '/' and with a trailing '/', empty if the root is '/'
 
     /**
      * create a new parser for path, check format
@@ -63,146 +88,81 @@ public class EhrScapeURIParser extends URIParser {
      */
     public EhrScapeURIParser(RunTimeSingleton global)  {
         super(global);
+        rootPath = rootPath(queryRoot);
      }
 
     public EhrScapeURIParser(){}
 
+    private static String rootPath(String queryRoot){
+        return RouteTrie.rootPrefix(queryRoot);
+    }
 
-    private String[] subarray(String[] array, int from, int to){
-        if (from > array.length)
-            return null;
-        if (to > array.length)
-            to = array.length;
-        if (from == array.length)
-            return array;
+    @Override
+    public ParsedRequest parse(HttpServletRequest servletRequest) throws ServiceManagerException {
+        String requestURI = servletRequest.getRequestURI();
 
-        return Arrays.copyOfRange(array, from, to);
-    }
+        if (requestURI == null || requestURI.length() == 0 || requestURI.charAt(0) != delimiter)
+            throw new ServiceManagerException(global, SysErrorCode.USER_QUERY_INVALID, ME, "Badly formed query, invalid format, first char in path should be '/' in path:["+requestURI+"]");
 
-    private String[] subarray(String[] array, int from){
-        int to = array.length;
-        if (from > array.length - 1)
-            return null;
+        //strip parameters
+        int queryIndex = requestURI.indexOf('?');
+        if (queryIndex >= 0)
+            requestURI = requestURI.substring(0, queryIndex);
 
-        return Arrays.copyOfRange(array, from, to);
-    }
+        //check the query root
+        int rootLength = queryRoot.length();
+        if (!requestURI.startsWith(queryRoot) || (rootLength > 1 && requestURI.length() > rootLength && requestURI.charAt(rootLength) != delimiter))
+            throw new ServiceManagerException(global, SysErrorCode.USER_QUERY_INVALID, ME, "Badly formed query, could not identify resources:"+requestURI);
 
-    @Override
-    public void parse(HttpServletRequest servletRequest) throws ServiceManagerException {
-        String requestURI;
+        //tokenize the URI
+        String[] segments;
         try {
-            requestURI = URLDecoder.decode(servletRequest.getRequestURI(), "UTF-8");
-        }catch (UnsupportedEncodingException e){
+            segments = segments(requestURI, rootLength);
+        } catch (UnsupportedEncodingException e){
             throw new ServiceManagerException(global, SysErrorCode.USER_ILLEGALARGUMENT, "URI could not be parsed:"+servletRequest.getRequestURI());
         }
 
-        //tokenize the URI
-        String[] tokens = requestURI.split(queryRoot);
-        if (tokens.length < 2)
+        if (segments.length == 0)
             throw new ServiceManagerException(global, SysErrorCode.USER_QUERY_INVALID, ME, "Badly formed query, could not identify resources:"+requestURI);
 
-        if (requestURI.charAt(0) != delimiter.toCharArray()[0])
-            throw new ServiceManagerException(global, SysErrorCode.USER_QUERY_INVALID, ME, "Badly formed query, invalid format, first char in path should be '/' in path:["+path+"]");
-
-        queryMethod = MethodName.toMethodName(servletRequest.getMethod());
-
-        HttpParameters httpParameters = null;
-        try {
-            httpParameters = HttpParameters.getInstance(global, servletRequest.getParameterMap());
-        } catch (IOException e) {
-            throw new ServiceManagerException(global, SysErrorCode.USER_QUERY_INVALID, ME, "Could not retrieve parameters in query:"+e);
-
+        MethodName queryMethod = MethodName.toMethodName(servletRequest.getMethod());
+        I_SessionClientProperties parameters = queryParameters(servletRequest, ME);
+        I_SessionClientProperties headers = HttpParameters.getInstanceFromHeader(global, servletRequest);
+
+        String resourceToken = segments[0];
+        String[] tokens = segments.length > 1 ? Arrays.copyOfRange(segments, 1, segments.length) : null;
+        String path = null;
+        RouteTrie trie = routeTrie;
+
+        if (binders.containsKey(resourceToken)) {
+            I_ResourceBinder binder = binders.get(resourceToken);
+            if (binder != null) {
+                I_QueryParser queryParser = binder.bind(queryMethod, resourceToken, tokens, parameters, headers);
+                resourceToken = queryParser.getResource();
+                parameters = queryParser.getParameters();
+            }
+            else if (trie != null)
+                path = trie.resolve(segments, 0, 1);
         }
-        parameters = httpParameters.getProperties();
-
-        headers = HttpParameters.getInstanceFromHeader(global, servletRequest);
-
-        //strip parameters
-        if (tokens[1].contains("?"))
-            tokens[1] = tokens[1].substring(0, tokens[1].indexOf("?"));
-
-        tokens = tokens[1].split("/");
-
-        resourceToken = tokens[1];
-
-        tokens = subarray(tokens, 2);
-
-        switch (resourceToken.toUpperCase()){
-            case "SESSION":
-                break;
-            case "EHR":
-                EhrQueryParser ehrQueryParser = new EhrQueryParser(queryMethod, resourceToken, tokens, parameters, headers);
-                resourceToken = ehrQueryParser.getResource();
-                parameters = ehrQueryParser.getParameters();
-                break;
-            case "COMPOSITION":
-                CompositionQueryParser compositionQueryParser = new CompositionQueryParser(queryMethod, resourceToken, tokens, parameters, headers);
-                resourceToken = compositionQueryParser.getResource();
-                parameters = compositionQueryParser.getParameters();
-                break;
-            case "TEMPLATE":
-                TemplateQueryParser templateQueryParser = new TemplateQueryParser(queryMethod, resourceToken, tokens, parameters, headers);
-                resourceToken = templateQueryParser.getResource();
-                parameters = templateQueryParser.getParameters();
-                break;
-            case "QUERY":
-                break;
-            case "DEMOGRAPHICS":
-                break;
-            case "GUIDE":
-                break;
-            case "SMART":
-                break;
-            case "IMPORT":
-                break;
-            default:
-                //collate tokens
-                if (tokens != null) {
-                    List<String> remainder = Arrays.asList(tokens);
-                    if (!remainder.isEmpty())
-                        resourceToken = resourceToken + "/" + String.join("/", remainder);
-                }
-                break;
-
-
+        else { //collate tokens
+            if (trie != null)
+                path = trie.resolve(segments, 0, segments.length);
+            if (path != null)
+                resourceToken = path.substring(rootPath.length());
+            else
+                resourceToken = join(segments, 0, segments.length);
         }
 
-        requestURI = requestURI.substring(1);
+        if (path == null)
+            path = rootPath + resourceToken;
 
-        this.pathitems = requestURI.split(delimiter);
-        this.path = requestURI;
-
-        if (pathitems.length < 2)
-            throw new ServiceManagerException(global, SysErrorCode.USER_QUERY_INVALID, ME, "Badly formed query, invalid format, this should be at least /service/method in path:["+path+"]");
-    }
-
-    @Override
-    public String identifyPath(){
-//        if (pathitems.length > 1){
-//            StringBuffer res = new StringBuffer();
-//            for (int i = 0; i < pathitems.length; i++) {
-//                res.append(pathitems[i]+"/");
-//            }
-//            //remove trailing '/'
-//            String ret = res.substring(0, res.length() - 1);
-//            return ret;
-//        }
-//        else if (pathitems.length == 1)
-//            return pathitems[0];
-//
-//        return null; //no resource defined
-
-        return queryRoot.substring(1)+"/"+ resourceToken;
-    }
-
-    @Override
-    public String identifyMethod() throws ServiceManagerException {
-        return queryMethod.getMethodName();
+        return new ParsedRequest(segments[0], resourceToken, path, queryMethod.getMethodName(), parameters, headers);
     }
 
     @Override
-    public I_SessionClientProperties identifyParametersAsProperties() {
-        return parameters;
+    public void compileRoutes(Collection<String> routes) {
+        super.compileRoutes(routes);
+        log.info("Compiled "+routeTrie.size()+" routes for query root:"+queryRoot);
     }
 
     @Override
@@ -211,6 +171,7 @@ public class EhrScapeURIParser extends URIParser {
         String compatibilityValue = global.getProperty().get(I_ServiceRunMode.SERVER_DIALECT_PARAMETER, I_ServiceRunMode.DialectSpace.STANDARD.toString());
         dialectSpace =  I_ServiceRunMode.DialectSpace.valueOf(compatibilityValue);
         queryRoot = global.getProperty().get(I_ServiceRunMode.SERVER_DIALECT_ROOT, "/");
+        rootPath = rootPath(queryRoot);
         log.info("EhrScape URI parser service started...");
     }
 }
@@ -16,29 +16,27 @@
  */
 package com.ethercis.vehr.parser;
 
-import com.ethercis.servicemanager.common.I_SessionClientProperties;
 import com.ethercis.servicemanager.exceptions.ServiceManagerException;
 
 import javax.servlet.http.HttpServletRequest;
-import java.util.Map;
+import java.util.Collection;
 
 /**
  * ETHERCIS Project VirtualEhr
  * Created by Christian Chevalley on 7/7/2015.
  */
 public interface I_URIParser {
-    void parse(HttpServletRequest servletRequest) throws ServiceManagerException;
-
-    String identifyService() throws ServiceManagerException;
-
-    String identifyResource();
-
-    String identifyPath();
-
-    String identifyMethod() throws ServiceManagerException;
-
-//    Map<String, String> indentifyParameters();
-
-    I_SessionClientProperties identifyParametersAsProperties();
-
+    /**
+     * parse a request URI and its parameters
+     * @param servletRequest
+     * @return an immutable parse result for this request
+     * @throws ServiceManagerException if the URI is badly formed
+     */
+    ParsedRequest parse(HttpServletRequest servletRequest) throws ServiceManagerException;
+
+    /**
+     * compile the mapped paths used to resolve a request path (f.ex. from the dispatcher map)
+     * @param routes
+     */
+    void compileRoutes(Collection<String> routes);
 }
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2015 Christian Chevalley
+ * This file is part of Project Ethercis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ethercis.vehr.parser;
+
+import com.ethercis.servicemanager.common.I_SessionClientProperties;
+
+/**
+ * ETHERCIS Project VirtualEhr
+ * <p>
+ * Result of a URI parse for a single request. An instance is created per request by
+ * {@link I_URIParser#parse(javax.servlet.http.HttpServletRequest)} and is not modified afterward,
+ * hence the parser service itself remains stateless.
+ */
+public final class ParsedRequest {
+
+    private final String service;
+    private final String resource;
+    private final String path;
+    private final String method;
+    private final I_SessionClientProperties parameters;
+    private final I_SessionClientProperties headers;
+
+    public ParsedRequest(String service, String resource, String path, String method, I_SessionClientProperties parameters, I_SessionClientProperties headers) {
+        this.service = service;
+        this.resource = resource;
+        this.path = path;
+        this.method = method;
+        this.parameters = parameters;
+        this.headers = headers;
+    }
+
+    /**
+     * @return the service token in the path (first segment)
+     */
+    public String getService() {
+        return service;
+    }
+
+    /**
+     * @return the resource identified in the path, may be null
+     */
+    public String getResource() {
+        return resource;
+    }
+
+    /**
+     * @return the path used to resolve the mapped service method
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * @return the method name
+     */
+    public String getMethod() {
+        return method;
+    }
+
+    /**
+     * @return the query parameters, including the ones bound from the path
+     */
+    public I_SessionClientProperties getParameters() {
+        return parameters;
+    }
+
+    /**
+     * @return the request headers as properties, may be null if not resolved by the parser
+     */
+    public I_SessionClientProperties getHeaders() {
+        return headers;
+    }
+
+    @Override
+    public String toString() {
+        return "ParsedRequest [method=" + method + ", path=" + path + ", resource=" + resource + "]";
+    }
+}
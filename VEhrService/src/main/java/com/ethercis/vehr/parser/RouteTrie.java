@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2015 Christian Chevalley
+ * This file is part of Project Ethercis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ethercis.vehr.parser;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * ETHERCIS Project VirtualEhr
+ * <p>
+ * Immutable trie of the mapped service paths (f.ex. <code>rest/v1/ehr/status</code>) as declared
+ * by the <code>@QuerySyntax</code> annotations or the dispatcher map file.<p>
+ * The trie is compiled once, relative to the dialect query root, and is then only read, hence it
+ * can be shared by all requests without synchronization. A lookup walks the path segments and
+ * returns the precompiled route string, no string concatenation is performed when a route matches.
+ */
+public class RouteTrie {
+
+    private static final char DELIMITER = '/';
+
+    static final class Node {
+        private final Map<String, Node> children = new HashMap<>();
+        private String route = null; //full path if this node terminates a mapped path
+
+        Node child(String segment) {
+            return children.get(segment);
+        }
+
+        String getRoute() {
+            return route;
+        }
+    }
+
+    private final Node root = new Node();
+    private final String rootPrefix;
+    private int size = 0;
+
+    /**
+     * compile a trie from a collection of mapped paths
+     * @param queryRoot the dialect root (f.ex. <code>/rest/v1</code>), paths outside this root are ignored
+     * @param routes the mapped paths as registered in the dispatcher (without leading '/')
+     */
+    public RouteTrie(String queryRoot, Collection<String> routes) {
+        this.rootPrefix = rootPrefix(queryRoot);
+
+        if (routes != null) {
+            for (String route : routes)
+                add(route);
+        }
+    }
+
+    /**
+     * normalize a query root into the prefix of the mapped paths
+     * @param queryRoot f.ex. <code>/rest/v1</code> or <code>/</code>
+     * @return the root without leading '/' and with a trailing '/' (f.ex. <code>rest/v1/</code>), empty for the root '/'
+     */
+    public static String rootPrefix(String queryRoot) {
+        String prefix = queryRoot == null ? "" : queryRoot;
+        if (prefix.length() > 0 && prefix.charAt(0) == DELIMITER)
+            prefix = prefix.substring(1);
+        if (prefix.length() > 0 && prefix.charAt(prefix.length() - 1) != DELIMITER)
+            prefix = prefix + DELIMITER;
+        return prefix;
+    }
+
+    private void add(String route) {
+        if (route == null || !route.startsWith(rootPrefix))
+            return;
+
+        Node node = root;
+        int start = rootPrefix.length();
+        int length = route.length();
+
+        while (start < length) {
+            int end = route.indexOf(DELIMITER, start);
+            if (end < 0)
+                end = length;
+            if (end > start) {
+                String segment = route.substring(start, end);
+                Node next = node.children.get(segment);
+                if (next == null) {
+                    next = new Node();
+                    node.children.put(segment, next);
+                }
+                node = next;
+            }
+            start = end + 1;
+        }
+
+        if (node != root && node.route == null) {
+            node.route = route;
+            size++;
+        }
+    }
+
+    /**
+     * return the mapped route matching exactly the segments
+     * @param segments path segments relative to the query root
+     * @param from first segment index (inclusive)
+     * @param to last segment index (exclusive)
+     * @return the precompiled route or null if no route matches
+     */
+    public String resolve(String[] segments, int from, int to) {
+        Node node = root;
+        for (int i = from; i < to && node != null; i++)
+            node = node.child(segments[i]);
+        return node == null ? null : node.getRoute();
+    }
+
+    /**
+     * return the mapped route for a single resource path relative to the query root (f.ex. <code>ehr/status</code>)
+     * @param resource
+     * @return the precompiled route or null if no route matches
+     */
+    public String resolve(String resource) {
+        Node node = root;
+        int start = 0;
+        int length = resource.length();
+
+        while (start < length && node != null) {
+            int end = resource.indexOf(DELIMITER, start);
+            if (end < 0)
+                end = length;
+            if (end > start)
+                node = node.child(resource.substring(start, end));
+            start = end + 1;
+        }
+        return node == null || node == root ? null : node.getRoute();
+    }
+
+    /**
+     * @return the root prefix used to compile the routes (f.ex. <code>rest/v1/</code>)
+     */
+    public String getRootPrefix() {
+        return rootPrefix;
+    }
+
+    /**
+     * @return the number of compiled routes
+     */
+    public int size() {
+        return size;
+    }
+}
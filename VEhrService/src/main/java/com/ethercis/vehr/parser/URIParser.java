@@ -20,13 +20,15 @@ import com.ethercis.servicemanager.cluster.ClusterInfo;
 import com.ethercis.servicemanager.cluster.RunTimeSingleton;
 import com.ethercis.servicemanager.common.HttpParameters;
 import com.ethercis.servicemanager.common.I_SessionClientProperties;
-import com.ethercis.servicemanager.common.def.MethodName;
 import com.ethercis.servicemanager.common.def.SysErrorCode;
 import com.ethercis.servicemanager.exceptions.ServiceManagerException;
 import com.ethercis.servicemanager.runlevel.I_ServiceRunMode;
 
 import javax.servlet.http.HttpServletRequest;
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.Collection;
 
 /**
  * utility class to perform various handling on http request URI
@@ -34,23 +36,20 @@ import java.io.IOException;
  * The request URI generally consists of the following:<p>
  * <code>/service[/resource....]/method</code>
  * <p>
- * the aim of this class is to take the path and return its fields
+ * the aim of this class is to take the path and return its fields. The parser is registered as
+ * a singleton service, it does not keep any request state: each call to parse() returns its own
+ * {@link ParsedRequest}.
  * @author Christian Chevalley
  *
  */
 
 public abstract class URIParser extends ClusterInfo implements I_URIParser {
     protected I_ServiceRunMode.DialectSpace dialectSpace = null;
-    String delimiter = "/"; //simple forward slash delimiter
-    protected String[] pathitems; //array for the split
-    protected String path;
+    static final char delimiter = '/'; //simple forward slash delimiter
     protected RunTimeSingleton global;
 	protected String queryRoot;
-	protected I_SessionClientProperties parameters;
-	protected I_SessionClientProperties headers;
-	protected MethodName queryMethod;
-	protected String resourceToken;
-	
+	protected volatile RouteTrie routeTrie = null;
+
 	/**
 	 * create a new parser for path, check format
 	 * @param global
@@ -67,102 +66,90 @@ public abstract class URIParser extends ClusterInfo implements I_URIParser {
 
 	public URIParser(){}
 
-    @Override
-    public void parse(HttpServletRequest servletRequest) throws ServiceManagerException {
-        String requestURI = servletRequest.getRequestURI();
-
-        requestURI = requestURI.substring(1);
-
-        this.pathitems = requestURI.split(delimiter);
-        this.path = requestURI;
-
-        if (pathitems.length < 2)
-            throw new ServiceManagerException(global, SysErrorCode.USER_QUERY_INVALID, "URIParser", "Badly formed query, invalid format, this should be at least /service/method in path:["+path+"]");
-
-		HttpParameters httpParameters = null;
-		try {
-			httpParameters = HttpParameters.getInstance(global, servletRequest.getParameterMap());
-		} catch (IOException e) {
-			throw new ServiceManagerException(global, SysErrorCode.USER_QUERY_INVALID, "URIParser", "Could not retrieve parameters in query:"+e);
+	/**
+	 * split a URI into its segments starting at offset <code>from</code>. Empty segments are skipped and
+	 * only the segments containing an escape sequence are decoded.
+	 * @param uri
+	 * @param from
+	 * @return the segments, never null
+	 * @throws UnsupportedEncodingException
+	 */
+	static String[] segments(String uri, int from) throws UnsupportedEncodingException {
+		int length = uri.length();
+		int count = 0;
 
+		//first pass: count the segments to allocate the array once
+		for (int start = from; start < length; ) {
+			int end = uri.indexOf(delimiter, start);
+			if (end < 0)
+				end = length;
+			if (end > start)
+				count++;
+			start = end + 1;
 		}
-		parameters = httpParameters.getProperties();
 
-    }
-	
-	/**
-	 * return the mandatory service
-	 * @return
-	 */
-    @Override
-	public String identifyService() throws ServiceManagerException {
-		if (pathitems.length > 1)
-			return pathitems[0];
-		
-		//throws an exception if no service
-		throw new ServiceManagerException(global, SysErrorCode.USER_QUERY_INVALID, "URIParser", "No service in query, invalid format in :["+path+"]");
-	}
-	
-	
-	/**
-	 * return the optional service resource
-	 * @return resource
-	 */
-    @Override
-	public String identifyResource(){
-		if (pathitems.length > 2){
-			StringBuffer res = new StringBuffer();
-			for (int i = 1; i < pathitems.length - 1; i++) {
-				res.append(pathitems[i]+"/");
+		String[] segments = new String[count];
+		int i = 0;
+		for (int start = from; start < length; ) {
+			int end = uri.indexOf(delimiter, start);
+			if (end < 0)
+				end = length;
+			if (end > start) {
+				String segment = uri.substring(start, end);
+				if (segment.indexOf('%') >= 0 || segment.indexOf('+') >= 0)
+					segment = URLDecoder.decode(segment, "UTF-8");
+				segments[i++] = segment;
 			}
-			//remove trailing '/'
-			String ret = res.substring(0, res.length() - 1);
-			return ret;
+			start = end + 1;
 		}
-		
-		return null; //no resource defined
+		return segments;
 	}
-	
+
 	/**
-	 * return the path (e.g. service+optional resource...)
-	 * @return resource
+	 * join segments[from..to[ using the path delimiter
 	 */
-    @Override
-	public String identifyPath(){
-		if (pathitems.length > 1){
-			StringBuffer res = new StringBuffer();
-			for (int i = 0; i < pathitems.length - 1; i++) {
-				res.append(pathitems[i]+"/");
-			}
-			//remove trailing '/'
-			String ret = res.substring(0, res.length() - 1);
-			return ret;
+	static String join(String[] segments, int from, int to) {
+		if (to - from == 1)
+			return segments[from];
+		StringBuilder sb = new StringBuilder();
+		for (int i = from; i < to; i++) {
+			if (i > from)
+				sb.append(delimiter);
+			sb.append(segments[i]);
 		}
-		else if (pathitems.length == 1)
-			return pathitems[0];
-		
-		return null; //no resource defined
-	}	
-	
-	/**
-	 * return method in path
-     * NB. if dialect is EHRSCAPE, method can be unspecified. It is substituted by "unknown" for compatibility purpose
-	 * @return method
-	 * @throws com.ethercis.servicemanager.exceptions.ServiceManagerException if no method found
-	 */
+		return sb.toString();
+	}
+
+	protected I_SessionClientProperties queryParameters(HttpServletRequest servletRequest, String me) throws ServiceManagerException {
+		try {
+			return HttpParameters.getInstance(global, servletRequest.getParameterMap()).getProperties();
+		} catch (IOException e) {
+			throw new ServiceManagerException(global, SysErrorCode.USER_QUERY_INVALID, me, "Could not retrieve parameters in query:"+e);
+		}
+	}
+
     @Override
-	public String identifyMethod() throws ServiceManagerException {
-		
-		String method = pathitems[pathitems.length - 1];
-		
-		if (method == null){
-            if (dialectSpace.equals(I_ServiceRunMode.DialectSpace.EHRSCAPE))
-                method = "unknown";
-            else
-			    throw new ServiceManagerException(global, SysErrorCode.USER_QUERY_INVALID, "PathParser", "No method in query, invalid format for::["+path+"]");
+    public ParsedRequest parse(HttpServletRequest servletRequest) throws ServiceManagerException {
+        String requestURI = servletRequest.getRequestURI();
+		String[] pathitems;
+
+		try {
+			pathitems = segments(requestURI, 0);
+		} catch (UnsupportedEncodingException e){
+			throw new ServiceManagerException(global, SysErrorCode.USER_ILLEGALARGUMENT, "URI could not be parsed:"+requestURI);
 		}
-		
-		return method;
-		
+
+        if (pathitems.length < 2)
+            throw new ServiceManagerException(global, SysErrorCode.USER_QUERY_INVALID, "URIParser", "Badly formed query, invalid format, this should be at least /service/method in path:["+requestURI+"]");
+
+		String resource = pathitems.length > 2 ? join(pathitems, 1, pathitems.length - 1) : null;
+		String path = join(pathitems, 0, pathitems.length - 1);
+
+		return new ParsedRequest(pathitems[0], resource, path, pathitems[pathitems.length - 1], queryParameters(servletRequest, "URIParser"), null);
+    }
+
+	@Override
+	public void compileRoutes(Collection<String> routes) {
+		routeTrie = new RouteTrie(queryRoot, routes);
 	}
 }
@@ -23,6 +23,7 @@ import org.eclipse.jetty.server.Response;
 import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 
 /**
@@ -40,22 +41,47 @@ public abstract class GenericHttpResponse {
 	protected Object response;
 	
 	public GenericHttpResponse(String contenttype, Object response) throws IOException{
+		this(contenttype, response, false);
+	}
+
+	/**
+	 * @param contenttype
+	 * @param response
+	 * @param streamed if true, no writer is allocated and the content is written with {@link #getOutputStream()}
+	 * @throws IOException
+	 */
+	protected GenericHttpResponse(String contenttype, Object response, boolean streamed) throws IOException{
 		this.contentType = contenttype;
 		this.response = response; //for additional settings if needed...
 		
 		if (response instanceof HttpServletResponse){
 			((HttpServletResponse)response).setContentType(contentType);
-			this.writer = ((HttpServletResponse)response).getWriter();
+			if (!streamed)
+				this.writer = ((HttpServletResponse)response).getWriter();
 
 		}
 		else if (response instanceof ServletResponse){
 			((ServletResponse)response).setContentType(contentType);
-			this.writer = ((ServletResponse)response).getWriter();
+			if (!streamed)
+				this.writer = ((ServletResponse)response).getWriter();
 		}
         else if (response instanceof Response){
             log.info("Jetty server response...");
         }
 	}
+
+	/**
+	 * return the raw output stream of the response. The content length is not set, hence the
+	 * container uses a chunked transfer unless {@link #setContentLength(int)} is called before writing.
+	 * @return
+	 * @throws IOException if the response has no output stream
+	 */
+	protected OutputStream getOutputStream() throws IOException {
+		if (response instanceof ServletResponse)
+			return ((ServletResponse)response).getOutputStream();
+
+		throw new IOException("No output stream for response:"+response);
+	}
 	
 	/**
 	 * sets an entry into the HTTP header<p>
@@ -20,25 +20,52 @@ import com.ethercis.servicemanager.common.I_SessionClientProperties;
 import com.ethercis.servicemanager.common.MetaBuilder;
 import com.ethercis.servicemanager.common.def.Constants;
 import com.fasterxml.jackson.databind.util.ISO8601DateFormat;
-import com.fasterxml.jackson.datatype.joda.JodaModule;
 import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.ObjectWriter;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.Map;
 
 /**
- * format a json response
+ * format a json response<p>
+ * The content is serialized directly into the response output stream (chunked transfer) using
+ * writers shared by all responses (ObjectWriter instances are immutable and thread safe).
  * @author Christian Chevalley
  *
  */
 public class JsonHttpResponse extends GenericHttpResponse {
+
+	/**
+	 * query parameter used to request a compact (not indented) json output
+	 */
+	public static final String COMPACT_PARAMETER = "compact";
+
+	private static final ObjectMapper objectMapper = new ObjectMapper();
+	private static final ObjectWriter prettyWriter;
+	private static final ObjectWriter compactWriter;
+
+	static {
+		objectMapper.setDateFormat(new ISO8601DateFormat());
+		prettyWriter = objectMapper.writerWithDefaultPrettyPrinter();
+		compactWriter = objectMapper.writer();
+	}
 	
 	public JsonHttpResponse(Object response) throws IOException{
-		super("application/json;charset=UTF-8", response);
+		super("application/json;charset=UTF-8", response, true);
 	}
 	
 	public void respond(Object data, String path) throws IOException {
+		respond(data, path, false);
+	}
+
+	/**
+	 * serialize data as json into the response
+	 * @param data
+	 * @param path the path used to substitute the URI in meta data
+	 * @param compact if true, the output is not indented
+	 * @throws IOException
+	 */
+	public void respond(Object data, String path, boolean compact) throws IOException {
 
 		//do some substitutions
 		if (data instanceof Map){
@@ -55,13 +82,7 @@ public class JsonHttpResponse extends GenericHttpResponse {
 			}
 		}
 
-		ObjectMapper objectMapper = new ObjectMapper();
-		objectMapper.setDateFormat(new ISO8601DateFormat());
-
-
-		String bodyContent = objectMapper.writerWithDefaultPrettyPrinter().writeValueAsString(data);
-        setContentLength(bodyContent.getBytes().length);
-		writer.println(bodyContent);
-		writer.close();
+		//the generator closes the stream when done
+		(compact ? compactWriter : prettyWriter).writeValue(getOutputStream(), data);
 	}
 }
@@ -30,7 +30,7 @@ import java.io.IOException;
  */
 public class PropertiesHttpResponse extends GenericHttpResponse {
 	public PropertiesHttpResponse(Object response) throws IOException{
-		super("text/plain", response);
+		super("text/plain", response, true);
 	}
 	
 	public void respond(I_SessionClientProperties props){
@@ -39,7 +39,6 @@ public class PropertiesHttpResponse extends GenericHttpResponse {
 		for (String s: props.clientProps2StringMap().keySet()){
 			setHeader(s, props.getClientProperty(s, ""));
 		}
-		writer.println("");
-		writer.close();
+		//no body is written
 	}
 }
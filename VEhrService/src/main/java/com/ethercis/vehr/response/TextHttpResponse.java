@@ -17,20 +17,26 @@
 package com.ethercis.vehr.response;
 
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 
 /**
- * format a text response
+ * format a text response<p>
+ * The text is encoded directly into the response output stream
  * @author Christian Chevalley
  *
  */
 public class TextHttpResponse extends GenericHttpResponse {
 
 	public TextHttpResponse(Object response) throws IOException{
-		super("text/plain;charset=UTF-8", response);
+		super("text/plain;charset=UTF-8", response, true);
 	}
 	
-	public void respond(String data){
-		writer.print(data);
-		writer.close();
+	public void respond(String data) throws IOException {
+		try (Writer out = new OutputStreamWriter(getOutputStream(), StandardCharsets.UTF_8)) {
+			if (data != null)
+				out.write(data);
+		}
 	}
 }
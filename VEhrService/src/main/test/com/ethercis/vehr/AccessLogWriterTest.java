@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2015 Christian Chevalley
+ * This file is part of Project Ethercis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ethercis.vehr;
+
+import com.ethercis.servicemanager.cluster.RunTimeSingleton;
+import com.ethercis.servicemanager.common.SessionClientProperties;
+import junit.framework.TestCase;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+public class AccessLogWriterTest extends TestCase {
+    protected RunTimeSingleton global;
+    protected File directory;
+
+    @Before
+    public void setUp() throws Exception {
+        global = RunTimeSingleton.instance();
+        directory = Files.createTempDirectory("access-log").toFile();
+        global.getProperty().set(AccessLogWriter.PATH_PROPERTY, directory.getAbsolutePath());
+        global.getProperty().set(AccessLogWriter.FORMAT_PROPERTY, "text");
+        global.getProperty().set(AccessLogWriter.BUFFER_SIZE_PROPERTY, "8192");
+        global.getProperty().set(AccessLogWriter.MAX_SIZE_PROPERTY, Long.toString(100L * 1024 * 1024));
+    }
+
+    @Test
+    public void testConcurrentWriters() throws Exception {
+        final AccessLogWriter writer = new AccessLogWriter(global);
+        final SessionClientProperties parameters = new SessionClientProperties(global);
+        parameters.addClientProperty("ehrId", "2179b8c3-4a4c-4e1a-9c25-5c4b2a1f0b1e");
+
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 1000; i++)
+                    writer.access("joe", "get", "rest/v1/ehr", parameters);
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        writer.shutdown();
+
+        List<String> lines = Files.readAllLines(new File(directory, "access.log").toPath(), StandardCharsets.UTF_8);
+        assertEquals(4000, lines.size());
+        assertTrue(lines.get(0).contains("userId=joe,method=get,path=rest/v1/ehr,qryparams={ehrId=2179b8c3-4a4c-4e1a-9c25-5c4b2a1f0b1e;}"));
+        assertTrue(writer.status().contains("dropped=0"));
+    }
+
+    @Test
+    public void testRotation() throws Exception {
+        global.getProperty().set(AccessLogWriter.MAX_SIZE_PROPERTY, "1024");
+        AccessLogWriter writer = new AccessLogWriter(global);
+        for (int i = 0; i < 200; i++) {
+            writer.connect("joe", "connect", "vehr");
+            Thread.sleep(1);
+        }
+        writer.shutdown();
+
+        File[] rotated = directory.listFiles((dir, name) -> name.startsWith("access-") && name.endsWith(".log"));
+        assertNotNull(rotated);
+        assertTrue(rotated.length > 0);
+        assertFalse(writer.status().contains("rotations=0"));
+    }
+}
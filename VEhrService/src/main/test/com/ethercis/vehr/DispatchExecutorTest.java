@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2015 Christian Chevalley
+ * This file is part of Project Ethercis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ethercis.vehr;
+
+import com.ethercis.servicemanager.cluster.RunTimeSingleton;
+import com.ethercis.servicemanager.common.def.SysErrorCode;
+import com.ethercis.servicemanager.exceptions.ServiceManagerException;
+import junit.framework.TestCase;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class DispatchExecutorTest extends TestCase {
+    protected RunTimeSingleton global;
+
+    @Before
+    public void setUp() throws Exception {
+        global = RunTimeSingleton.instance();
+        global.getProperty().set(DispatchExecutor.EXECUTOR_PROPERTY, "fixed");
+        global.getProperty().set(DispatchExecutor.QUEUE_SIZE_PROPERTY, "1");
+        global.getProperty().set(DispatchExecutor.ROUTE_LIMIT_PROPERTY, "0");
+        global.getProperty().set(DispatchExecutor.ROUTE_LIMIT_PROPERTY + ".rest/v1/query", "1");
+    }
+
+    @Test
+    public void testBulkhead() throws Exception {
+        DispatchExecutor executor = new DispatchExecutor(global, 1);
+        executor.compileBulkheads(Arrays.asList("rest/v1/query", "rest/v1/ehr"));
+
+        //unlimited route
+        assertNull(executor.enter("rest/v1/ehr"));
+
+        DispatchExecutor.Bulkhead bulkhead = executor.enter("rest/v1/query");
+        assertNotNull(bulkhead);
+        try {
+            executor.enter("rest/v1/query");
+            fail("route should be saturated");
+        } catch (ServiceManagerException e) {
+            assertEquals(SysErrorCode.RESOURCE_TEMPORARY_UNAVAILABLE, e.getErrorCode());
+        }
+        bulkhead.release();
+        executor.enter("rest/v1/query").release();
+        executor.shutdown();
+    }
+
+    @Test
+    public void testLoadShedding() throws Exception {
+        DispatchExecutor executor = new DispatchExecutor(global, 1);
+        final CountDownLatch latch = new CountDownLatch(1);
+        Runnable blocked = new Runnable() {
+            public void run() {
+                try {
+                    latch.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+
+        //one running, one queued
+        executor.execute(blocked);
+        executor.execute(blocked);
+        try {
+            executor.execute(blocked);
+            fail("executor should be saturated");
+        } catch (ServiceManagerException e) {
+            assertEquals(SysErrorCode.RESOURCE_TEMPORARY_UNAVAILABLE, e.getErrorCode());
+        }
+        assertEquals(1, executor.getRejected());
+
+        latch.countDown();
+        executor.shutdown();
+    }
+}
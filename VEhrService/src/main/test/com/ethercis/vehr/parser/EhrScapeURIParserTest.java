@@ -132,10 +132,10 @@ public class EhrScapeURIParserTest extends TestCase {
         when(request.getHeaderNames()).thenReturn(new IteratorEnumeration<String>(headers.keySet().iterator()));
         when(request.getHeader("Content-Type")).thenReturn("application/json");
         when(request.getMethod()).thenReturn("PUT");
-        uriParser.parse(request);
-        assertEquals("PUT", uriParser.identifyMethod().toUpperCase());
-        assertEquals("rest/v1/ehr/status", uriParser.identifyPath());
-        assertEquals("8fd2bea0-9e0e-11e5-8994-feff819cdc9f", uriParser.identifyParametersAsProperties().getClientProperty("ehrId").toString());
+        ParsedRequest parsedRequest = uriParser.parse(request);
+        assertEquals("PUT", parsedRequest.getMethod().toUpperCase());
+        assertEquals("rest/v1/ehr/status", parsedRequest.getPath());
+        assertEquals("8fd2bea0-9e0e-11e5-8994-feff819cdc9f", parsedRequest.getParameters().getClientProperty("ehrId").toString());
     }
 
     @Test
@@ -152,9 +152,9 @@ public class EhrScapeURIParserTest extends TestCase {
         when(request.getHeaderNames()).thenReturn(new IteratorEnumeration<String>(headers.keySet().iterator()));
         when(request.getHeader("Content-Type")).thenReturn("application/xml");
         when(request.getMethod()).thenReturn("POST");
-        uriParser.parse(request);
-        assertEquals("POST", uriParser.identifyMethod().toUpperCase());
-        assertEquals("XML", uriParser.identifyParametersAsProperties().getClientProperty("format").toString());
+        ParsedRequest parsedRequest = uriParser.parse(request);
+        assertEquals("POST", parsedRequest.getMethod().toUpperCase());
+        assertEquals("XML", parsedRequest.getParameters().getClientProperty("format").toString());
 
 
 //        HttpServletRequest request = mock(HttpServletRequest.class);
@@ -182,11 +182,11 @@ public class EhrScapeURIParserTest extends TestCase {
         when(request.getHeaderNames()).thenReturn(new IteratorEnumeration<String>(headers.keySet().iterator()));
         when(request.getHeader("Accept")).thenReturn("application/json");
         when(request.getMethod()).thenReturn("GET");
-        uriParser.parse(request);
-        assertEquals("GET", uriParser.identifyMethod().toUpperCase());
-        assertEquals("FLAT", uriParser.identifyParametersAsProperties().getClientProperty("format").toString());
+        parsedRequest = uriParser.parse(request);
+        assertEquals("GET", parsedRequest.getMethod().toUpperCase());
+        assertEquals("FLAT", parsedRequest.getParameters().getClientProperty("format").toString());
 //        assertEquals("test%20test", uriParser.identifyParametersAsProperties().getClientProperty("templateId").toString());
-        assertEquals("123456", uriParser.identifyParametersAsProperties().getClientProperty("uid").toString());
+        assertEquals("123456", parsedRequest.getParameters().getClientProperty("uid").toString());
 
         request = mock(HttpServletRequest.class);
         when(request.getRequestURI()).thenReturn("/rest/v1/composition/123456?format=FLAT");
@@ -198,10 +198,10 @@ public class EhrScapeURIParserTest extends TestCase {
         when(request.getHeaderNames()).thenReturn(new IteratorEnumeration<String>(headers.keySet().iterator()));
         when(request.getHeader("Content-Type")).thenReturn("application/json");
         when(request.getMethod()).thenReturn("PUT");
-        uriParser.parse(request);
-        assertEquals("PUT", uriParser.identifyMethod().toUpperCase());
-        assertEquals("FLAT", uriParser.identifyParametersAsProperties().getClientProperty("format").toString());
-        assertEquals("123456", uriParser.identifyParametersAsProperties().getClientProperty("uid").toString());
+        parsedRequest = uriParser.parse(request);
+        assertEquals("PUT", parsedRequest.getMethod().toUpperCase());
+        assertEquals("FLAT", parsedRequest.getParameters().getClientProperty("format").toString());
+        assertEquals("123456", parsedRequest.getParameters().getClientProperty("uid").toString());
 
 
         request = mock(HttpServletRequest.class);
@@ -214,10 +214,10 @@ public class EhrScapeURIParserTest extends TestCase {
         when(request.getHeaderNames()).thenReturn(new IteratorEnumeration<String>(headers.keySet().iterator()));
         when(request.getHeader("Accept")).thenReturn("application/xml");
         when(request.getMethod()).thenReturn("GET");
-        uriParser.parse(request);
-        assertEquals("GET", uriParser.identifyMethod().toUpperCase());
-        assertEquals("8fd2bea0-9e0e-11e5-8994-feff819cdc9f", uriParser.identifyParametersAsProperties().getClientProperty("uid").toString());
-        assertEquals("XML", uriParser.identifyParametersAsProperties().getClientProperty("format").toString());
+        parsedRequest = uriParser.parse(request);
+        assertEquals("GET", parsedRequest.getMethod().toUpperCase());
+        assertEquals("8fd2bea0-9e0e-11e5-8994-feff819cdc9f", parsedRequest.getParameters().getClientProperty("uid").toString());
+        assertEquals("XML", parsedRequest.getParameters().getClientProperty("format").toString());
 
         request = mock(HttpServletRequest.class);
         when(request.getRequestURI()).thenReturn("/rest/v1/composition/8fd2bea0-9e0e-11e5-8994-feff819cdc9f");
@@ -228,10 +228,10 @@ public class EhrScapeURIParserTest extends TestCase {
         when(request.getHeaderNames()).thenReturn(new IteratorEnumeration<String>(headers.keySet().iterator()));
         when(request.getHeader("Content-Type")).thenReturn("application/xml");
         when(request.getMethod()).thenReturn("DELETE");
-        uriParser.parse(request);
-        assertEquals("DELETE", uriParser.identifyMethod().toUpperCase());
-        assertEquals("rest/v1/composition", uriParser.identifyPath());
-        assertEquals("8fd2bea0-9e0e-11e5-8994-feff819cdc9f", uriParser.identifyParametersAsProperties().getClientProperty("uid").toString());
+        parsedRequest = uriParser.parse(request);
+        assertEquals("DELETE", parsedRequest.getMethod().toUpperCase());
+        assertEquals("rest/v1/composition", parsedRequest.getPath());
+        assertEquals("8fd2bea0-9e0e-11e5-8994-feff819cdc9f", parsedRequest.getParameters().getClientProperty("uid").toString());
     }
 
     @Test
@@ -246,9 +246,9 @@ public class EhrScapeURIParserTest extends TestCase {
         when(request.getRequestURI()).thenReturn("/rest/v1/template/reload");
         headers.put("Content-Type", new String[]{"application/xml"});
         when(request.getMethod()).thenReturn("POST");
-        uriParser.parse(request);
-        assertEquals("POST", uriParser.identifyMethod().toUpperCase());
-        assertEquals("rest/v1/template/reload", uriParser.identifyPath());
+        ParsedRequest parsedRequest = uriParser.parse(request);
+        assertEquals("POST", parsedRequest.getMethod().toUpperCase());
+        assertEquals("rest/v1/template/reload", parsedRequest.getPath());
 
         // get a template with templateId = 'template_id'
         request = mock(HttpServletRequest.class);
@@ -261,10 +261,10 @@ public class EhrScapeURIParserTest extends TestCase {
         when(request.getHeaderNames()).thenReturn(new IteratorEnumeration<String>(headers.keySet().iterator()));
         when(request.getHeader("Content-Type")).thenReturn("application/xml");
         when(request.getMethod()).thenReturn("GET");
-        uriParser.parse(request);
-        assertEquals("GET", uriParser.identifyMethod().toUpperCase());
-        assertEquals("rest/v1/template", uriParser.identifyPath());
-        assertEquals("template_id", uriParser.identifyParametersAsProperties().getClientProperty("templateId").toString());
+        parsedRequest = uriParser.parse(request);
+        assertEquals("GET", parsedRequest.getMethod().toUpperCase());
+        assertEquals("rest/v1/template", parsedRequest.getPath());
+        assertEquals("template_id", parsedRequest.getParameters().getClientProperty("templateId").toString());
 
         //get an example for a templateId = 'template_id'
         request = mock(HttpServletRequest.class);
@@ -277,10 +277,10 @@ public class EhrScapeURIParserTest extends TestCase {
         when(request.getHeaderNames()).thenReturn(new IteratorEnumeration<String>(headers.keySet().iterator()));
         when(request.getHeader("Content-Type")).thenReturn("application/xml");
         when(request.getMethod()).thenReturn("GET");
-        uriParser.parse(request);
-        assertEquals("GET", uriParser.identifyMethod().toUpperCase());
-        assertEquals("rest/v1/template/example", uriParser.identifyPath());
-        assertEquals("template_id", uriParser.identifyParametersAsProperties().getClientProperty("templateId").toString());
+        parsedRequest = uriParser.parse(request);
+        assertEquals("GET", parsedRequest.getMethod().toUpperCase());
+        assertEquals("rest/v1/template/example", parsedRequest.getPath());
+        assertEquals("template_id", parsedRequest.getParameters().getClientProperty("templateId").toString());
 
         //get the list of templates
         request = mock(HttpServletRequest.class);
@@ -293,9 +293,9 @@ public class EhrScapeURIParserTest extends TestCase {
         when(request.getHeaderNames()).thenReturn(new IteratorEnumeration<String>(headers.keySet().iterator()));
         when(request.getHeader("Content-Type")).thenReturn("application/xml");
         when(request.getMethod()).thenReturn("GET");
-        uriParser.parse(request);
-        assertEquals("GET", uriParser.identifyMethod().toUpperCase());
-        assertEquals("rest/v1/template", uriParser.identifyPath());
+        parsedRequest = uriParser.parse(request);
+        assertEquals("GET", parsedRequest.getMethod().toUpperCase());
+        assertEquals("rest/v1/template", parsedRequest.getPath());
 
         //delete a template
         request = mock(HttpServletRequest.class);
@@ -308,10 +308,10 @@ public class EhrScapeURIParserTest extends TestCase {
         when(request.getHeaderNames()).thenReturn(new IteratorEnumeration<String>(headers.keySet().iterator()));
         when(request.getHeader("Content-Type")).thenReturn("application/xml");
         when(request.getMethod()).thenReturn("DELETE");
-        uriParser.parse(request);
-        assertEquals("DELETE", uriParser.identifyMethod().toUpperCase());
-        assertEquals("rest/v1/template", uriParser.identifyPath());
-        assertEquals("template_id", uriParser.identifyParametersAsProperties().getClientProperty("templateId").toString());
+        parsedRequest = uriParser.parse(request);
+        assertEquals("DELETE", parsedRequest.getMethod().toUpperCase());
+        assertEquals("rest/v1/template", parsedRequest.getPath());
+        assertEquals("template_id", parsedRequest.getParameters().getClientProperty("templateId").toString());
 
         //post a template
         request = mock(HttpServletRequest.class);
@@ -324,9 +324,9 @@ public class EhrScapeURIParserTest extends TestCase {
         when(request.getHeaderNames()).thenReturn(new IteratorEnumeration<String>(headers.keySet().iterator()));
         when(request.getHeader("Content-Type")).thenReturn("application/xml");
         when(request.getMethod()).thenReturn("POST");
-        uriParser.parse(request);
-        assertEquals("POST", uriParser.identifyMethod().toUpperCase());
-        assertEquals("rest/v1/template", uriParser.identifyPath());
+        parsedRequest = uriParser.parse(request);
+        assertEquals("POST", parsedRequest.getMethod().toUpperCase());
+        assertEquals("rest/v1/template", parsedRequest.getPath());
 
     }
 
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2015 Christian Chevalley
+ * This file is part of Project Ethercis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ethercis.vehr.parser;
+
+import com.ethercis.servicemanager.cluster.RunTimeSingleton;
+import com.ethercis.servicemanager.runlevel.I_ServiceRunMode;
+import junit.framework.TestCase;
+import org.apache.commons.collections4.iterators.IteratorEnumeration;
+import org.junit.Test;
+
+import javax.servlet.http.HttpServletRequest;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class RouteTrieTest extends TestCase {
+
+    private static final RouteTrie trie = new RouteTrie("/rest/v1", Arrays.asList(
+            "rest/v1/ehr",
+            "rest/v1/ehr/status",
+            "rest/v1/ehr/status/other_details",
+            "rest/v1/query",
+            "vehr/query"));
+
+    @Test
+    public void testExactMatch() {
+        assertEquals(4, trie.size());
+        assertEquals("rest/v1/", trie.getRootPrefix());
+        assertEquals("rest/v1/ehr/status", trie.resolve("ehr/status"));
+        assertEquals("rest/v1/ehr/status", trie.resolve(new String[]{"ehr", "status"}, 0, 2));
+        assertEquals("rest/v1/ehr", trie.resolve(new String[]{"ehr", "status"}, 0, 1));
+    }
+
+    @Test
+    public void testLongestPathWins() {
+        //a deeper mapped path takes precedence over its parent
+        assertEquals("rest/v1/ehr/status/other_details", trie.resolve("ehr/status/other_details"));
+        //segments beyond a mapped path do not match the parent
+        assertNull(trie.resolve("ehr/status/1234"));
+        //a path prefix which is not mapped by itself does not match
+        assertNull(new RouteTrie("/rest/v1", Collections.singletonList("rest/v1/ehr/status")).resolve("ehr"));
+    }
+
+    @Test
+    public void testOutsideRoot() {
+        //paths outside the query root are ignored
+        assertNull(trie.resolve("vehr/query"));
+        assertNull(trie.resolve(""));
+        assertNull(trie.resolve("/"));
+    }
+
+    @Test
+    public void testRootPrefix() {
+        assertEquals("", RouteTrie.rootPrefix("/"));
+        assertEquals("", RouteTrie.rootPrefix(null));
+        assertEquals("rest/v1/", RouteTrie.rootPrefix("/rest/v1"));
+        assertEquals("rest/v1/", RouteTrie.rootPrefix("/rest/v1/"));
+
+        RouteTrie rootTrie = new RouteTrie("/", Arrays.asList("ehr/status", "vehr/query"));
+        assertEquals(2, rootTrie.size());
+        assertEquals("vehr/query", rootTrie.resolve("vehr/query"));
+    }
+
+    @Test
+    public void testParseWithRootQueryRoot() throws Exception {
+        RunTimeSingleton global = RunTimeSingleton.instance();
+        global.getProperty().set(I_ServiceRunMode.SERVER_DIALECT_PARAMETER, I_ServiceRunMode.DialectSpace.STANDARD.toString());
+        global.getProperty().set(I_ServiceRunMode.SERVER_DIALECT_ROOT, "/");
+        I_URIParser uriParser = new EhrScapeURIParser(global);
+        uriParser.compileRoutes(Arrays.asList("vehr/query", "vehr/session"));
+
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        when(request.getRequestURI()).thenReturn("/vehr/query");
+        when(request.getParameterMap()).thenReturn(new HashMap<String, String[]>());
+        when(request.getHeaderNames()).thenReturn(new IteratorEnumeration<String>(Collections.<String>emptyIterator()));
+        when(request.getMethod()).thenReturn("POST");
+
+        ParsedRequest parsedRequest = uriParser.parse(request);
+        assertEquals("vehr/query", parsedRequest.getPath());
+        assertEquals("vehr/query", parsedRequest.getResource());
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2015 Christian Chevalley
+ * This file is part of Project Ethercis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ethercis.vehr.parser;
+
+import com.ethercis.servicemanager.cluster.RunTimeSingleton;
+import com.ethercis.servicemanager.common.HttpParameters;
+import com.ethercis.servicemanager.common.I_SessionClientProperties;
+import com.ethercis.servicemanager.common.def.MethodName;
+import com.ethercis.servicemanager.exceptions.ServiceManagerException;
+import com.ethercis.servicemanager.runlevel.I_ServiceRunMode;
+import org.apache.commons.collections4.iterators.IteratorEnumeration;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import javax.servlet.http.HttpServletRequest;
+import java.net.URLDecoder;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Compare the throughput of the legacy (split/decode/switch) URI parsing with the route trie parser.
+ * <p>
+ * Run with: <code>java -cp ... com.ethercis.vehr.parser.URIParserBenchmark</code>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class URIParserBenchmark {
+
+    private static final String[] URIS = {
+            "/rest/v1/ehr/8fd2bea0-9e0e-11e5-8994-feff819cdc9f",
+            "/rest/v1/ehr/status/8fd2bea0-9e0e-11e5-8994-feff819cdc9f/other_details",
+            "/rest/v1/composition/8fd2bea0-9e0e-11e5-8994-feff819cdc9f::test.ethercis.com::1",
+            "/rest/v1/template/IDCR%20-%20Immunisation%20summary.v0/example",
+            "/rest/v1/query",
+            "/rest/v1/identity/user"
+    };
+
+    private static final String[] METHODS = {"GET", "PUT", "GET", "GET", "POST", "POST"};
+
+    private HttpServletRequest[] requests;
+    private LegacyParser legacyParser;
+    private EhrScapeURIParser trieParser;
+    private int index = 0;
+
+    @Setup
+    public void setUp() throws ServiceManagerException {
+        RunTimeSingleton global = RunTimeSingleton.instance();
+        global.getProperty().set(I_ServiceRunMode.SERVER_DIALECT_PARAMETER, I_ServiceRunMode.DialectSpace.EHRSCAPE.toString());
+        global.getProperty().set(I_ServiceRunMode.SERVER_DIALECT_ROOT, "/rest/v1");
+
+        legacyParser = new LegacyParser(global, "/rest/v1");
+        trieParser = new EhrScapeURIParser(global);
+        trieParser.compileRoutes(Arrays.asList(
+                "rest/v1/ehr", "rest/v1/ehr/status", "rest/v1/composition", "rest/v1/template",
+                "rest/v1/template/example", "rest/v1/query", "rest/v1/identity/user"));
+
+        requests = new HttpServletRequest[URIS.length];
+        for (int i = 0; i < URIS.length; i++) {
+            HttpServletRequest request = mock(HttpServletRequest.class);
+            when(request.getRequestURI()).thenReturn(URIS[i]);
+            when(request.getMethod()).thenReturn(METHODS[i]);
+            when(request.getParameterMap()).thenReturn(new HashMap<String, String[]>());
+            Map<String, String[]> headers = new HashMap<>();
+            headers.put("Content-Type", new String[]{"application/json"});
+            when(request.getHeaderNames()).thenAnswer(invocation -> new IteratorEnumeration<String>(headers.keySet().iterator()));
+            when(request.getHeader("Content-Type")).thenReturn("application/json");
+            requests[i] = request;
+        }
+    }
+
+    private HttpServletRequest next() {
+        index = (index + 1) % requests.length;
+        return requests[index];
+    }
+
+    @Benchmark
+    public String legacyParse() throws Exception {
+        return legacyParser.parse(next());
+    }
+
+    @Benchmark
+    public String trieParse() throws Exception {
+        return trieParser.parse(next()).getPath();
+    }
+
+    /**
+     * the parser logic prior to the route trie, kept here for comparison
+     */
+    static class LegacyParser {
+        private final RunTimeSingleton global;
+        private final String queryRoot;
+
+        LegacyParser(RunTimeSingleton global, String queryRoot) {
+            this.global = global;
+            this.queryRoot = queryRoot;
+        }
+
+        String parse(HttpServletRequest servletRequest) throws Exception {
+            String requestURI = URLDecoder.decode(servletRequest.getRequestURI(), "UTF-8");
+            String[] tokens = requestURI.split(queryRoot);
+            MethodName queryMethod = MethodName.toMethodName(servletRequest.getMethod());
+            I_SessionClientProperties parameters = HttpParameters.getInstance(global, servletRequest.getParameterMap()).getProperties();
+            I_SessionClientProperties headers = HttpParameters.getInstanceFromHeader(global, servletRequest);
+
+            if (tokens[1].contains("?"))
+                tokens[1] = tokens[1].substring(0, tokens[1].indexOf("?"));
+            tokens = tokens[1].split("/");
+            String resourceToken = tokens[1];
+            tokens = tokens.length > 2 ? Arrays.copyOfRange(tokens, 2, tokens.length) : null;
+
+            switch (resourceToken.toUpperCase()) {
+                case "EHR":
+                    resourceToken = new EhrQueryParser(queryMethod, resourceToken, tokens, parameters, headers).getResource();
+                    break;
+                case "COMPOSITION":
+                    resourceToken = new CompositionQueryParser(queryMethod, resourceToken, tokens, parameters, headers).getResource();
+                    break;
+                case "TEMPLATE":
+                    resourceToken = new TemplateQueryParser(queryMethod, resourceToken, tokens, parameters, headers).getResource();
+                    break;
+                case "SESSION":
+                case "QUERY":
+                case "DEMOGRAPHICS":
+                case "GUIDE":
+                case "SMART":
+                case "IMPORT":
+                    break;
+                default:
+                    if (tokens != null)
+                        resourceToken = resourceToken + "/" + String.join("/", tokens);
+                    break;
+            }
+
+            String[] pathitems = requestURI.substring(1).split("/");
+            if (pathitems.length < 2)
+                throw new IllegalArgumentException("Badly formed query");
+
+            return queryRoot.substring(1) + "/" + resourceToken;
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(URIParserBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}